@@ -0,0 +1,241 @@
+package cl.alma.onedocument;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import com.mongodb.DBObject;
+
+/**
+ * StorageBackend that serves the months archived by {@link MonthArchiver} 
+ * from their {@link SegmentArchive} and delegates the other months to the 
+ * cluster. The archived months are read only.
+ */
+public class ArchivingStorageBackend implements StorageBackend {
+
+	// Time to wait before checking again if a closed month was archived
+	private static final long MISS_TIMEOUT = 60000L;
+
+	private final StorageBackend delegate;
+	private final File directory;
+	private final ConcurrentMap<String, SegmentArchive> archives = 
+			new ConcurrentHashMap<String, SegmentArchive>();
+	private final ConcurrentMap<String, Long> misses = 
+			new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * Instantiates an ArchivingStorageBackend object
+	 * 
+	 * @param delegate Storage of the months that are not archived
+	 * @param directory Directory of the archives
+	 */
+	public ArchivingStorageBackend(StorageBackend delegate, File directory) {
+		this.delegate = delegate;
+		this.directory = directory;
+	}
+
+	public StorageBackend getDelegate() {
+		return delegate;
+	}
+
+	/**
+	 * Returns the archive of the document's month or null if the month is 
+	 * not archived
+	 * 
+	 * @param id Document id
+	 * @return
+	 */
+	public SegmentArchive getArchive(DocumentID id) {
+		// The current month is never archived
+		if (!MonthArchiver.isClosed(id.getMonth(), id.getYear()))
+			return null;
+
+		String name = COLLECTION_PREFIX + Integer.toString(id.getMonth()) + 
+				"_" + Integer.toString(id.getYear());
+
+		SegmentArchive archive = archives.get(name);
+		if (archive!=null)
+			return archive;
+
+		Long miss = misses.get(name);
+		if (miss!=null && System.currentTimeMillis()-miss<MISS_TIMEOUT)
+			return null;
+
+		if (!SegmentArchive.exists(directory, name)) {
+			misses.put(name, System.currentTimeMillis());
+			return null;
+		}
+
+		try {
+			archive = new SegmentArchive(directory, name);
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot open the archive "+name, e);
+		}
+
+		SegmentArchive previous = archives.putIfAbsent(name, archive);
+		if (previous!=null) {
+			close(archive);
+			return previous;
+		}
+		misses.remove(name);
+		return archive;
+	}
+
+	@Override
+	public String getCollectionName(DocumentID id) {
+		SegmentArchive archive = getArchive(id);
+		if (archive!=null)
+			return archive.getName();
+
+		return delegate.getCollectionName(id);
+	}
+
+	@Override
+	public boolean isDocumentCreated(DocumentID id) {
+		SegmentArchive archive = getArchive(id);
+		if (archive==null)
+			return delegate.isDocumentCreated(id);
+
+		try {
+			return archive.contains(id.toString());
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot read the archive "+archive.getName(), e);
+		}
+	}
+
+	@Override
+	public List<String> findDocumentIds(int year, int month, int day) {
+		SegmentArchive archive = getArchive(new DocumentID(year, month, day,
+				null, null, null));
+		if (archive==null)
+			return delegate.findDocumentIds(year, month, day);
+
+		try {
+			List<String> ids = new ArrayList<String>();
+			for (String prefix : DocumentID.dayPrefixes(year, month, day)) {
+				ids.addAll(archive.findIds(prefix));
+			}
+			return ids;
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot read the archive "+archive.getName(), e);
+		}
+	}
+
+	@Override
+	public Iterator<DBObject> findDocuments(int year, int month, int day) {
+		SegmentArchive archive = getArchive(new DocumentID(year, month, 
+				day, null, null, null));
+		if (archive==null)
+			return delegate.findDocuments(year, month, day);
+
+		return readDocuments(archive, findDocumentIds(year, month, day));
+	}
+
+	@Override
+	public Iterator<DBObject> findDocuments(int year, int month, 
+			List<String> prefixes, Pattern idPattern) {
+		SegmentArchive archive = getArchive(new DocumentID(year, month, 1,
+				null, null, null));
+		if (archive==null)
+			return delegate.findDocuments(year, month, prefixes, idPattern);
+
+		try {
+			List<String> ids = new ArrayList<String>();
+			for (String prefix : prefixes) {
+				for (String id : archive.findIds(prefix)) {
+					if (idPattern.matcher(id).find())
+						ids.add(id);
+				}
+			}
+			return readDocuments(archive, ids);
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot read the archive "+archive.getName(), e);
+		}
+	}
+
+	/**
+	 * Returns the documents of the archive, they are read one by one
+	 */
+	private static Iterator<DBObject> readDocuments(final SegmentArchive archive,
+			List<String> documentIds) {
+		final Iterator<String> ids = documentIds.iterator();
+		return new Iterator<DBObject>() {
+			@Override
+			public boolean hasNext() {
+				return ids.hasNext();
+			}
+
+			@Override
+			public DBObject next() {
+				if (!ids.hasNext())
+					throw new NoSuchElementException();
+
+				String id = ids.next();
+				try {
+					return archive.findOne(id);
+				} catch (IOException e) {
+					throw new IllegalStateException("Cannot read the archive "+archive.getName(), e);
+				}
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	@Override
+	public DBObject findOne(DocumentID id) {
+		SegmentArchive archive = getArchive(id);
+		if (archive==null)
+			return delegate.findOne(id);
+
+		try {
+			return archive.findOne(id.toString());
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot read the archive "+archive.getName(), e);
+		}
+	}
+
+	@Override
+	public void insert(DocumentID id, DBObject document) {
+		checkWritable(id);
+		delegate.insert(id, document);
+	}
+
+	@Override
+	public void upsert(DocumentID id, DBObject query, DBObject update) {
+		checkWritable(id);
+		delegate.upsert(id, query, update);
+	}
+
+	@Override
+	public void close() {
+		for (SegmentArchive archive : archives.values()) {
+			close(archive);
+		}
+		archives.clear();
+		delegate.close();
+	}
+
+	private void checkWritable(DocumentID id) {
+		SegmentArchive archive = getArchive(id);
+		if (archive!=null)
+			throw new IllegalStateException("The month is archived: "+archive.getName());
+	}
+
+	private static void close(SegmentArchive archive) {
+		try {
+			archive.close();
+		} catch (IOException e) {
+			// Nothing to do, the archive is read only
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package cl.alma.onedocument;
+
+import org.apache.log4j.Logger;
+
+import cl.alma.onedocument.SequenceBarrier.AlertException;
+
+/**
+ * Consumer thread of a {@link RingBuffer} stage. Each time the barrier 
+ * releases slots, the processor hands every slot available since its last 
+ * read to the handler and then advances its sequence once per batch.
+ * 
+ * @param <E> Slot type
+ */
+public class BatchEventProcessor<E> implements Runnable {
+
+	private static final Logger log = Logger.getLogger(BatchEventProcessor.class);
+	private static final ErrorReporter errorReporter = new ErrorReporter(log);
+
+	private final RingBuffer<E> ringBuffer;
+	private final SequenceBarrier barrier;
+	private final EventHandler<E> handler;
+	private final Sequence sequence = new Sequence();
+	private volatile boolean running = true;
+
+	/**
+	 * Instantiates a BatchEventProcessor object
+	 * 
+	 * @param ringBuffer Ring buffer to read
+	 * @param barrier Barrier of the stage
+	 * @param handler Handler of the slots
+	 */
+	public BatchEventProcessor(RingBuffer<E> ringBuffer, SequenceBarrier barrier,
+			EventHandler<E> handler) {
+		this.ringBuffer = ringBuffer;
+		this.barrier = barrier;
+		this.handler = handler;
+	}
+
+	public Sequence getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Stops the processor after the current batch
+	 */
+	public void halt() {
+		running = false;
+		barrier.alert();
+	}
+
+	@Override
+	public void run() {
+		long next = sequence.get() + 1;
+
+		while (running) {
+			try {
+				long available = barrier.waitFor(next);
+
+				while (next<=available) {
+					try {
+						handler.onEvent(ringBuffer.get(next), next, next==available);
+					} catch (Exception e) {
+						errorReporter.report(e);
+					}
+					next++;
+				}
+
+				sequence.set(available);
+
+			} catch (AlertException e) {
+				if (!running)
+					break;
+			}
+		}
+	}
+}
@@ -0,0 +1,436 @@
+package cl.alma.onedocument;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.bson.types.ObjectId;
+
+import com.mongodb.DBObject;
+
+/**
+ * ByteBoundedQueue is the handoff between {@link Query} and the
+ * {@link MongoManager} consumers bounded by the estimated bytes of the
+ * records in the queue instead of their number, so the memory used by the
+ * queue does not depend on the size of the monitor values. <br/>
+ * The producers wait while the queue is full. A record larger than the
+ * capacity is accepted when the queue is empty, so it never blocks the
+ * pipeline. The size of each record is estimated once, when it is added,
+ * see {@link #estimateSize(DBObject)}. This class is thread safe.
+ */
+public class ByteBoundedQueue extends AbstractQueue<DBObject>
+		implements BlockingQueue<DBObject> {
+
+	// Estimated heap sizes of a 64-bit JVM with compressed references
+	private static final int OBJECT_OVERHEAD = 16;
+	private static final int STRING_OVERHEAD = 40;
+	// A LinkedHashMap entry of a BasicDBObject
+	private static final int ENTRY_OVERHEAD = 40;
+	private static final int BOXED_SIZE = 16;
+	private static final int RECORD_SIZE = 48;
+
+	/**
+	 * A record and its estimated size
+	 */
+	private static final class Entry {
+		final DBObject object;
+		final long size;
+
+		Entry(DBObject object, long size) {
+			this.object = object;
+			this.size = size;
+		}
+	}
+
+	private final long capacity;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+
+	// Guarded by lock
+	private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+	private long bytes = 0;
+	private long peakBytes = 0;
+	private long putCount = 0;
+	private long blockedCount = 0;
+	private long blockedNanos = 0;
+	private long rejectedCount = 0;
+
+	/**
+	 * Instantiates a ByteBoundedQueue object
+	 *
+	 * @param capacity Maximum estimated bytes of the records in the queue
+	 */
+	public ByteBoundedQueue(long capacity) {
+		if (capacity<=0)
+			throw new IllegalArgumentException("The capacity must be positive");
+
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Returns the estimated heap size of a record. The strings of a
+	 * {@link LegacyRecord} other than the monitor value are shared between
+	 * the records, so they are not counted.
+	 *
+	 * @param object
+	 * @return Size in bytes
+	 */
+	public static long estimateSize(DBObject object) {
+		if (object instanceof LegacyRecord)
+			return RECORD_SIZE + estimateValue(((LegacyRecord) object).getMonitorValue());
+
+		long size = OBJECT_OVERHEAD;
+		for (String key : object.keySet()) {
+			size += ENTRY_OVERHEAD + estimateValue(key) + estimateValue(object.get(key));
+		}
+		return size;
+	}
+
+	private static long estimateValue(Object value) {
+		if (value==null)
+			return 0;
+		if (value instanceof String)
+			return STRING_OVERHEAD + 2L*((String) value).length();
+		if (value instanceof DBObject)
+			return estimateSize((DBObject) value);
+		if (value instanceof byte[])
+			return OBJECT_OVERHEAD + ((byte[]) value).length;
+		if (value instanceof Date || value instanceof ObjectId)
+			return BOXED_SIZE + 8;
+		return BOXED_SIZE;
+	}
+
+	/**
+	 * Adds a record if there is room without waiting
+	 */
+	@Override
+	public boolean offer(DBObject object) {
+		Entry entry = newEntry(object);
+		lock.lock();
+		try {
+			if (!fits(entry)) {
+				rejectedCount++;
+				return false;
+			}
+			enqueue(entry);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void put(DBObject object) throws InterruptedException {
+		Entry entry = newEntry(object);
+		lock.lockInterruptibly();
+		try {
+			if (!fits(entry)) {
+				long start = System.nanoTime();
+				blockedCount++;
+				try {
+					while (!fits(entry)) {
+						notFull.await();
+					}
+				} finally {
+					blockedNanos += System.nanoTime()-start;
+				}
+			}
+			enqueue(entry);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean offer(DBObject object, long timeout, TimeUnit unit)
+			throws InterruptedException {
+		Entry entry = newEntry(object);
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			if (!fits(entry)) {
+				long start = System.nanoTime();
+				blockedCount++;
+				try {
+					while (!fits(entry)) {
+						if (nanos<=0) {
+							rejectedCount++;
+							return false;
+						}
+						nanos = notFull.awaitNanos(nanos);
+					}
+				} finally {
+					blockedNanos += System.nanoTime()-start;
+				}
+			}
+			enqueue(entry);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public DBObject take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (entries.isEmpty()) {
+				notEmpty.await();
+			}
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public DBObject poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (entries.isEmpty()) {
+				if (nanos<=0)
+					return null;
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public DBObject poll() {
+		lock.lock();
+		try {
+			return entries.isEmpty() ? null : dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public DBObject peek() {
+		lock.lock();
+		try {
+			return entries.isEmpty() ? null : entries.peek().object;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.lock();
+		try {
+			return entries.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Iterates a copy of the records in the queue
+	 */
+	@Override
+	public Iterator<DBObject> iterator() {
+		List<DBObject> objects = new ArrayList<DBObject>();
+		lock.lock();
+		try {
+			for (Entry entry : entries) {
+				objects.add(entry.object);
+			}
+		} finally {
+			lock.unlock();
+		}
+		return objects.iterator();
+	}
+
+	/**
+	 * The capacity is in bytes, see {@link #getRemainingBytes()}. Returns 0
+	 * when no record can be added without waiting, otherwise 
+	 * Integer.MAX_VALUE because the number of records that fit depends on
+	 * their size.
+	 */
+	@Override
+	public int remainingCapacity() {
+		lock.lock();
+		try {
+			return !entries.isEmpty() && bytes>=capacity ? 0 : Integer.MAX_VALUE;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int drainTo(Collection<? super DBObject> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super DBObject> c, int maxElements) {
+		if (c==this)
+			throw new IllegalArgumentException("Cannot drain a queue into itself");
+
+		lock.lock();
+		try {
+			int count = 0;
+			while (count<maxElements && !entries.isEmpty()) {
+				c.add(dequeue());
+				count++;
+			}
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the estimated bytes of the records in the queue
+	 * @return
+	 */
+	public long getBytes() {
+		lock.lock();
+		try {
+			return bytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the estimated bytes that can be added without waiting
+	 * @return
+	 */
+	public long getRemainingBytes() {
+		lock.lock();
+		try {
+			return Math.max(0, capacity-bytes);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the maximum estimated bytes of the queue since the creation
+	 * @return
+	 */
+	public long getPeakBytes() {
+		lock.lock();
+		try {
+			return peakBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of records added since the creation
+	 * @return
+	 */
+	public long getPutCount() {
+		lock.lock();
+		try {
+			return putCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of puts and timed offers that had to wait
+	 * @return
+	 */
+	public long getBlockedCount() {
+		lock.lock();
+		try {
+			return blockedCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the time the producers waited for room, in milliseconds
+	 * @return
+	 */
+	public long getBlockedMillis() {
+		lock.lock();
+		try {
+			return TimeUnit.NANOSECONDS.toMillis(blockedNanos);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of offers that were rejected or timed out
+	 * @return
+	 */
+	public long getRejectedCount() {
+		lock.lock();
+		try {
+			return rejectedCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		lock.lock();
+		try {
+			return "ByteBoundedQueue: " + entries.size() + " records, " + bytes +
+					" of " + capacity + " bytes, peak " + peakBytes + " bytes, " +
+					blockedCount + " blocked puts in " +
+					TimeUnit.NANOSECONDS.toMillis(blockedNanos) + " ms, " +
+					rejectedCount + " rejected offers";
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static Entry newEntry(DBObject object) {
+		if (object==null)
+			throw new NullPointerException();
+
+		return new Entry(object, estimateSize(object));
+	}
+
+	/**
+	 * A record fits if there is room or the queue is empty
+	 */
+	private boolean fits(Entry entry) {
+		return entries.isEmpty() || bytes+entry.size<=capacity;
+	}
+
+	private void enqueue(Entry entry) {
+		entries.add(entry);
+		bytes += entry.size;
+		peakBytes = Math.max(peakBytes, bytes);
+		putCount++;
+		notEmpty.signal();
+	}
+
+	private DBObject dequeue() {
+		Entry entry = entries.poll();
+		bytes -= entry.size;
+		// Several small records may fit in the room of a large one
+		notFull.signalAll();
+		return entry.object;
+	}
+}
@@ -0,0 +1,186 @@
+package cl.alma.onedocument;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ChangeFilter implements the "change-only" storage: a sample is written 
+ * only when its value differs from the last written value of the same 
+ * document, or when the heartbeat period has passed since the last write. 
+ * The slots that are not written keep their placeholder, and a reader must 
+ * carry forward the last written value. <br/>
+ * The state is one small entry per monitor point, replaced when the day of 
+ * the document changes, so the first sample of each document is always 
+ * written. The filter expects the samples of a document in chronological 
+ * order; a sample that is not newer than the last seen one is always 
+ * written, but a reader carries its value forward over the suppressed 
+ * slots after it, so the input must be ordered, e.g., by the 
+ * {@link ReorderBuffer}, the backfill or the external sort. This class is 
+ * thread safe.
+ */
+public class ChangeFilter {
+
+	public static final int DEFAULT_HEARTBEAT = 600;
+
+	private final int heartbeat;
+	private final ConcurrentMap<String, Entry> entries = 
+			new ConcurrentHashMap<String, Entry>();
+
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong suppressed = new AtomicLong();
+
+	/**
+	 * Instantiates a ChangeFilter object with a heartbeat of 
+	 * {@link #DEFAULT_HEARTBEAT} seconds
+	 */
+	public ChangeFilter() {
+		this(DEFAULT_HEARTBEAT);
+	}
+
+	/**
+	 * Instantiates a ChangeFilter object
+	 * 
+	 * @param heartbeat Maximum time in seconds, of sample time, between two
+	 * writes of the same document
+	 */
+	public ChangeFilter(int heartbeat) {
+		if (heartbeat<1)
+			throw new IllegalArgumentException("Heartbeat must be positive");
+
+		this.heartbeat = heartbeat;
+	}
+
+	/**
+	 * Returns true if the sample must be written
+	 * 
+	 * @param sample
+	 * @return
+	 */
+	public boolean accept(Sample sample) {
+		DocumentID id = sample.getMetadata().getDocumentID();
+		int day = (id.getYear()*100 + id.getMonth())*100 + id.getDay();
+		int time = (sample.getHour()*60 + sample.getMinute())*60 + sample.getSecond();
+
+		Entry entry = entries.get(id.getMonitorPointKey());
+		if (entry==null) {
+			entry = new Entry();
+			Entry previous = entries.putIfAbsent(id.getMonitorPointKey(), entry);
+			if (previous!=null)
+				entry = previous;
+		}
+
+		boolean write;
+		synchronized (entry) {
+			if (entry.day!=day) {
+				// First sample of the document
+				entry.day = day;
+				write = true;
+			} else if (time<=entry.lastSeen) {
+				// Late sample, it cannot be compared
+				accepted.incrementAndGet();
+				return true;
+			} else {
+				write = !entry.sameValue(sample) || time - entry.lastWritten>=heartbeat;
+			}
+
+			entry.lastSeen = time;
+			if (write) {
+				entry.lastWritten = time;
+				entry.setValue(sample);
+			}
+		}
+
+		if (write) {
+			accepted.incrementAndGet();
+		} else {
+			suppressed.incrementAndGet();
+		}
+		return write;
+	}
+
+	/**
+	 * Returns the samples of a chronological list that must be written
+	 * 
+	 * @param samples
+	 * @return
+	 */
+	public List<Sample> filter(List<Sample> samples) {
+		List<Sample> result = new ArrayList<Sample>(samples.size());
+		for (Sample sample : samples) {
+			if (accept(sample))
+				result.add(sample);
+		}
+		return result;
+	}
+
+	public int getHeartbeat() {
+		return heartbeat;
+	}
+
+	/**
+	 * Returns the number of samples that had to be written
+	 * @return
+	 */
+	public long getAcceptedCount() {
+		return accepted.get();
+	}
+
+	/**
+	 * Returns the number of samples that were not written
+	 * @return
+	 */
+	public long getSuppressedCount() {
+		return suppressed.get();
+	}
+
+	/**
+	 * Last written value of a monitor point. The numeric and boolean 
+	 * values are kept as raw bits.
+	 */
+	private static class Entry {
+		int day = -1;
+		int lastSeen;
+		int lastWritten;
+		ValueType type;
+		long bits;
+		String text;
+
+		boolean sameValue(Sample sample) {
+			if (sample.getValueType()!=type)
+				return false;
+
+			switch (type) {
+			case DOUBLE:
+				return Double.doubleToLongBits(sample.getDoubleValue())==bits;
+			case LONG:
+				return sample.getLongValue()==bits;
+			case BOOLEAN:
+				return (sample.getBooleanValue() ? 1 : 0)==bits;
+			default:
+				String value = sample.getValue();
+				return value==null ? text==null : value.equals(text);
+			}
+		}
+
+		void setValue(Sample sample) {
+			type = sample.getValueType();
+			text = null;
+			switch (type) {
+			case DOUBLE:
+				bits = Double.doubleToLongBits(sample.getDoubleValue());
+				break;
+			case LONG:
+				bits = sample.getLongValue();
+				break;
+			case BOOLEAN:
+				bits = sample.getBooleanValue() ? 1 : 0;
+				break;
+			default:
+				text = sample.getValue();
+			}
+		}
+	}
+}
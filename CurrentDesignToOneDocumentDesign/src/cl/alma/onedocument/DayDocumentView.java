@@ -0,0 +1,585 @@
+package cl.alma.onedocument;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.BSONCallback;
+import org.bson.BSONObject;
+
+import com.mongodb.DBCallback;
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.util.JSON;
+
+/**
+ * DayDocumentView reads a document straight from its BSON bytes, without
+ * decoding the 86400 fields of "hourly" into nested maps. The offsets of
+ * the hours are indexed on the first access, and the offsets of the
+ * minutes of an hour on the first access to that hour, so reading a value
+ * only parses the fields on its path. {@link #toDoubleArray()} walks the
+ * bytes once. <br/>
+ * It is a read only DBObject: the other fields are decoded when they are
+ * read. Use {@link #FACTORY} to read the documents of a cursor as views:
+ * <pre>
+ * collection.find(query).setDecoderFactory(DayDocumentView.FACTORY);
+ * </pre>
+ * An instance is not thread safe.
+ */
+public class DayDocumentView implements DBObject {
+
+	public static final DBDecoderFactory FACTORY = new DBDecoderFactory() {
+		@Override
+		public DBDecoder create() {
+			return new Decoder();
+		}
+	};
+
+	public static final int SECONDS_PER_DAY = 86400;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// BSON types
+	private static final byte DOUBLE = 0x01;
+	private static final byte STRING = 0x02;
+	private static final byte OBJECT = 0x03;
+	private static final byte ARRAY = 0x04;
+	private static final byte BINARY = 0x05;
+	private static final byte UNDEFINED = 0x06;
+	private static final byte OBJECT_ID = 0x07;
+	private static final byte BOOLEAN = 0x08;
+	private static final byte DATE = 0x09;
+	private static final byte NULL = 0x0A;
+	private static final byte REGEX = 0x0B;
+	private static final byte DB_POINTER = 0x0C;
+	private static final byte CODE = 0x0D;
+	private static final byte SYMBOL = 0x0E;
+	private static final byte CODE_W_SCOPE = 0x0F;
+	private static final byte INT32 = 0x10;
+	private static final byte TIMESTAMP = 0x11;
+	private static final byte INT64 = 0x12;
+	private static final byte MIN_KEY = (byte) 0xFF;
+	private static final byte MAX_KEY = 0x7F;
+
+	private static final byte[] HOURLY = "hourly".getBytes(UTF8);
+	private static final int NOT_FOUND = -1;
+
+	private final byte[] bytes;
+	private final int length;
+
+	// Offsets of the elements, built on demand
+	private int hourly = 0;
+	private int[] hours;
+	private int[][] minutes;
+
+	/**
+	 * Instantiates a DayDocumentView object over the bytes of a document,
+	 * they are not copied and must not change
+	 *
+	 * @param bytes BSON document
+	 */
+	public DayDocumentView(byte[] bytes) {
+		if (bytes.length<5)
+			throw new IllegalArgumentException("Invalid document length: "+bytes.length);
+
+		this.bytes = bytes;
+		this.length = int32(bytes, 0);
+		if (length<5 || length>bytes.length || bytes[length-1]!=0)
+			throw new IllegalArgumentException("Invalid document length: "+length);
+	}
+
+	/**
+	 * Returns the bytes of the document
+	 * @return
+	 */
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Returns the "_id" of the document, or null if it is not a string
+	 * @return
+	 */
+	public String getId() {
+		int element = find(0, "_id".getBytes(UTF8));
+		if (element==NOT_FOUND || bytes[element]!=STRING)
+			return null;
+
+		return readString(valueOffset(element));
+	}
+
+	/**
+	 * Returns the number of hours of the document, the hours of a document
+	 * of several days continue after 23, see {@link Granularity}
+	 * @return
+	 */
+	public int getHourCount() {
+		indexHours();
+		return hours.length;
+	}
+
+	/**
+	 * Returns the value of a second, or null if the document does not have
+	 * it. The placeholders are returned as they are, see
+	 * {@link MongoManager#isPlaceholder(Object)}.
+	 *
+	 * @param hour
+	 * @param minute
+	 * @param second
+	 * @return
+	 */
+	public Object getValue(int hour, int minute, int second) {
+		int element = findSecond(hour, minute, second);
+		return element==NOT_FOUND ? null : readValue(element);
+	}
+
+	/**
+	 * Returns the numeric value of a second, or NaN if the document does
+	 * not have it, it is a placeholder or it is not a number
+	 *
+	 * @param hour
+	 * @param minute
+	 * @param second
+	 * @return
+	 */
+	public double getDouble(int hour, int minute, int second) {
+		int element = findSecond(hour, minute, second);
+		return element==NOT_FOUND ? Double.NaN : readDouble(element);
+	}
+
+	/**
+	 * Returns the numeric values of the hours 0 to 23, indexed by the
+	 * second of the day, see {@link #toDoubleArray(int)}
+	 * @return
+	 */
+	public double[] toDoubleArray() {
+		return toDoubleArray(0);
+	}
+
+	/**
+	 * Returns the numeric values of a day of the document, indexed by the
+	 * second of the day. The missing seconds, the placeholders and the
+	 * values that are not numbers are NaN.
+	 *
+	 * @param firstHour First hour of the day, i.e., 24 for the second day
+	 * of a week document
+	 * @return
+	 */
+	public double[] toDoubleArray(int firstHour) {
+		double[] values = new double[SECONDS_PER_DAY];
+		Arrays.fill(values, Double.NaN);
+
+		int hourly = findHourly();
+		if (hourly==NOT_FOUND)
+			return values;
+
+		int hourEnd = documentEnd(hourly);
+		for (int h=firstElement(hourly); h<hourEnd; h=nextElement(h)) {
+			int hour = parseKey(h) - firstHour;
+			if (hour<0 || hour>=24 || bytes[h]!=OBJECT)
+				continue;
+
+			int minutesDoc = valueOffset(h);
+			int minuteEnd = documentEnd(minutesDoc);
+			for (int m=firstElement(minutesDoc); m<minuteEnd; m=nextElement(m)) {
+				int minute = parseKey(m);
+				if (minute<0 || minute>59 || bytes[m]!=OBJECT)
+					continue;
+
+				int secondsDoc = valueOffset(m);
+				int secondEnd = documentEnd(secondsDoc);
+				for (int s=firstElement(secondsDoc); s<secondEnd; s=nextElement(s)) {
+					int second = parseKey(s);
+					if (second>=0 && second<=59)
+						values[(hour*60 + minute)*60 + second] = readDouble(s);
+				}
+			}
+		}
+		return values;
+	}
+
+	@Override
+	public Object get(String key) {
+		int element = find(0, key.getBytes(UTF8));
+		return element==NOT_FOUND ? null : readValue(element);
+	}
+
+	@Override
+	public boolean containsField(String key) {
+		return find(0, key.getBytes(UTF8))!=NOT_FOUND;
+	}
+
+	@Deprecated
+	@Override
+	public boolean containsKey(String key) {
+		return containsField(key);
+	}
+
+	@Override
+	public Set<String> keySet() {
+		Set<String> keys = new LinkedHashSet<String>();
+		for (int e=firstElement(0); e<length-1; e=nextElement(e)) {
+			keys.add(readCString(e+1));
+		}
+		return keys;
+	}
+
+	/**
+	 * Decodes the whole document
+	 */
+	@SuppressWarnings("rawtypes")
+	@Override
+	public Map toMap() {
+		return new DefaultDBDecoder().decode(bytes, (DBCollection) null).toMap();
+	}
+
+	@Override
+	public Object put(String key, Object v) {
+		throw new UnsupportedOperationException("DayDocumentView is read only");
+	}
+
+	@Override
+	public void putAll(BSONObject o) {
+		throw new UnsupportedOperationException("DayDocumentView is read only");
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void putAll(Map m) {
+		throw new UnsupportedOperationException("DayDocumentView is read only");
+	}
+
+	@Override
+	public Object removeField(String key) {
+		throw new UnsupportedOperationException("DayDocumentView is read only");
+	}
+
+	@Override
+	public void markAsPartialObject() {
+	}
+
+	@Override
+	public boolean isPartialObject() {
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return JSON.serialize(this);
+	}
+
+	/**
+	 * Returns the offset of the element of a second, or NOT_FOUND
+	 */
+	private int findSecond(int hour, int minute, int second) {
+		indexHours();
+		if (hour<0 || hour>=hours.length || minute<0 || minute>59 ||
+				second<0 || second>59 || hours[hour]==NOT_FOUND)
+			return NOT_FOUND;
+
+		if (minutes[hour]==null)
+			minutes[hour] = index(valueOffset(hours[hour]), 60);
+
+		int m = minutes[hour][minute];
+		if (m==NOT_FOUND)
+			return NOT_FOUND;
+
+		int secondsDoc = valueOffset(m);
+		int end = documentEnd(secondsDoc);
+		for (int s=firstElement(secondsDoc); s<end; s=nextElement(s)) {
+			if (parseKey(s)==second)
+				return s;
+		}
+		return NOT_FOUND;
+	}
+
+	private void indexHours() {
+		if (hours!=null)
+			return;
+
+		int doc = findHourly();
+		if (doc==NOT_FOUND) {
+			hours = new int[0];
+		} else {
+			// The number of hours is the largest key plus one
+			int count = 0;
+			int end = documentEnd(doc);
+			for (int h=firstElement(doc); h<end; h=nextElement(h)) {
+				count = Math.max(count, parseKey(h)+1);
+			}
+			hours = index(doc, count);
+		}
+		minutes = new int[hours.length][];
+	}
+
+	/**
+	 * Returns the offsets of the embedded documents of a document by their
+	 * numeric keys, from 0 to size-1
+	 */
+	private int[] index(int doc, int size) {
+		int[] offsets = new int[size];
+		Arrays.fill(offsets, NOT_FOUND);
+		int end = documentEnd(doc);
+		for (int e=firstElement(doc); e<end; e=nextElement(e)) {
+			int key = parseKey(e);
+			if (key>=0 && key<size && bytes[e]==OBJECT)
+				offsets[key] = e;
+		}
+		return offsets;
+	}
+
+	/**
+	 * Returns the offset of the "hourly" document or NOT_FOUND
+	 */
+	private int findHourly() {
+		if (hourly==0) {
+			int element = find(0, HOURLY);
+			hourly = element==NOT_FOUND || bytes[element]!=OBJECT ?
+					NOT_FOUND : valueOffset(element);
+		}
+		return hourly;
+	}
+
+	/**
+	 * Returns the offset of an element of a document by its name
+	 */
+	private int find(int doc, byte[] name) {
+		int end = documentEnd(doc);
+		for (int e=firstElement(doc); e<end; e=nextElement(e)) {
+			if (nameEquals(e+1, name))
+				return e;
+		}
+		return NOT_FOUND;
+	}
+
+	private boolean nameEquals(int pos, byte[] name) {
+		for (int i=0; i<name.length; i++) {
+			if (bytes[pos+i]!=name[i])
+				return false;
+		}
+		return bytes[pos+name.length]==0;
+	}
+
+	/**
+	 * Returns the key of an element as a number, or -1 if it is not one
+	 */
+	private int parseKey(int element) {
+		int pos = element+1;
+		if (bytes[pos]==0)
+			return -1;
+
+		int key = 0;
+		for (; bytes[pos]!=0; pos++) {
+			int digit = bytes[pos]-'0';
+			if (digit<0 || digit>9 || key>100000)
+				return -1;
+			key = key*10 + digit;
+		}
+		return key;
+	}
+
+	private static int firstElement(int doc) {
+		return doc+4;
+	}
+
+	/**
+	 * Returns the offset of the terminating zero of a document
+	 */
+	private int documentEnd(int doc) {
+		return doc + int32(bytes, doc) - 1;
+	}
+
+	private int valueOffset(int element) {
+		int pos = element+1;
+		while (bytes[pos]!=0)
+			pos++;
+		return pos+1;
+	}
+
+	private int nextElement(int element) {
+		int value = valueOffset(element);
+		switch (bytes[element]) {
+		case DOUBLE:
+		case DATE:
+		case TIMESTAMP:
+		case INT64:
+			return value+8;
+		case STRING:
+		case CODE:
+		case SYMBOL:
+			return value+4+int32(bytes, value);
+		case OBJECT:
+		case ARRAY:
+		case CODE_W_SCOPE:
+			return value+int32(bytes, value);
+		case BINARY:
+			return value+5+int32(bytes, value);
+		case OBJECT_ID:
+			return value+12;
+		case BOOLEAN:
+			return value+1;
+		case INT32:
+			return value+4;
+		case UNDEFINED:
+		case NULL:
+		case MIN_KEY:
+		case MAX_KEY:
+			return value;
+		case REGEX:
+			int pos = value;
+			while (bytes[pos]!=0)
+				pos++;
+			pos++;
+			while (bytes[pos]!=0)
+				pos++;
+			return pos+1;
+		case DB_POINTER:
+			return value+4+int32(bytes, value)+12;
+		default:
+			throw new IllegalArgumentException("Unknown BSON type "+bytes[element]+
+					" at "+element);
+		}
+	}
+
+	private Object readValue(int element) {
+		int value = valueOffset(element);
+		switch (bytes[element]) {
+		case DOUBLE:
+			return Double.longBitsToDouble(int64(bytes, value));
+		case STRING:
+			return readString(value);
+		case BOOLEAN:
+			return Boolean.valueOf(bytes[value]!=0);
+		case INT32:
+			return Integer.valueOf(int32(bytes, value));
+		case INT64:
+			return Long.valueOf(int64(bytes, value));
+		case NULL:
+			return null;
+		default:
+			// The other types are decoded from a document with the element
+			int elementLength = nextElement(element)-element;
+			byte[] single = new byte[elementLength+5];
+			writeInt32(single, 0, single.length);
+			System.arraycopy(bytes, element, single, 4, elementLength);
+			DBObject object = new DefaultDBDecoder().decode(single, (DBCollection) null);
+			return object.get(object.keySet().iterator().next());
+		}
+	}
+
+	private double readDouble(int element) {
+		int value = valueOffset(element);
+		switch (bytes[element]) {
+		case DOUBLE:
+			return Double.longBitsToDouble(int64(bytes, value));
+		case INT32:
+			int integer = int32(bytes, value);
+			return MongoManager.isPlaceholder(integer) ? Double.NaN : integer;
+		case INT64:
+			long number = int64(bytes, value);
+			return MongoManager.isPlaceholder(number) ? Double.NaN : number;
+		case BOOLEAN:
+			return bytes[value]!=0 ? 1 : 0;
+		default:
+			return Double.NaN;
+		}
+	}
+
+	private String readString(int value) {
+		// The length includes the terminating zero
+		return new String(bytes, value+4, int32(bytes, value)-1, UTF8);
+	}
+
+	private String readCString(int pos) {
+		int end = pos;
+		while (bytes[end]!=0)
+			end++;
+		return new String(bytes, pos, end-pos, UTF8);
+	}
+
+	private static int int32(byte[] b, int pos) {
+		return (b[pos] & 0xFF) | (b[pos+1] & 0xFF)<<8 |
+				(b[pos+2] & 0xFF)<<16 | (b[pos+3] & 0xFF)<<24;
+	}
+
+	private static long int64(byte[] b, int pos) {
+		return (int32(b, pos) & 0xFFFFFFFFL) | ((long) int32(b, pos+4))<<32;
+	}
+
+	private static void writeInt32(byte[] b, int pos, int x) {
+		b[pos] = (byte) x;
+		b[pos+1] = (byte) (x>>8);
+		b[pos+2] = (byte) (x>>16);
+		b[pos+3] = (byte) (x>>24);
+	}
+
+	/**
+	 * Keeps the bytes of each document of a response in a view
+	 */
+	private static class Decoder implements DBDecoder {
+		private final DefaultDBDecoder fallback = new DefaultDBDecoder();
+
+		@Override
+		public DBObject decode(byte[] b, DBCollection collection) {
+			return new DayDocumentView(b);
+		}
+
+		@Override
+		public DBObject decode(InputStream in, DBCollection collection)
+				throws IOException {
+			byte[] size = new byte[4];
+			readFully(in, size, 0, 4);
+			int length = int32(size, 0);
+			if (length<5)
+				throw new IllegalArgumentException("Invalid document length: "+length);
+
+			byte[] b = new byte[length];
+			System.arraycopy(size, 0, b, 0, 4);
+			readFully(in, b, 4, length-4);
+			return new DayDocumentView(b);
+		}
+
+		@Override
+		public DBCallback getDBCallback(DBCollection collection) {
+			return fallback.getDBCallback(collection);
+		}
+
+		@Override
+		public BSONObject readObject(byte[] b) {
+			return fallback.readObject(b);
+		}
+
+		@Override
+		public BSONObject readObject(InputStream in) throws IOException {
+			return fallback.readObject(in);
+		}
+
+		@Override
+		public int decode(byte[] b, BSONCallback callback) {
+			return fallback.decode(b, callback);
+		}
+
+		@Override
+		public int decode(InputStream in, BSONCallback callback) throws IOException {
+			return fallback.decode(in, callback);
+		}
+
+		private static void readFully(InputStream in, byte[] b, int offset,
+				int length) throws IOException {
+			while (length>0) {
+				int n = in.read(b, offset, length);
+				if (n<0)
+					throw new IOException("Unexpected end of the document");
+				offset += n;
+				length -= n;
+			}
+		}
+	}
+}
@@ -1,13 +1,18 @@
 package cl.alma.onedocument;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * DocumentBuffer is a round buffer. This class is thread safe
+ * DocumentBuffer is a round buffer. This class is thread safe. <br/>
+ * The elements are counted in a hash map, so {@link #contains(Object)} does 
+ * not scan the buffer.
  *     
  * @author Leonel Peña <leo.dhpl@gmail.com>
  *
@@ -24,6 +29,8 @@ public class DocumentBuffer<E> {
 	private AtomicInteger size;
 	private AtomicInteger current_element;
 	private AtomicBoolean first_round;
+	// Number of copies of each element in the buffer
+	private Map<E, Integer> counts;
 
 	/**
 	 * Instantiates a DocumentBuffer object with a fixed capacity
@@ -38,6 +45,7 @@ public class DocumentBuffer<E> {
 				new ArrayList<E>(size+MAX_ELEMENTS)
 		);
 		this.first_round = new AtomicBoolean(true);
+		this.counts = new HashMap<E, Integer>(size);
 	}
 
 	/**
@@ -49,21 +57,38 @@ public class DocumentBuffer<E> {
 		if (element==null)
 			throw new IllegalArgumentException("Null element"); 
 
-		//if (first_round) {
-		if (first_round.get()) {
-			//buffer.add(current_element, element);
-			buffer.add(current_element.get(), element);
-		} else {
-			//buffer.set(current_element, element);
-			buffer.set(current_element.get(), element);
+		synchronized (buffer) {
+			//if (first_round) {
+			if (first_round.get()) {
+				//buffer.add(current_element, element);
+				buffer.add(current_element.get(), element);
+			} else {
+				//buffer.set(current_element, element);
+				E replaced = buffer.set(current_element.get(), element);
+				decrement(replaced);
+			}
+			increment(element);
+
+			//current_element++;
+			//if (current_element>=size) {
+			if (current_element.incrementAndGet()>=size.get()) {
+				current_element.set(0);
+				//first_round = false;
+				first_round.set(false);
+			}
 		}
+	}
 
-		//current_element++;
-		//if (current_element>=size) {
-		if (current_element.incrementAndGet()>=size.get()) {
-			current_element.set(0);
-			//first_round = false;
-			first_round.set(false);
+	/**
+	 * Adds several elements into the buffer, i.e., to warm it up
+	 * 
+	 * @param elements
+	 */
+	public void setAll(Collection<? extends E> elements) {
+		synchronized (buffer) {
+			for (E element : elements) {
+				set(element);
+			}
 		}
 	}
 
@@ -78,6 +103,25 @@ public class DocumentBuffer<E> {
 		if (element==null)
 			throw new IllegalArgumentException("Null element"); 
 
-		return buffer.contains(element);
+		synchronized (buffer) {
+			return counts.containsKey(element);
+		}
+	}
+
+	private void increment(E element) {
+		Integer count = counts.get(element);
+		counts.put(element, count==null ? 1 : count+1);
+	}
+
+	private void decrement(E element) {
+		Integer count = counts.get(element);
+		if (count==null)
+			return;
+
+		if (count==1) {
+			counts.remove(element);
+		} else {
+			counts.put(element, count-1);
+		}
 	}
 }
@@ -1,8 +1,14 @@
 package cl.alma.onedocument;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * DocumentID class represent a MongoDB Object ID for the schema "One document
- * per component per day".
+ * per component per day". The documents of the slow monitor points span
+ * several days, see {@link Granularity}: their id has the first day and a
+ * suffix, i.e., "2012108W/DV10/LLC/POL_MON4" for the second week of 
+ * October.
  * 
  * @author Leonel Peña <leo.dhpl@gmail.com>
  *
@@ -15,10 +21,12 @@ public class DocumentID {
 	private String _monitorPoint;
 	private String _id;
 	private String _stringDate;
+	private String _monitorPointKey;
 	
 	private int _year;
 	private int _month;
 	private int _day;
+	private Granularity _granularity;
 
 	public static final String SEPARATOR = "/";  
 
@@ -31,10 +39,23 @@ public class DocumentID {
 	 */
 	public DocumentID(int year, int month, int day, String antenna, String component,
 			String monitorPoint) {
+		this(year, month, day, antenna, component, monitorPoint, Granularity.DAY);
+	}
+
+	/**
+	 * Instantiate a new DocumentID object of a document that may span 
+	 * several days
+	 * @param day Any day of the document, the id has its first day
+	 * @param granularity Time span of the document
+	 */
+	public DocumentID(int year, int month, int day, String antenna, String component,
+			String monitorPoint, Granularity granularity) {
 
+		day = granularity.getStartDay(day);
 		this._year = year;
 		this._month = month;
 		this._day = day;
+		this._granularity = granularity;
 		this._antenna = antenna;
 		this._component = component;
 		this._monitorPoint = monitorPoint;
@@ -42,8 +63,47 @@ public class DocumentID {
 		_stringDate = Integer.toString(year) + "-" +
 				Integer.toString(month) + "-" +
 				Integer.toString(day);
-		_id =  _stringDate.replace("-", "") + SEPARATOR + antenna + SEPARATOR + component +
-				SEPARATOR + monitorPoint;
+		_id =  _stringDate.replace("-", "") + granularity.getSuffix() + SEPARATOR + 
+				antenna + SEPARATOR + component + SEPARATOR + monitorPoint;
+	}
+
+	/**
+	 * Returns the prefixes of the ids of the documents that contain a day,
+	 * one per granularity, i.e., "2012109/", "2012108W/" and "2012101M/"
+	 * 
+	 * @param year
+	 * @param month Month, from 1 to 12
+	 * @param day
+	 * @return
+	 */
+	public static List<String> dayPrefixes(int year, int month, int day) {
+		List<String> prefixes = new ArrayList<String>();
+		for (Granularity granularity : Granularity.values()) {
+			prefixes.add(Integer.toString(year) + Integer.toString(month) + 
+					Integer.toString(granularity.getStartDay(day)) + 
+					granularity.getSuffix() + SEPARATOR);
+		}
+		return prefixes;
+	}
+
+	/**
+	 * Returns the prefixes of the ids of the documents that begin in a day,
+	 * i.e., "2012108/" and "2012108W/" for the 8th day of a month
+	 * 
+	 * @param year
+	 * @param month Month, from 1 to 12
+	 * @param day
+	 * @return
+	 */
+	public static List<String> startPrefixes(int year, int month, int day) {
+		List<String> prefixes = new ArrayList<String>();
+		for (Granularity granularity : Granularity.values()) {
+			if (granularity.getStartDay(day)==day) {
+				prefixes.add(Integer.toString(year) + Integer.toString(month) + 
+						Integer.toString(day) + granularity.getSuffix() + SEPARATOR);
+			}
+		}
+		return prefixes;
 	}
 
 	public String getStringDate() {
@@ -58,10 +118,18 @@ public class DocumentID {
 		return _month;
 	}
 
+	/**
+	 * Returns the first day of the document
+	 * @return
+	 */
 	public int getDay() {
 		return _day;
 	}
 
+	public Granularity getGranularity() {
+		return _granularity;
+	}
+
 	public String getAntenna() {
 		return _antenna;
 	}
@@ -74,6 +142,19 @@ public class DocumentID {
 		return _monitorPoint;
 	}
 
+	/**
+	 * Returns the id without the date, i.e., "DV10/LLC/POL_MON4". It 
+	 * identifies the monitor point across days.
+	 * @return
+	 */
+	public String getMonitorPointKey() {
+		if (_monitorPointKey==null) {
+			_monitorPointKey = _antenna + SEPARATOR + _component + SEPARATOR +
+					_monitorPoint;
+		}
+		return _monitorPointKey;
+	}
+
 	@Override
 	public String toString() {
 		return _id;
@@ -0,0 +1,212 @@
+package cl.alma.onedocument;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * ErrorReporter takes the errors of the consumers out of their threads.
+ * The errors are counted by exception type and site, i.e., the first frame
+ * of the stack trace, and a daemon thread logs a summary of each site once
+ * per interval. Only the first error of a site in each interval is logged
+ * with its stack trace, and at most maxStackTraces of them wait to be
+ * logged; the rest are only counted. <br/>
+ * A burst of errors costs the consumers a map lookup and a counter
+ * increment per error, never a write to disk. This class is thread safe.
+ */
+public class ErrorReporter {
+
+	public static final long DEFAULT_INTERVAL = 10000;
+	public static final int DEFAULT_MAX_STACK_TRACES = 16;
+
+	private final Logger logger;
+	private final long interval;
+	private final ConcurrentMap<String, Site> sites =
+			new ConcurrentHashMap<String, Site>();
+	private final BlockingQueue<Sampled> stackTraces;
+	private final AtomicBoolean started = new AtomicBoolean(false);
+
+	private final AtomicLong reported = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	private volatile Thread thread;
+
+	/**
+	 * Errors of a site since the last summary
+	 */
+	private static class Site {
+		final AtomicLong count = new AtomicLong();
+		final AtomicBoolean sampled = new AtomicBoolean(false);
+		volatile String lastMessage;
+	}
+
+	private static class Sampled {
+		final String site;
+		final String message;
+		final Throwable throwable;
+
+		Sampled(String site, String message, Throwable throwable) {
+			this.site = site;
+			this.message = message;
+			this.throwable = throwable;
+		}
+	}
+
+	/**
+	 * Instantiates an ErrorReporter object with the default interval and
+	 * number of stack traces
+	 * @param logger
+	 */
+	public ErrorReporter(Logger logger) {
+		this(logger, DEFAULT_INTERVAL, DEFAULT_MAX_STACK_TRACES);
+	}
+
+	/**
+	 * Instantiates an ErrorReporter object
+	 *
+	 * @param logger Logger of the summaries and the stack traces
+	 * @param interval Time in milliseconds between summaries
+	 * @param maxStackTraces Maximum number of stack traces waiting to be
+	 * logged
+	 */
+	public ErrorReporter(Logger logger, long interval, int maxStackTraces) {
+		if (interval<=0 || maxStackTraces<=0)
+			throw new IllegalArgumentException("The interval and the number of stack traces must be positive");
+
+		this.logger = logger;
+		this.interval = interval;
+		this.stackTraces = new ArrayBlockingQueue<Sampled>(maxStackTraces);
+	}
+
+	/**
+	 * Reports an exception, its site is its type and the first frame of
+	 * its stack trace
+	 *
+	 * @param e
+	 */
+	public void report(Throwable e) {
+		StackTraceElement[] frames = e.getStackTrace();
+		String site = e.getClass().getName() +
+				(frames.length>0 ? " at " + frames[0] : "");
+		report(site, e.getMessage(), e);
+	}
+
+	/**
+	 * Reports an error without exception, i.e., an invalid record
+	 *
+	 * @param site Kind of error
+	 * @param message
+	 */
+	public void report(String site, String message) {
+		report(site, message, null);
+	}
+
+	private void report(String key, String message, Throwable throwable) {
+		reported.incrementAndGet();
+
+		Site site = sites.get(key);
+		if (site==null) {
+			Site created = new Site();
+			site = sites.putIfAbsent(key, created);
+			if (site==null)
+				site = created;
+		}
+		site.count.incrementAndGet();
+		site.lastMessage = message;
+
+		if (site.sampled.compareAndSet(false, true)) {
+			if (!stackTraces.offer(new Sampled(key, message, throwable)))
+				dropped.incrementAndGet();
+		}
+
+		start();
+	}
+
+	/**
+	 * Returns the number of reported errors
+	 * @return
+	 */
+	public long getReportedCount() {
+		return reported.get();
+	}
+
+	/**
+	 * Returns the number of sampled errors that were not logged because
+	 * there were too many waiting
+	 * @return
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Logs the sampled errors and the summary of each site, and begins a
+	 * new interval. It is called by the daemon thread.
+	 */
+	public void flush() {
+		List<Sampled> samples = new ArrayList<Sampled>();
+		stackTraces.drainTo(samples);
+		for (Sampled sample : samples) {
+			if (sample.throwable!=null) {
+				logger.error(sample.site + ": " + sample.message, sample.throwable);
+			} else {
+				logger.error(sample.site + ": " + sample.message);
+			}
+		}
+
+		for (Map.Entry<String, Site> entry : sites.entrySet()) {
+			Site site = entry.getValue();
+			long count = site.count.getAndSet(0);
+			site.sampled.set(false);
+			if (count>1) {
+				logger.error(entry.getKey() + ": " + count +
+						" errors in the last interval, last one: " + site.lastMessage);
+			}
+		}
+	}
+
+	/**
+	 * Logs the pending errors and stops the daemon thread
+	 */
+	public void close() {
+		Thread current = thread;
+		if (current!=null) {
+			current.interrupt();
+			try {
+				current.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		flush();
+	}
+
+	private void start() {
+		if (started.get() || !started.compareAndSet(false, true))
+			return;
+
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!Thread.currentThread().isInterrupted()) {
+					try {
+						Thread.sleep(interval);
+					} catch (InterruptedException e) {
+						return;
+					}
+					flush();
+				}
+			}
+		}, "ErrorReporter");
+		thread.setDaemon(true);
+		thread.start();
+	}
+}
@@ -0,0 +1,22 @@
+package cl.alma.onedocument;
+
+/**
+ * Callback used by a {@link BatchEventProcessor} to process the slots of a 
+ * {@link RingBuffer}.
+ * 
+ * @param <E> Slot type
+ */
+public interface EventHandler<E> {
+
+	/**
+	 * Called when a slot has been published and released by the previous 
+	 * stages. The slot is reused later, so do not keep a reference to it.
+	 * 
+	 * @param event Slot
+	 * @param sequence Sequence of the slot
+	 * @param endOfBatch <i>true</i> if this is the last slot available in 
+	 * the current batch
+	 * @throws Exception
+	 */
+	void onEvent(E event, long sequence, boolean endOfBatch) throws Exception;
+}
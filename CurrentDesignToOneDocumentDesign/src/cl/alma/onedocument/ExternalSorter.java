@@ -0,0 +1,445 @@
+package cl.alma.onedocument;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * ExternalSorter groups samples that arrive in any order by document, with
+ * a bounded memory. The samples are held until their estimated size reaches
+ * the memory budget, then they are sorted by (document, time) and written
+ * to a run file. {@link #finish(Sink)} merges the runs and emits the
+ * samples of each document together and in chronological order, so the
+ * backfill can build each day document and insert it once. <br/>
+ * The runs store the metadata once per document. When there are more runs
+ * than {@link #MAX_MERGE_RUNS}, they are merged in several passes. This
+ * class is not thread safe, use one sorter per consumer.
+ */
+public class ExternalSorter {
+
+	/**
+	 * Receives the sorted samples
+	 */
+	public interface Sink {
+		void emit(Sample sample);
+	}
+
+	// Maximum number of runs read at the same time by a merge
+	public static final int MAX_MERGE_RUNS = 64;
+	private static final int BUFFER_SIZE = 64*1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	// Estimated size of a sample without its strings
+	private static final int SAMPLE_OVERHEAD = 160;
+
+	// Tags of the records of a run
+	private static final int END = 0;
+	private static final int NEW_DOCUMENT = 1;
+	private static final int SAMPLE = 2;
+
+	private static final Comparator<Sample> ORDER = new Comparator<Sample>() {
+		@Override
+		public int compare(Sample a, Sample b) {
+			int c = a.getMetadata().getDocumentID().toString().compareTo(
+					b.getMetadata().getDocumentID().toString());
+			if (c!=0)
+				return c;
+
+			int ta = secondOfDocument(a);
+			int tb = secondOfDocument(b);
+			return ta<tb ? -1 : (ta==tb ? 0 : 1);
+		}
+	};
+
+	private final File directory;
+	private final long memoryBudget;
+
+	private final List<Sample> samples = new ArrayList<Sample>();
+	private long size = 0;
+	private final List<File> runs = new ArrayList<File>();
+	private int nextRun = 0;
+	private long count = 0;
+
+	/**
+	 * Instantiates an ExternalSorter object
+	 *
+	 * @param directory Directory of the run files, it is created if it does
+	 * not exist
+	 * @param memoryBudget Maximum estimated size in bytes of the samples
+	 * held in memory
+	 */
+	public ExternalSorter(File directory, long memoryBudget) {
+		if (memoryBudget<=0)
+			throw new IllegalArgumentException("The memory budget must be positive");
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IllegalArgumentException("Cannot create the directory "+directory);
+
+		this.directory = directory;
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Adds a sample. If the memory budget is reached the held samples are
+	 * written to a new run.
+	 *
+	 * @param sample
+	 * @throws IOException
+	 */
+	public void add(Sample sample) throws IOException {
+		samples.add(sample);
+		size += estimateSize(sample);
+		count++;
+
+		if (size>=memoryBudget)
+			spill();
+	}
+
+	/**
+	 * Emits all samples grouped by document and in chronological order,
+	 * and deletes the runs. The sorter can be used again afterwards.
+	 *
+	 * @param sink
+	 * @throws IOException
+	 */
+	public void finish(Sink sink) throws IOException {
+		try {
+			if (runs.isEmpty()) {
+				// Everything fits into memory
+				Collections.sort(samples, ORDER);
+				for (Sample sample : samples) {
+					sink.emit(sample);
+				}
+				return;
+			}
+
+			spill();
+			while (runs.size()>MAX_MERGE_RUNS) {
+				List<File> pass = new ArrayList<File>(runs.subList(0, MAX_MERGE_RUNS));
+				runs.subList(0, MAX_MERGE_RUNS).clear();
+
+				final RunWriter writer = new RunWriter(newRunFile());
+				try {
+					merge(pass, new Sink() {
+						@Override
+						public void emit(Sample sample) {
+							writer.write(sample);
+						}
+					});
+				} finally {
+					writer.close();
+				}
+				runs.add(writer.file);
+				delete(pass);
+			}
+			merge(runs, sink);
+
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Returns the number of runs written to disk
+	 * @return
+	 */
+	public int getRunCount() {
+		return runs.size();
+	}
+
+	/**
+	 * Returns the number of samples added since the last finish
+	 * @return
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Discards the held samples and deletes the runs
+	 */
+	public void close() {
+		samples.clear();
+		size = 0;
+		count = 0;
+		delete(runs);
+		runs.clear();
+	}
+
+	private void spill() throws IOException {
+		if (samples.isEmpty())
+			return;
+
+		Collections.sort(samples, ORDER);
+		RunWriter writer = new RunWriter(newRunFile());
+		try {
+			for (Sample sample : samples) {
+				writer.write(sample);
+			}
+		} finally {
+			writer.close();
+		}
+		runs.add(writer.file);
+
+		samples.clear();
+		size = 0;
+	}
+
+	private File newRunFile() {
+		return new File(directory, "run_" + (nextRun++) + ".tmp");
+	}
+
+	/**
+	 * K-way merge of sorted runs
+	 */
+	private static void merge(List<File> files, Sink sink) throws IOException {
+		PriorityQueue<RunReader> heap = new PriorityQueue<RunReader>(
+				files.size(), new Comparator<RunReader>() {
+					@Override
+					public int compare(RunReader a, RunReader b) {
+						return ORDER.compare(a.current, b.current);
+					}
+				});
+
+		List<RunReader> readers = new ArrayList<RunReader>(files.size());
+		try {
+			for (File file : files) {
+				RunReader reader = new RunReader(file);
+				readers.add(reader);
+				if (reader.next())
+					heap.add(reader);
+			}
+
+			while (!heap.isEmpty()) {
+				RunReader reader = heap.poll();
+				sink.emit(reader.current);
+				if (reader.next())
+					heap.add(reader);
+			}
+		} finally {
+			for (RunReader reader : readers) {
+				reader.close();
+			}
+		}
+	}
+
+	private static void delete(List<File> files) {
+		for (File file : files) {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Returns the second of the sample in its document, it may be greater
+	 * than a day, see {@link Granularity}
+	 */
+	private static int secondOfDocument(Sample sample) {
+		return (sample.getHour()*60 + sample.getMinute())*60 + sample.getSecond();
+	}
+
+	private static long estimateSize(Sample sample) {
+		Metadata metadata = sample.getMetadata();
+		// The id is about as long as the antenna, component and monitor
+		// point together, and the characters take two bytes
+		return SAMPLE_OVERHEAD + 4L*metadata.getDocumentID().toString().length() +
+				2L*(length(metadata.getProperty()) + length(metadata.getLocation()) +
+						length(metadata.getSerialNumber()) +
+						(sample.getValueType()==ValueType.STRING ?
+								sample.getValue().length() : 0));
+	}
+
+	private static int length(String value) {
+		return value==null ? 0 : value.length();
+	}
+
+	private static void writeString(DataOutputStream out, String value)
+			throws IOException {
+		out.writeBoolean(value!=null);
+		if (value!=null)
+			writeText(out, value);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? readText(in) : null;
+	}
+
+	/**
+	 * Writes the length and the UTF-8 bytes of a string, unlike writeUTF 
+	 * there is no limit of 64 KB
+	 */
+	private static void writeText(DataOutputStream out, String value) 
+			throws IOException {
+		byte[] bytes = value.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readText(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Writes a run. Each sample is preceded by a tag, the first sample of
+	 * a document also carries its metadata.
+	 */
+	private static class RunWriter {
+		final File file;
+		private final DataOutputStream out;
+		private String document;
+
+		RunWriter(File file) throws IOException {
+			this.file = file;
+			this.out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(file), BUFFER_SIZE));
+		}
+
+		/**
+		 * Appends a sample, the samples must be sorted
+		 */
+		void write(Sample sample) {
+			Metadata metadata = sample.getMetadata();
+			DocumentID id = metadata.getDocumentID();
+			try {
+				if (!id.toString().equals(document)) {
+					document = id.toString();
+					out.writeByte(NEW_DOCUMENT);
+					out.writeInt(id.getYear());
+					out.writeByte(id.getMonth());
+					out.writeByte(id.getDay());
+					out.writeByte(id.getGranularity().ordinal());
+					writeString(out, id.getAntenna());
+					writeString(out, id.getComponent());
+					writeString(out, id.getMonitorPoint());
+					writeString(out, metadata.getProperty());
+					writeString(out, metadata.getLocation());
+					writeString(out, metadata.getSerialNumber());
+					out.writeInt(metadata.getIndex());
+					out.writeInt(metadata.getSampleTime());
+					out.writeByte(metadata.getValueType()==null ? -1 : 
+							metadata.getValueType().ordinal());
+				} else {
+					out.writeByte(SAMPLE);
+				}
+
+				out.writeInt(secondOfDocument(sample));
+				out.writeByte(sample.getValueType().ordinal());
+				switch (sample.getValueType()) {
+				case DOUBLE:
+					out.writeDouble(sample.getDoubleValue());
+					break;
+				case LONG:
+					out.writeLong(sample.getLongValue());
+					break;
+				case BOOLEAN:
+					out.writeBoolean(sample.getBooleanValue());
+					break;
+				default:
+					writeText(out, sample.getValue());
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException("Cannot write the run "+file, e);
+			}
+		}
+
+		void close() throws IOException {
+			try {
+				out.writeByte(END);
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Reads a run sample by sample. The samples of a document share its
+	 * metadata.
+	 */
+	private static class RunReader {
+		private final DataInputStream in;
+		private Metadata metadata;
+		Sample current;
+
+		RunReader(File file) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file), BUFFER_SIZE));
+		}
+
+		/**
+		 * Reads the next sample into current, returns false at the end of
+		 * the run
+		 */
+		boolean next() throws IOException {
+			try {
+				int tag = in.readByte();
+				if (tag==END) {
+					current = null;
+					return false;
+				}
+				if (tag==NEW_DOCUMENT)
+					readMetadata();
+
+				int time = in.readInt();
+				int hour = time/3600;
+				int minute = time/60%60;
+				int second = time%60;
+
+				ValueType type = ValueType.values()[in.readByte()];
+				switch (type) {
+				case DOUBLE:
+					current = new Sample(metadata, hour, minute, second, in.readDouble());
+					break;
+				case LONG:
+					current = new Sample(metadata, hour, minute, second, in.readLong());
+					break;
+				case BOOLEAN:
+					current = new Sample(metadata, hour, minute, second, in.readBoolean());
+					break;
+				default:
+					current = new Sample(metadata, hour, minute, second, readText(in));
+				}
+				return true;
+
+			} catch (EOFException e) {
+				throw new IOException("Truncated run", e);
+			}
+		}
+
+		void close() throws IOException {
+			in.close();
+		}
+
+		private void readMetadata() throws IOException {
+			int year = in.readInt();
+			int month = in.readByte();
+			int day = in.readByte();
+			Granularity granularity = Granularity.values()[in.readByte()];
+			String antenna = readString(in);
+			String component = readString(in);
+			String monitorPoint = readString(in);
+			String property = readString(in);
+			String location = readString(in);
+			String serialNumber = readString(in);
+			int index = in.readInt();
+			int sampleTime = in.readInt();
+			int valueType = in.readByte();
+
+			metadata = new Metadata(new DocumentID(year, month, day, antenna,
+					component, monitorPoint, granularity), property, location, 
+					serialNumber, index, sampleTime, 
+					valueType<0 ? null : ValueType.values()[valueType]);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package cl.alma.onedocument;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+/**
+ * Time span of a document. The slow monitor points, those with a large
+ * sample time, keep several days in the same document, so the number of
+ * documents and of entries of the _id index grows with the number of
+ * samples instead of the number of days. <br/>
+ * A document never spans two months, so it always belongs to a monthly
+ * collection: the weeks begin on the days 1, 8, 15, 22 and 29 of the month,
+ * and the last one is shorter. The hours of a document of several days
+ * continue after 23, i.e., the hour 24 of a week document is the first
+ * hour of its second day.
+ */
+public enum Granularity {
+	DAY(""), WEEK("W"), MONTH("M");
+
+	// Minimum sample time in seconds of the week documents
+	public static final int WEEK_SAMPLE_TIME = 60;
+	// Minimum sample time in seconds of the month documents
+	public static final int MONTH_SAMPLE_TIME = 600;
+
+	private final String suffix;
+
+	private Granularity(String suffix) {
+		this.suffix = suffix;
+	}
+
+	/**
+	 * Returns the granularity of a monitor point. A day document holds at
+	 * least 1440 samples, a week document between 1008 and 10080, and a
+	 * month document at most 4464.
+	 *
+	 * @param sampleTime Sample time in seconds
+	 * @return
+	 */
+	public static Granularity forSampleTime(int sampleTime) {
+		if (sampleTime>=MONTH_SAMPLE_TIME)
+			return MONTH;
+		if (sampleTime>=WEEK_SAMPLE_TIME)
+			return WEEK;
+		return DAY;
+	}
+
+	/**
+	 * Returns the text that follows the date in the ids of the documents,
+	 * it is empty for the day documents
+	 * @return
+	 */
+	public String getSuffix() {
+		return suffix;
+	}
+
+	/**
+	 * Returns the first day of the document that contains a day
+	 *
+	 * @param day Day of the month
+	 * @return
+	 */
+	public int getStartDay(int day) {
+		switch (this) {
+		case WEEK:
+			return (day-1)/7*7 + 1;
+		case MONTH:
+			return 1;
+		default:
+			return day;
+		}
+	}
+
+	/**
+	 * Returns the number of days of the document that begins in a day
+	 *
+	 * @param year
+	 * @param month Month, from 1 to 12
+	 * @param startDay First day of the document, see {@link #getStartDay(int)}
+	 * @return
+	 */
+	public int getDays(int year, int month, int startDay) {
+		if (this==DAY)
+			return 1;
+
+		int daysOfMonth = new GregorianCalendar(year, month-1, 1)
+				.getActualMaximum(Calendar.DAY_OF_MONTH);
+		if (this==WEEK)
+			return Math.min(7, daysOfMonth-startDay+1);
+		return daysOfMonth;
+	}
+}
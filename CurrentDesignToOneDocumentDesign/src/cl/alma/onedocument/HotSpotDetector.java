@@ -0,0 +1,317 @@
+package cl.alma.onedocument;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.log4j.Logger;
+
+/**
+ * HotSpotDetector counts the samples written to each document and to each
+ * antenna of a day, the shard key of the monthly collections, and keeps the
+ * most written ones, so a skew is seen before a chunk becomes hot. <br/>
+ * The counts are estimated by a count-min sketch of fixed size: a few
+ * atomic increments per write and no allocation, so it can stay enabled.
+ * The estimates never fall below the real counts. Only the keys whose
+ * estimate reaches the top are kept by name. <br/>
+ * The counts are halved every time the number of written samples grows by
+ * the decay interval, so the top follows the recent writes, and the top is
+ * logged at that moment. This class is thread safe.
+ */
+public class HotSpotDetector {
+
+	private static final Logger log = Logger.getLogger(HotSpotDetector.class);
+
+	public static final int DEFAULT_DEPTH = 4;
+	public static final int DEFAULT_WIDTH = 4096;
+	public static final int DEFAULT_TOP_SIZE = 10;
+	public static final long DEFAULT_DECAY_INTERVAL = 10000000L;
+
+	/**
+	 * A key of the top and its estimated number of samples
+	 */
+	public static class Entry {
+		private final String key;
+		private final long count;
+
+		Entry(String key, long count) {
+			this.key = key;
+			this.count = count;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		@Override
+		public String toString() {
+			return key + "=" + count;
+		}
+	}
+
+	private static final Comparator<Entry> BY_COUNT = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry e1, Entry e2) {
+			return e1.count<e2.count ? 1 : (e1.count>e2.count ? -1 : 0);
+		}
+	};
+
+	/**
+	 * Count-min sketch and the keys with the largest estimates
+	 */
+	private static class Sketch {
+		private final int depth;
+		private final int width;
+		private final AtomicLongArray counters;
+		private final int topSize;
+		// Guarded by top
+		private final Map<String, Long> top = new HashMap<String, Long>();
+		// Smallest count of a full top, the writes below it skip the lock
+		private volatile long threshold = 0;
+		private final AtomicLong total = new AtomicLong();
+
+		Sketch(int depth, int width, int topSize) {
+			this.depth = depth;
+			this.width = width;
+			this.counters = new AtomicLongArray(depth*width);
+			this.topSize = topSize;
+		}
+
+		/**
+		 * Adds the samples of a key and returns its estimate
+		 */
+		long add(int hash, long samples) {
+			total.addAndGet(samples);
+			long estimate = Long.MAX_VALUE;
+			for (int row=0; row<depth; row++) {
+				long count = counters.addAndGet(index(row, hash), samples);
+				estimate = Math.min(estimate, count);
+			}
+			return estimate;
+		}
+
+		long estimate(int hash) {
+			long estimate = Long.MAX_VALUE;
+			for (int row=0; row<depth; row++) {
+				estimate = Math.min(estimate, counters.get(index(row, hash)));
+			}
+			return estimate;
+		}
+
+		boolean isTop(long estimate) {
+			return estimate>=threshold;
+		}
+
+		void offer(String key, long estimate) {
+			synchronized (top) {
+				top.put(key, estimate);
+				if (top.size()>topSize) {
+					String smallest = null;
+					for (Map.Entry<String, Long> entry : top.entrySet()) {
+						if (smallest==null || entry.getValue()<top.get(smallest))
+							smallest = entry.getKey();
+					}
+					top.remove(smallest);
+				}
+				updateThreshold();
+			}
+		}
+
+		List<Entry> getTop() {
+			List<Entry> entries = new ArrayList<Entry>();
+			synchronized (top) {
+				for (Map.Entry<String, Long> entry : top.entrySet()) {
+					entries.add(new Entry(entry.getKey(), entry.getValue()));
+				}
+			}
+			Collections.sort(entries, BY_COUNT);
+			return entries;
+		}
+
+		long getTotal() {
+			return total.get();
+		}
+
+		/**
+		 * Halves the counts, the concurrent writes may lose a few samples
+		 */
+		void decay() {
+			for (int i=0; i<counters.length(); i++) {
+				counters.set(i, counters.get(i)>>1);
+			}
+			total.set(total.get()>>1);
+			synchronized (top) {
+				for (Map.Entry<String, Long> entry : top.entrySet()) {
+					entry.setValue(entry.getValue()>>1);
+				}
+				updateThreshold();
+			}
+		}
+
+		private void updateThreshold() {
+			if (top.size()<topSize) {
+				threshold = 0;
+				return;
+			}
+			long smallest = Long.MAX_VALUE;
+			for (Long count : top.values()) {
+				smallest = Math.min(smallest, count);
+			}
+			threshold = smallest;
+		}
+
+		private int index(int row, int hash) {
+			// A different mix of the hash for each row
+			int h = hash*(0x9E3779B9 + 2*row);
+			h ^= h>>>15;
+			h *= 0x85EBCA6B;
+			h ^= h>>>13;
+			return row*width + (h & Integer.MAX_VALUE) % width;
+		}
+	}
+
+	private final Sketch documents;
+	private final Sketch antennas;
+	private final long decayInterval;
+	private final AtomicLong samples = new AtomicLong();
+
+	/**
+	 * Instantiates a HotSpotDetector object with the default sizes
+	 */
+	public HotSpotDetector() {
+		this(DEFAULT_DEPTH, DEFAULT_WIDTH, DEFAULT_TOP_SIZE, DEFAULT_DECAY_INTERVAL);
+	}
+
+	/**
+	 * Instantiates a HotSpotDetector object
+	 *
+	 * @param depth Number of hash functions of the sketch
+	 * @param width Number of counters of each hash function, the error of
+	 * the estimates is about the number of samples divided by the width
+	 * @param topSize Number of documents and antennas kept
+	 * @param decayInterval Number of samples between the halvings of the
+	 * counts
+	 */
+	public HotSpotDetector(int depth, int width, int topSize, long decayInterval) {
+		if (depth<=0 || width<=0 || topSize<=0)
+			throw new IllegalArgumentException("The sizes must be positive");
+		if (decayInterval<=0)
+			throw new IllegalArgumentException("The decay interval must be positive");
+
+		this.documents = new Sketch(depth, width, topSize);
+		this.antennas = new Sketch(depth, width, topSize);
+		this.decayInterval = decayInterval;
+	}
+
+	/**
+	 * Counts the samples written to a document
+	 *
+	 * @param id Document id
+	 * @param count Number of samples
+	 */
+	public void record(DocumentID id, int count) {
+		String documentKey = id.toString();
+		long estimate = documents.add(documentKey.hashCode(), count);
+		if (documents.isTop(estimate))
+			documents.offer(documentKey, estimate);
+
+		// The hash of the shard key without building the key
+		int antennaHash = 31*id.getStringDate().hashCode() +
+				String.valueOf(id.getAntenna()).hashCode();
+		estimate = antennas.add(antennaHash, count);
+		if (antennas.isTop(estimate))
+			antennas.offer(antennaKey(id), estimate);
+
+		long total = samples.addAndGet(count);
+		if (total/decayInterval!=(total-count)/decayInterval)
+			decay();
+	}
+
+	/**
+	 * Returns the documents with the most written samples, the first one
+	 * is the hottest
+	 * @return
+	 */
+	public List<Entry> getTopDocuments() {
+		return documents.getTop();
+	}
+
+	/**
+	 * Returns the antennas of a day with the most written samples, i.e.,
+	 * "2012-9-30/DV10", they are the values of the shard key
+	 * @return
+	 */
+	public List<Entry> getTopAntennas() {
+		return antennas.getTop();
+	}
+
+	/**
+	 * Returns the estimated number of samples written to an antenna in a
+	 * day since the last decay
+	 *
+	 * @param id Id of any document of the antenna and day
+	 * @return
+	 */
+	public long estimateAntenna(DocumentID id) {
+		return antennas.estimate(31*id.getStringDate().hashCode() +
+				String.valueOf(id.getAntenna()).hashCode());
+	}
+
+	/**
+	 * Returns the share of the recent samples written to the hottest
+	 * antenna of a day, from 0 to 1
+	 * @return
+	 */
+	public double getAntennaSkew() {
+		List<Entry> top = antennas.getTop();
+		long total = antennas.getTotal();
+		if (top.isEmpty() || total==0)
+			return 0;
+
+		return Math.min(1.0, (double) top.get(0).getCount()/total);
+	}
+
+	/**
+	 * Returns the number of samples counted since the creation
+	 * @return
+	 */
+	public long getSampleCount() {
+		return samples.get();
+	}
+
+	/**
+	 * Logs the top documents and antennas
+	 */
+	public void report() {
+		log.info(this);
+	}
+
+	/**
+	 * Halves the counts and logs the top before doing it
+	 */
+	public synchronized void decay() {
+		report();
+		documents.decay();
+		antennas.decay();
+	}
+
+	@Override
+	public String toString() {
+		return "Hot spots after " + samples.get() + " samples, antenna skew " +
+				String.format("%.3f", getAntennaSkew()) + ", antennas " +
+				getTopAntennas() + ", documents " + getTopDocuments();
+	}
+
+	private static String antennaKey(DocumentID id) {
+		return id.getStringDate() + DocumentID.SEPARATOR + id.getAntenna();
+	}
+}
@@ -0,0 +1,256 @@
+package cl.alma.onedocument;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * StorageBackend that keeps the documents in memory. It copies the 
+ * semantics of the day documents in MongoDB: monthly collections, inserts 
+ * that ignore duplicated ids and upserts with "$set" over dotted paths and 
+ * "$setOnInsert". <br/>
+ * It does not need a server, so it is used to measure the CPU ceiling of 
+ * the pipeline and to test MongoManager. This class is thread safe, the 
+ * updates of the same document are serialized.
+ */
+public class InMemoryStorageBackend implements StorageBackend {
+
+	private final ConcurrentMap<String, ConcurrentMap<String, DBObject>> collections = 
+			new ConcurrentHashMap<String, ConcurrentMap<String, DBObject>>();
+
+	@Override
+	public String getCollectionName(DocumentID id) {
+		String name = COLLECTION_PREFIX + Integer.toString(id.getMonth()) + "_" +
+				Integer.toString(id.getYear());
+
+		if (!collections.containsKey(name))
+			collections.putIfAbsent(name, new ConcurrentHashMap<String, DBObject>());
+
+		return name;
+	}
+
+	/**
+	 * Returns the names of the created collections
+	 * @return
+	 */
+	public Set<String> getCollectionNames() {
+		return collections.keySet();
+	}
+
+	/**
+	 * Returns the documents of a collection indexed by id, or null if the 
+	 * collection does not exist. The documents must not be modified.
+	 * 
+	 * @param name Collection name
+	 * @return
+	 */
+	public Map<String, DBObject> getDocuments(String name) {
+		return collections.get(name);
+	}
+
+	@Override
+	public boolean isDocumentCreated(DocumentID id) {
+		return getDocuments(id).containsKey(id.toString());
+	}
+
+	@Override
+	public List<String> findDocumentIds(int year, int month, int day) {
+		List<String> ids = new ArrayList<String>();
+		Map<String, DBObject> documents = getDocuments(COLLECTION_PREFIX + 
+				Integer.toString(month) + "_" + Integer.toString(year));
+		if (documents==null)
+			return ids;
+
+		List<String> prefixes = DocumentID.dayPrefixes(year, month, day);
+		for (String id : documents.keySet()) {
+			if (startsWith(id, prefixes))
+				ids.add(id);
+		}
+		return ids;
+	}
+
+	@Override
+	public Iterator<DBObject> findDocuments(int year, int month, int day) {
+		List<DBObject> result = new ArrayList<DBObject>();
+		Map<String, DBObject> documents = getDocuments(COLLECTION_PREFIX + 
+				Integer.toString(month) + "_" + Integer.toString(year));
+		if (documents==null)
+			return result.iterator();
+
+		List<String> prefixes = DocumentID.dayPrefixes(year, month, day);
+		for (Map.Entry<String, DBObject> entry : documents.entrySet()) {
+			if (startsWith(entry.getKey(), prefixes)) {
+				synchronized (entry.getValue()) {
+					result.add(copy(entry.getValue()));
+				}
+			}
+		}
+		return result.iterator();
+	}
+
+	@Override
+	public Iterator<DBObject> findDocuments(int year, int month, 
+			List<String> prefixes, Pattern idPattern) {
+		List<DBObject> result = new ArrayList<DBObject>();
+		Map<String, DBObject> documents = getDocuments(COLLECTION_PREFIX + 
+				Integer.toString(month) + "_" + Integer.toString(year));
+		if (documents==null)
+			return result.iterator();
+
+		for (Map.Entry<String, DBObject> entry : documents.entrySet()) {
+			String id = entry.getKey();
+			if (startsWith(id, prefixes) && idPattern.matcher(id).find()) {
+				synchronized (entry.getValue()) {
+					result.add(copy(entry.getValue()));
+				}
+			}
+		}
+		return result.iterator();
+	}
+
+	@Override
+	public DBObject findOne(DocumentID id) {
+		DBObject document = getDocuments(id).get(id.toString());
+		if (document==null)
+			return null;
+
+		synchronized (document) {
+			return copy(document);
+		}
+	}
+
+	@Override
+	public void insert(DocumentID id, DBObject document) {
+		// Like MongoDB, the document is copied and the duplicated ids are 
+		// ignored
+		getDocuments(id).putIfAbsent(id.toString(), copy(document));
+	}
+
+	@Override
+	public void upsert(DocumentID id, DBObject query, DBObject update) {
+		ConcurrentMap<String, DBObject> documents = getDocuments(id);
+		String key = id.toString();
+
+		DBObject document = documents.get(key);
+		boolean inserted = false;
+		if (document==null) {
+			// The new document is created from the fields of the query
+			DBObject created = copy(query);
+			document = documents.putIfAbsent(key, created);
+			if (document==null) {
+				document = created;
+				inserted = true;
+			}
+		}
+
+		synchronized (document) {
+			// MongoDB tries to insert a new document with the same _id
+			if (!matches(document, query))
+				throw new MongoException.DuplicateKey(11000, 
+						"E11000 duplicate key error, _id: " + key);
+
+			apply(document, update, inserted);
+		}
+	}
+
+	@Override
+	public void close() {
+		collections.clear();
+	}
+
+	private ConcurrentMap<String, DBObject> getDocuments(DocumentID id) {
+		return collections.get(getCollectionName(id));
+	}
+
+	/**
+	 * Returns true if all fields of the query are equal to the fields of 
+	 * the document
+	 */
+	private static boolean matches(DBObject document, DBObject query) {
+		for (String field : query.keySet()) {
+			Object expected = query.get(field);
+			Object actual = document.get(field);
+			if (expected==null ? actual!=null : !expected.equals(actual))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Applies a "$set" update or replaces the document. The fields of 
+	 * "$setOnInsert" are only set when the document was inserted.
+	 */
+	private static void apply(DBObject document, DBObject update, 
+			boolean inserted) {
+		for (String operator : update.keySet()) {
+			if (!operator.startsWith("$")) {
+				// Replacement of the whole document, the _id is kept
+				Object id = document.get("_id");
+				for (String field : new ArrayList<String>(document.keySet())) {
+					document.removeField(field);
+				}
+				for (String field : update.keySet()) {
+					document.put(field, update.get(field));
+				}
+				document.put("_id", id);
+				return;
+			}
+
+			if (operator.equals("$setOnInsert") && !inserted)
+				continue;
+
+			if (!operator.equals("$set") && !operator.equals("$setOnInsert"))
+				throw new IllegalArgumentException("Unsupported update operator: "+operator);
+
+			DBObject fields = (DBObject) update.get(operator);
+			for (String path : fields.keySet()) {
+				set(document, path, fields.get(path));
+			}
+		}
+	}
+
+	/**
+	 * Sets the value of a dotted path, i.e., "hourly.23.59.10", creating 
+	 * the intermediate objects that do not exist
+	 */
+	private static void set(DBObject document, String path, Object value) {
+		DBObject current = document;
+		int start = 0;
+		int dot;
+		while ((dot = path.indexOf('.', start))>=0) {
+			String field = path.substring(start, dot);
+			Object child = current.get(field);
+			if (!(child instanceof DBObject)) {
+				child = new BasicDBObject();
+				current.put(field, child);
+			}
+			current = (DBObject) child;
+			start = dot + 1;
+		}
+		current.put(path.substring(start), value);
+	}
+
+	private static boolean startsWith(String id, List<String> prefixes) {
+		for (String prefix : prefixes) {
+			if (id.startsWith(prefix))
+				return true;
+		}
+		return false;
+	}
+
+	private static DBObject copy(DBObject document) {
+		if (document instanceof BasicDBObject)
+			return (DBObject) ((BasicDBObject) document).copy();
+
+		return new BasicDBObject(document.toMap());
+	}
+}
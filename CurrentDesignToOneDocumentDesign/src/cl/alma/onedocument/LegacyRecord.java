@@ -0,0 +1,189 @@
+package cl.alma.onedocument;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.BSONObject;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+/**
+ * LegacyRecord is a read only record of the MONDB.monitorPoints collection
+ * with only the fields used by the migration. It is built by
+ * {@link LegacyRecordDecoder} straight from the BSON bytes: the date is kept
+ * as epoch milliseconds and the strings of the metadata are shared between
+ * records. <br/>
+ * It is a DBObject, so it goes through the same queues as the records of
+ * the default decoder, and {@link MongoManager#toSample(DBObject)} reads its
+ * fields without copying them into a map.
+ */
+public class LegacyRecord implements DBObject {
+
+	/**
+	 * Projection of the legacy cursors, the fields read by
+	 * {@link MongoManager#toSample(DBObject)}
+	 */
+	public static final DBObject FIELDS = new BasicDBObject("_id", 0)
+			.append("date", 1).append("componentName", 1)
+			.append("propertyName", 1).append("monitorPointName", 1)
+			.append("location", 1).append("serialNumber", 1)
+			.append("monitorValue", 1).append("index", 1);
+
+	// The record has no date
+	public static final long NO_DATE = Long.MIN_VALUE;
+
+	private final long date;
+	private final String componentName;
+	private final String propertyName;
+	private final String monitorPointName;
+	private final String location;
+	private final String serialNumber;
+	private final String monitorValue;
+	private final Object index;
+
+	LegacyRecord(long date, String componentName, String propertyName,
+			String monitorPointName, String location, String serialNumber,
+			String monitorValue, Object index) {
+		this.date = date;
+		this.componentName = componentName;
+		this.propertyName = propertyName;
+		this.monitorPointName = monitorPointName;
+		this.location = location;
+		this.serialNumber = serialNumber;
+		this.monitorValue = monitorValue;
+		this.index = index;
+	}
+
+	/**
+	 * Returns the date in epoch milliseconds, or {@link #NO_DATE}
+	 * @return
+	 */
+	public long getDate() {
+		return date;
+	}
+
+	public String getComponentName() {
+		return componentName;
+	}
+
+	public String getPropertyName() {
+		return propertyName;
+	}
+
+	public String getMonitorPointName() {
+		return monitorPointName;
+	}
+
+	public String getLocation() {
+		return location;
+	}
+
+	public String getSerialNumber() {
+		return serialNumber;
+	}
+
+	public String getMonitorValue() {
+		return monitorValue;
+	}
+
+	/**
+	 * Returns the index as it was stored, usually an Integer
+	 * @return
+	 */
+	public Object getIndex() {
+		return index;
+	}
+
+	@Override
+	public Object get(String key) {
+		if ("date".equals(key))
+			return date==NO_DATE ? null : new Date(date);
+		if ("componentName".equals(key))
+			return componentName;
+		if ("propertyName".equals(key))
+			return propertyName;
+		if ("monitorPointName".equals(key))
+			return monitorPointName;
+		if ("location".equals(key))
+			return location;
+		if ("serialNumber".equals(key))
+			return serialNumber;
+		if ("monitorValue".equals(key))
+			return monitorValue;
+		if ("index".equals(key))
+			return index;
+		return null;
+	}
+
+	@Override
+	public boolean containsField(String key) {
+		return get(key)!=null;
+	}
+
+	@Deprecated
+	@Override
+	public boolean containsKey(String key) {
+		return containsField(key);
+	}
+
+	@Override
+	public Set<String> keySet() {
+		Set<String> keys = new LinkedHashSet<String>();
+		for (String key : FIELDS.keySet()) {
+			if (get(key)!=null)
+				keys.add(key);
+		}
+		return keys;
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public Map toMap() {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		for (String key : keySet()) {
+			map.put(key, get(key));
+		}
+		return map;
+	}
+
+	@Override
+	public Object put(String key, Object v) {
+		throw new UnsupportedOperationException("LegacyRecord is read only");
+	}
+
+	@Override
+	public void putAll(BSONObject o) {
+		throw new UnsupportedOperationException("LegacyRecord is read only");
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void putAll(Map m) {
+		throw new UnsupportedOperationException("LegacyRecord is read only");
+	}
+
+	@Override
+	public Object removeField(String key) {
+		throw new UnsupportedOperationException("LegacyRecord is read only");
+	}
+
+	@Override
+	public void markAsPartialObject() {
+	}
+
+	@Override
+	public boolean isPartialObject() {
+		// The record has only the projected fields
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return JSON.serialize(this);
+	}
+}
@@ -0,0 +1,284 @@
+package cl.alma.onedocument;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.bson.BSONCallback;
+import org.bson.BSONObject;
+
+import com.mongodb.DBCallback;
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+
+/**
+ * LegacyRecordDecoder parses the records of the legacy collection straight
+ * from the wire bytes into {@link LegacyRecord} objects, without the
+ * intermediate BasicDBObject of the default decoder. The names of the
+ * fields are compared as bytes, and the strings of the metadata are looked
+ * up in a table of interned strings before being decoded, so a record only
+ * allocates its monitor value. <br/>
+ * A document with other fields or with unexpected types, i.e., the error
+ * of a query, is decoded by the default decoder. Use it with the
+ * {@link LegacyRecord#FIELDS} projection:
+ * <pre>
+ * collection.find(query, LegacyRecord.FIELDS)
+ *         .setDecoderFactory(LegacyRecordDecoder.FACTORY);
+ * </pre>
+ * An instance is not thread safe, the factory creates one per response.
+ */
+public class LegacyRecordDecoder implements DBDecoder {
+
+	public static final DBDecoderFactory FACTORY = new DBDecoderFactory() {
+		@Override
+		public DBDecoder create() {
+			return new LegacyRecordDecoder();
+		}
+	};
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// BSON types
+	private static final byte DOUBLE = 0x01;
+	private static final byte STRING = 0x02;
+	private static final byte OBJECT_ID = 0x07;
+	private static final byte DATE = 0x09;
+	private static final byte INT32 = 0x10;
+	private static final byte INT64 = 0x12;
+
+	// Fields of a record, in the order of FIELD_NAMES
+	private static final int ID = 0;
+	private static final int DATE_FIELD = 1;
+	private static final int COMPONENT_NAME = 2;
+	private static final int PROPERTY_NAME = 3;
+	private static final int MONITOR_POINT_NAME = 4;
+	private static final int LOCATION = 5;
+	private static final int SERIAL_NUMBER = 6;
+	private static final int MONITOR_VALUE = 7;
+	private static final int INDEX = 8;
+
+	private static final byte[][] FIELD_NAMES = {
+		bytes("_id"), bytes("date"), bytes("componentName"),
+		bytes("propertyName"), bytes("monitorPointName"), bytes("location"),
+		bytes("serialNumber"), bytes("monitorValue"), bytes("index")
+	};
+
+	// Size of the table of interned strings, a power of two
+	private static final int TABLE_SIZE = 4096;
+
+	/**
+	 * A string of the table with its UTF-8 bytes. The fields are final, so
+	 * the entries are shared between threads without locks.
+	 */
+	private static final class Interned {
+		final byte[] bytes;
+		final String value;
+
+		Interned(byte[] bytes, String value) {
+			this.bytes = bytes;
+			this.value = value;
+		}
+	}
+
+	// Indexed by the hash of the bytes, a collision replaces the entry
+	private static final Interned[] table = new Interned[TABLE_SIZE];
+
+	private final DefaultDBDecoder fallback = new DefaultDBDecoder();
+	private byte[] buffer = new byte[512];
+
+	@Override
+	public DBObject decode(byte[] b, DBCollection collection) {
+		DBObject record = parse(b, int32(b, 0));
+		return record!=null ? record : fallback.decode(b, collection);
+	}
+
+	@Override
+	public DBObject decode(InputStream in, DBCollection collection)
+			throws IOException {
+		readFully(in, buffer, 0, 4);
+		int length = int32(buffer, 0);
+		if (length<5)
+			throw new IllegalArgumentException("Invalid document length: "+length);
+
+		if (length>buffer.length) {
+			byte[] bigger = new byte[Math.max(length, buffer.length*2)];
+			System.arraycopy(buffer, 0, bigger, 0, 4);
+			buffer = bigger;
+		}
+		readFully(in, buffer, 4, length-4);
+
+		DBObject record = parse(buffer, length);
+		return record!=null ? record :
+			fallback.decode(Arrays.copyOf(buffer, length), collection);
+	}
+
+	@Override
+	public DBCallback getDBCallback(DBCollection collection) {
+		return fallback.getDBCallback(collection);
+	}
+
+	@Override
+	public BSONObject readObject(byte[] b) {
+		return fallback.readObject(b);
+	}
+
+	@Override
+	public BSONObject readObject(InputStream in) throws IOException {
+		return fallback.readObject(in);
+	}
+
+	@Override
+	public int decode(byte[] b, BSONCallback callback) {
+		return fallback.decode(b, callback);
+	}
+
+	@Override
+	public int decode(InputStream in, BSONCallback callback) throws IOException {
+		return fallback.decode(in, callback);
+	}
+
+	/**
+	 * Parses a document of the legacy collection, or returns null if it
+	 * has other fields or types
+	 */
+	private static LegacyRecord parse(byte[] b, int length) {
+		if (length<5 || length>b.length)
+			throw new IllegalArgumentException("Invalid document length: "+length);
+
+		long date = LegacyRecord.NO_DATE;
+		String[] strings = new String[MONITOR_VALUE+1];
+		Object index = null;
+
+		int end = length-1;
+		int pos = 4;
+		while (pos<end) {
+			byte type = b[pos++];
+			int nameStart = pos;
+			while (b[pos]!=0)
+				pos++;
+			int field = field(b, nameStart, pos-nameStart);
+			pos++;
+
+			switch (field) {
+			case ID:
+				// Only present without the projection
+				if (type!=OBJECT_ID)
+					return null;
+				pos += 12;
+				break;
+			case DATE_FIELD:
+				if (type!=DATE)
+					return null;
+				date = int64(b, pos);
+				pos += 8;
+				break;
+			case COMPONENT_NAME:
+			case PROPERTY_NAME:
+			case MONITOR_POINT_NAME:
+			case LOCATION:
+			case SERIAL_NUMBER:
+			case MONITOR_VALUE:
+				if (type!=STRING)
+					return null;
+				int size = int32(b, pos)-1;
+				pos += 4;
+				// The values change with every record, they are not interned
+				strings[field] = field==MONITOR_VALUE ?
+						new String(b, pos, size, UTF8) : intern(b, pos, size);
+				pos += size+1;
+				break;
+			case INDEX:
+				if (type==INT32) {
+					index = Integer.valueOf(int32(b, pos));
+					pos += 4;
+				} else if (type==INT64) {
+					index = Long.valueOf(int64(b, pos));
+					pos += 8;
+				} else if (type==DOUBLE) {
+					index = Double.valueOf(Double.longBitsToDouble(int64(b, pos)));
+					pos += 8;
+				} else {
+					return null;
+				}
+				break;
+			default:
+				return null;
+			}
+		}
+
+		return new LegacyRecord(date, strings[COMPONENT_NAME],
+				strings[PROPERTY_NAME], strings[MONITOR_POINT_NAME],
+				strings[LOCATION], strings[SERIAL_NUMBER],
+				strings[MONITOR_VALUE], index);
+	}
+
+	/**
+	 * Returns the field of a name, or -1 if it is not a field of a record
+	 */
+	private static int field(byte[] b, int offset, int length) {
+		for (int i=0; i<FIELD_NAMES.length; i++) {
+			if (equals(FIELD_NAMES[i], b, offset, length))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the interned string of some UTF-8 bytes, it is only decoded
+	 * when it is not in the table
+	 */
+	private static String intern(byte[] b, int offset, int length) {
+		int hash = 1;
+		for (int i=offset; i<offset+length; i++)
+			hash = 31*hash + b[i];
+		int slot = (hash ^ (hash>>>16)) & (TABLE_SIZE-1);
+
+		Interned entry = table[slot];
+		if (entry!=null && equals(entry.bytes, b, offset, length))
+			return entry.value;
+
+		String value = new String(b, offset, length, UTF8).intern();
+		table[slot] = new Interned(Arrays.copyOfRange(b, offset, offset+length),
+				value);
+		return value;
+	}
+
+	private static boolean equals(byte[] expected, byte[] b, int offset,
+			int length) {
+		if (expected.length!=length)
+			return false;
+		for (int i=0; i<length; i++) {
+			if (expected[i]!=b[offset+i])
+				return false;
+		}
+		return true;
+	}
+
+	private static int int32(byte[] b, int pos) {
+		return (b[pos] & 0xff) | (b[pos+1] & 0xff)<<8 |
+				(b[pos+2] & 0xff)<<16 | (b[pos+3] & 0xff)<<24;
+	}
+
+	private static long int64(byte[] b, int pos) {
+		return (int32(b, pos) & 0xffffffffL) | ((long) int32(b, pos+4))<<32;
+	}
+
+	private static void readFully(InputStream in, byte[] b, int offset,
+			int length) throws IOException {
+		while (length>0) {
+			int read = in.read(b, offset, length);
+			if (read<0)
+				throw new IOException("Unexpected end of the BSON stream");
+			offset += read;
+			length -= read;
+		}
+	}
+
+	private static byte[] bytes(String name) {
+		return name.getBytes(UTF8);
+	}
+}
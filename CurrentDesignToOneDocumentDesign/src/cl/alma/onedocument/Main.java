@@ -1,6 +1,12 @@
 package cl.alma.onedocument;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import com.mongodb.DB;
@@ -9,20 +15,60 @@ import com.mongodb.Mongo;
 
 public class Main {
 
+	public static final int NUM_CONSUMERS = 20;
+	public static final int QUEUE_CAPACITY = 500000;
+	public static final long QUEUE_BYTES = 256L*1024*1024;
+	public static final String SPILL_DIRECTORY = "spill";
+	public static final long REORDER_GRACE_PERIOD = 5000;
+	public static final int REORDER_MAX_SAMPLES = 100000;
+	public static final String SORT_DIRECTORY = "sort";
+	public static final long SORT_MEMORY_BUDGET = 256L*1024*1024;
+	public static final String SAMPLE_TIMES_FILE = "sampleTimes.properties";
+
 	/**
-	 * @param args
+	 * @param args Use "ring" to run the migration through the 
+	 * {@link RingPipeline} instead of the blocking queue, "memory" to 
+	 * write the documents into an {@link InMemoryStorageBackend}, "spill"
+	 * to spill the records to disk when the queue is full, see
+	 * {@link SpillingQueue}, "bytes" to bound the queue by the estimated 
+	 * bytes of the records, see {@link ByteBoundedQueue}, "reorder" to 
+	 * upsert the samples of each document in chronological batches, see 
+	 * {@link ReorderBuffer}, "changes" to write only the samples whose 
+	 * value changed, together with "reorder", "backfill" or "sort", see 
+	 * {@link ChangeFilter}, "backfill" to build each day
+	 * document in memory and insert it once, see 
+	 * {@link MongoManager#enableBackfill()}, "sort" to backfill from the 
+	 * unordered export through an external sort, see {@link ExternalSorter},
+	 * "batch" to queue the records in batches, see 
+	 * {@link Query#exportBatches(BlockingQueue, int)}, "nopreallocate" to 
+	 * create the documents with their first upsert, see
+	 * {@link MongoManager#upsert(List, boolean)}, and "deferindex" to build
+	 * the indexes of the new collections at the end of the load, see
+	 * {@link MongoStorageBackend#setDeferIndexes(boolean)}. The sample 
+	 * times of the monitor points are read from "sampleTimes.properties" 
+	 * if it exists, see {@link Granularity}
 	 */
 	public static void main(String[] args) {
 
-		LinkedBlockingQueue<DBObject> queue = 
-				new LinkedBlockingQueue<DBObject>(500000);
+		List<String> options = Arrays.asList(args);
+
+		BlockingQueue<DBObject> queue = null;
+		if (options.contains("spill")) {
+			queue = new SpillingQueue(QUEUE_CAPACITY, new File(SPILL_DIRECTORY));
+		} else if (options.contains("bytes")) {
+			queue = new ByteBoundedQueue(QUEUE_BYTES);
+		} else {
+			queue = new LinkedBlockingQueue<DBObject>(QUEUE_CAPACITY);
+		}
 		
 		Mongo mongo = null;
 		DB database = null;
 		try {
-			//mongo = new Mongo("localhost");
-			mongo = new Mongo("mongo-r1.osf.alma.cl");
-			database = mongo.getDB("OneMonitorPointPerDayPerDocument");
+			if (!options.contains("memory")) {
+				//mongo = new Mongo("localhost");
+				mongo = new Mongo("mongo-r1.osf.alma.cl");
+				database = mongo.getDB("OneMonitorPointPerDayPerDocument");
+			}
 
 			//mongoManager = new MongoManager("mongo-r1.osf.alma.cl",
 					//"OneMonitorPointPerDayPerDocument");
@@ -32,12 +78,90 @@ public class Main {
 			System.exit(-1);
 		}
 		
-		MongoManager.setConnection(mongo, database);
+		if (mongo!=null) {
+			MongoManager.setConnection(mongo, database);
+			if (options.contains("deferindex")) {
+				((MongoStorageBackend) MongoManager.getStorage())
+						.setDeferIndexes(true);
+			}
+		} else {
+			MongoManager.setStorage(new InMemoryStorageBackend());
+		}
+		
+		if (options.contains("changes")) {
+			// A late sample would be carried forward over the suppressed 
+			// slots after it, so the samples of each document must come in
+			// chronological order
+			if (!options.contains("reorder") && !options.contains("backfill") &&
+					!options.contains("sort")) {
+				System.err.println("\"changes\" needs \"reorder\", \"backfill\" or \"sort\"");
+				System.exit(-1);
+			}
+			MongoManager.setChangeFilter(new ChangeFilter());
+		}
+		
+		// The write hot spots are logged periodically
+		MongoManager.setHotSpotDetector(new HotSpotDetector());
+		
+		// The sample times choose the granularity of the documents
+		File sampleTimes = new File(SAMPLE_TIMES_FILE);
+		if (sampleTimes.exists()) {
+			try {
+				MongoManager.setSampleTimes(
+						MongoManager.loadSampleTimes(sampleTimes));
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.exit(-1);
+			}
+		}
+		
+		boolean sort = options.contains("sort");
+		boolean backfill = sort || options.contains("backfill");
+		
+		// Loading today's documents before the consumers start, only the 
+		// live load into the cluster checks the preallocated documents
+		if (mongo!=null && (options.contains("ring") || !backfill) && 
+				!options.contains("nopreallocate")) {
+			MongoManager.warmUp(new Date());
+		}
+		
+		if (options.contains("ring")) {
+			runRingPipeline(mongo, options.contains("reorder"));
+			return;
+		}
+		
+		// The backfill needs the records of each document in order, so it 
+		// uses a single consumer
+		int numConsumers = backfill ? 1 : NUM_CONSUMERS;
+		
+		// The records are queued in batches, unless they are exported in 
+		// document order
+		BlockingQueue<List<DBObject>> batchQueue = null;
+		if (options.contains("batch") && (sort || !backfill)) {
+			batchQueue = new LinkedBlockingQueue<List<DBObject>>(
+					QUEUE_CAPACITY/Query.DEFAULT_BATCH_SIZE);
+		}
 		
 		// Launching the consumer threads
-		Thread[] consumers = new Thread[20];
-		for (int i=0; i<20; i++) {
-			consumers[i] = new Thread(MongoManager.mongoManagerFactory(queue));
+		Thread[] consumers = new Thread[numConsumers];
+		for (int i=0; i<numConsumers; i++) {
+			MongoManager consumer = MongoManager.mongoManagerFactory(queue);
+			if (batchQueue!=null) {
+				consumer.setBatchQueue(batchQueue);
+			}
+			if (options.contains("nopreallocate")) {
+				consumer.setPreallocate(false);
+			}
+			if (sort) {
+				consumer.enableExternalSort(new File(SORT_DIRECTORY), 
+						SORT_MEMORY_BUDGET);
+			} else if (backfill) {
+				consumer.enableBackfill();
+			} else if (options.contains("reorder")) {
+				consumer.enableReorderBuffer(REORDER_GRACE_PERIOD, 
+						REORDER_MAX_SAMPLES);
+			}
+			consumers[i] = new Thread(consumer);
 			consumers[i].start();
 		}
 
@@ -46,11 +170,22 @@ public class Main {
 			query = new Query("mongo-r1.osf.alma.cl", "MONDB",
 					"monitorPoints");
 			query.setQueue(queue);
-			query.exportData();
+			if (backfill && !sort) {
+				query.exportSortedData();
+			} else if (batchQueue!=null) {
+				try {
+					query.exportBatches(batchQueue, Query.DEFAULT_BATCH_SIZE);
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+			} else {
+				query.exportData();
+			}
 			
 			// Interrupting the MongoManager thread once have been consumed
 			// all samples in the queue
-			while (!queue.isEmpty()) {
+			while (!queue.isEmpty() || 
+					(batchQueue!=null && !batchQueue.isEmpty())) {
 				try {
 					Thread.sleep(3000);
 				} catch (InterruptedException e) {
@@ -59,10 +194,25 @@ public class Main {
 			}
 			
 			// Stopping the consumers
-			for (int i=0; i<20; i++) {
+			for (int i=0; i<numConsumers; i++) {
 				consumers[i].interrupt();
 			}
 			
+			// The consumers flush their buffers before finishing, i.e., 
+			// the external sort writes all documents at this point
+			for (int i=0; i<numConsumers; i++) {
+				try {
+					consumers[i].join();
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+			}
+			
+			if (queue instanceof SpillingQueue) {
+				((SpillingQueue) queue).close();
+			}
+			finishLoad();
+			
 		} catch (UnknownHostException e) {
 			e.printStackTrace();
 			System.exit(-1);
@@ -75,4 +225,55 @@ public class Main {
 		}
 	}
 
+	/**
+	 * Last step of both pipelines, once every sample has been written: 
+	 * logs the final top of the write hot spots, builds the indexes of 
+	 * the collections created by the load and logs the pending stage events
+	 */
+	private static void finishLoad() {
+		HotSpotDetector detector = MongoManager.getHotSpotDetector();
+		if (detector!=null)
+			detector.report();
+
+		if (MongoManager.getStorage() instanceof MongoStorageBackend) {
+			((MongoStorageBackend) MongoManager.getStorage())
+					.buildPendingIndexes();
+		}
+		StageEvents.close();
+	}
+
+	/**
+	 * Runs the migration through the ring pipeline
+	 * @param mongo
+	 * @param reorder Enables the reorder buffer of the writers
+	 */
+	private static void runRingPipeline(Mongo mongo, boolean reorder) {
+		RingPipeline pipeline = new RingPipeline(RingPipeline.DEFAULT_SIZE,
+				NUM_CONSUMERS);
+		if (reorder) {
+			pipeline.enableReorderBuffer(REORDER_GRACE_PERIOD, 
+					REORDER_MAX_SAMPLES);
+		}
+		pipeline.start();
+
+		try {
+			Query query = new Query("mongo-r1.osf.alma.cl", "MONDB",
+					"monitorPoints");
+			query.exportData(pipeline.getRingBuffer());
+
+			// Stopping the stages once all slots have been written
+			pipeline.shutdown();
+			finishLoad();
+
+		} catch (UnknownHostException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} finally {
+			if (mongo!=null) {
+				mongo.close();
+			}
+		}
+	}
 }
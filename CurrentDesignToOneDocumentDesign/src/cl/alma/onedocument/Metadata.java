@@ -14,6 +14,7 @@ public class Metadata {
 	private String _serialNumber;
 	private int _index;
 	private int _sampleTime;
+	private ValueType _valueType;
 
 	/**
 	 * Instantiate a new Metadata object
@@ -26,6 +27,23 @@ public class Metadata {
 	 */
 	public Metadata(DocumentID documentID, String property, String location,
 			String serialNumber, int index, int sampleTime) {
+		this(documentID, property, location, serialNumber, index, sampleTime, 
+				null);
+	}
+
+	/**
+	 * Instantiate a new Metadata object with the value type of the monitor
+	 * point, the documents are preallocated with that type
+	 * @param documentID
+	 * @param property
+	 * @param location
+	 * @param serialNumber
+	 * @param index
+	 * @param sampleTime
+	 * @param valueType Value type or null if it is not known
+	 */
+	public Metadata(DocumentID documentID, String property, String location,
+			String serialNumber, int index, int sampleTime, ValueType valueType) {
 
 		if (documentID==null) {
 			throw new IllegalArgumentException("DocumentID cannot be null");
@@ -41,6 +59,7 @@ public class Metadata {
 		this._serialNumber = serialNumber;
 		this._index = index;
 		this._sampleTime = sampleTime;
+		this._valueType = valueType;
 	}
 
 	public DocumentID getDocumentID() {
@@ -67,5 +86,14 @@ public class Metadata {
 		return _index;
 	}
 
+	/**
+	 * Returns the value type of the monitor point, or null if it is not 
+	 * known and the type of the first sample of a document is used
+	 * @return
+	 */
+	public ValueType getValueType() {
+		return _valueType;
+	}
+
 	
 }
\ No newline at end of file
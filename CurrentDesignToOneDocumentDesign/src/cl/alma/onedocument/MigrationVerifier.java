@@ -0,0 +1,462 @@
+package cl.alma.onedocument;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.Mongo;
+
+/**
+ * MigrationVerifier compares the legacy collection with the day documents
+ * without exporting the data again. Each day of a date range is a
+ * partition verified by a pool of threads: the legacy records of the day
+ * and the day documents are streamed, and for each document the number of
+ * samples and a checksum of their (second, value) pairs are compared. <br/>
+ * A partition keeps one counter per document of the day, so the memory
+ * does not depend on the size of the range. The placeholders are not
+ * counted on either side, see {@link MongoManager#isPlaceholder(Object)},
+ * so the samples removed by a {@link ChangeFilter} and the legacy records
+ * of the same second are reported as differences.
+ */
+public class MigrationVerifier {
+
+	// Maximum number of differences kept, the rest are only counted
+	public static final int MAX_DIFFERENCES = 1000;
+	private static final int SOURCE_BATCH_SIZE = 10000;
+
+	/**
+	 * Difference between the legacy records and the document of a day
+	 */
+	public static class Difference {
+		private final String id;
+		private final long sourceCount;
+		private final long targetCount;
+		private final boolean checksumMatches;
+
+		Difference(String id, Digest source, Digest target) {
+			this.id = id;
+			this.sourceCount = source.count;
+			this.targetCount = target.count;
+			this.checksumMatches = source.checksum==target.checksum;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public long getSourceCount() {
+			return sourceCount;
+		}
+
+		public long getTargetCount() {
+			return targetCount;
+		}
+
+		public boolean isChecksumMatching() {
+			return checksumMatches;
+		}
+
+		@Override
+		public String toString() {
+			return id + ": " + sourceCount + " legacy samples, " + targetCount +
+					" document samples" + (checksumMatches ? "" : ", different values");
+		}
+	}
+
+	/**
+	 * Number of samples and order independent checksum of a document
+	 */
+	private static class Digest {
+		long count;
+		long checksum;
+
+		void add(int second, Object value) {
+			count++;
+			checksum += mix(second*0x9E3779B97F4A7C15L + valueHash(value));
+		}
+
+		boolean matches(Digest other) {
+			return count==other.count && checksum==other.checksum;
+		}
+	}
+
+	private final DBCollection source;
+	private final StorageBackend target;
+	private final int threads;
+
+	private final List<Difference> differences =
+			Collections.synchronizedList(new ArrayList<Difference>());
+	private final AtomicLong differenceCount = new AtomicLong();
+	private final AtomicLong documentCount = new AtomicLong();
+	private final AtomicLong recordCount = new AtomicLong();
+	private final AtomicLong invalidCount = new AtomicLong();
+
+	/**
+	 * Instantiates a MigrationVerifier object
+	 *
+	 * @param source Legacy collection, i.e., "monitorPoints"
+	 * @param target Storage of the day documents
+	 * @param threads Number of days verified at the same time
+	 */
+	public MigrationVerifier(DBCollection source, StorageBackend target,
+			int threads) {
+		if (threads<=0)
+			throw new IllegalArgumentException("The number of threads must be positive");
+
+		this.source = source;
+		this.target = target;
+		this.threads = threads;
+	}
+
+	/**
+	 * Verifies the days of a range and returns the first
+	 * {@link #MAX_DIFFERENCES} differences
+	 *
+	 * @param from First day
+	 * @param to Last day, inclusive
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public List<Difference> verify(Date from, Date to) throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+
+			Calendar day = Calendar.getInstance();
+			day.setTime(from);
+			while (!day.getTime().after(to)) {
+				final int year = day.get(Calendar.YEAR);
+				final int month = day.get(Calendar.MONTH)+1;
+				final int dayOfMonth = day.get(Calendar.DAY_OF_MONTH);
+				results.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						verifyDay(year, month, dayOfMonth);
+						return null;
+					}
+				}));
+				day.add(Calendar.DAY_OF_MONTH, 1);
+			}
+
+			for (Future<Void> result : results) {
+				try {
+					result.get();
+				} catch (ExecutionException e) {
+					throw new IllegalStateException("Verification failed", e.getCause());
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		return getDifferences();
+	}
+
+	/**
+	 * Returns the first {@link #MAX_DIFFERENCES} differences found
+	 * @return
+	 */
+	public List<Difference> getDifferences() {
+		synchronized (differences) {
+			return new ArrayList<Difference>(differences);
+		}
+	}
+
+	/**
+	 * Verifies the documents of a day
+	 *
+	 * @param year
+	 * @param month Month, from 1 to 12
+	 * @param day
+	 */
+	public void verifyDay(int year, int month, int day) {
+		DBCursor cursor = findSource(year, month, day);
+		try {
+			verifyDay(year, month, day, cursor);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Verifies the documents of a day against some legacy records, i.e., 
+	 * the records of the day read from another source
+	 *
+	 * @param year
+	 * @param month Month, from 1 to 12
+	 * @param day
+	 * @param records Legacy records of the day, with their dates three 
+	 * hours behind, see {@link MongoManager#toSample(DBObject)}
+	 */
+	public void verifyDay(int year, int month, int day, Iterator<DBObject> records) {
+		Map<String, Digest> digests = readSource(records);
+
+		Iterator<DBObject> documents = target.findDocuments(year, month, day);
+		while (documents.hasNext()) {
+			DBObject document = documents.next();
+			String id = (String) document.get("_id");
+			int startDay = granularityOf(id).getStartDay(day);
+			Digest digest = digest(document, (day-startDay)*24);
+			Digest expected = digests.remove(id);
+			if (expected==null)
+				expected = new Digest();
+
+			documentCount.incrementAndGet();
+			if (!expected.matches(digest))
+				addDifference(new Difference(id, expected, digest));
+		}
+
+		// The documents that were not migrated
+		for (Map.Entry<String, Digest> entry : digests.entrySet()) {
+			if (entry.getValue().count>0)
+				addDifference(new Difference(entry.getKey(), entry.getValue(),
+						new Digest()));
+		}
+	}
+
+	/**
+	 * Returns the number of differences, including the ones not kept
+	 * @return
+	 */
+	public long getDifferenceCount() {
+		return differenceCount.get();
+	}
+
+	/**
+	 * Returns the number of verified day documents
+	 * @return
+	 */
+	public long getDocumentCount() {
+		return documentCount.get();
+	}
+
+	/**
+	 * Returns the number of legacy records read
+	 * @return
+	 */
+	public long getRecordCount() {
+		return recordCount.get();
+	}
+
+	/**
+	 * Returns the number of legacy records that could not be converted
+	 * @return
+	 */
+	public long getInvalidCount() {
+		return invalidCount.get();
+	}
+
+	/**
+	 * Returns the legacy records of a day. The records are stored three hours
+	 * behind the day of their documents, see {@link MongoManager#toSample(DBObject)}.
+	 */
+	private DBCursor findSource(int year, int month, int day) {
+		Calendar start = new GregorianCalendar(year, month-1, day, 0, 0, 0);
+		start.add(Calendar.HOUR, -3);
+		Calendar end = (Calendar) start.clone();
+		end.add(Calendar.DAY_OF_MONTH, 1);
+
+		DBObject query = new BasicDBObject("date", new BasicDBObject(
+				"$gte", start.getTime()).append("$lt", end.getTime()));
+		return source.find(query, LegacyRecord.FIELDS)
+				.setDecoderFactory(LegacyRecordDecoder.FACTORY)
+				.batchSize(SOURCE_BATCH_SIZE)
+				.addOption(Bytes.QUERYOPTION_NOTIMEOUT);
+	}
+
+	/**
+	 * Returns the digests of the documents of some legacy records
+	 */
+	private Map<String, Digest> readSource(Iterator<DBObject> records) {
+		Map<String, Digest> digests = new HashMap<String, Digest>();
+		while (records.hasNext()) {
+			recordCount.incrementAndGet();
+			Sample sample;
+			try {
+				sample = MongoManager.toSample(records.next());
+			} catch (RuntimeException e) {
+				invalidCount.incrementAndGet();
+				continue;
+			}
+
+			Object value = sample.getTypedValue();
+			if (MongoManager.isPlaceholder(value))
+				continue;
+
+			String id = sample.getMetadata().getDocumentID().toString();
+			Digest digest = digests.get(id);
+			if (digest==null) {
+				digest = new Digest();
+				digests.put(id, digest);
+			}
+			digest.add((sample.getHour()*60 + sample.getMinute())*60 +
+					sample.getSecond(), value);
+		}
+		return digests;
+	}
+
+	/**
+	 * Returns the granularity of a document from the suffix of the date of
+	 * its id, see {@link DocumentID#toString()}
+	 */
+	private static Granularity granularityOf(String id) {
+		int end = id.indexOf('/');
+		char last = end>0 ? id.charAt(end-1) : '0';
+		for (Granularity granularity : Granularity.values()) {
+			String suffix = granularity.getSuffix();
+			if (suffix.length()>0 && suffix.charAt(0)==last)
+				return granularity;
+		}
+		return Granularity.DAY;
+	}
+
+	/**
+	 * Returns the digest of the day of the "hourly" field of a document,
+	 * a document of several days holds the hours from firstHour to
+	 * firstHour+23 of the day.
+	 */
+	private static Digest digest(DBObject document, int firstHour) {
+		Digest digest = new Digest();
+		DBObject hours = (DBObject) document.get("hourly");
+		if (hours==null)
+			return digest;
+
+		for (String hour : hours.keySet()) {
+			int h = Integer.parseInt(hour);
+			if (h<firstHour || h>=firstHour+24)
+				continue;
+
+			DBObject minutes = (DBObject) hours.get(hour);
+			for (String minute : minutes.keySet()) {
+				DBObject seconds = (DBObject) minutes.get(minute);
+				for (String second : seconds.keySet()) {
+					Object value = seconds.get(second);
+					if (!MongoManager.isPlaceholder(value)) {
+						digest.add((h*60 +
+								Integer.parseInt(minute))*60 +
+								Integer.parseInt(second), value);
+					}
+				}
+			}
+		}
+		return digest;
+	}
+
+	private void addDifference(Difference difference) {
+		if (differenceCount.incrementAndGet()<=MAX_DIFFERENCES)
+			differences.add(difference);
+	}
+
+	/**
+	 * Hashes the text of a value, so a value stored with its type and the
+	 * same value kept as text match, see {@link ValueType#infer(String)}
+	 */
+	private static long valueHash(Object value) {
+		String text;
+		if (value instanceof Integer) {
+			// The booleans are stored as int32
+			text = ((Integer) value).intValue()!=0 ? "true" : "false";
+		} else {
+			text = value.toString();
+		}
+
+		long hash = 0xcbf29ce484222325L;
+		for (int i=0; i<text.length(); i++) {
+			hash ^= text.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * Spreads the bits of a value, so the sum of the checksums does not
+	 * cancel similar pairs
+	 */
+	private static long mix(long value) {
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		value ^= value >>> 33;
+		value *= 0xc4ceb9fe1a85ec53L;
+		value ^= value >>> 33;
+		return value;
+	}
+
+	/**
+	 * @param args host database collection targetHost targetDatabase
+	 * from to [sampleTimes], the dates in format yyyy-MM-dd. The sample 
+	 * times choose the documents of each monitor point, so they must be the
+	 * ones of the migration, by default {@link Main#SAMPLE_TIMES_FILE} if
+	 * it exists
+	 */
+	public static void main(String[] args) {
+		if (args.length!=7 && args.length!=8) {
+			System.err.println("Usage: MigrationVerifier host database collection " +
+					"targetHost targetDatabase from to [sampleTimes]");
+			System.exit(-1);
+		}
+
+		Mongo mongo = null;
+		Mongo targetMongo = null;
+		try {
+			SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+			Date from = format.parse(args[5]);
+			Date to = format.parse(args[6]);
+
+			File sampleTimes = new File(args.length==8 ? args[7] : 
+					Main.SAMPLE_TIMES_FILE);
+			if (args.length==8 || sampleTimes.exists()) {
+				MongoManager.setSampleTimes(
+						MongoManager.loadSampleTimes(sampleTimes));
+			}
+
+			mongo = new Mongo(args[0]);
+			targetMongo = new Mongo(args[3]);
+			MigrationVerifier verifier = new MigrationVerifier(
+					mongo.getDB(args[1]).getCollection(args[2]),
+					new MongoStorageBackend(targetMongo, targetMongo.getDB(args[4])),
+					Runtime.getRuntime().availableProcessors());
+
+			long start = System.currentTimeMillis();
+			List<Difference> differences = verifier.verify(from, to);
+			for (Difference difference : differences) {
+				System.out.println(difference);
+			}
+
+			System.out.println("Legacy records: "+verifier.getRecordCount()+
+					", invalid: "+verifier.getInvalidCount()+
+					", documents: "+verifier.getDocumentCount()+
+					", differences: "+verifier.getDifferenceCount()+
+					", time: "+(System.currentTimeMillis()-start)/1000+"s");
+
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(-1);
+		} finally {
+			if (mongo!=null) {
+				mongo.close();
+			}
+			if (targetMongo!=null) {
+				targetMongo.close();
+			}
+		}
+	}
+}
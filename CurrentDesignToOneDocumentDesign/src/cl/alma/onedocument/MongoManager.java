@@ -1,5 +1,9 @@
 package cl.alma.onedocument;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -7,15 +11,22 @@ import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
+import cl.alma.onedocument.StageEvents.Stage;
+
 import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
 import com.mongodb.CommandResult;
@@ -34,7 +45,7 @@ import com.mongodb.util.JSON;
  * @author Leonel Peña <leo.dhpl@gmail.com>
  *
  */
-public class MongoManager implements Runnable {
+public class MongoManager implements Runnable, EventHandler<MonitorEvent> {
 	
 	public static final int N_MONITOR_POINTS = 250000;
 	public static final String NOT_ASSIGNED = "na";
@@ -42,12 +53,28 @@ public class MongoManager implements Runnable {
 	public static final int DEFAULT_PREALLOCATE_TIME = 1;
 	public static final int MAX_VALUE_SIZE = 7;
 	
+	// Placeholders of the typed values, see ValueType
+	public static final double NOT_ASSIGNED_DOUBLE = Double.NaN;
+	public static final long NOT_ASSIGNED_LONG = Long.MIN_VALUE;
+	public static final int NOT_ASSIGNED_BOOLEAN = Integer.MIN_VALUE;
+	
+	// Reorder buffer settings
+	public static final int REORDER_MAX_BATCH = 3600;
+	public static final long REORDER_POLL_TIME = 500;
+	
 	private static final Logger log = Logger.getLogger(MongoManager.class);
 	private static final Logger infoLog = Logger.getLogger("info_log");
+	// The errors of the consumers are logged by another thread
+	private static final ErrorReporter errorReporter = new ErrorReporter(log);
 	
-	private static Mongo mongo;
-	private static DB database;
-	private static Map<String, DBCollection> mongoCollections;
+	private static StorageBackend storage;
+	private static ChangeFilter changeFilter;
+	private static volatile HotSpotDetector hotSpotDetector;
+	private static volatile Map<String, Integer> sampleTimes = 
+			Collections.emptyMap();
+	// antenna/component/monitorPoint -> type of its values
+	private static volatile ConcurrentMap<String, ValueType> valueTypes = 
+			new ConcurrentHashMap<String, ValueType>();
 	
 	private static int numThreads;
 	private static DocumentBuffer<String> documentBuffer;
@@ -56,24 +83,44 @@ public class MongoManager implements Runnable {
 	private static AtomicInteger errors;
 
 	private String threadName;
-	private LinkedBlockingQueue<DBObject> queue;
+	private BlockingQueue<DBObject> queue;
+	// Used instead of the queue when the records are exported in batches
+	private BlockingQueue<List<DBObject>> batchQueue;
+	
+	// Used by the write stage of the ring pipeline
+	private int ordinal;
+	
+	private ReorderBuffer reorderBuffer;
+	
+	// Day document built by the backfill mode
+	private boolean backfill;
+	private Sample backfillSample;
+	private Object[] backfillValues;
+	private ExternalSorter sorter;
+	private boolean preallocate = true;
 	
 	private static BasicDBObject[] preallocatedDocuments;
+	private static Map<ValueType, BasicDBObject> typedPreallocatedDocuments;
 	
 	static {
 		numThreads = 0;
 		preallocate_cont = new AtomicInteger();
 		updates = new AtomicInteger();
 		errors = new AtomicInteger();
-		mongoCollections = Collections.synchronizedMap(
-				new HashMap<String, DBCollection>(3)
-		);
 		documentBuffer = new DocumentBuffer<String>(N_MONITOR_POINTS);
 		
 		// Creates several documents with different size of the value
 		preallocatedDocuments = new BasicDBObject[MAX_VALUE_SIZE]; 
 		for (int i=0; i<MAX_VALUE_SIZE; i++) {
-			preallocatedDocuments[i] = preAllocate(i+1);
+			preallocatedDocuments[i] = preAllocate(placeholder(ValueType.STRING, i+1));
+		}
+		
+		// The numeric and boolean values have a fixed size
+		typedPreallocatedDocuments = new EnumMap<ValueType, BasicDBObject>(ValueType.class);
+		for (ValueType type : ValueType.values()) {
+			if (type!=ValueType.STRING) {
+				typedPreallocatedDocuments.put(type, preAllocate(placeholder(type, 0)));
+			}
 		}
 	}
 
@@ -83,12 +130,65 @@ public class MongoManager implements Runnable {
 	 * @param queue
 	 * @return 
 	 */
-	public static MongoManager mongoManagerFactory(LinkedBlockingQueue<DBObject> queue) {
+	public static MongoManager mongoManagerFactory(BlockingQueue<DBObject> queue) {
 		numThreads++;
 
 		return new MongoManager("MongoManager_"+numThreads, queue);
 	}
 	
+	/**
+	 * Returns a MongoManager instance to use as a write stage of the 
+	 * {@link RingPipeline}. The {@link TransformHandler} splits the documents
+	 * between the writers by the hash of their id, so all samples of a 
+	 * document are upserted by the same writer.
+	 * @param ordinal Number of this writer, from 0 to numWriters-1
+	 * @param numWriters Number of writers of the stage
+	 * @return
+	 */
+	public static MongoManager eventHandlerFactory(int ordinal, int numWriters) {
+		if (ordinal<0 || ordinal>=numWriters)
+			throw new IllegalArgumentException("Ordinal out of range.");
+
+		MongoManager mongoManager = mongoManagerFactory(null);
+		mongoManager.ordinal = ordinal;
+
+		return mongoManager;
+	}
+	
+	/**
+	 * Splits the componentName that comes from the old schema. The format
+	 * is "CONTROL/DV10/FrontEnd/Cryostat", from which the antenna and 
+	 * the component/subcomponent are extracted.
+	 * @param componentName Component name of the old schema
+	 * @return An array with the antenna and the component
+	 */
+	static String[] splitComponentName(String componentName) {
+		String[] oldComponentName = componentName.split("/");
+		String antenna = oldComponentName[1];
+		String component = null;
+
+		// If the old ComponentName length is three it means there is
+		// just a component, however, if the length is four
+		// there is a component and subcomponent
+		if (oldComponentName.length==2) {
+			// This case occurs when the component name is 
+			// "ACACORR/CCC_MONITOR"
+			antenna = oldComponentName[0];
+			component = oldComponentName[1];
+
+		} else if (oldComponentName.length==3) {
+			component = oldComponentName[2];
+
+		} else if (oldComponentName.length==4) {
+			component = oldComponentName[2]+"/"+oldComponentName[3];
+
+		} else {
+			errorReporter.report("Invalid component name", componentName);
+		}
+
+		return new String[] {antenna, component};
+	}
+	
 	/**
 	 * Returns the preallocate document with predefine value size.
 	 * @param valueSize Value size of the fields
@@ -101,11 +201,29 @@ public class MongoManager implements Runnable {
 		return preallocatedDocuments[valueSize];
 	}
 	
+	/**
+	 * Returns the preallocate document for a value type. The value size is
+	 * only used by the string type.
+	 * @param type Type of the values
+	 * @param valueSize Value size of the fields
+	 * @return
+	 */
+	public static BasicDBObject getPreallocatedDocument(ValueType type, int valueSize) {
+		if (type==ValueType.STRING)
+			return getPreallocatedDocument(valueSize);
+		
+		return typedPreallocatedDocuments.get(type);
+	}
+	
 	public static BasicDBObject getPreallocatedDocument(Metadata metadata, int valueSize) {
-		if (valueSize<0 || valueSize>=MAX_VALUE_SIZE)
-			throw new IllegalArgumentException("Value size out of range.");
+		return getPreallocatedDocument(metadata, ValueType.STRING, valueSize);
+	}
+	
+	public static BasicDBObject getPreallocatedDocument(Metadata metadata, 
+			ValueType type, int valueSize) {
 		
-		BasicDBObject newDocument = (BasicDBObject) preallocatedDocuments[valueSize].clone();
+		BasicDBObject newDocument = (BasicDBObject) getPreallocatedDocument(
+				type, valueSize).clone();
 		
 		newDocument.append("_id",metadata.getDocumentID().toString());
 
@@ -125,16 +243,256 @@ public class MongoManager implements Runnable {
 	}
 	
 	/**
+	 * Returns the value used to preallocate the fields of a document. 
+	 * For the string type, if the value size is equal or less than two, it 
+	 * use the NOT_ASSIGNED string to represent a not assigned value and
+	 * for the values size greater or equal than three use the NOT_ASSIGNED 
+	 * constant plus DEFAULT_CHARACTER for each character greater or 
+	 * equal than three. In the second case, the size of the 
+	 * value preallocated is equal to the size that will be assigned into 
+	 * the upsert method. <br/>
+	 * The other types use a placeholder of the same BSON type, so the 
+	 * document never grows when the values are updated. The booleans are 
+	 * stored as int32 1 or 0, so their placeholder cannot be a real value.
+	 * 
+	 * @param type Type of the value that will be post-update
+	 * @param valueSize Size of the string value that will be post-update
+	 * @return
+	 */
+	public static Object placeholder(ValueType type, int valueSize) {
+		switch (type) {
+		case DOUBLE:
+			return Double.valueOf(NOT_ASSIGNED_DOUBLE);
+		case LONG:
+			return Long.valueOf(NOT_ASSIGNED_LONG);
+		case BOOLEAN:
+			return Integer.valueOf(NOT_ASSIGNED_BOOLEAN);
+		default:
+			String valueToPreallocate = NOT_ASSIGNED;
+			for (int i=3; i<=valueSize; i++) {
+				valueToPreallocate += DEFAULT_CHARACTER;
+			}
+			return valueToPreallocate;
+		}
+	}
+	
+	/**
+	 * Returns true if the value is a placeholder of a preallocated field, 
+	 * see placeholder(ValueType, int)
 	 * 
+	 * @param value Value of a field
+	 * @return
+	 */
+	public static boolean isPlaceholder(Object value) {
+		if (value==null)
+			return true;
+
+		if (value instanceof Double)
+			return ((Double) value).isNaN();
+
+		if (value instanceof Long)
+			return ((Long) value).longValue()==NOT_ASSIGNED_LONG;
+
+		if (value instanceof Integer)
+			return ((Integer) value).intValue()==NOT_ASSIGNED_BOOLEAN;
+
+		if (value instanceof String) {
+			String string = (String) value;
+			if (!string.startsWith(NOT_ASSIGNED))
+				return false;
+
+			for (int i=NOT_ASSIGNED.length(); i<string.length(); i++) {
+				if (string.charAt(i)!=DEFAULT_CHARACTER.charAt(0))
+					return false;
+			}
+			return true;
+		}
+
+		return false;
+	}
+	
+	/**
+	 * Sets a MongoDB database as the storage of the documents
 	 * @param _mongo
 	 * @param _database
 	 */
 	public static void setConnection(Mongo _mongo, DB _database) {
-		mongo = _mongo;
-		database = _database;
+		setStorage(new MongoStorageBackend(_mongo, _database));
+	}
+	
+	/**
+	 * Sets the storage of the documents, i.e., an 
+	 * {@link InMemoryStorageBackend} to run without a server
+	 * @param _storage
+	 */
+	public static void setStorage(StorageBackend _storage) {
+		storage = _storage;
+		// The buffered documents belong to the previous storage
+		documentBuffer = new DocumentBuffer<String>(N_MONITOR_POINTS);
+	}
+
+	/**
+	 * Loads the documents of a day into the buffer of created documents, so
+	 * the first sample of each monitor point does not consult the database.
+	 * Call it before starting the consumers, i.e., after a restart.
+	 * 
+	 * @param date Time of the legacy records, it is shifted like in 
+	 * {@link #toSample(DBObject)} to choose the day of the documents
+	 * @return Number of loaded documents
+	 */
+	public static int warmUp(Date date) {
+		Calendar calendar = Calendar.getInstance();
+		// Three hours of difference with the server of mongo
+		calendar.setTimeInMillis(date.getTime() + 3*3600*1000L);
+		List<String> ids = storage.findDocumentIds(calendar.get(Calendar.YEAR),
+				calendar.get(Calendar.MONTH)+1, calendar.get(Calendar.DAY_OF_MONTH));
+		documentBuffer.setAll(ids);
+
+		infoLog.info("Warm-up: "+ids.size()+" documents of "+date);
+		return ids.size();
+	}
+	
+	public static StorageBackend getStorage() {
+		return storage;
+	}
+	
+	/**
+	 * Enables the change-only storage of the consumers, see 
+	 * {@link ChangeFilter}. Use null to write every sample.
+	 * @param _changeFilter
+	 */
+	public static void setChangeFilter(ChangeFilter _changeFilter) {
+		changeFilter = _changeFilter;
+	}
+	
+	public static ChangeFilter getChangeFilter() {
+		return changeFilter;
+	}
+	
+	/**
+	 * Counts the samples written to each document and antenna, see 
+	 * {@link HotSpotDetector}. Use null to disable it.
+	 * @param _hotSpotDetector
+	 */
+	public static void setHotSpotDetector(HotSpotDetector _hotSpotDetector) {
+		hotSpotDetector = _hotSpotDetector;
+	}
+	
+	public static HotSpotDetector getHotSpotDetector() {
+		return hotSpotDetector;
+	}
+	
+	/**
+	 * Sets the sample time in seconds of the monitor points. The keys are 
+	 * "antenna/component/monitorPoint", or "component/monitorPoint" for 
+	 * every antenna. The other monitor points use 
+	 * {@link #DEFAULT_PREALLOCATE_TIME}. The sample time chooses the 
+	 * granularity of the documents, see {@link Granularity}, so it must be
+	 * set before starting the consumers.
+	 * 
+	 * @param _sampleTimes
+	 */
+	public static void setSampleTimes(Map<String, Integer> _sampleTimes) {
+		sampleTimes = new HashMap<String, Integer>(_sampleTimes);
+	}
+	
+	/**
+	 * Reads the sample times from a properties file, i.e., 
+	 * "LLC/POL_MON4=600", see {@link #setSampleTimes(Map)}
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static Map<String, Integer> loadSampleTimes(File file) 
+			throws IOException {
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+
+		Map<String, Integer> times = new HashMap<String, Integer>();
+		for (String key : properties.stringPropertyNames()) {
+			int time = Integer.parseInt(properties.getProperty(key).trim());
+			if (time<=0)
+				throw new IllegalArgumentException("Invalid sample time of "+key);
+			times.put(key, time);
+		}
+		return times;
+	}
+	
+	/**
+	 * Returns the sample time in seconds of a monitor point
+	 * 
+	 * @param antenna
+	 * @param component
+	 * @param monitorPoint
+	 * @return
+	 */
+	public static int getSampleTime(String antenna, String component, 
+			String monitorPoint) {
+		Map<String, Integer> times = sampleTimes;
+		if (times.isEmpty())
+			return DEFAULT_PREALLOCATE_TIME;
+
+		String key = component + DocumentID.SEPARATOR + monitorPoint;
+		Integer time = times.get(antenna + DocumentID.SEPARATOR + key);
+		if (time==null)
+			time = times.get(key);
+		return time==null ? DEFAULT_PREALLOCATE_TIME : time;
+	}
+	
+	/**
+	 * Sets the value types of the monitor points known in advance, the keys
+	 * are "antenna/component/monitorPoint". The types inferred so far are 
+	 * discarded.
+	 * 
+	 * @param _valueTypes
+	 */
+	public static void setValueTypes(Map<String, ValueType> _valueTypes) {
+		valueTypes = new ConcurrentHashMap<String, ValueType>(_valueTypes);
+	}
+	
+	/**
+	 * Returns the value type of a monitor point. The first time it is 
+	 * inferred from the given value, see {@link ValueType#infer(String)}, 
+	 * so all the documents of the monitor point are preallocated with the 
+	 * same type and its samples do not mix numeric types.
+	 * 
+	 * @param antenna
+	 * @param component
+	 * @param monitorPoint
+	 * @param value First value of the monitor point
+	 * @return
+	 */
+	public static ValueType getValueType(String antenna, String component, 
+			String monitorPoint, String value) {
+		String key = antenna + DocumentID.SEPARATOR + component + 
+				DocumentID.SEPARATOR + monitorPoint;
+		ConcurrentMap<String, ValueType> types = valueTypes;
+		ValueType type = types.get(key);
+		if (type==null) {
+			type = ValueType.infer(value);
+			ValueType previous = types.putIfAbsent(key, type);
+			if (previous!=null)
+				type = previous;
+		}
+		return type;
+	}
+	
+	/**
+	 * Returns the type used to preallocate the document of a sample, the 
+	 * type of its monitor point if it is known
+	 */
+	private static ValueType preallocatedType(Sample sample) {
+		ValueType type = sample.getMetadata().getValueType();
+		return type!=null ? type : sample.getValueType();
 	}
 	
-	private MongoManager(String threadName, LinkedBlockingQueue<DBObject> queue) {
+	private MongoManager(String threadName, BlockingQueue<DBObject> queue) {
 		this.threadName = threadName;
 		this.queue = queue;
 	}
@@ -143,9 +501,8 @@ public class MongoManager implements Runnable {
 	public MongoManager(String host, String dbname) 
 					throws UnknownHostException {
 
-		mongo = new Mongo(host);
-		database = mongo.getDB(dbname);
-		mongoCollections = new HashMap<String, DBCollection>(3);
+		Mongo mongo = new Mongo(host);
+		storage = new MongoStorageBackend(mongo, mongo.getDB(dbname));
 		//mongoCollections = new HashMap<Integer, DBCollection>(70);
 		//collection = database.getCollection("monitorData");
 		//collection = database.getCollection(coll);
@@ -156,142 +513,268 @@ public class MongoManager implements Runnable {
 		//this.documentBuffer = new DocumentBuffer<String>(N_MONITOR_POINTS);
 	}
 	
-	public void setQueue(LinkedBlockingQueue<DBObject> queue) {
+	public void setQueue(BlockingQueue<DBObject> queue) {
 		this.queue = queue;
 	}
+	
+	/**
+	 * Takes the records from a queue of batches instead of the queue of 
+	 * records, see {@link Query#exportBatches(BlockingQueue, int)}. It must
+	 * be called before starting the consumer.
+	 * 
+	 * @param batchQueue
+	 */
+	public void setBatchQueue(BlockingQueue<List<DBObject>> batchQueue) {
+		this.batchQueue = batchQueue;
+	}
+	
+	/**
+	 * Enables or disables the preallocation of the documents before their 
+	 * first upsert, see {@link #upsert(List, boolean)}. It is enabled by 
+	 * default and must be set before starting the consumer.
+	 * 
+	 * @param preallocate
+	 */
+	public void setPreallocate(boolean preallocate) {
+		this.preallocate = preallocate;
+	}
+	
+	/**
+	 * Holds the samples of each document for a grace period and upserts 
+	 * them as a chronological list, see {@link ReorderBuffer}. It must be 
+	 * called before starting the consumer.
+	 * 
+	 * @param gracePeriod Time in milliseconds that the samples are held
+	 * @param maxSamples Maximum number of samples held by this consumer
+	 */
+	public void enableReorderBuffer(long gracePeriod, int maxSamples) {
+		reorderBuffer = new ReorderBuffer(new ReorderBuffer.Sink() {
+			@Override
+			public void flush(List<Sample> samples) {
+				// The batch is chronological, so the changes are 
+				// detected here instead of on arrival
+				if (changeFilter!=null)
+					samples = changeFilter.filter(samples);
+
+				if (!samples.isEmpty())
+					upsert(samples, preallocate);
+			}
+		}, gracePeriod, maxSamples, REORDER_MAX_BATCH);
+	}
+	
+	/**
+	 * Upserts all samples held by the reorder buffer, if it is enabled
+	 */
+	public void flushReorderBuffer() {
+		if (reorderBuffer==null)
+			return;
+		
+		try {
+			reorderBuffer.flushAll();
+		} catch (Throwable e) {
+			errors.incrementAndGet();
+			errorReporter.report(e);
+		}
+	}
+	
+	/**
+	 * Builds each day document in memory and inserts it once, without 
+	 * preallocation or updates. The records must arrive grouped by document, 
+	 * see {@link Query#exportSortedData()}, so the mode needs a single 
+	 * consumer. The days that already exist are updated with a "$set" of 
+	 * their collected seconds instead. It must be called before starting
+	 * the consumer.
+	 */
+	public void enableBackfill() {
+		backfill = true;
+	}
+	
+	/**
+	 * Backfill mode for records that do not arrive grouped by document. The
+	 * samples are sorted by document on disk, see {@link ExternalSorter}, 
+	 * and the day documents are built when the consumer stops. It must be 
+	 * called before starting the consumer.
+	 * 
+	 * @param directory Directory of the sorted runs
+	 * @param memoryBudget Maximum estimated size in bytes of the samples
+	 * held in memory
+	 */
+	public void enableExternalSort(File directory, long memoryBudget) {
+		enableBackfill();
+		sorter = new ExternalSorter(directory, memoryBudget);
+	}
+	
+	/**
+	 * Merges the samples of the external sort and inserts their day 
+	 * documents, if the external sort is enabled
+	 * 
+	 * @throws IOException
+	 */
+	public void flushExternalSort() throws IOException {
+		if (sorter==null)
+			return;
+
+		sorter.finish(new ExternalSorter.Sink() {
+			@Override
+			public void emit(Sample sample) {
+				// The samples are chronological here, unlike on arrival
+				if (changeFilter==null || changeFilter.accept(sample))
+					backfill(sample);
+			}
+		});
+		flushBackfill();
+	}
+	
+	/**
+	 * Adds a sample to the day document being built by the backfill mode. 
+	 * When the sample belongs to another document, the current document is
+	 * inserted first.
+	 * 
+	 * @param sample
+	 */
+	public void backfill(Sample sample) {
+		if (backfillSample!=null && !backfillSample.getMetadata().getDocumentID()
+				.toString().equals(sample.getMetadata().getDocumentID().toString()))
+			flushBackfill();
+
+		if (backfillSample==null) {
+			// The first sample gives the metadata and the placeholder
+			DocumentID docID = sample.getMetadata().getDocumentID();
+			backfillSample = new Sample(sample);
+			backfillValues = new Object[docID.getGranularity().getDays(
+					docID.getYear(), docID.getMonth(), docID.getDay())*24*60*60];
+		}
+
+		backfillValues[sample.getHour()*3600 + sample.getMinute()*60 + 
+				sample.getSecond()] = sample.getTypedValue();
+	}
+	
+	/**
+	 * Inserts the day document being built by the backfill mode, if any. If
+	 * the document already exists, its collected seconds are set.
+	 */
+	public void flushBackfill() {
+		if (backfillSample==null)
+			return;
+
+		Metadata metadata = backfillSample.getMetadata();
+		DocumentID docID = metadata.getDocumentID();
+		if (isDocumentCreated(docID, true)) {
+			// The insert of a duplicated document would be ignored
+			setBackfill(docID, backfillValues);
+			backfillSample = null;
+			backfillValues = null;
+			return;
+		}
+
+		ValueType type = preallocatedType(backfillSample);
+		Object placeholder = placeholder(type, 
+				backfillSample.getValue().length());
+
+		// Unlike the preallocated documents, every minute has its own object.
+		// The seconds of the sample time get a placeholder, so a document of
+		// several days has the slots of its preallocation.
+		int sampleTime = Math.max(1, metadata.getSampleTime());
+		int count = 0;
+		BasicDBObject hours = new BasicDBObject();
+		for (int hour=0; hour<backfillValues.length/3600; hour++) {
+			BasicDBObject minutes = new BasicDBObject();
+			for (int minute=0; minute<60; minute++) {
+				BasicDBObject seconds = new BasicDBObject();
+				for (int second=0; second<60; second++) {
+					int time = hour*3600 + minute*60 + second;
+					Object value = backfillValues[time];
+					if (value!=null || time%sampleTime==0) {
+						seconds.put(Integer.toString(second), 
+								value==null ? placeholder : value);
+					}
+					if (value!=null)
+						count++;
+				}
+				if (!seconds.isEmpty())
+					minutes.put(Integer.toString(minute), seconds);
+			}
+			if (!minutes.isEmpty())
+				hours.put(Integer.toString(hour), minutes);
+		}
+
+		BasicDBObject document = getPreallocatedDocument(metadata, type, 0);
+		document.put("hourly", hours);
+
+		backfillSample = null;
+		backfillValues = null;
+
+		long start = StageEvents.begin();
+		storage.insert(docID, document);
+		StageEvents.end(Stage.PREALLOCATE, docID, start);
+		registerDocumentToBuffer(docID);
+
+		HotSpotDetector detector = hotSpotDetector;
+		if (detector!=null)
+			detector.record(docID, count);
+	}
+
+	/**
+	 * Sets the collected seconds of a backfilled document that already 
+	 * exists
+	 */
+	private void setBackfill(DocumentID docID, Object[] values) {
+		BasicDBObject set = new BasicDBObject();
+		for (int time=0; time<values.length; time++) {
+			if (values[time]!=null) {
+				set.put("hourly."+(time/3600)+"."+(time/60%60)+"."+(time%60), 
+						values[time]);
+			}
+		}
+
+		long start = StageEvents.begin();
+		storage.upsert(docID, new BasicDBObject("_id", docID.toString()),
+				new BasicDBObject("$set", set));
+		StageEvents.end(Stage.UPDATE, docID, start);
+
+		HotSpotDetector detector = hotSpotDetector;
+		if (detector!=null)
+			detector.record(docID, set.size());
+	}
 
 	/**
 	 * Returns the collection to which the document belongs. <br/>
 	 * This method uses a monthly collection per monitor point. <br/>
 	 * If the collection does not exist it is created along with its index 
-	 * and shard key.
+	 * and shard key. It can be used only when the storage is a MongoDB 
+	 * database.
 	 * 
 	 * @param id Document id
 	 * @return Collection
 	 */
 	public DBCollection getCollection(DocumentID id) {
+		if (!(storage instanceof MongoStorageBackend))
+			throw new UnsupportedOperationException("The storage is not a MongoDB database");
 
-		String key = Integer.toString(id.getMonth()) + "_" + 
-				Integer.toString(id.getYear());
-		
-		if (mongoCollections.containsKey(key))
-			return mongoCollections.get(key);
-
-		BasicDBObject index = null;
-		BasicDBObject shardKey = null;
-		if (!database.collectionExists("monitorData_"+key)) {
-
-			// Setting the index
-			index = new BasicDBObject("metadata.date", 1);
-			index.append("metadata.antenna", 1);
-			index.append("metadata.component", 1);
-			index.append("metadata.monitorPoint", 1);
-			
-			// Setting the shard key
-			shardKey = new BasicDBObject("metadata.date", 1);
-			shardKey.append("metadata.antenna", 1);
-		}
-
-		// If the collection does not exist, it will be created automatically 
-		// by MongoDB
-		DBCollection c = database.getCollection("monitorData_"+key);
-		mongoCollections.put(key, c);
-		
-		if (index!=null) {
-			//c.createIndex(index);
-			c.ensureIndex(index, "dateMonitorPointAntennaComponent");
-		}
-		
-		if (shardKey!=null) {
-			DB admin = mongo.getDB("admin");
-			CommandResult result = null;
-
-			result = admin.command(new BasicDBObject("OneMonitorPointPerDayPerDocument","1"));
-			result = admin.command(new BasicDBObject("monitorData_"+key,"1"));
-			
-			DBObject keys = new BasicDBObject();
-			keys.put("metadata.date", 1);
-			keys.put("metadata.antenna", 1);
-
-			DBObject cmd = new BasicDBObject();
-			cmd.put("shardcollection", "OneMonitorPointPerDayPerDocument.monitorData_"+key);
-			cmd.put("key", keys);
-			result = admin.command(cmd);
-		}
-
-		return c;
+		return ((MongoStorageBackend) storage).getCollection(id);
 	}
 
 	/**
-	 * Update or insert a sample. It is highly recommended preallocate a 
-	 * document before upsert it. If is upsert a document to which is not
-	 * preallocated the insert/update performance will decrease considerably.
-	 * If you turn on the preallocate parameter, this method manage 
-	 * the preallocate operation and you do not take care about that. 
+	 * Update or insert a sample, see {@link #upsert(List, boolean)}
 	 * 
 	 * @param sample Sample to insert or update
 	 * @param preallocate <i>true</i> activate the automatic preallocation 
 	 * control and <i>false</i> for disable the preallocation manage
 	 */
 	public void upsert(Sample sample, boolean preallocate) {
-
-		Metadata meta = sample.getMetadata();
-		DocumentID docID = meta.getDocumentID();
-		DBCollection collection = getCollection(docID);
-
-		// Monitor data value to update
-		String attribute = "hourly." + Integer.toString(sample.getHour()) + 
-				"." + Integer.toString(sample.getMinute()) + 
-				"." + Integer.toString(sample.getSecond());
-
-		Metadata metadata = sample.getMetadata();
-		BasicDBObject document = new BasicDBObject().append("_id",
-				metadata.getDocumentID().toString());
-
-		// Revisar si es que es necesario enviar todos los metadatos
-		document.append("metadata", new BasicDBObject().append(
-				"date", metadata.getDocumentID().getStringDate()).append(
-				"antenna", metadata.getDocumentID().getAntenna()).append(
-				"component", metadata.getDocumentID().getComponent()).append(
-				"property", metadata.getProperty()).append(
-				"monitorPoint", metadata.getDocumentID().getMonitorPoint()).append(
-				"location", metadata.getLocation()).append(
-				"serialNumber", metadata.getSerialNumber()).append(
-				"index", metadata.getIndex()).append(
-				"sampleTime", metadata.getSampleTime())
-		);
-		/*document.append("metadata", new BasicDBObject().append(
-				"date", metadata.getDocumentID().getStringDate()).append(
-				"antenna", metadata.getDocumentID().getAntenna()).append(
-				"component", metadata.getDocumentID().getComponent()).append(
-				"monitorPoint", metadata.getDocumentID().getMonitorPoint())
-		);*/
-
-		BasicDBObject updateDocument = new BasicDBObject().append("$set",
-				new BasicDBObject().append(attribute, sample.getValue()));
-
-		// Preallocating the document
-		if (preallocate && !isDocumentCreated(docID, false)) {
-			// By default the document begins in 00:00:00.
-			Calendar tStart = new GregorianCalendar(docID.getYear(),
-					docID.getMonth(), docID.getDay(), 0, 0, 0);
-			collection.insert(preAllocate(meta, tStart.getTime(), 
-					sample.getValue().length())
-			);
-			
-			// Registering the document to the buffer
-			registerDocumentToBuffer(docID);
-		}
-
-		collection.update(document, updateDocument, true, false);
+		upsert(Collections.singletonList(sample), preallocate);
 	}
 	
 	/**
-	 * Update or insert a list of samples. It is highly recommended preallocate a 
-	 * document before upsert it. If is upsert a document to which is not
-	 * preallocated the insert/update performance will decrease considerably.
-	 * If you turn on the preallocate parameter, this method manage 
-	 * the preallocate operation and you do not take care about that. 
+	 * Update or insert a list of samples of the same document. The update 
+	 * matches the document by its "_id" only, and the metadata is written 
+	 * once, when the document is created. <br/>
+	 * If you turn on the preallocate parameter, this method preallocates 
+	 * the document, with its metadata, before the first update. Otherwise 
+	 * the first upsert of the document sends the metadata with 
+	 * "$setOnInsert" and the document grows with every new second. In both 
+	 * cases the created documents are registered into the buffer, so the 
+	 * next upserts of the day only send the values.
 	 * 
 	 * @param samples List of samples to insert or update
 	 * @param preallocate <i>true</i> activate the automatic preallocation 
@@ -303,71 +786,49 @@ public class MongoManager implements Runnable {
 			throw new IllegalArgumentException("List of samples cannot be null or empty");
 		}
 
-		DBCollection collection = null;
-
-		DocumentID docID = null;
-		Metadata metadata = null;
-		BasicDBObject document = null;
-
-		// Monitor data value to update
-		String attribute = null;
-		
-		// Store all monitor data
-		BasicDBObjectBuilder sets = new BasicDBObjectBuilder();
-
-		for (Sample sample : samples) {
-
-			metadata = sample.getMetadata();
-			docID = metadata.getDocumentID();
-			collection = getCollection(docID);
+		Sample first = samples.get(0);
+		Metadata metadata = first.getMetadata();
+		DocumentID docID = metadata.getDocumentID();
 
-			// Monitor data value to update
-			attribute = "hourly." + sample.getHour() + "." + 
-						sample.getMinute() + "." + sample.getSecond();
-
-			sets.add(attribute, sample.getValue());
+		boolean insertMetadata = false;
+		if (preallocate) {
+			if (!isDocumentCreated(docID, true)) {
+				// By default the document begins in 00:00:00.
+				Calendar tStart = new GregorianCalendar(docID.getYear(),
+						docID.getMonth(), docID.getDay(), 0, 0, 0);
+	
+				long start = StageEvents.begin();
+				storage.insert(docID, preAllocate(metadata, tStart.getTime(), 
+						preallocatedType(first), first.getValue().length()));
+				StageEvents.end(Stage.PREALLOCATE, docID, start);
+				
+				// Registering the document to the buffer
+				registerDocumentToBuffer(docID);
+			}
+		} else {
+			// Only the buffer is consulted, "$setOnInsert" does nothing if 
+			// the document already exists
+			insertMetadata = !documentBuffer.contains(docID.toString());
 		}
 
-		metadata = samples.get(0).getMetadata();
-		document = new BasicDBObject().append("_id",
-				metadata.getDocumentID().toString());
-
-		// Revisar si es que es necesario enviar todos los metadatos
-		document.append("metadata", new BasicDBObject().append(
-				"date", metadata.getDocumentID().getStringDate()).append(
-				"antenna", metadata.getDocumentID().getAntenna()).append(
-				"component", metadata.getDocumentID().getComponent()).append(
-				"property", metadata.getProperty()).append(
-				"monitorPoint", metadata.getDocumentID().getMonitorPoint()).append(
-				"location", metadata.getLocation()).append(
-				"serialNumber", metadata.getSerialNumber()).append(
-				"index", metadata.getIndex()).append(
-				"sampleTime", metadata.getSampleTime())
-		);
+		long start = StageEvents.begin();
+		storage.upsert(docID, SampleEncoder.query(samples), 
+				SampleEncoder.update(samples, insertMetadata));
+		StageEvents.end(Stage.UPDATE, docID, start);
 
-		// Preallocating the document
-		if (preallocate && !isDocumentCreated(docID, false)) {
-			// By default the document begins in 00:00:00.
-			Calendar tStart = new GregorianCalendar(docID.getYear(),
-					docID.getMonth(), docID.getDay(), 0, 0, 0);
-
-			collection.insert(preAllocate(metadata, tStart.getTime(), 
-					samples.get(0).getValue().length()
-			));
-			
-			// Registering the document to the buffer
-			registerDocumentToBuffer(docID);
-		}
+		HotSpotDetector detector = hotSpotDetector;
+		if (detector!=null)
+			detector.record(docID, samples.size());
 
-		collection.update(document, new BasicDBObject("$set",sets.get()), 
-				true, false);
+		if (insertMetadata)
+			documentBuffer.set(docID.toString());
 	}
 
 	/**
 	 * Close the connection with MongoDB
 	 */
 	public void close() {
-		mongo.close();
+		storage.close();
 	}
 
 	/**
@@ -397,18 +858,25 @@ public class MongoManager implements Runnable {
 	 * @return The preallocated document
 	 */
 	public DBObject preAllocate(Metadata metadata, Date tStart, int valueSize) {
+		return preAllocate(metadata, tStart, ValueType.STRING, valueSize);
+	}
 
-		// If the value size is equal or less than two, it use the 
-		// NOT_ASSIGNED string to represent a not assigned value and
-		// for the values size greater or equal than three use the NOT_ASSIGNED 
-		// constant plus DEFAULT_CHARACTER for each character greater or 
-		// equal than three. In the second case, the size of the 
-		// value preallocated is equal to the size that will be assigned into 
-		// the upsert method
-		String valueToPreallocate = NOT_ASSIGNED;
-		for (int i=3; i<=valueSize; i++) {
-			valueToPreallocate += DEFAULT_CHARACTER;
-		}
+	/**
+	 * Creates a document with the necessary structure for a post-update of 
+	 * its attributes, using a placeholder of the given value type. See
+	 * preAllocate(Metadata, Date, int).
+	 * 
+	 * @param metadata Document metadatas
+	 * @param tStart The time to start the preallocation
+	 * @param type Type of the value that will be post-update
+	 * @param valueSize Size of the value that will be post-update, only used
+	 * by the string type
+	 * @return The preallocated document
+	 */
+	public DBObject preAllocate(Metadata metadata, Date tStart, ValueType type,
+			int valueSize) {
+
+		Object valueToPreallocate = placeholder(type, valueSize);
 
 		BasicDBObject preAllocatedDocument = new BasicDBObject().append("_id",
 				metadata.getDocumentID().toString());
@@ -429,58 +897,43 @@ public class MongoManager implements Runnable {
 		Calendar timeStart = new GregorianCalendar();
 		timeStart.setTime(tStart);
 
-		int last_hour = timeStart.get(Calendar.HOUR_OF_DAY);
-		int last_minute = timeStart.get(Calendar.MINUTE);
-		int last_second = timeStart.get(Calendar.SECOND);
-		
-		int current_hour = 0;
-		int current_minute = 0;
-		int current_second = 0;
-
-		Calendar time = new GregorianCalendar(doc.getYear(), doc.getMonth(),
-				doc.getDay(), last_hour, last_minute, last_second);
+		// The document spans the days of its granularity, and its hours 
+		// continue after 23
+		int end = doc.getGranularity().getDays(doc.getYear(), doc.getMonth(),
+				doc.getDay())*24*3600;
+		int sampleTime = Math.max(1, metadata.getSampleTime());
 
-		BasicDBObjectBuilder hours = new BasicDBObjectBuilder();
-		BasicDBObjectBuilder minutes = new BasicDBObjectBuilder();
-		BasicDBObjectBuilder seconds = new BasicDBObjectBuilder();
+		BasicDBObject hours = new BasicDBObject();
+		BasicDBObject minutes = null;
+		BasicDBObject seconds = null;
+		int last_hour = -1;
+		int last_minute = -1;
 
-		// The document is just for one day
-		while (time.get(Calendar.DAY_OF_MONTH)==timeStart.get(Calendar.DAY_OF_MONTH)) {
+		for (int time=(timeStart.get(Calendar.HOUR_OF_DAY)*60 + 
+				timeStart.get(Calendar.MINUTE))*60 + timeStart.get(Calendar.SECOND);
+				time<end; time+=sampleTime) {
 
-			current_hour = time.get(Calendar.HOUR_OF_DAY);
-			current_minute = time.get(Calendar.MINUTE);
-			current_second = time.get(Calendar.SECOND);
+			int current_hour = time/3600;
+			int current_minute = time/60%60;
 
 			// If the "hour" change creates a new instance of minute and second,
 			// but if only changed the minute creates a new instance of seconds
 			if (last_hour!=current_hour) {
-
-				minutes.add(Integer.toString(last_minute),seconds.get());
-				hours.add(Integer.toString(last_hour),minutes.get());
-				
-				minutes = new BasicDBObjectBuilder();
-				seconds = new BasicDBObjectBuilder();
-
-			} else if (last_minute!=current_minute) {
-
-				minutes.add(Integer.toString(last_minute),seconds.get());
-				seconds = new BasicDBObjectBuilder();
+				minutes = new BasicDBObject();
+				hours.put(Integer.toString(current_hour), minutes);
+				last_hour = current_hour;
+				last_minute = -1;
 			}
-			
-			//seconds.add(Integer.toString(current_second), NOT_ASSIGNED);
-			seconds.add(Integer.toString(current_second), valueToPreallocate);
-
-			last_hour = current_hour;
-			last_minute = current_minute;
-			last_second = current_second;
-			
-			time.add(Calendar.SECOND, metadata.getSampleTime());
+			if (last_minute!=current_minute) {
+				seconds = new BasicDBObject();
+				minutes.put(Integer.toString(current_minute), seconds);
+				last_minute = current_minute;
+			}
+
+			seconds.put(Integer.toString(time%60), valueToPreallocate);
 		}
 
-		// Appending the remaining minutes and seconds
-		minutes.add(Integer.toString(last_minute),seconds.get());
-		hours.add(Integer.toString(last_hour),minutes.get());
-		preAllocatedDocument.put("hourly", hours.get());
+		preAllocatedDocument.put("hourly", hours);
 
 		return preAllocatedDocument;
 	}
@@ -504,18 +957,22 @@ public class MongoManager implements Runnable {
 	 * @return The preallocated document
 	 */
 	public DBObject preAllocate(Metadata metadata, int valueSize) {
+		return preAllocate(metadata, ValueType.STRING, valueSize);
+	}
 
-		// If the value size is equal or less than two, it use the 
-		// NOT_ASSIGNED string to represent a not assigned value and
-		// for the values size greater or equal than three use the NOT_ASSIGNED 
-		// constant plus DEFAULT_CHARACTER for each character greater or 
-		// equal than three. In the second case, the size of the 
-		// value preallocated is equal to the size that will be assigned into 
-		// the upsert method
-		String valueToPreallocate = NOT_ASSIGNED;
-		for (int i=3; i<=valueSize; i++) {
-			valueToPreallocate += DEFAULT_CHARACTER;
-		}
+	/**
+	 * Creates a document with all seconds, minutes and hours of a day, using
+	 * a placeholder of the given value type. See preAllocate(Metadata, int).
+	 * 
+	 * @param metadata Document metadatas
+	 * @param type Type of the value that will be post-update
+	 * @param valueSize Size of the value that will be post-update, only used
+	 * by the string type
+	 * @return The preallocated document
+	 */
+	public DBObject preAllocate(Metadata metadata, ValueType type, int valueSize) {
+
+		Object valueToPreallocate = placeholder(type, valueSize);
 		
 		DocumentID doc = metadata.getDocumentID();
 
@@ -567,24 +1024,12 @@ public class MongoManager implements Runnable {
 	 * need to use these methods: isDocumentCreated(...), registerPreallocation(...)  
 	 * and preAllocate(...)
 	 * 
-	 * @param metadata Document metadatas
-	 * @param valueSize Size of the value that will be post-update
+	 * @param valueToPreallocate Placeholder of the value that will be 
+	 * post-update
 	 * @return The preallocated document
 	 */
-	private static BasicDBObject preAllocate(int valueSize) {
-
-		// If the value size is equal or less than two, it use the 
-		// NOT_ASSIGNED string to represent a not assigned value and
-		// for the values size greater or equal than three use the NOT_ASSIGNED 
-		// constant plus DEFAULT_CHARACTER for each character greater or 
-		// equal than three. In the second case, the size of the 
-		// value preallocated is equal to the size that will be assigned into 
-		// the upsert method
-		String valueToPreallocate = NOT_ASSIGNED;
-		for (int i=3; i<=valueSize; i++) {
-			valueToPreallocate += DEFAULT_CHARACTER;
-		}
-		
+	private static BasicDBObject preAllocate(Object valueToPreallocate) {
+
 		BasicDBObject preAllocatedDocument = new BasicDBObject();
 		BasicDBObjectBuilder hours = new BasicDBObjectBuilder();
 		BasicDBObjectBuilder minutes = new BasicDBObjectBuilder();
@@ -622,9 +1067,10 @@ public class MongoManager implements Runnable {
 			return true;
 
 		// Otherwise consult to the database
-		DBCollection coll = getCollection(id);
-		DBObject doc = coll.findOne(new BasicDBObject("_id",id.toString()));
-		if (doc!=null) {
+		long start = StageEvents.begin();
+		boolean created = storage.isDocumentCreated(id);
+		StageEvents.end(Stage.EXISTS_LOOKUP, id, start);
+		if (created) {
 			if (useBuffer) {
 				documentBuffer.set(id.toString());
 			}
@@ -648,121 +1094,252 @@ public class MongoManager implements Runnable {
 	public void registerDocumentToBuffer(DocumentID documentID) {
 
 		// Registering the document to the buffer
-		//documentBuffer.set(documentID.toString());
+		documentBuffer.set(documentID.toString());
 		preallocate_cont.incrementAndGet();
 	}
 
+	/**
+	 * Write stage of the {@link RingPipeline}. Upserts the sample of the 
+	 * slot if the transform stage assigned it to this writer.
+	 */
 	@Override
-	public void run() {
-		//int cont=0, error=0;
-		boolean done = false;
-		while (!done) {
-			try {
-				DBObject object = queue.take();
-
-				Map<String,Object> myMap = object.toMap();
-				
-				Calendar calendar = Calendar.getInstance();
-				try {
-					calendar.setTime((Date)myMap.get("date"));
-				} catch (NullPointerException e) {
-					System.err.println("Object: "+myMap);
-				}
-
-			    // ************************************************ //
-			    // Se añaden las tres horas de diferencia			//
-			    // con el servidor de mongo.						//
-			    // ************************************************	//
-			    calendar.add(Calendar.HOUR, 3);
-
-			    int year = calendar.get(Calendar.YEAR);
-			    int month = calendar.get(Calendar.MONTH)+1;
-			    int day = calendar.get(Calendar.DAY_OF_MONTH);
-			    
-			    int hour = calendar.get(Calendar.HOUR_OF_DAY);
-			    int minute =  calendar.get(Calendar.MINUTE);
-			    int second =  calendar.get(Calendar.SECOND);
-			    
-			    //System.out.println("Map: "+myMap+",\n year: "+year+", month: "+
-			    	//	month+", day: "+day+", hour: "+hour+", minute: "+minute+
-			    		//", second: "+second);
-			    
-			    //if (day==29) {
-				  //  log.info("year: "+year+", month: "+
-				    //		month+", day: "+day+", hour: "+hour+", minute: "+
-				    	//	minute+", second: "+second);
-			    //}
-			    
-			    // We need to split the componentName that comes from the old schema.
-			    // The format is "CONTROL/DV10/FrontEnd/Cryostat".
-			    // We extract the antenna, component and subcomponent 
-			    // from it.
-			    String[] oldComponentName = ((String)myMap.get("componentName")).split("/");
-			    String antenna = oldComponentName[1];
-			    String component = null;
+	public void onEvent(MonitorEvent event, long sequence, boolean endOfBatch) {
+		if (!event.isValid())
+			return;
 
-			    // If the old ComponentName length is three it means there is
-			    // just a component, however, if the length is four
-			    // there is a component and subcomponent
-			    if (oldComponentName.length==2) {
-			    	// This case occurs when the component name is 
-			    	// "ACACORR/CCC_MONITOR"
-			    	antenna = oldComponentName[0];
-			    	component = oldComponentName[1];
+		if (event.getWriter()!=ordinal)
+			return;
 
-			    } else if (oldComponentName.length==3) {
-			    	component = oldComponentName[2];
+		Sample sample = event.getSample();
 
-			    } else if (oldComponentName.length==4) {
-			    	component = oldComponentName[2]+"/"+oldComponentName[3];
+		try {
+			if (reorderBuffer!=null) {
+				// The slot is reused, so the buffer keeps a copy
+				long now = System.currentTimeMillis();
+				reorderBuffer.add(new Sample(sample), now);
+				if (endOfBatch)
+					reorderBuffer.flushExpired(now);
+			} else if (changeFilter==null || changeFilter.accept(sample)) {
+				upsert(sample, preallocate);
+			}
 
-		    	} else {
-		    		log.error("Something detected in component name: "+
-		    				myMap.get("componentName"));
-		    	}
+			if (updates.incrementAndGet()==10000) {
+				infoLog.info("Registros insertados: "+updates.get());
+				infoLog.info("Preallocate document: "+preallocate_cont.get());
+			}
 
-			    String property = (String)myMap.get("propertyName");
-			    String monitorPoint = (String)myMap.get("monitorPointName");
-			    String location = (String)myMap.get("location");
-			    String serialNumber = (String)myMap.get("serialNumber");
-			    String monitorValue = (String)myMap.get("monitorValue");
-			    int index = Integer.parseInt(myMap.get("index").toString());
-			    int sampleTime = MongoManager.DEFAULT_PREALLOCATE_TIME;
+		} catch (Throwable e) {
+			errors.incrementAndGet();
+			errorReporter.report(e);
+		}
+	}
 
-				DocumentID documentID = new DocumentID(year, month, day,
-						antenna, component, monitorPoint);
+	@Override
+	public void run() {
+		//int cont=0, error=0;
+		boolean done = false;
+		while (!done) {
+			try {
+				if (batchQueue!=null) {
+					List<DBObject> batch = null;
+					if (reorderBuffer==null) {
+						batch = batchQueue.take();
+					} else {
+						batch = batchQueue.poll(REORDER_POLL_TIME, TimeUnit.MILLISECONDS);
+						reorderBuffer.flushExpired(System.currentTimeMillis());
+						if (batch==null)
+							continue;
+					}
+
+					// An invalid record does not discard the rest of the batch
+					for (DBObject object : batch) {
+						try {
+							process(object);
+						} catch (RuntimeException e) {
+							errors.incrementAndGet();
+							errorReporter.report(e);
+						}
+					}
+					continue;
+				}
 
-				Metadata metadata = new Metadata(documentID, property, 
-						location, serialNumber, index, sampleTime);
-				
-				Sample sample = new Sample(metadata, hour, minute, second, 
-						monitorValue);
-				
-				//mongoManager.upsert(metadata, 14, 4, 6, "12345");
-				//upsert(metadata, hour, minute, second, monitorValue);
-				upsert(sample, true);
-				
-				if (updates.incrementAndGet()==10000) {
-					infoLog.info("Registros insertados: "+updates.get());
-					infoLog.info("Preallocate document: "+preallocate_cont.get());
+				DBObject object = null;
+				if (reorderBuffer==null) {
+					object = queue.take();
+				} else {
+					// Waking up periodically to flush the expired documents
+					object = queue.poll(REORDER_POLL_TIME, TimeUnit.MILLISECONDS);
+					reorderBuffer.flushExpired(System.currentTimeMillis());
+					if (object==null)
+						continue;
 				}
 
+				process(object);
+
 			} catch (InterruptedException e) {
 				//close();
+				flushReorderBuffer();
+				try {
+					flushExternalSort();
+					flushBackfill();
+				} catch (Throwable t) {
+					errors.incrementAndGet();
+					errorReporter.report(t);
+				}
 				infoLog.info("Preallocated documents: "+preallocate_cont.get());
 				infoLog.info("Registros insertados: "+updates.get());
 				log.info("Errores: "+errors.get());
+				errorReporter.flush();
 				
 				done = true;
 
 			} catch (Throwable e) {
 				errors.incrementAndGet();
-				log.error("Exception caught: "+e.getMessage());
-				log.error(Arrays.toString(e.getStackTrace()));
+				errorReporter.report(e);
 			}
 		}
 	}
 	
+	/**
+	 * Converts a legacy record into a sample and writes it with the 
+	 * enabled mode
+	 */
+	private void process(DBObject object) throws IOException {
+		long start = StageEvents.begin();
+		Sample sample = toSample(object);
+		StageEvents.end(Stage.TRANSFORM, 
+				sample.getMetadata().getDocumentID(), start);
+		
+		//mongoManager.upsert(metadata, 14, 4, 6, "12345");
+		//upsert(metadata, hour, minute, second, monitorValue);
+		if (sorter!=null) {
+			sorter.add(sample);
+		} else if (backfill) {
+			if (changeFilter==null || changeFilter.accept(sample))
+				backfill(sample);
+		} else if (reorderBuffer!=null) {
+			reorderBuffer.add(sample, System.currentTimeMillis());
+		} else if (changeFilter==null || changeFilter.accept(sample)) {
+			upsert(sample, preallocate);
+		}
+		
+		if (updates.incrementAndGet()==10000) {
+			infoLog.info("Registros insertados: "+updates.get());
+			infoLog.info("Preallocate document: "+preallocate_cont.get());
+		}
+	}
+	
+	/**
+	 * Converts a record of the legacy collection into a sample
+	 * 
+	 * @param object Legacy record
+	 * @return
+	 */
+	public static Sample toSample(DBObject object) {
+		if (object instanceof LegacyRecord)
+			return toSample((LegacyRecord) object);
+
+		Map<String,Object> myMap = object.toMap();
+		
+		Calendar calendar = Calendar.getInstance();
+		try {
+			calendar.setTime((Date)myMap.get("date"));
+		} catch (NullPointerException e) {
+			System.err.println("Object: "+myMap);
+		}
+
+	    // ************************************************ //
+	    // Se añaden las tres horas de diferencia			//
+	    // con el servidor de mongo.						//
+	    // ************************************************	//
+	    calendar.add(Calendar.HOUR, 3);
+
+	    int year = calendar.get(Calendar.YEAR);
+	    int month = calendar.get(Calendar.MONTH)+1;
+	    int day = calendar.get(Calendar.DAY_OF_MONTH);
+	    
+	    int hour = calendar.get(Calendar.HOUR_OF_DAY);
+	    int minute =  calendar.get(Calendar.MINUTE);
+	    int second =  calendar.get(Calendar.SECOND);
+	    
+	    //System.out.println("Map: "+myMap+",\n year: "+year+", month: "+
+	    	//	month+", day: "+day+", hour: "+hour+", minute: "+minute+
+	    		//", second: "+second);
+	    
+	    //if (day==29) {
+		  //  log.info("year: "+year+", month: "+
+		    //		month+", day: "+day+", hour: "+hour+", minute: "+
+		    	//	minute+", second: "+second);
+	    //}
+	    
+	    String[] names = splitComponentName((String)myMap.get("componentName"));
+	    String antenna = names[0];
+	    String component = names[1];
+
+	    String property = (String)myMap.get("propertyName");
+	    String monitorPoint = (String)myMap.get("monitorPointName");
+	    String location = (String)myMap.get("location");
+	    String serialNumber = (String)myMap.get("serialNumber");
+	    String monitorValue = (String)myMap.get("monitorValue");
+	    int index = Integer.parseInt(myMap.get("index").toString());
+
+		return createSample(year, month, day, hour, minute, second, antenna, 
+				component, monitorPoint, property, location, serialNumber, 
+				index, monitorValue);
+	}
+
+	/**
+	 * Converts a record of {@link LegacyRecordDecoder} into a sample, the 
+	 * same way as {@link #toSample(DBObject)} without the map copy
+	 */
+	private static Sample toSample(LegacyRecord record) {
+		if (record.getDate()==LegacyRecord.NO_DATE)
+			throw new IllegalArgumentException("The record has no date: "+record);
+
+		Calendar calendar = Calendar.getInstance();
+		// Three hours of difference with the server of mongo
+		calendar.setTimeInMillis(record.getDate() + 3*3600*1000L);
+
+		String[] names = splitComponentName(record.getComponentName());
+		Object index = record.getIndex();
+
+		return createSample(calendar.get(Calendar.YEAR), 
+				calendar.get(Calendar.MONTH)+1, 
+				calendar.get(Calendar.DAY_OF_MONTH), 
+				calendar.get(Calendar.HOUR_OF_DAY), 
+				calendar.get(Calendar.MINUTE), calendar.get(Calendar.SECOND),
+				names[0], names[1], record.getMonitorPointName(), 
+				record.getPropertyName(), record.getLocation(), 
+				record.getSerialNumber(), index instanceof Integer ? 
+						(Integer) index : Integer.parseInt(String.valueOf(index)),
+				record.getMonitorValue());
+	}
+
+	/**
+	 * Creates the sample of a record. The document of the monitor point 
+	 * spans the days given by its sample time, see 
+	 * {@link #getSampleTime(String, String, String)}, and the hours of a 
+	 * document of several days continue after 23.
+	 */
+	private static Sample createSample(int year, int month, int day, 
+			int hour, int minute, int second, String antenna, String component,
+			String monitorPoint, String property, String location, 
+			String serialNumber, int index, String value) {
+		int sampleTime = getSampleTime(antenna, component, monitorPoint);
+		DocumentID documentID = new DocumentID(year, month, day, antenna, 
+				component, monitorPoint, Granularity.forSampleTime(sampleTime));
+		ValueType type = getValueType(antenna, component, monitorPoint, value);
+
+		Metadata metadata = new Metadata(documentID, property, location, 
+				serialNumber, index, sampleTime, type);
+
+		Sample sample = new Sample();
+		sample.setTime(metadata, hour + (day-documentID.getDay())*24, minute, 
+				second);
+		sample.parseValue(value, type);
+		return sample;
+	}
+
 	/*
 	@Override
 	public void run() {
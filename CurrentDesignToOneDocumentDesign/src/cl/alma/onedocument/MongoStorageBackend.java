@@ -0,0 +1,396 @@
+package cl.alma.onedocument;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+import cl.alma.onedocument.StageEvents.Stage;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.Mongo;
+
+/**
+ * StorageBackend that keeps the documents in a MongoDB database using the
+ * Java driver. The monthly collections are sharded by 
+ * (metadata.date, metadata.antenna).
+ */
+public class MongoStorageBackend implements StorageBackend {
+
+	private static final Logger log = Logger.getLogger(MongoStorageBackend.class);
+
+	/**
+	 * Collection that records the monthly collections whose index was 
+	 * deferred, see {@link #setDeferIndexes(boolean)}
+	 */
+	public static final String PENDING_INDEXES = "pendingIndexes";
+	public static final String INDEX_NAME = "dateMonitorPointAntennaComponent";
+
+	private static final DBObject ID_FIELD = new BasicDBObject("_id", 1);
+	// Batch size of the _id scans, the ids are small
+	private static final int ID_BATCH_SIZE = 20000;
+	// Batch size of the document scans, a day document takes about 1 MB
+	private static final int DOCUMENT_BATCH_SIZE = 16;
+
+	private final Mongo mongo;
+	private final DB database;
+	private final Map<String, DBCollection> mongoCollections;
+	private volatile boolean deferIndexes = false;
+
+	/**
+	 * Instantiates a MongoStorageBackend object
+	 * 
+	 * @param mongo
+	 * @param database
+	 */
+	public MongoStorageBackend(Mongo mongo, DB database) {
+		this.mongo = mongo;
+		this.database = database;
+		this.mongoCollections = Collections.synchronizedMap(
+				new HashMap<String, DBCollection>(3)
+		);
+	}
+
+	public Mongo getMongo() {
+		return mongo;
+	}
+
+	public DB getDatabase() {
+		return database;
+	}
+
+	/**
+	 * Enables the bulk load mode: the new monthly collections are created 
+	 * without their secondary index, so the inserts and upserts of the load
+	 * do not maintain it. The collections are recorded in 
+	 * {@link #PENDING_INDEXES} and their indexes are built by 
+	 * {@link #buildPendingIndexes()} at the end of the load, or by the next
+	 * load if this one does not finish. <br/>
+	 * The collections that already exist keep their index, only the 
+	 * collections created by the load are deferred. The shard key index is
+	 * created by the server when the collection is sharded.
+	 * 
+	 * @param deferIndexes
+	 */
+	public void setDeferIndexes(boolean deferIndexes) {
+		this.deferIndexes = deferIndexes;
+	}
+
+	public boolean isDeferIndexes() {
+		return deferIndexes;
+	}
+
+	/**
+	 * Returns the names of the collections whose index was deferred and is
+	 * not built yet
+	 * @return
+	 */
+	public List<String> getPendingIndexes() {
+		List<String> names = new ArrayList<String>();
+		DBCursor cursor = database.getCollection(PENDING_INDEXES).find();
+		try {
+			while (cursor.hasNext()) {
+				names.add((String) cursor.next().get("_id"));
+			}
+		} finally {
+			cursor.close();
+		}
+		return names;
+	}
+
+	/**
+	 * Builds the deferred indexes, one collection after the other. Each 
+	 * collection is removed from {@link #PENDING_INDEXES} once its index is
+	 * built. The collections that no longer exist are skipped.
+	 * 
+	 * @return Number of indexes built
+	 */
+	public int buildPendingIndexes() {
+		int count = 0;
+		for (String name : getPendingIndexes()) {
+			if (collectionExists(name)) {
+				long start = System.currentTimeMillis();
+				buildIndex(name);
+				log.info("Index of " + name + " built in " + 
+						(System.currentTimeMillis()-start) + " ms");
+				count++;
+			}
+			removePendingIndex(name);
+		}
+		return count;
+	}
+
+	/**
+	 * Builds the index of a new collection, or records it in 
+	 * {@link #PENDING_INDEXES} in the bulk load mode
+	 * 
+	 * @param name Collection name
+	 */
+	protected void indexNewCollection(String name) {
+		if (deferIndexes) {
+			addPendingIndex(name);
+		} else {
+			buildIndex(name);
+		}
+	}
+
+	// The collection layer of the indexes, it can be replaced to run the
+	// bookkeeping without a server
+
+	protected boolean collectionExists(String name) {
+		return database.collectionExists(name);
+	}
+
+	protected void buildIndex(String name) {
+		database.getCollection(name).ensureIndex(createIndex(), INDEX_NAME);
+	}
+
+	protected void addPendingIndex(String name) {
+		database.getCollection(PENDING_INDEXES).save(
+				new BasicDBObject("_id", name));
+	}
+
+	protected void removePendingIndex(String name) {
+		database.getCollection(PENDING_INDEXES).remove(
+				new BasicDBObject("_id", name));
+	}
+
+	/**
+	 * Returns the secondary index of the monthly collections
+	 */
+	private static BasicDBObject createIndex() {
+		BasicDBObject index = new BasicDBObject("metadata.date", 1);
+		index.append("metadata.antenna", 1);
+		index.append("metadata.component", 1);
+		index.append("metadata.monitorPoint", 1);
+		return index;
+	}
+
+	/**
+	 * Returns the collection to which the document belongs. <br/>
+	 * This method uses a monthly collection per monitor point. <br/>
+	 * If the collection does not exist it is created along with its index 
+	 * and shard key, the index is deferred in the bulk load mode, see
+	 * {@link #setDeferIndexes(boolean)}.
+	 * 
+	 * @param id Document id
+	 * @return Collection
+	 */
+	public DBCollection getCollection(DocumentID id) {
+
+		String key = Integer.toString(id.getMonth()) + "_" + 
+				Integer.toString(id.getYear());
+		
+		if (mongoCollections.containsKey(key))
+			return mongoCollections.get(key);
+
+		long start = StageEvents.begin();
+		BasicDBObject shardKey = null;
+		boolean created = !collectionExists("monitorData_"+key);
+		if (created) {
+			// Setting the shard key
+			shardKey = new BasicDBObject("metadata.date", 1);
+			shardKey.append("metadata.antenna", 1);
+		}
+
+		// If the collection does not exist, it will be created automatically 
+		// by MongoDB
+		DBCollection c = database.getCollection("monitorData_"+key);
+		mongoCollections.put(key, c);
+		
+		// Setting the index, unless it is built at the end of the load
+		if (created) {
+			indexNewCollection("monitorData_"+key);
+		}
+		
+		if (shardKey!=null) {
+			DB admin = mongo.getDB("admin");
+			CommandResult result = null;
+
+			result = admin.command(new BasicDBObject("OneMonitorPointPerDayPerDocument","1"));
+			result = admin.command(new BasicDBObject("monitorData_"+key,"1"));
+			
+			DBObject keys = new BasicDBObject();
+			keys.put("metadata.date", 1);
+			keys.put("metadata.antenna", 1);
+
+			DBObject cmd = new BasicDBObject();
+			cmd.put("shardcollection", "OneMonitorPointPerDayPerDocument.monitorData_"+key);
+			cmd.put("key", keys);
+			result = admin.command(cmd);
+		}
+		StageEvents.end(Stage.COLLECTION_DDL, id, start);
+
+		return c;
+	}
+
+	/**
+	 * Drops a monthly collection
+	 * 
+	 * @param month
+	 * @param year
+	 */
+	public void dropCollection(int month, int year) {
+		String key = Integer.toString(month) + "_" + Integer.toString(year);
+		mongoCollections.remove(key);
+		database.getCollection(COLLECTION_PREFIX+key).drop();
+	}
+
+	@Override
+	public String getCollectionName(DocumentID id) {
+		return getCollection(id).getName();
+	}
+
+	@Override
+	public boolean isDocumentCreated(DocumentID id) {
+		// Only the _id is returned
+		DBObject doc = getCollection(id).findOne(
+				new BasicDBObject("_id", id.toString()), ID_FIELD);
+		return doc!=null;
+	}
+
+	/**
+	 * The ids of a day share the prefix "YYYYMD/", so they are read with a 
+	 * range over the _id index, and one more range for the week and the 
+	 * month documents that contain the day. The query only returns the 
+	 * _id, so the server answers it from the index without reading the 
+	 * documents.
+	 */
+	@Override
+	public List<String> findDocumentIds(int year, int month, int day) {
+		List<String> ids = new ArrayList<String>();
+		DBCollection collection = getExistingCollection(month, year);
+		if (collection==null)
+			return ids;
+
+		DBCursor cursor = collection.find(dayQuery(year, month, day), ID_FIELD)
+				.hint(ID_FIELD).batchSize(ID_BATCH_SIZE);
+		try {
+			while (cursor.hasNext()) {
+				ids.add((String) cursor.next().get("_id"));
+			}
+		} finally {
+			cursor.close();
+		}
+		return ids;
+	}
+
+	@Override
+	public Iterator<DBObject> findDocuments(int year, int month, int day) {
+		DBCollection collection = getExistingCollection(month, year);
+		if (collection==null)
+			return Collections.<DBObject>emptyList().iterator();
+
+		// The cursor is closed by the server once it is exhausted
+		return collection.find(dayQuery(year, month, day))
+				.hint(ID_FIELD).batchSize(DOCUMENT_BATCH_SIZE);
+	}
+
+	/**
+	 * The pattern is checked by the server over the ranges of the prefixes
+	 * in the _id index, so only the matching documents are read.
+	 */
+	@Override
+	public Iterator<DBObject> findDocuments(int year, int month, 
+			List<String> prefixes, Pattern idPattern) {
+		DBCollection collection = getExistingCollection(month, year);
+		if (collection==null || prefixes.isEmpty())
+			return Collections.<DBObject>emptyList().iterator();
+
+		return collection.find(prefixQuery(prefixes, idPattern))
+				.hint(ID_FIELD).batchSize(DOCUMENT_BATCH_SIZE);
+	}
+
+	/**
+	 * Returns a monthly collection or null if it does not exist, without
+	 * creating it
+	 */
+	private DBCollection getExistingCollection(int month, int year) {
+		String key = Integer.toString(month) + "_" + Integer.toString(year);
+		if (!mongoCollections.containsKey(key) && 
+				!database.collectionExists(COLLECTION_PREFIX+key))
+			return null;
+
+		return database.getCollection(COLLECTION_PREFIX+key);
+	}
+
+	/**
+	 * Returns the query of the documents that contain a day. The ids of 
+	 * each granularity share a prefix, i.e., "YYYYMD/" for the days, 
+	 * because the date of the id has no separators, see 
+	 * {@link DocumentID#dayPrefixes(int, int, int)}
+	 */
+	private static DBObject dayQuery(int year, int month, int day) {
+		return prefixQuery(DocumentID.dayPrefixes(year, month, day), null);
+	}
+
+	/**
+	 * Returns the query of the ids that begin with one of the prefixes, 
+	 * each prefix is a range of the _id index. The ids must also contain
+	 * the pattern unless it is null.
+	 */
+	private static DBObject prefixQuery(List<String> prefixes, Pattern idPattern) {
+		BasicDBList ranges = new BasicDBList();
+		for (String prefix : prefixes) {
+			String end = prefix.substring(0, prefix.length()-1) + 
+					(char) (prefix.charAt(prefix.length()-1)+1);
+			BasicDBObject range = new BasicDBObject("$gte", prefix).append("$lt", end);
+			if (idPattern!=null)
+				range.append("$regex", idPattern);
+			ranges.add(new BasicDBObject("_id", range));
+		}
+
+		return new BasicDBObject("$or", ranges);
+	}
+
+	@Override
+	public DBObject findOne(DocumentID id) {
+		return getCollection(id).findOne(new BasicDBObject("_id", id.toString()));
+	}
+
+	/**
+	 * Returns a document as a view over its BSON bytes, or null if it does
+	 * not exist, see {@link DayDocumentView}
+	 * 
+	 * @param id Document id
+	 * @return
+	 */
+	public DayDocumentView findView(DocumentID id) {
+		DBCursor cursor = getCollection(id).find(new BasicDBObject("_id", 
+				id.toString())).setDecoderFactory(DayDocumentView.FACTORY).limit(1);
+		try {
+			return cursor.hasNext() ? (DayDocumentView) cursor.next() : null;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	@Override
+	public void insert(DocumentID id, DBObject document) {
+		getCollection(id).insert(document);
+	}
+
+	@Override
+	public void upsert(DocumentID id, DBObject query, DBObject update) {
+		DBCollection collection = getCollection(id);
+		// The upserts of MongoManager are encoded straight from the samples
+		collection.update(query, update, true, false, 
+				collection.getWriteConcern(), SampleEncoder.INSTANCE);
+	}
+
+	@Override
+	public void close() {
+		mongo.close();
+	}
+}
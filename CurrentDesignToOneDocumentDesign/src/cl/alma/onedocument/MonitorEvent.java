@@ -0,0 +1,148 @@
+package cl.alma.onedocument;
+
+import java.util.Date;
+
+import com.mongodb.DBObject;
+
+/**
+ * MonitorEvent is a mutable slot of the {@link RingBuffer} used by the 
+ * migration pipeline. The export stage copies the fields of a legacy record 
+ * into the slot, the transform stage fills its reusable {@link Sample} and 
+ * the write stage upserts it.
+ * 
+ * @see RingPipeline
+ */
+public class MonitorEvent {
+
+	public static final RingBuffer.EventFactory<MonitorEvent> FACTORY = 
+			new RingBuffer.EventFactory<MonitorEvent>() {
+		@Override
+		public MonitorEvent newInstance() {
+			return new MonitorEvent();
+		}
+	};
+
+	// Fields of the legacy record
+	private Date date;
+	private String componentName;
+	private String propertyName;
+	private String monitorPointName;
+	private String location;
+	private String serialNumber;
+	private String monitorValue;
+	private Object index;
+
+	// Transformed sample
+	private final Sample sample = new Sample();
+	private boolean loaded;
+	private boolean valid;
+	private int writer;
+
+	/**
+	 * Copies the fields of a legacy record into this slot. The previous 
+	 * content is discarded. If a field has another type the slot is left 
+	 * unloaded and the ClassCastException is thrown, see {@link #clear()}.
+	 * 
+	 * @param object Legacy record from the MONDB.monitorPoints collection
+	 */
+	public void load(DBObject object) {
+		this.loaded = false;
+		this.valid = false;
+		this.writer = 0;
+		this.date = (Date) object.get("date");
+		this.componentName = (String) object.get("componentName");
+		this.propertyName = (String) object.get("propertyName");
+		this.monitorPointName = (String) object.get("monitorPointName");
+		this.location = (String) object.get("location");
+		this.serialNumber = (String) object.get("serialNumber");
+		this.monitorValue = (String) object.get("monitorValue");
+		this.index = object.get("index");
+		this.loaded = true;
+	}
+
+	/**
+	 * Discards the content of this slot, i.e., after a record that could 
+	 * not be loaded. The next stages skip the slot.
+	 */
+	public void clear() {
+		this.date = null;
+		this.componentName = null;
+		this.propertyName = null;
+		this.monitorPointName = null;
+		this.location = null;
+		this.serialNumber = null;
+		this.monitorValue = null;
+		this.index = null;
+		this.loaded = false;
+		this.valid = false;
+		this.writer = 0;
+	}
+
+	public Date getDate() {
+		return date;
+	}
+
+	public String getComponentName() {
+		return componentName;
+	}
+
+	public String getPropertyName() {
+		return propertyName;
+	}
+
+	public String getMonitorPointName() {
+		return monitorPointName;
+	}
+
+	public String getLocation() {
+		return location;
+	}
+
+	public String getSerialNumber() {
+		return serialNumber;
+	}
+
+	public String getMonitorValue() {
+		return monitorValue;
+	}
+
+	public Object getIndex() {
+		return index;
+	}
+
+	public Sample getSample() {
+		return sample;
+	}
+
+	/**
+	 * Returns true if the export stage loaded a legacy record into this slot
+	 * @return
+	 */
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	/**
+	 * Returns true if the transform stage filled the sample of this slot
+	 * @return
+	 */
+	public boolean isValid() {
+		return valid;
+	}
+
+	public void setValid(boolean valid) {
+		this.valid = valid;
+	}
+
+	/**
+	 * Returns the ordinal of the writer that upserts the sample of this slot
+	 * @return
+	 */
+	public int getWriter() {
+		return writer;
+	}
+
+	public void setWriter(int writer) {
+		this.writer = writer;
+	}
+}
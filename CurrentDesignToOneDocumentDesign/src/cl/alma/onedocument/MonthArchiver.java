@@ -0,0 +1,154 @@
+package cl.alma.onedocument;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Calendar;
+
+import org.apache.log4j.Logger;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.Mongo;
+
+/**
+ * MonthArchiver moves a closed monthly collection out of the cluster. The 
+ * documents are streamed in _id order into a {@link SegmentArchive} and, 
+ * once the archive is synced to disk and every document has been read back
+ * with the same checksum, the collection is dropped. The archived months are served by 
+ * {@link ArchivingStorageBackend}.
+ */
+public class MonthArchiver {
+
+	private static final Logger log = Logger.getLogger(MonthArchiver.class);
+
+	public static final int BATCH_SIZE = 100;
+
+	private final MongoStorageBackend storage;
+	private final File directory;
+
+	/**
+	 * Instantiates a MonthArchiver object
+	 * 
+	 * @param storage Storage of the monthly collections
+	 * @param directory Directory of the archives
+	 */
+	public MonthArchiver(MongoStorageBackend storage, File directory) {
+		this.storage = storage;
+		this.directory = directory;
+	}
+
+	/**
+	 * Returns true if the month has finished
+	 * 
+	 * @param month Month, from 1 to 12
+	 * @param year
+	 * @return
+	 */
+	public static boolean isClosed(int month, int year) {
+		Calendar now = Calendar.getInstance();
+		int currentYear = now.get(Calendar.YEAR);
+		int currentMonth = now.get(Calendar.MONTH)+1;
+
+		return year<currentYear || (year==currentYear && month<currentMonth);
+	}
+
+	/**
+	 * Archives a closed month and drops its collection
+	 * 
+	 * @param month Month, from 1 to 12
+	 * @param year
+	 * @return Number of archived documents
+	 * @throws IOException If the archive cannot be written or read back, in 
+	 * that case the collection is not dropped
+	 */
+	public int archive(int month, int year) throws IOException {
+		if (!isClosed(month, year))
+			throw new IllegalArgumentException("The month is not closed: "+month+"/"+year);
+
+		String name = StorageBackend.COLLECTION_PREFIX + Integer.toString(month) +
+				"_" + Integer.toString(year);
+		DB database = storage.getDatabase();
+		if (!database.collectionExists(name))
+			throw new IllegalArgumentException("The collection does not exist: "+name);
+
+		DBCollection collection = database.getCollection(name);
+		long expected = collection.count();
+
+		SegmentArchive.Writer writer = new SegmentArchive.Writer(directory, name);
+		DBCursor cursor = collection.find().sort(new BasicDBObject("_id", 1))
+				.batchSize(BATCH_SIZE).addOption(Bytes.QUERYOPTION_NOTIMEOUT);
+		boolean finished = false;
+		try {
+			while (cursor.hasNext()) {
+				writer.append(cursor.next());
+			}
+
+			if (writer.getCount()!=expected) {
+				throw new IllegalStateException("Archived "+writer.getCount()+
+						" documents of "+expected+" in "+name);
+			}
+
+			writer.finish();
+			finished = true;
+
+		} finally {
+			cursor.close();
+			if (!finished)
+				writer.abort();
+		}
+
+		// Reading the whole archive back before dropping the data
+		SegmentArchive archive = new SegmentArchive(directory, name);
+		int count;
+		long checksum;
+		try {
+			count = archive.getCount();
+			checksum = archive.checksum();
+		} finally {
+			archive.close();
+		}
+
+		if (count!=writer.getCount() || checksum!=writer.getChecksum()) {
+			throw new IOException("The archive of "+name+" does not match the "+
+					"collection, it is not dropped");
+		}
+
+		storage.dropCollection(month, year);
+		log.info("Archived "+count+" documents of "+name);
+
+		return count;
+	}
+
+	/**
+	 * @param args host database directory month year
+	 */
+	public static void main(String[] args) {
+		if (args.length!=5) {
+			System.err.println("Usage: MonthArchiver host database directory month year");
+			System.exit(-1);
+		}
+
+		Mongo mongo = null;
+		try {
+			mongo = new Mongo(args[0]);
+			MongoStorageBackend storage = new MongoStorageBackend(mongo,
+					mongo.getDB(args[1]));
+			MonthArchiver archiver = new MonthArchiver(storage, new File(args[2]));
+
+			int count = archiver.archive(Integer.parseInt(args[3]), 
+					Integer.parseInt(args[4]));
+			System.out.println("Archived documents: "+count);
+
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		} finally {
+			if (mongo!=null) {
+				mongo.close();
+			}
+		}
+	}
+}
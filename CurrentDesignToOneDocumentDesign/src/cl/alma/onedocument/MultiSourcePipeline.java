@@ -0,0 +1,409 @@
+package cl.alma.onedocument;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.mongodb.DBObject;
+import com.mongodb.Mongo;
+
+/**
+ * MultiSourcePipeline migrates several legacy collections in a single pass,
+ * i.e., the archives of several observatories, into the storage of
+ * {@link MongoManager}. <br/>
+ * Each source is exported by its own thread and cursor into its own
+ * bounded queue of batches. A dispatcher moves the batches into the queue
+ * of a shared pool of consumers taking one batch of each source in turn,
+ * so a fast source does not starve the others and a slow one does not
+ * hold the consumers. The consumer queue is short, so the order of the
+ * dispatcher is the order in which the batches are written. <br/>
+ * The sources are written into the same storage, the one set with
+ * {@link MongoManager#setStorage(StorageBackend)}, so the samples of a
+ * monitor point from several sources end up in the same documents. See
+ * {@link #main(String[])} to run it.
+ */
+public class MultiSourcePipeline {
+
+	private static final Logger log = Logger.getLogger(MultiSourcePipeline.class);
+
+	public static final int DEFAULT_SOURCE_CAPACITY = 4;
+	// Marks the end of the batches of a source
+	private static final List<DBObject> END = Collections.emptyList();
+
+	/**
+	 * A source of legacy records and its throughput
+	 */
+	public static class Source {
+		private final String name;
+		private final Export export;
+		private final BlockingQueue<List<DBObject>> batches;
+		private final AtomicLong records = new AtomicLong();
+		private final AtomicLong batchCount = new AtomicLong();
+		private volatile long startTime;
+		private volatile long endTime;
+		private volatile RuntimeException failure;
+		private boolean finished = false;
+
+		private Source(String name, Export export, int capacity,
+				final Semaphore available) {
+			this.name = name;
+			this.export = export;
+			// The dispatcher is woken up by each batch
+			this.batches = new ArrayBlockingQueue<List<DBObject>>(capacity) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				public void put(List<DBObject> batch) throws InterruptedException {
+					super.put(batch);
+					available.release();
+				}
+			};
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Returns the number of records dispatched to the consumers
+		 * @return
+		 */
+		public long getRecordCount() {
+			return records.get();
+		}
+
+		/**
+		 * Returns the number of batches dispatched to the consumers
+		 * @return
+		 */
+		public long getBatchCount() {
+			return batchCount.get();
+		}
+
+		/**
+		 * Returns the records dispatched per second since the source
+		 * started, until its last batch
+		 * @return
+		 */
+		public double getRecordsPerSecond() {
+			long start = startTime;
+			if (start==0)
+				return 0;
+
+			long end = endTime==0 ? System.currentTimeMillis() : endTime;
+			return records.get()*1000.0 / Math.max(1, end-start);
+		}
+
+		/**
+		 * Returns the exception that stopped the export or null
+		 * @return
+		 */
+		public RuntimeException getFailure() {
+			return failure;
+		}
+
+		@Override
+		public String toString() {
+			return name + ": " + records.get() + " records in " + batchCount.get() +
+					" batches, " + String.format("%.1f", getRecordsPerSecond()) +
+					" records/s" + (failure==null ? "" : ", failed: " + failure);
+		}
+	}
+
+	/**
+	 * Exports the records of a source into its queue
+	 */
+	private interface Export {
+		void run(BlockingQueue<List<DBObject>> batches, int batchSize)
+				throws InterruptedException;
+	}
+
+	private final int numConsumers;
+	private final int batchSize;
+	private final int sourceCapacity;
+	private final List<Source> sources = new ArrayList<Source>();
+	// One permit per batch queued by the sources and per finished source
+	private final Semaphore available = new Semaphore(0);
+	private boolean preallocate = true;
+
+	/**
+	 * Instantiates a MultiSourcePipeline object with source queues of
+	 * {@link #DEFAULT_SOURCE_CAPACITY} batches
+	 *
+	 * @param numConsumers Number of consumers shared by the sources
+	 * @param batchSize Number of records of a batch
+	 */
+	public MultiSourcePipeline(int numConsumers, int batchSize) {
+		this(numConsumers, batchSize, DEFAULT_SOURCE_CAPACITY);
+	}
+
+	/**
+	 * Instantiates a MultiSourcePipeline object
+	 *
+	 * @param numConsumers Number of consumers shared by the sources
+	 * @param batchSize Number of records of a batch
+	 * @param sourceCapacity Number of batches read ahead by each source
+	 */
+	public MultiSourcePipeline(int numConsumers, int batchSize,
+			int sourceCapacity) {
+		if (numConsumers<=0)
+			throw new IllegalArgumentException("The number of consumers must be positive");
+		if (batchSize<=0)
+			throw new IllegalArgumentException("The batch size must be positive");
+		if (sourceCapacity<=0)
+			throw new IllegalArgumentException("The source capacity must be positive");
+
+		this.numConsumers = numConsumers;
+		this.batchSize = batchSize;
+		this.sourceCapacity = sourceCapacity;
+	}
+
+	/**
+	 * Enables or disables the preallocation of the consumers, see
+	 * {@link MongoManager#setPreallocate(boolean)}
+	 *
+	 * @param preallocate
+	 */
+	public void setPreallocate(boolean preallocate) {
+		this.preallocate = preallocate;
+	}
+
+	/**
+	 * Adds a legacy collection, it is exported with its own cursor, see
+	 * {@link Query#exportBatches(BlockingQueue, int)}
+	 *
+	 * @param name Name of the source, i.e., the observatory
+	 * @param query Query of the legacy collection
+	 * @return
+	 */
+	public Source addSource(String name, final Query query) {
+		return addSource(name, new Export() {
+			@Override
+			public void run(BlockingQueue<List<DBObject>> batches, int batchSize)
+					throws InterruptedException {
+				query.exportBatches(batches, batchSize);
+			}
+		});
+	}
+
+	/**
+	 * Adds a source of legacy records read by an iterator, i.e., a cursor
+	 *
+	 * @param name Name of the source
+	 * @param records Legacy records
+	 * @return
+	 */
+	public Source addSource(String name, final Iterator<DBObject> records) {
+		return addSource(name, new Export() {
+			@Override
+			public void run(BlockingQueue<List<DBObject>> batches, int batchSize)
+					throws InterruptedException {
+				List<DBObject> batch = new ArrayList<DBObject>(batchSize);
+				while (records.hasNext()) {
+					batch.add(records.next());
+					if (batch.size()==batchSize) {
+						batches.put(batch);
+						batch = new ArrayList<DBObject>(batchSize);
+					}
+				}
+				if (!batch.isEmpty())
+					batches.put(batch);
+			}
+		});
+	}
+
+	private synchronized Source addSource(String name, Export export) {
+		Source source = new Source(name, export, sourceCapacity, available);
+		sources.add(source);
+		return source;
+	}
+
+	/**
+	 * Returns the sources in the order they were added
+	 * @return
+	 */
+	public synchronized List<Source> getSources() {
+		return new ArrayList<Source>(sources);
+	}
+
+	/**
+	 * Migrates all the sources and returns when the consumers have written
+	 * every record. The failure of a source does not stop the others, see
+	 * {@link Source#getFailure()}.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void run() throws InterruptedException {
+		List<Source> sources = getSources();
+		BlockingQueue<List<DBObject>> consumerQueue =
+				new ArrayBlockingQueue<List<DBObject>>(numConsumers);
+
+		Thread[] consumers = new Thread[numConsumers];
+		for (int i=0; i<numConsumers; i++) {
+			MongoManager consumer = MongoManager.mongoManagerFactory(null);
+			consumer.setBatchQueue(consumerQueue);
+			consumer.setPreallocate(preallocate);
+			consumers[i] = new Thread(consumer, consumer.getThreadName());
+			consumers[i].start();
+		}
+
+		List<Thread> exporters = new ArrayList<Thread>();
+		for (final Source source : sources) {
+			Thread exporter = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					export(source);
+				}
+			}, "Export " + source.getName());
+			exporter.setDaemon(true);
+			exporters.add(exporter);
+		}
+		for (Thread exporter : exporters) {
+			exporter.start();
+		}
+
+		try {
+			dispatch(sources, consumerQueue);
+
+			// The consumers take the last batches before stopping
+			while (!consumerQueue.isEmpty()) {
+				Thread.sleep(10);
+			}
+		} finally {
+			for (Thread exporter : exporters) {
+				exporter.interrupt();
+			}
+			for (Thread consumer : consumers) {
+				consumer.interrupt();
+			}
+			for (Thread consumer : consumers) {
+				consumer.join();
+			}
+		}
+
+		for (Source source : sources) {
+			log.info(source);
+		}
+	}
+
+	private void export(Source source) {
+		source.startTime = System.currentTimeMillis();
+		try {
+			source.export.run(source.batches, batchSize);
+			source.batches.put(END);
+		} catch (InterruptedException e) {
+			// The pipeline was stopped
+		} catch (RuntimeException e) {
+			source.failure = e;
+			log.error("The export of " + source.getName() + " failed", e);
+			try {
+				source.batches.put(END);
+			} catch (InterruptedException e1) {
+				// The pipeline was stopped
+			}
+		}
+	}
+
+	/**
+	 * Moves the batches of the sources into the consumer queue, one batch
+	 * of each source in turn, until every source has finished
+	 */
+	private void dispatch(List<Source> sources,
+			BlockingQueue<List<DBObject>> consumerQueue) throws InterruptedException {
+		int active = sources.size();
+		int next = 0;
+		while (active>0) {
+			available.acquire();
+
+			// The permit belongs to the first source that has a batch after
+			// the last source served
+			for (int i=0; i<sources.size(); i++) {
+				Source source = sources.get((next+i) % sources.size());
+				if (source.finished)
+					continue;
+
+				List<DBObject> batch = source.batches.poll();
+				if (batch==null)
+					continue;
+
+				next = (next+i+1) % sources.size();
+				if (batch==END) {
+					source.finished = true;
+					source.endTime = System.currentTimeMillis();
+					active--;
+				} else {
+					consumerQueue.put(batch);
+					source.records.addAndGet(batch.size());
+					source.batchCount.incrementAndGet();
+				}
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Migrates several legacy collections into a database, i.e., 
+	 * "MultiSourcePipeline mongo-r1.osf.alma.cl OneMonitorPointPerDayPerDocument
+	 * OSF mongo-r1.osf.alma.cl MONDB monitorPoints AOS mongo-aos MONDB 
+	 * monitorPoints". The sample times of the monitor points are read from
+	 * "sampleTimes.properties" if it exists, see {@link Granularity}.
+	 * 
+	 * @param args targetHost targetDatabase followed by "name host database
+	 * collection" for each source
+	 */
+	public static void main(String[] args) {
+		if (args.length<6 || (args.length-2)%4!=0) {
+			System.err.println("Usage: MultiSourcePipeline targetHost targetDatabase " +
+					"name host database collection [name host database collection ...]");
+			System.exit(-1);
+		}
+
+		Mongo mongo = null;
+		List<Mongo> sourceMongos = new ArrayList<Mongo>();
+		try {
+			File sampleTimes = new File(Main.SAMPLE_TIMES_FILE);
+			if (sampleTimes.exists()) {
+				MongoManager.setSampleTimes(
+						MongoManager.loadSampleTimes(sampleTimes));
+			}
+
+			mongo = new Mongo(args[0]);
+			MongoManager.setConnection(mongo, mongo.getDB(args[1]));
+
+			MultiSourcePipeline pipeline = new MultiSourcePipeline(
+					Main.NUM_CONSUMERS, Query.DEFAULT_BATCH_SIZE);
+			for (int i=2; i<args.length; i+=4) {
+				Mongo sourceMongo = new Mongo(args[i+1]);
+				sourceMongos.add(sourceMongo);
+				pipeline.addSource(args[i], new Query(
+						sourceMongo.getDB(args[i+2]).getCollection(args[i+3])));
+			}
+
+			long start = System.currentTimeMillis();
+			pipeline.run();
+			for (Source source : pipeline.getSources()) {
+				System.out.println(source);
+			}
+			System.out.println("Time: "+(System.currentTimeMillis()-start)/1000+"s");
+
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(-1);
+		} finally {
+			for (Mongo sourceMongo : sourceMongos) {
+				sourceMongo.close();
+			}
+			if (mongo!=null) {
+				mongo.close();
+			}
+		}
+	}
+}
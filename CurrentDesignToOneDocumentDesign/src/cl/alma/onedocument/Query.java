@@ -1,12 +1,21 @@
 package cl.alma.onedocument;
 
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.GregorianCalendar;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.apache.log4j.Logger;
 import org.bson.types.ObjectId;
 
+import cl.alma.onedocument.StageEvents.Stage;
+
 import com.mongodb.BasicDBObject;
 import com.mongodb.Bytes;
 import com.mongodb.DB;
@@ -16,10 +25,26 @@ import com.mongodb.DBObject;
 import com.mongodb.Mongo;
 
 public class Query {
+	
+	private static final Logger log = Logger.getLogger(Query.class);
+	private static final ErrorReporter errorReporter = new ErrorReporter(log);
+	
+	/**
+	 * Index of the legacy collection used by the backfill, it returns the
+	 * records grouped by day document
+	 */
+	public static final DBObject BACKFILL_ORDER = new BasicDBObject(
+			"componentName", 1).append("monitorPointName", 1).append("date", 1);
+	
+	public static final int DEFAULT_BATCH_SIZE = 5000;
+	
+	// Marks the end of the read-ahead batches
+	private static final List<DBObject> END = Collections.emptyList();
+	
 	private Mongo _mongo;
 	private DB _database;
 	private DBCollection _collection;
-	private LinkedBlockingQueue<DBObject> queue;
+	private BlockingQueue<DBObject> queue;
 
 	public Query(String host, String dbname, String collection) 
 					throws UnknownHostException {
@@ -29,11 +54,252 @@ public class Query {
 		_collection = _database.getCollection(collection);
 	}
 
-	public void setQueue(LinkedBlockingQueue<DBObject> queue) {
+	/**
+	 * Instantiates a Query object over a collection of an open connection,
+	 * i.e., one of the sources of a {@link MultiSourcePipeline}
+	 * 
+	 * @param collection Legacy collection
+	 */
+	public Query(DBCollection collection) {
+		_collection = collection;
+		_database = collection.getDB();
+		_mongo = _database.getMongo();
+	}
+
+	public void setQueue(BlockingQueue<DBObject> queue) {
 		this.queue = queue;
 	}
 
 	public void exportData() {
+		export(openCursor());
+	}
+
+	/**
+	 * Exports the data in batches, each batch is a single element of the 
+	 * queue, see {@link #exportBatches(Iterator, BlockingQueue, int)}. The 
+	 * cursor fetches batches of the same size from the server.
+	 * 
+	 * @param batches Queue of the consumers, see 
+	 * {@link MongoManager#setBatchQueue(BlockingQueue)}
+	 * @param batchSize Number of records of a batch
+	 * @throws InterruptedException
+	 */
+	public void exportBatches(BlockingQueue<List<DBObject>> batches, 
+			int batchSize) throws InterruptedException {
+		if (batchSize<=0)
+			throw new IllegalArgumentException("The batch size must be positive");
+
+		DBCursor cursor = openCursor().batchSize(batchSize);
+		try {
+			exportBatches(cursor, batches, batchSize);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Puts legacy records in batches into a queue. A read-ahead thread 
+	 * fills the next batch from the records while this thread publishes the
+	 * previous one, so a cursor keeps fetching while the consumers are busy.
+	 * The last batch may be smaller, and it returns once every batch has
+	 * been queued. An exception of the records is thrown after queuing the
+	 * batches read before it.
+	 * 
+	 * @param records Legacy records, i.e., a cursor
+	 * @param batches Queue of the consumers
+	 * @param batchSize Number of records of a batch
+	 * @return Number of records queued
+	 * @throws InterruptedException
+	 */
+	public static int exportBatches(final Iterator<DBObject> records, 
+			BlockingQueue<List<DBObject>> batches, final int batchSize) 
+					throws InterruptedException {
+		if (batchSize<=0)
+			throw new IllegalArgumentException("The batch size must be positive");
+
+		// The batch being filled and one filled batch wait for this thread
+		final BlockingQueue<List<DBObject>> filled = 
+				new ArrayBlockingQueue<List<DBObject>>(1);
+		final AtomicReference<RuntimeException> failure = 
+				new AtomicReference<RuntimeException>();
+
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					List<DBObject> batch = new ArrayList<DBObject>(batchSize);
+					while (hasNext(records)) {
+						batch.add(records.next());
+						if (batch.size()==batchSize) {
+							filled.put(batch);
+							batch = new ArrayList<DBObject>(batchSize);
+						}
+					}
+					if (!batch.isEmpty())
+						filled.put(batch);
+
+				} catch (InterruptedException e) {
+					// The export was stopped
+					return;
+				} catch (RuntimeException e) {
+					failure.set(e);
+				}
+
+				try {
+					filled.put(END);
+				} catch (InterruptedException e) {
+					// The export was stopped
+				}
+			}
+		}, "Query read-ahead");
+		reader.setDaemon(true);
+		reader.start();
+
+		int cont=0;
+		try {
+			List<DBObject> batch;
+			while ((batch = filled.take())!=END) {
+				long start = StageEvents.begin();
+				batches.put(batch);
+				StageEvents.end(Stage.QUEUE_HANDOFF, null, start);
+				cont += batch.size();
+			}
+		} finally {
+			reader.interrupt();
+			reader.join();
+		}
+
+		if (failure.get()!=null)
+			throw failure.get();
+
+		System.out.println("Total: "+cont);
+		return cont;
+	}
+
+	/**
+	 * Exports the data ordered by (componentName, monitorPointName, date), 
+	 * so the records of each day document are consecutive. Used by the 
+	 * backfill mode of {@link MongoManager}. The legacy collection must have
+	 * an index of {@link #BACKFILL_ORDER}; it is not built here, because a 
+	 * foreground build locks the legacy database while it runs.
+	 * 
+	 * @throws IllegalStateException If the index does not exist
+	 */
+	public void exportSortedData() {
+		if (!hasIndex(_collection, BACKFILL_ORDER)) {
+			throw new IllegalStateException("The backfill needs an index of "+
+					BACKFILL_ORDER+" in "+_collection.getFullName()+
+					", build it with {background: true} before the migration");
+		}
+		export(openCursor().sort(BACKFILL_ORDER).hint(BACKFILL_ORDER));
+	}
+
+	/**
+	 * Returns true if a collection has an index with the given keys, in the
+	 * same order
+	 */
+	private static boolean hasIndex(DBCollection collection, DBObject keys) {
+		for (DBObject index : collection.getIndexInfo()) {
+			DBObject key = (DBObject) index.get("key");
+			if (key!=null && new ArrayList<String>(key.keySet()).equals(
+					new ArrayList<String>(keys.keySet())))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Exports the data into the ring buffer of a {@link RingPipeline}. Each 
+	 * record is copied into a preallocated slot instead of being queued.
+	 * 
+	 * @param ringBuffer
+	 */
+	public void exportData(RingBuffer<MonitorEvent> ringBuffer) {
+		DBCursor cursor = openCursor();
+
+		try {
+			exportData(cursor, ringBuffer);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Copies legacy records into the slots of a ring buffer. A record that 
+	 * cannot be loaded, i.e., with a field of another type, is reported and 
+	 * its slot is published empty, so a malformed record does not stop the 
+	 * export.
+	 * 
+	 * @param records Legacy records, i.e., a cursor
+	 * @param ringBuffer
+	 * @return Number of records loaded
+	 */
+	public static int exportData(Iterator<DBObject> records, 
+			RingBuffer<MonitorEvent> ringBuffer) {
+		int cont=0;
+		while(hasNext(records)) {
+			DBObject object = records.next();
+
+			long start = StageEvents.begin();
+			long sequence = ringBuffer.next();
+			StageEvents.end(Stage.QUEUE_HANDOFF, null, start);
+			MonitorEvent event = ringBuffer.get(sequence);
+			try {
+				event.load(object);
+				cont++;
+			} catch (RuntimeException e) {
+				event.clear();
+				errorReporter.report(e);
+			} finally {
+				ringBuffer.publish(sequence);
+			}
+		}
+		System.out.println("Total: "+cont);
+		return cont;
+	}
+
+	private void export(DBCursor cursor) {
+		try {
+			int cont=0;
+			while(hasNext(cursor)) {
+
+				try {
+					long start = StageEvents.begin();
+					queue.put(cursor.next());
+					StageEvents.end(Stage.QUEUE_HANDOFF, null, start);
+					cont++;
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+			}
+			System.out.println("Total: "+cont);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Calls hasNext() and, for a cursor, records the calls that fetched a 
+	 * batch from the server
+	 */
+	private static boolean hasNext(Iterator<DBObject> records) {
+		long start = StageEvents.begin();
+		if (start==0 || !(records instanceof DBCursor))
+			return records.hasNext();
+
+		DBCursor cursor = (DBCursor) records;
+
+		// The first call sends the query, the next ones fetch with getMore
+		boolean first = cursor.numSeen()==0;
+		int fetches = first ? 0 : cursor.numGetMores();
+		boolean next = cursor.hasNext();
+		if (first || cursor.numGetMores()!=fetches)
+			StageEvents.end(Stage.QUERY_FETCH, null, start);
+
+		return next;
+	}
+
+	private DBCursor openCursor() {
 		// The months in Gregorian Calendar start with 0
 		Calendar startDate = new GregorianCalendar(2012, 9-1, 30, 0, 0, 0);
 		Calendar endDate = new GregorianCalendar(2012, 9-1, 30, 23, 59, 59);
@@ -60,25 +326,9 @@ public class Query {
 		//BasicDBObject query = new BasicDBObject("_id", new ObjectId("50528be325d8b6dfbafd7ac2"));
 		//BasicDBObject query = new BasicDBObject("_id", new ObjectId("50529496a310ecc5da59531c"));
 
-		DBCursor cursor = _collection.find(query);
-
-		//System.out.println("Collections: "+_database.getCollectionNames());
-		
-		//System.out.println("Error: "+_database.getLastError());
-		try {
-			int cont=0;
-			while(cursor.hasNext()) {
-
-				try {
-					queue.put(cursor.next());
-					cont++;
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-			}
-			System.out.println("Total: "+cont);
-		} finally {
-			cursor.close();
-		}
+		// Only the fields of a sample are read, and they are decoded into
+		// compact records, see LegacyRecordDecoder
+		return _collection.find(query, LegacyRecord.FIELDS)
+				.setDecoderFactory(LegacyRecordDecoder.FACTORY);
 	}
 }
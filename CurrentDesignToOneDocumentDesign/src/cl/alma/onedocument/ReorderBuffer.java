@@ -0,0 +1,171 @@
+package cl.alma.onedocument;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ReorderBuffer groups the samples of each document for a grace period and
+ * emits them as one chronological batch. The legacy export comes in natural
+ * order, so the samples of a document arrive scattered; with this buffer 
+ * they are written with one upsert of a list instead of one $set each. <br/>
+ * The number of buffered samples is bounded: when the bound or the heap 
+ * limit is reached the oldest documents are flushed early. This class is 
+ * not thread safe, use one buffer per consumer.
+ */
+public class ReorderBuffer {
+
+	/**
+	 * Receives the batches of samples, all of them of the same document
+	 */
+	public interface Sink {
+		void flush(List<Sample> samples);
+	}
+
+	// Fraction of the maximum heap that triggers an early flush
+	public static final double HEAP_LIMIT = 0.8;
+	private static final int HEAP_CHECK_INTERVAL = 1024;
+
+	private static final Comparator<Sample> CHRONOLOGICAL = new Comparator<Sample>() {
+		@Override
+		public int compare(Sample a, Sample b) {
+			int ta = (a.getHour()*60 + a.getMinute())*60 + a.getSecond();
+			int tb = (b.getHour()*60 + b.getMinute())*60 + b.getSecond();
+			return ta<tb ? -1 : (ta==tb ? 0 : 1);
+		}
+	};
+
+	private final Sink sink;
+	private final long gracePeriod;
+	private final int maxSamples;
+	private final int maxBatchSize;
+
+	// Ordered by the arrival of the first sample of each document
+	private final LinkedHashMap<String, Pending> documents = 
+			new LinkedHashMap<String, Pending>();
+	private int size = 0;
+	private int adds = 0;
+
+	/**
+	 * Instantiates a ReorderBuffer object
+	 * 
+	 * @param sink Receiver of the batches
+	 * @param gracePeriod Time in milliseconds that the samples of a document
+	 * are held
+	 * @param maxSamples Maximum number of buffered samples
+	 * @param maxBatchSize Maximum number of samples of a batch
+	 */
+	public ReorderBuffer(Sink sink, long gracePeriod, int maxSamples,
+			int maxBatchSize) {
+		if (maxSamples<1 || maxBatchSize<1)
+			throw new IllegalArgumentException("The limits must be positive");
+
+		this.sink = sink;
+		this.gracePeriod = gracePeriod;
+		this.maxSamples = maxSamples;
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * Adds a sample. The buffer keeps a reference to it, so it must not be 
+	 * reused by the caller.
+	 * 
+	 * @param sample
+	 * @param now Current time in milliseconds
+	 */
+	public void add(Sample sample, long now) {
+		String key = sample.getMetadata().getDocumentID().toString();
+
+		Pending pending = documents.get(key);
+		if (pending==null) {
+			pending = new Pending(now);
+			documents.put(key, pending);
+		}
+		pending.samples.add(sample);
+		size++;
+
+		if (pending.samples.size()>=maxBatchSize) {
+			documents.remove(key);
+			flush(pending);
+		}
+
+		// Flushing early under memory pressure
+		if (size>maxSamples || (++adds % HEAP_CHECK_INTERVAL==0 && isHeapFull())) {
+			flushOldest(size/2);
+		}
+	}
+
+	/**
+	 * Flushes the documents whose grace period has finished
+	 * 
+	 * @param now Current time in milliseconds
+	 */
+	public void flushExpired(long now) {
+		Iterator<Pending> it = documents.values().iterator();
+		while (it.hasNext()) {
+			Pending pending = it.next();
+			if (now - pending.firstArrival<gracePeriod)
+				break;
+
+			it.remove();
+			flush(pending);
+		}
+	}
+
+	/**
+	 * Flushes all documents
+	 */
+	public void flushAll() {
+		flushOldest(0);
+	}
+
+	/**
+	 * Returns the number of buffered samples
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of documents with buffered samples
+	 * @return
+	 */
+	public int getDocumentCount() {
+		return documents.size();
+	}
+
+	private void flushOldest(int target) {
+		Iterator<Map.Entry<String, Pending>> it = documents.entrySet().iterator();
+		while (size>target && it.hasNext()) {
+			Pending pending = it.next().getValue();
+			it.remove();
+			flush(pending);
+		}
+	}
+
+	private void flush(Pending pending) {
+		size -= pending.samples.size();
+		Collections.sort(pending.samples, CHRONOLOGICAL);
+		sink.flush(pending.samples);
+	}
+
+	private static boolean isHeapFull() {
+		Runtime runtime = Runtime.getRuntime();
+		long used = runtime.totalMemory() - runtime.freeMemory();
+		return used > runtime.maxMemory()*HEAP_LIMIT;
+	}
+
+	private static class Pending {
+		final long firstArrival;
+		final List<Sample> samples = new ArrayList<Sample>();
+
+		Pending(long firstArrival) {
+			this.firstArrival = firstArrival;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package cl.alma.onedocument;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * RingBuffer is a pre-sized ring of mutable slots shared between one 
+ * producer and several consumer stages. The slots are created once and then 
+ * filled in place, so the steady state does not allocate per record. <br/>
+ * The producer claims a slot with {@link #next()}, fills it and makes it 
+ * visible with {@link #publish(long)}. The consumers wait on a 
+ * {@link SequenceBarrier} and the producer never overwrites a slot that has 
+ * not been processed by all the gating sequences. <br/>
+ * This class supports a single producer thread.
+ * 
+ * @param <E> Slot type
+ */
+public class RingBuffer<E> {
+
+	/**
+	 * Creates the slots of the ring buffer
+	 * @param <E>
+	 */
+	public interface EventFactory<E> {
+		E newInstance();
+	}
+
+	private final Object[] entries;
+	private final int mask;
+	private final Sequence cursor = new Sequence();
+	private Sequence[] gatingSequences = new Sequence[0];
+
+	// Only used by the producer thread
+	private long nextValue = Sequence.INITIAL_VALUE;
+	private long cachedGatingValue = Sequence.INITIAL_VALUE;
+
+	/**
+	 * Instantiates a RingBuffer object and fills all its slots
+	 * 
+	 * @param factory Slot factory
+	 * @param size Number of slots, it must be a power of two
+	 */
+	public RingBuffer(EventFactory<E> factory, int size) {
+		if (size<1 || Integer.bitCount(size)!=1)
+			throw new IllegalArgumentException("Size must be a power of two");
+
+		this.entries = new Object[size];
+		this.mask = size - 1;
+		for (int i=0; i<size; i++) {
+			entries[i] = factory.newInstance();
+		}
+	}
+
+	/**
+	 * Sets the sequences that the producer cannot overtake. Usually these
+	 * are the sequences of the last stage of the pipeline.
+	 * 
+	 * @param sequences
+	 */
+	public void setGatingSequences(Sequence... sequences) {
+		this.gatingSequences = sequences;
+	}
+
+	/**
+	 * Creates a barrier for a consumer stage that depends on the producer 
+	 * and on the given stages
+	 * 
+	 * @param dependents Sequences of the previous stages
+	 * @return
+	 */
+	public SequenceBarrier newBarrier(Sequence... dependents) {
+		return new SequenceBarrier(cursor, dependents);
+	}
+
+	/**
+	 * Claims the next slot. Blocks while the ring is full.
+	 * @return The sequence of the claimed slot
+	 */
+	public long next() {
+		long next = nextValue + 1;
+		long wrapPoint = next - entries.length;
+
+		if (wrapPoint>cachedGatingValue) {
+			long minimum;
+			while (wrapPoint>(minimum = Sequence.getMinimum(gatingSequences, next))) {
+				LockSupport.parkNanos(1L);
+			}
+			cachedGatingValue = minimum;
+		}
+
+		nextValue = next;
+		return next;
+	}
+
+	/**
+	 * Makes the slot visible to the consumers
+	 * @param sequence
+	 */
+	public void publish(long sequence) {
+		cursor.set(sequence);
+	}
+
+	/**
+	 * Returns the slot for the given sequence
+	 * @param sequence
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public E get(long sequence) {
+		return (E) entries[(int) sequence & mask];
+	}
+
+	public Sequence getCursor() {
+		return cursor;
+	}
+
+	public int getSize() {
+		return entries.length;
+	}
+}
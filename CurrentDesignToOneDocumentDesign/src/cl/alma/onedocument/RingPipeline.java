@@ -0,0 +1,120 @@
+package cl.alma.onedocument;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RingPipeline connects the export, transform and write stages of the 
+ * migration through a preallocated {@link RingBuffer} of 
+ * {@link MonitorEvent} slots. <br/>
+ * The export stage ({@link Query#exportData(RingBuffer)}) fills the slots in 
+ * place, one {@link TransformHandler} converts them into samples and several 
+ * {@link MongoManager} writers upsert them. Each stage waits on a 
+ * {@link SequenceBarrier}, so there is no lock handoff per record and the 
+ * steady state does not allocate queue nodes, maps or samples.
+ */
+public class RingPipeline {
+
+	public static final int DEFAULT_SIZE = 1 << 16;
+
+	private final RingBuffer<MonitorEvent> ringBuffer;
+	private final List<BatchEventProcessor<MonitorEvent>> processors;
+	private final List<Thread> threads;
+	private final List<MongoManager> writers;
+
+	/**
+	 * Instantiates a RingPipeline object. The connection of MongoManager 
+	 * must be set before.
+	 * 
+	 * @param size Number of slots, it must be a power of two
+	 * @param numWriters Number of writer threads
+	 */
+	public RingPipeline(int size, int numWriters) {
+		if (numWriters<1)
+			throw new IllegalArgumentException("At least one writer is needed");
+
+		ringBuffer = new RingBuffer<MonitorEvent>(MonitorEvent.FACTORY, size);
+		processors = new ArrayList<BatchEventProcessor<MonitorEvent>>(numWriters+1);
+		threads = new ArrayList<Thread>(numWriters+1);
+		writers = new ArrayList<MongoManager>(numWriters);
+
+		// Transform stage, it depends only on the producer
+		BatchEventProcessor<MonitorEvent> transformer = 
+				new BatchEventProcessor<MonitorEvent>(ringBuffer,
+						ringBuffer.newBarrier(), new TransformHandler(numWriters));
+		processors.add(transformer);
+
+		// Write stage, it depends on the transform stage
+		SequenceBarrier writeBarrier = ringBuffer.newBarrier(transformer.getSequence());
+		Sequence[] gating = new Sequence[numWriters];
+		for (int i=0; i<numWriters; i++) {
+			MongoManager mongoManager = MongoManager.eventHandlerFactory(i, numWriters);
+			BatchEventProcessor<MonitorEvent> writer = 
+					new BatchEventProcessor<MonitorEvent>(ringBuffer,
+							writeBarrier, mongoManager);
+			writers.add(mongoManager);
+			processors.add(writer);
+			gating[i] = writer.getSequence();
+		}
+
+		// The producer cannot overwrite slots that are not written yet
+		ringBuffer.setGatingSequences(gating);
+	}
+
+	/**
+	 * Launches one thread per stage processor
+	 */
+	public void start() {
+		for (int i=0; i<processors.size(); i++) {
+			Thread thread = new Thread(processors.get(i), "RingPipeline_"+i);
+			threads.add(thread);
+			thread.start();
+		}
+	}
+
+	public RingBuffer<MonitorEvent> getRingBuffer() {
+		return ringBuffer;
+	}
+
+	/**
+	 * Enables the reorder buffer of every writer, see 
+	 * {@link MongoManager#enableReorderBuffer(long, int)}. It must be called
+	 * before start().
+	 * 
+	 * @param gracePeriod Time in milliseconds that the samples are held
+	 * @param maxSamples Maximum number of samples held by each writer
+	 */
+	public void enableReorderBuffer(long gracePeriod, int maxSamples) {
+		for (MongoManager writer : writers) {
+			writer.enableReorderBuffer(gracePeriod, maxSamples);
+		}
+	}
+
+	/**
+	 * Waits until all published slots have been written and then stops the
+	 * stage threads.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void shutdown() throws InterruptedException {
+		long cursor = ringBuffer.getCursor().get();
+		for (BatchEventProcessor<MonitorEvent> processor : processors) {
+			while (processor.getSequence().get()<cursor) {
+				Thread.sleep(10);
+			}
+		}
+
+		for (BatchEventProcessor<MonitorEvent> processor : processors) {
+			processor.halt();
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		// Writing the samples held by the reorder buffers
+		for (MongoManager writer : writers) {
+			writer.flushReorderBuffer();
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package cl.alma.onedocument;
 
 /**
+ * Sample of a monitor point. The value is typed, see {@link ValueType}.
  *  
  * @author Leonel Peña <leo.dhpl@gmail.com>
  *
@@ -11,10 +12,82 @@ public class Sample {
 	private int hour;
 	private int minute;
 	private int second;
+
+	private ValueType type = ValueType.STRING;
 	private String value;
+	private double doubleValue;
+	private long longValue;
+	private boolean booleanValue;
+
+	/**
+	 * Instantiate an empty Sample. Use it along with set(...) to reuse the
+	 * same instance for several samples.
+	 */
+	public Sample() {
+	}
+
+	/**
+	 * Instantiate a copy of a Sample
+	 * @param other
+	 */
+	public Sample(Sample other) {
+		this.metadata = other.metadata;
+		this.hour = other.hour;
+		this.minute = other.minute;
+		this.second = other.second;
+		this.type = other.type;
+		this.value = other.value;
+		this.doubleValue = other.doubleValue;
+		this.longValue = other.longValue;
+		this.booleanValue = other.booleanValue;
+	}
+
+	/**
+	 * Instantiate a new Sample with a string value
+	 * @param metadata
+	 * @param hour
+	 * @param minute
+	 * @param second
+	 * @param value
+	 */
+	public Sample(Metadata metadata, int hour, int minute, int second,
+			String value) {
+
+		set(metadata, hour, minute, second, value);
+	}
+
+	/**
+	 * Instantiate a new Sample with a double value
+	 * @param metadata
+	 * @param hour
+	 * @param minute
+	 * @param second
+	 * @param value
+	 */
+	public Sample(Metadata metadata, int hour, int minute, int second,
+			double value) {
+
+		setTime(metadata, hour, minute, second);
+		setValue(value);
+	}
+
+	/**
+	 * Instantiate a new Sample with a long value
+	 * @param metadata
+	 * @param hour
+	 * @param minute
+	 * @param second
+	 * @param value
+	 */
+	public Sample(Metadata metadata, int hour, int minute, int second,
+			long value) {
+
+		setTime(metadata, hour, minute, second);
+		setValue(value);
+	}
 
 	/**
-	 * Instantiate a new Sample
+	 * Instantiate a new Sample with a boolean value
 	 * @param metadata
 	 * @param hour
 	 * @param minute
@@ -22,15 +95,121 @@ public class Sample {
 	 * @param value
 	 */
 	public Sample(Metadata metadata, int hour, int minute, int second,
+			boolean value) {
+
+		setTime(metadata, hour, minute, second);
+		setValue(value);
+	}
+
+	/**
+	 * Instantiate a new Sample from a value exported as text by the old 
+	 * schema. The type of the value is inferred with 
+	 * {@link ValueType#infer(String)}.
+	 * @param metadata
+	 * @param hour
+	 * @param minute
+	 * @param second
+	 * @param value
+	 * @return
+	 */
+	public static Sample parse(Metadata metadata, int hour, int minute,
+			int second, String value) {
+
+		Sample sample = new Sample();
+		sample.setTime(metadata, hour, minute, second);
+		sample.parseValue(value);
+		return sample;
+	}
+
+	/**
+	 * Replaces the content of this sample with a string value
+	 * @param metadata
+	 * @param hour
+	 * @param minute
+	 * @param second
+	 * @param value
+	 */
+	public void set(Metadata metadata, int hour, int minute, int second,
 			String value) {
 
+		setTime(metadata, hour, minute, second);
+		setValue(value);
+	}
+
+	/**
+	 * Replaces the metadata and the time of this sample
+	 * @param metadata
+	 * @param hour
+	 * @param minute
+	 * @param second
+	 */
+	public void setTime(Metadata metadata, int hour, int minute, int second) {
 		this.metadata = metadata;
 		this.hour = hour;
 		this.minute = minute;
 		this.second = second;
+	}
+
+	public void setValue(String value) {
+		this.type = ValueType.STRING;
 		this.value = value;
 	}
 
+	public void setValue(double value) {
+		this.type = ValueType.DOUBLE;
+		this.doubleValue = value;
+		this.value = null;
+	}
+
+	public void setValue(long value) {
+		this.type = ValueType.LONG;
+		this.longValue = value;
+		this.value = null;
+	}
+
+	public void setValue(boolean value) {
+		this.type = ValueType.BOOLEAN;
+		this.booleanValue = value;
+		this.value = null;
+	}
+
+	/**
+	 * Sets the value from its text representation, inferring its type
+	 * @param value
+	 */
+	public void parseValue(String value) {
+		parseValue(value, ValueType.infer(value));
+	}
+
+	/**
+	 * Sets the value from its text representation with the type of its 
+	 * monitor point, see {@link MongoManager#getValueType(String, String, String, String)}.
+	 * A value that cannot be stored with that type without losing 
+	 * information is kept as text.
+	 * @param value
+	 * @param type Type of the monitor point
+	 */
+	public void parseValue(String value, ValueType type) {
+		if (!type.accepts(value)) {
+			setValue(value);
+			return;
+		}
+
+		switch (type) {
+		case BOOLEAN:
+			setValue(Boolean.parseBoolean(value));
+			break;
+		case LONG:
+			setValue(Long.parseLong(value));
+			break;
+		case DOUBLE:
+			setValue(Double.parseDouble(value));
+			break;
+		default:
+			setValue(value);
+		}
+	}
+
 	public Metadata getMetadata() {
 		return metadata;
 	}
@@ -47,7 +226,55 @@ public class Sample {
 		return second;
 	}
 
+	public ValueType getValueType() {
+		return type;
+	}
+
+	/**
+	 * Returns the value as text, whatever its type
+	 * @return
+	 */
 	public String getValue() {
-		return value;
+		switch (type) {
+		case DOUBLE:
+			return Double.toString(doubleValue);
+		case LONG:
+			return Long.toString(longValue);
+		case BOOLEAN:
+			return Boolean.toString(booleanValue);
+		default:
+			return value;
+		}
+	}
+
+	public double getDoubleValue() {
+		return doubleValue;
+	}
+
+	public long getLongValue() {
+		return longValue;
+	}
+
+	public boolean getBooleanValue() {
+		return booleanValue;
+	}
+
+	/**
+	 * Returns the value boxed as it is stored into a document. The booleans
+	 * are stored as an Integer 1 or 0, so they do not collide with their 
+	 * placeholder, see {@link MongoManager#placeholder(ValueType, int)}.
+	 * @return
+	 */
+	public Object getTypedValue() {
+		switch (type) {
+		case DOUBLE:
+			return Double.valueOf(doubleValue);
+		case LONG:
+			return Long.valueOf(longValue);
+		case BOOLEAN:
+			return Integer.valueOf(booleanValue ? 1 : 0);
+		default:
+			return value;
+		}
 	}
 }
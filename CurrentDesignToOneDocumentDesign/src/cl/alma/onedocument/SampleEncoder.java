@@ -0,0 +1,433 @@
+package cl.alma.onedocument;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.BSONObject;
+import org.bson.io.OutputBuffer;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBEncoder;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBEncoder;
+
+/**
+ * SampleEncoder writes the upsert of one or several samples of a document
+ * straight into the buffer of the driver's message, without building the
+ * BasicDBObject graph of the query and of the "$set" operation. The
+ * objects returned by {@link #query(List)} and {@link #update(List, boolean)}
+ * only hold the samples; the names of the 86400 "hourly.H.M.S" fields are
+ * encoded once when the class is loaded. <br/>
+ * The query only matches the "_id", the metadata is written when the 
+ * document is created, by its preallocation or by "$setOnInsert" 
+ * (MongoDB 2.4 or later). <br/>
+ * Any other object is written by the default encoder, and the objects are
+ * expanded into BasicDBObjects when a backend reads their fields, so they
+ * can be used with every {@link StorageBackend}. The encoder has no state,
+ * the same instance is shared by all threads.
+ */
+public class SampleEncoder implements DBEncoder {
+
+	public static final SampleEncoder INSTANCE = new SampleEncoder();
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// BSON types
+	private static final byte DOUBLE = 0x01;
+	private static final byte STRING = 0x02;
+	private static final byte OBJECT = 0x03;
+	private static final byte NULL = 0x0A;
+	private static final byte INT32 = 0x10;
+	private static final byte INT64 = 0x12;
+
+	private static final int SECONDS_PER_DAY = 86400;
+	// The longest documents span a month, see Granularity
+	private static final int MAX_HOURS = 31*24;
+	// "hourly.23.59.59" and its terminating zero, the paths of the next
+	// days of a document are not in the table
+	private static final int PATH_WIDTH = 16;
+	private static final byte[] PATHS = new byte[SECONDS_PER_DAY*PATH_WIDTH];
+	private static final byte[] PATH_LENGTHS = new byte[SECONDS_PER_DAY];
+
+	static {
+		for (int second=0; second<SECONDS_PER_DAY; second++) {
+			byte[] path = ("hourly." + second/3600 + "." + second/60%60 + "." +
+					second%60).getBytes(UTF8);
+			System.arraycopy(path, 0, PATHS, second*PATH_WIDTH, path.length);
+			PATH_LENGTHS[second] = (byte) (path.length+1);
+		}
+	}
+
+	// Names of the fields with their terminating zero
+	private static final byte[] ID = cstring("_id");
+	private static final byte[] METADATA = cstring("metadata");
+	private static final byte[] DATE = cstring("date");
+	private static final byte[] ANTENNA = cstring("antenna");
+	private static final byte[] COMPONENT = cstring("component");
+	private static final byte[] PROPERTY = cstring("property");
+	private static final byte[] MONITOR_POINT = cstring("monitorPoint");
+	private static final byte[] LOCATION = cstring("location");
+	private static final byte[] SERIAL_NUMBER = cstring("serialNumber");
+	private static final byte[] INDEX = cstring("index");
+	private static final byte[] SAMPLE_TIME = cstring("sampleTime");
+	private static final byte[] SET = cstring("$set");
+	private static final byte[] SET_ON_INSERT = cstring("$setOnInsert");
+
+	private static final Set<String> QUERY_FIELDS = Collections.singleton("_id");
+	private static final Set<String> UPDATE_FIELDS = Collections.singleton("$set");
+	private static final Set<String> INSERT_FIELDS = Collections.unmodifiableSet(
+			new LinkedHashSet<String>(Arrays.asList("$set", "$setOnInsert")));
+
+	// Seconds already written by the current thread, see writeUpdate
+	private static final ThreadLocal<BitSet> written = new ThreadLocal<BitSet>() {
+		@Override
+		protected BitSet initialValue() {
+			return new BitSet(SECONDS_PER_DAY);
+		}
+	};
+
+	/**
+	 * Returns the query of the upsert of some samples of the same document,
+	 * its "_id" taken from the first sample
+	 *
+	 * @param samples
+	 * @return
+	 */
+	public static DBObject query(List<Sample> samples) {
+		return new SampleDocument(samples, false, false);
+	}
+
+	/**
+	 * Returns the "$set" operation of the values of some samples of the
+	 * same document. If several samples have the same second the last one
+	 * is written.
+	 *
+	 * @param samples
+	 * @param insertMetadata Adds the "metadata" of the first sample with 
+	 * "$setOnInsert", for the documents that may not exist
+	 * @return
+	 */
+	public static DBObject update(List<Sample> samples, boolean insertMetadata) {
+		return new SampleDocument(samples, true, insertMetadata);
+	}
+
+	@Override
+	public int writeObject(OutputBuffer buf, BSONObject o) {
+		if (!(o instanceof SampleDocument))
+			return new DefaultDBEncoder().writeObject(buf, o);
+
+		SampleDocument document = (SampleDocument) o;
+		return document.update ? 
+			writeUpdate(buf, document.samples, document.insertMetadata) :
+			writeQuery(buf, document.samples.get(0).getMetadata());
+	}
+
+	private static int writeQuery(OutputBuffer buf, Metadata metadata) {
+		int start = buf.getPosition();
+		buf.writeInt(0);
+		writeString(buf, ID, metadata.getDocumentID().toString());
+		return end(buf, start);
+	}
+
+	private static void writeMetadata(OutputBuffer buf, Metadata metadata) {
+		DocumentID id = metadata.getDocumentID();
+		buf.write(OBJECT);
+		buf.write(METADATA);
+		int start = buf.getPosition();
+		buf.writeInt(0);
+		writeString(buf, DATE, id.getStringDate());
+		writeString(buf, ANTENNA, id.getAntenna());
+		writeString(buf, COMPONENT, id.getComponent());
+		writeString(buf, PROPERTY, metadata.getProperty());
+		writeString(buf, MONITOR_POINT, id.getMonitorPoint());
+		writeString(buf, LOCATION, metadata.getLocation());
+		writeString(buf, SERIAL_NUMBER, metadata.getSerialNumber());
+		writeInt(buf, INDEX, metadata.getIndex());
+		writeInt(buf, SAMPLE_TIME, metadata.getSampleTime());
+		end(buf, start);
+	}
+
+	private static int writeUpdate(OutputBuffer buf, List<Sample> samples,
+			boolean insertMetadata) {
+		int start = buf.getPosition();
+		buf.writeInt(0);
+
+		buf.write(OBJECT);
+		buf.write(SET);
+		int setStart = buf.getPosition();
+		buf.writeInt(0);
+
+		if (samples.size()==1) {
+			writeValue(buf, samples.get(0));
+		} else {
+			// The fields of "$set" must be unique, the last sample of each
+			// second is written first
+			BitSet seconds = written.get();
+			try {
+				for (int i=samples.size()-1; i>=0; i--) {
+					Sample sample = samples.get(i);
+					int second = secondOfDocument(sample);
+					if (!seconds.get(second)) {
+						seconds.set(second);
+						writeValue(buf, sample);
+					}
+				}
+			} finally {
+				seconds.clear();
+			}
+		}
+
+		end(buf, setStart);
+
+		if (insertMetadata) {
+			buf.write(OBJECT);
+			buf.write(SET_ON_INSERT);
+			int insertStart = buf.getPosition();
+			buf.writeInt(0);
+			writeMetadata(buf, samples.get(0).getMetadata());
+			end(buf, insertStart);
+		}
+
+		return end(buf, start);
+	}
+
+	private static void writeValue(OutputBuffer buf, Sample sample) {
+		int second = secondOfDocument(sample);
+
+		switch (sample.getValueType()) {
+		case DOUBLE:
+			buf.write(DOUBLE);
+			writePath(buf, second);
+			buf.writeDouble(sample.getDoubleValue());
+			break;
+		case LONG:
+			buf.write(INT64);
+			writePath(buf, second);
+			buf.writeLong(sample.getLongValue());
+			break;
+		case BOOLEAN:
+			// Stored as int32, see MongoManager.placeholder
+			buf.write(INT32);
+			writePath(buf, second);
+			buf.writeInt(sample.getBooleanValue() ? 1 : 0);
+			break;
+		default:
+			String value = sample.getValue();
+			if (value==null) {
+				buf.write(NULL);
+				writePath(buf, second);
+			} else {
+				buf.write(STRING);
+				writePath(buf, second);
+				writeString(buf, value);
+			}
+		}
+	}
+
+	private static void writePath(OutputBuffer buf, int second) {
+		if (second<SECONDS_PER_DAY) {
+			buf.write(PATHS, second*PATH_WIDTH, PATH_LENGTHS[second]);
+		} else {
+			buf.write(path(second).getBytes(UTF8));
+			buf.write(0);
+		}
+	}
+
+	private static String path(int second) {
+		if (second<SECONDS_PER_DAY)
+			return new String(PATHS, second*PATH_WIDTH, PATH_LENGTHS[second]-1, UTF8);
+
+		return "hourly." + second/3600 + "." + second/60%60 + "." + second%60;
+	}
+
+	private static int secondOfDocument(Sample sample) {
+		int hour = sample.getHour();
+		int minute = sample.getMinute();
+		int second = sample.getSecond();
+		if (hour<0 || hour>=MAX_HOURS || minute<0 || minute>59 || second<0 || second>59)
+			throw new IllegalArgumentException("Invalid time of sample: "+
+					hour+":"+minute+":"+second);
+
+		return (hour*60 + minute)*60 + second;
+	}
+
+	private static void writeString(OutputBuffer buf, byte[] name, String value) {
+		if (value==null) {
+			buf.write(NULL);
+			buf.write(name);
+		} else {
+			buf.write(STRING);
+			buf.write(name);
+			writeString(buf, value);
+		}
+	}
+
+	private static void writeInt(OutputBuffer buf, byte[] name, int value) {
+		buf.write(INT32);
+		buf.write(name);
+		buf.writeInt(value);
+	}
+
+	/**
+	 * Writes the length, the UTF-8 bytes and the terminating zero of a
+	 * string. The ASCII strings are written without encoding them first.
+	 */
+	private static void writeString(OutputBuffer buf, String value) {
+		int length = value.length();
+		boolean ascii = true;
+		for (int i=0; i<length && ascii; i++)
+			ascii = value.charAt(i)<0x80;
+
+		if (ascii) {
+			buf.writeInt(length+1);
+			for (int i=0; i<length; i++)
+				buf.write(value.charAt(i));
+		} else {
+			byte[] bytes = value.getBytes(UTF8);
+			buf.writeInt(bytes.length+1);
+			buf.write(bytes);
+		}
+		buf.write(0);
+	}
+
+	/**
+	 * Writes the terminating zero of a document and its length at its start
+	 */
+	private static int end(OutputBuffer buf, int start) {
+		buf.write(0);
+		int size = buf.getPosition()-start;
+		buf.writeInt(start, size);
+		return size;
+	}
+
+	private static byte[] cstring(String name) {
+		byte[] bytes = name.getBytes(UTF8);
+		return Arrays.copyOf(bytes, bytes.length+1);
+	}
+
+	/**
+	 * Query or update of some samples. The driver only reads its keys, the
+	 * other backends read the BasicDBObject it expands into.
+	 */
+	private static final class SampleDocument implements DBObject {
+		private final List<Sample> samples;
+		private final boolean update;
+		private final boolean insertMetadata;
+		private BasicDBObject expanded;
+
+		SampleDocument(List<Sample> samples, boolean update, 
+				boolean insertMetadata) {
+			if (samples==null || samples.isEmpty())
+				throw new IllegalArgumentException("List of samples cannot be null or empty");
+
+			this.samples = samples;
+			this.update = update;
+			this.insertMetadata = insertMetadata;
+		}
+
+		private BasicDBObject expand() {
+			if (expanded!=null)
+				return expanded;
+
+			if (update) {
+				BasicDBObject sets = new BasicDBObject();
+				for (Sample sample : samples) {
+					sets.put(path(secondOfDocument(sample)), sample.getTypedValue());
+				}
+				expanded = new BasicDBObject("$set", sets);
+				if (insertMetadata) {
+					expanded.append("$setOnInsert", new BasicDBObject(
+							"metadata", metadata(samples.get(0).getMetadata())));
+				}
+			} else {
+				expanded = new BasicDBObject("_id", 
+						samples.get(0).getMetadata().getDocumentID().toString());
+			}
+			return expanded;
+		}
+
+		private static BasicDBObject metadata(Metadata metadata) {
+			DocumentID id = metadata.getDocumentID();
+			return new BasicDBObject()
+					.append("date", id.getStringDate())
+					.append("antenna", id.getAntenna())
+					.append("component", id.getComponent())
+					.append("property", metadata.getProperty())
+					.append("monitorPoint", id.getMonitorPoint())
+					.append("location", metadata.getLocation())
+					.append("serialNumber", metadata.getSerialNumber())
+					.append("index", metadata.getIndex())
+					.append("sampleTime", metadata.getSampleTime());
+		}
+
+		@Override
+		public Object get(String key) {
+			return expand().get(key);
+		}
+
+		@Override
+		public Set<String> keySet() {
+			if (!update)
+				return QUERY_FIELDS;
+			return insertMetadata ? INSERT_FIELDS : UPDATE_FIELDS;
+		}
+
+		@Override
+		public boolean containsField(String key) {
+			return keySet().contains(key);
+		}
+
+		@Deprecated
+		@Override
+		public boolean containsKey(String key) {
+			return containsField(key);
+		}
+
+		@SuppressWarnings("rawtypes")
+		@Override
+		public Map toMap() {
+			return ((BasicDBObject) expand().copy()).toMap();
+		}
+
+		@Override
+		public Object put(String key, Object v) {
+			throw new UnsupportedOperationException("The document of a sample is read only");
+		}
+
+		@Override
+		public void putAll(BSONObject o) {
+			throw new UnsupportedOperationException("The document of a sample is read only");
+		}
+
+		@SuppressWarnings("rawtypes")
+		@Override
+		public void putAll(Map m) {
+			throw new UnsupportedOperationException("The document of a sample is read only");
+		}
+
+		@Override
+		public Object removeField(String key) {
+			throw new UnsupportedOperationException("The document of a sample is read only");
+		}
+
+		@Override
+		public void markAsPartialObject() {
+		}
+
+		@Override
+		public boolean isPartialObject() {
+			return false;
+		}
+
+		@Override
+		public String toString() {
+			return expand().toString();
+		}
+	}
+}
@@ -0,0 +1,312 @@
+package cl.alma.onedocument;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * ScatterGatherQuery reads the documents of a date range that spans
+ * several monthly collections. The range is split into one sub-query per
+ * month, the sub-queries run at the same time in a bounded pool of
+ * threads, and each one reads ahead a few documents into its own buffer.
+ * <br/>
+ * The months are returned one after the other and the days of each month
+ * in order, so the result is a stream in time order: the documents of a
+ * day come before those of the next day, and a week or month document
+ * comes in its first day of the range, see {@link Granularity}. The
+ * latency of the query is the latency of the slowest month instead of the
+ * sum of the months. <br/>
+ * A result must be read to the end or closed, otherwise its sub-queries
+ * keep their threads waiting for a free place in their buffers.
+ */
+public class ScatterGatherQuery {
+
+	public static final int DEFAULT_READ_AHEAD = 16;
+	// Time to wait for a document before checking if the sub-query failed
+	private static final long POLL_TIMEOUT = 100;
+	// Marks the end of the documents of a month
+	private static final DBObject END = new BasicDBObject();
+
+	/**
+	 * Documents of a query in time order. The documents of the next months
+	 * are read while the current month is iterated.
+	 */
+	public static class Result implements Iterator<DBObject> {
+		private final List<BlockingQueue<DBObject>> buffers;
+		private final List<Future<Void>> subQueries;
+		private int current = 0;
+		private DBObject next = null;
+
+		private Result(List<BlockingQueue<DBObject>> buffers,
+				List<Future<Void>> subQueries) {
+			this.buffers = buffers;
+			this.subQueries = subQueries;
+		}
+
+		/**
+		 * @throws IllegalStateException If a sub-query failed or the thread
+		 * was interrupted
+		 */
+		@Override
+		public boolean hasNext() {
+			while (next==null && current<buffers.size()) {
+				DBObject document;
+				try {
+					document = take(current);
+				} catch (InterruptedException e) {
+					close();
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Interrupted while reading the documents", e);
+				}
+
+				if (document==END) {
+					current++;
+				} else {
+					next = document;
+				}
+			}
+			return next!=null;
+		}
+
+		@Override
+		public DBObject next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+
+			DBObject document = next;
+			next = null;
+			return document;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * Cancels the sub-queries that did not finish
+		 */
+		public void close() {
+			for (Future<Void> subQuery : subQueries) {
+				subQuery.cancel(true);
+			}
+			current = buffers.size();
+			next = null;
+		}
+
+		/**
+		 * Returns the next document of a month, or END once the sub-query
+		 * finished. If the sub-query failed its exception is thrown.
+		 */
+		private DBObject take(int month) throws InterruptedException {
+			BlockingQueue<DBObject> buffer = buffers.get(month);
+			Future<Void> subQuery = subQueries.get(month);
+			while (true) {
+				DBObject document = buffer.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+				if (document!=null)
+					return document;
+
+				if (subQuery.isDone()) {
+					// The last document may have been queued after the poll
+					document = buffer.poll();
+					if (document!=null)
+						return document;
+
+					try {
+						subQuery.get();
+					} catch (ExecutionException e) {
+						close();
+						throw new IllegalStateException("The query of a month failed",
+								e.getCause());
+					}
+					return END;
+				}
+			}
+		}
+	}
+
+	private final StorageBackend storage;
+	private final ExecutorService pool;
+	private final int readAhead;
+
+	/**
+	 * Instantiates a ScatterGatherQuery object
+	 *
+	 * @param storage Storage of the documents
+	 * @param threads Number of months read at the same time
+	 * @param readAhead Number of documents kept in memory by each month
+	 */
+	public ScatterGatherQuery(StorageBackend storage, int threads, int readAhead) {
+		if (threads<=0)
+			throw new IllegalArgumentException("The number of threads must be positive");
+		if (readAhead<=0)
+			throw new IllegalArgumentException("The read ahead must be positive");
+
+		this.storage = storage;
+		this.pool = Executors.newFixedThreadPool(threads);
+		this.readAhead = readAhead;
+	}
+
+	/**
+	 * Returns the pattern of the ids of some monitor points, i.e.,
+	 * ("DV", null, "POL_MON4") for the POL_MON4 of all the DV antennas
+	 *
+	 * @param antennaPrefix Prefix of the antennas, or null for all of them
+	 * @param component Component, or null for all of them
+	 * @param monitorPoint Monitor point, or null for all of them
+	 * @return
+	 */
+	public static Pattern idPattern(String antennaPrefix, String component,
+			String monitorPoint) {
+		StringBuilder suffixes = new StringBuilder();
+		for (Granularity granularity : Granularity.values()) {
+			if (granularity.getSuffix().length()>0) {
+				suffixes.append(suffixes.length()==0 ? "" : "|")
+						.append(Pattern.quote(granularity.getSuffix()));
+			}
+		}
+
+		String separator = DocumentID.SEPARATOR;
+		String any = "[^" + separator + "]*";
+		return Pattern.compile("^[0-9]+(" + suffixes + ")?" + separator +
+				(antennaPrefix==null ? "" : Pattern.quote(antennaPrefix)) + any +
+				separator + (component==null ? any : Pattern.quote(component)) +
+				separator + (monitorPoint==null ? any : Pattern.quote(monitorPoint)) +
+				"$");
+	}
+
+	/**
+	 * Returns the documents of some monitor points in a range of days, see
+	 * {@link #idPattern(String, String, String)}
+	 *
+	 * @param from First day
+	 * @param to Last day, inclusive
+	 * @param antennaPrefix Prefix of the antennas, or null for all of them
+	 * @param component Component, or null for all of them
+	 * @param monitorPoint Monitor point, or null for all of them
+	 * @return
+	 */
+	public Result find(Date from, Date to, String antennaPrefix,
+			String component, String monitorPoint) {
+		return find(from, to, idPattern(antennaPrefix, component, monitorPoint));
+	}
+
+	/**
+	 * Returns the documents whose ids contain a pattern in a range of days
+	 *
+	 * @param from First day
+	 * @param to Last day, inclusive
+	 * @param idPattern Pattern of the ids, it should begin with "^" and the
+	 * date, see {@link DocumentID#toString()}
+	 * @return
+	 */
+	public Result find(Date from, Date to, Pattern idPattern) {
+		Calendar start = Calendar.getInstance();
+		start.setTime(from);
+		Calendar end = Calendar.getInstance();
+		end.setTime(to);
+		clearTime(end);
+
+		List<BlockingQueue<DBObject>> buffers = new ArrayList<BlockingQueue<DBObject>>();
+		List<Future<Void>> subQueries = new ArrayList<Future<Void>>();
+		int firstDay = start.get(Calendar.DAY_OF_MONTH);
+		// The months are compared at midnight, the time of the last day 
+		// must not leave its month out
+		Calendar month = (Calendar) start.clone();
+		month.set(Calendar.DAY_OF_MONTH, 1);
+		clearTime(month);
+		// The sub-queries are submitted in order, so the pool starts the
+		// month being read before the next ones
+		while (!month.after(end)) {
+			int year = month.get(Calendar.YEAR);
+			int monthOfYear = month.get(Calendar.MONTH);
+			int lastDay = month.getActualMaximum(Calendar.DAY_OF_MONTH);
+			if (year==end.get(Calendar.YEAR) && monthOfYear==end.get(Calendar.MONTH))
+				lastDay = end.get(Calendar.DAY_OF_MONTH);
+
+			BlockingQueue<DBObject> buffer = new ArrayBlockingQueue<DBObject>(readAhead);
+			buffers.add(buffer);
+			subQueries.add(pool.submit(new MonthQuery(year, monthOfYear+1,
+					firstDay, lastDay, idPattern, buffer)));
+
+			firstDay = 1;
+			month.add(Calendar.MONTH, 1);
+		}
+		return new Result(buffers, subQueries);
+	}
+
+	private static void clearTime(Calendar calendar) {
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+	}
+
+	/**
+	 * Stops the threads, the results that were not read are lost
+	 */
+	public void close() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Sub-query of the days of a month, it reads the days in order
+	 */
+	private class MonthQuery implements Callable<Void> {
+		private final int year;
+		private final int month;
+		private final int firstDay;
+		private final int lastDay;
+		private final Pattern idPattern;
+		private final BlockingQueue<DBObject> buffer;
+
+		MonthQuery(int year, int month, int firstDay, int lastDay,
+				Pattern idPattern, BlockingQueue<DBObject> buffer) {
+			this.year = year;
+			this.month = month;
+			this.firstDay = firstDay;
+			this.lastDay = lastDay;
+			this.idPattern = idPattern;
+			this.buffer = buffer;
+		}
+
+		@Override
+		public Void call() throws InterruptedException {
+			for (int day=firstDay; day<=lastDay; day++) {
+				// The first day includes the documents that began before it
+				List<String> prefixes = day==firstDay ?
+						DocumentID.dayPrefixes(year, month, day) :
+						DocumentID.startPrefixes(year, month, day);
+
+				Iterator<DBObject> documents = storage.findDocuments(year, month,
+						prefixes, idPattern);
+				try {
+					while (documents.hasNext()) {
+						buffer.put(documents.next());
+					}
+				} finally {
+					if (documents instanceof DBCursor)
+						((DBCursor) documents).close();
+				}
+			}
+			buffer.put(END);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,537 @@
+package cl.alma.onedocument;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.DefaultDBEncoder;
+
+/**
+ * SegmentArchive keeps the documents of a closed monthly collection in 
+ * local files. The documents are stored as individually compressed BSON 
+ * records in segment files ("name_N.seg") and an index file ("name.idx") 
+ * maps each _id, in ascending order, to its segment and offset. <br/>
+ * The index file is written last, after the segments are synced to disk, 
+ * so an archive is complete only when it exists. The reads keep a sparse index in memory and only scan a small 
+ * block of the index file. This class is thread safe for reads.
+ * 
+ * @see MonthArchiver
+ */
+public class SegmentArchive {
+
+	public static final int DEFAULT_SEGMENT_SIZE = 256*1024*1024;
+
+	private static final int MAGIC = 0x4d444152;
+	private static final int SPARSE_STRIDE = 128;
+
+	private final File directory;
+	private final String name;
+	private final FileChannel[] segments;
+	private final RandomAccessFile index;
+	private final int count;
+
+	// Every SPARSE_STRIDE-th id of the index and its position in the file
+	private final List<String> sparseIds = new ArrayList<String>();
+	private final List<Long> sparsePositions = new ArrayList<Long>();
+
+	/**
+	 * Returns true if a complete archive exists
+	 * 
+	 * @param directory Directory of the archive
+	 * @param name Archive name, i.e., the collection name
+	 * @return
+	 */
+	public static boolean exists(File directory, String name) {
+		return new File(directory, name+".idx").isFile();
+	}
+
+	/**
+	 * Opens a complete archive
+	 * 
+	 * @param directory Directory of the archive
+	 * @param name Archive name, i.e., the collection name
+	 * @throws IOException
+	 */
+	public SegmentArchive(File directory, String name) throws IOException {
+		this.directory = directory;
+		this.name = name;
+		this.index = new RandomAccessFile(new File(directory, name+".idx"), "r");
+
+		if (index.readInt()!=MAGIC)
+			throw new IOException("Not an archive index: "+name);
+
+		int numSegments = index.readInt();
+		this.count = index.readInt();
+		this.segments = new FileChannel[numSegments];
+		for (int i=0; i<numSegments; i++) {
+			segments[i] = new RandomAccessFile(segmentFile(directory, name, i), 
+					"r").getChannel();
+		}
+
+		// Building the sparse index
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(new File(directory, name+".idx"))));
+		try {
+			in.skipBytes(12);
+			long position = 12;
+			for (int i=0; i<count; i++) {
+				String id = in.readUTF();
+				if (i % SPARSE_STRIDE==0) {
+					sparseIds.add(id);
+					sparsePositions.add(position);
+				}
+				in.skipBytes(16);
+				position += 2 + utfLength(id) + 16;
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Returns the number of archived documents
+	 * @return
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns true if the document is archived
+	 * 
+	 * @param id Document id
+	 * @return
+	 * @throws IOException
+	 */
+	public boolean contains(String id) throws IOException {
+		return lookup(id)!=null;
+	}
+
+	/**
+	 * Returns an archived document or null if it does not exist
+	 * 
+	 * @param id Document id
+	 * @return
+	 * @throws IOException
+	 */
+	public DBObject findOne(String id) throws IOException {
+		long[] entry = lookup(id);
+		if (entry==null)
+			return null;
+
+		return new DefaultDBDecoder().decode(inflate(read(entry)), 
+				(DBCollection) null);
+	}
+
+	/**
+	 * Reads every document of the archive, in index order, and returns a 
+	 * checksum of the ids and the BSON bytes. It is equal to 
+	 * {@link Writer#getChecksum()} only if every document can be read back
+	 * as it was appended.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public long checksum() throws IOException {
+		CRC32 checksum = new CRC32();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(new File(directory, name+".idx"))));
+		try {
+			in.skipBytes(12);
+			for (int i=0; i<count; i++) {
+				String id = in.readUTF();
+				long[] entry = {in.readInt(), in.readLong(), in.readInt()};
+				update(checksum, id, inflate(read(entry)));
+			}
+		} finally {
+			in.close();
+		}
+		return checksum.getValue();
+	}
+
+	/**
+	 * Returns the archived ids that begin with a prefix, in ascending order
+	 * 
+	 * @param prefix
+	 * @return
+	 * @throws IOException
+	 */
+	public List<String> findIds(String prefix) throws IOException {
+		List<String> ids = new ArrayList<String>();
+		if (count==0)
+			return ids;
+
+		int block = Collections.binarySearch(sparseIds, prefix);
+		if (block<0)
+			block = Math.max(0, -block - 2);
+
+		synchronized (index) {
+			index.seek(sparsePositions.get(block));
+			for (int i=block*SPARSE_STRIDE; i<count; i++) {
+				String id = index.readUTF();
+				index.skipBytes(16);
+				if (id.startsWith(prefix)) {
+					ids.add(id);
+				} else if (id.compareTo(prefix)>0) {
+					break;
+				}
+			}
+		}
+		return ids;
+	}
+
+	public void close() throws IOException {
+		index.close();
+		for (FileChannel segment : segments) {
+			segment.close();
+		}
+	}
+
+	/**
+	 * Returns the compressed record of an index entry
+	 */
+	private byte[] read(long[] entry) throws IOException {
+		ByteBuffer compressed = ByteBuffer.allocate((int) entry[2]);
+		FileChannel segment = segments[(int) entry[0]];
+		long position = entry[1];
+		while (compressed.hasRemaining()) {
+			int read = segment.read(compressed, position + compressed.position());
+			if (read<0)
+				throw new EOFException("Truncated segment in "+name);
+		}
+		return compressed.array();
+	}
+
+	/**
+	 * Returns {segment, offset, length} of a document or null
+	 */
+	private long[] lookup(String id) throws IOException {
+		int block = Collections.binarySearch(sparseIds, id);
+		if (block<0)
+			block = -block - 2;
+		if (block<0)
+			return null;
+
+		synchronized (index) {
+			index.seek(sparsePositions.get(block));
+			int last = Math.min(count, (block + 1)*SPARSE_STRIDE);
+			for (int i=block*SPARSE_STRIDE; i<last; i++) {
+				int comparison = index.readUTF().compareTo(id);
+				if (comparison==0) {
+					return new long[] {index.readInt(), index.readLong(), 
+							index.readInt()};
+				} else if (comparison>0) {
+					return null;
+				}
+				index.skipBytes(16);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the BSON bytes of a compressed record
+	 */
+	private static byte[] inflate(byte[] compressed) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(compressed, 4, compressed.length - 4);
+			byte[] bytes = new byte[ByteBuffer.wrap(compressed).getInt()];
+			int offset = 0;
+			while (offset<bytes.length && !inflater.finished()) {
+				int inflated = inflater.inflate(bytes, offset, bytes.length - offset);
+				if (inflated==0 && inflater.needsInput())
+					throw new IOException("Truncated record in archive");
+				offset += inflated;
+			}
+			if (offset<bytes.length)
+				throw new IOException("Truncated record in archive");
+			return bytes;
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupted record: "+e.getMessage());
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static void update(CRC32 checksum, String id, byte[] bytes) 
+			throws IOException {
+		checksum.update(id.getBytes("UTF-8"));
+		checksum.update(bytes);
+	}
+
+	/**
+	 * Flushes a stream and forces its file to disk before closing it
+	 */
+	private static void syncAndClose(OutputStream out, FileOutputStream file) 
+			throws IOException {
+		try {
+			out.flush();
+			file.getFD().sync();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Forces the entries of a directory to disk, so a renamed file survives
+	 * a crash. It needs java.nio.file (Java 7), on older JVMs it does nothing.
+	 */
+	private static void syncDirectory(File directory) {
+		try {
+			Class<?> pathClass = Class.forName("java.nio.file.Path");
+			Class<?> optionClass = Class.forName("java.nio.file.OpenOption");
+			Object options = Array.newInstance(optionClass, 1);
+			Array.set(options, 0, Class.forName("java.nio.file.StandardOpenOption")
+					.getField("READ").get(null));
+			Object path = File.class.getMethod("toPath").invoke(directory);
+
+			FileChannel channel = (FileChannel) FileChannel.class.getMethod("open",
+					pathClass, options.getClass()).invoke(null, path, options);
+			try {
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		} catch (Exception e) {
+			// Not supported by the JVM or the file system
+		}
+	}
+
+	private static File segmentFile(File directory, String name, int number) {
+		return new File(directory, name+"_"+number+".seg");
+	}
+
+	private static int utfLength(String s) {
+		int length = 0;
+		for (int i=0; i<s.length(); i++) {
+			char c = s.charAt(i);
+			if (c>=0x0001 && c<=0x007F)
+				length++;
+			else if (c>0x07FF)
+				length += 3;
+			else
+				length += 2;
+		}
+		return length;
+	}
+
+	/**
+	 * Writes a new archive. The documents must be appended in ascending 
+	 * order of _id.
+	 */
+	public static class Writer {
+
+		private final File directory;
+		private final String name;
+		private final int segmentSize;
+		private final File indexTemp;
+		private final DataOutputStream index;
+		private final DefaultDBEncoder encoder = new DefaultDBEncoder();
+		private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		private final CRC32 checksum = new CRC32();
+		private byte[] buffer = new byte[64*1024];
+
+		private FileOutputStream segmentStream;
+		private BufferedOutputStream segment;
+		private int segmentNumber = -1;
+		private long segmentOffset;
+		private int count = 0;
+		private String lastId = null;
+
+		/**
+		 * Instantiates a Writer object using segments of 
+		 * {@link SegmentArchive#DEFAULT_SEGMENT_SIZE} bytes
+		 * 
+		 * @param directory Directory of the archive
+		 * @param name Archive name, i.e., the collection name
+		 * @throws IOException
+		 */
+		public Writer(File directory, String name) throws IOException {
+			this(directory, name, DEFAULT_SEGMENT_SIZE);
+		}
+
+		/**
+		 * Instantiates a Writer object
+		 * 
+		 * @param directory Directory of the archive
+		 * @param name Archive name, i.e., the collection name
+		 * @param segmentSize Maximum size in bytes of a segment file
+		 * @throws IOException
+		 */
+		public Writer(File directory, String name, int segmentSize) 
+				throws IOException {
+
+			if (!directory.isDirectory() && !directory.mkdirs())
+				throw new IOException("Cannot create directory "+directory);
+			if (exists(directory, name))
+				throw new IOException("The archive already exists: "+name);
+
+			this.directory = directory;
+			this.name = name;
+			this.segmentSize = segmentSize;
+			this.indexTemp = new File(directory, name+".idx.tmp");
+			this.index = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(indexTemp)));
+		}
+
+		/**
+		 * Appends a document to the archive
+		 * 
+		 * @param document Document with a String _id
+		 * @throws IOException
+		 */
+		public void append(DBObject document) throws IOException {
+			String id = (String) document.get("_id");
+			if (lastId!=null && lastId.compareTo(id)>=0)
+				throw new IllegalArgumentException("Documents must be ordered by _id: "+id);
+
+			byte[] bytes = encoder.encode(document);
+
+			deflater.reset();
+			deflater.setInput(bytes);
+			deflater.finish();
+			int length = 4;
+			ByteBuffer.wrap(buffer).putInt(bytes.length);
+			while (!deflater.finished()) {
+				if (length==buffer.length) {
+					byte[] bigger = new byte[buffer.length*2];
+					System.arraycopy(buffer, 0, bigger, 0, length);
+					buffer = bigger;
+				}
+				length += deflater.deflate(buffer, length, buffer.length - length);
+			}
+
+			if (segment==null || segmentOffset + length > segmentSize) {
+				nextSegment();
+			}
+
+			segment.write(buffer, 0, length);
+			update(checksum, id, bytes);
+
+			// Index temp entries, the header is written in finish()
+			index.writeUTF(id);
+			index.writeInt(segmentNumber);
+			index.writeLong(segmentOffset);
+			index.writeInt(length);
+
+			segmentOffset += length;
+			lastId = id;
+			count++;
+		}
+
+		public int getCount() {
+			return count;
+		}
+
+		/**
+		 * Returns the checksum of the appended ids and documents, 
+		 * see {@link SegmentArchive#checksum()}
+		 * @return
+		 */
+		public long getChecksum() {
+			return checksum.getValue();
+		}
+
+		/**
+		 * Syncs the segments and the index to disk, and then makes the 
+		 * archive visible
+		 * 
+		 * @throws IOException
+		 */
+		public void finish() throws IOException {
+			if (segment!=null)
+				syncAndClose(segment, segmentStream);
+			index.close();
+			deflater.end();
+
+			// Final index: header followed by the entries
+			File indexFile = new File(directory, name+".idx.part");
+			FileOutputStream indexStream = new FileOutputStream(indexFile);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					indexStream));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(indexTemp)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(segmentNumber + 1);
+				out.writeInt(count);
+				byte[] copy = new byte[64*1024];
+				int read;
+				while ((read = in.read(copy))>0) {
+					out.write(copy, 0, read);
+				}
+			} finally {
+				in.close();
+				syncAndClose(out, indexStream);
+			}
+
+			// The new segment files must be in the directory before the 
+			// index that makes them visible, and the index after it
+			syncDirectory(directory);
+			indexTemp.delete();
+			if (!indexFile.renameTo(new File(directory, name+".idx")))
+				throw new IOException("Cannot create the index of "+name);
+			syncDirectory(directory);
+		}
+
+		/**
+		 * Deletes the files of an unfinished archive
+		 */
+		public void abort() {
+			try {
+				if (segment!=null)
+					segment.close();
+				index.close();
+			} catch (IOException e) {
+				// Nothing to do, the files are deleted anyway
+			}
+			deflater.end();
+
+			indexTemp.delete();
+			for (int i=0; i<=segmentNumber; i++) {
+				segmentFile(directory, name, i).delete();
+			}
+		}
+
+		private void nextSegment() throws IOException {
+			if (segment!=null)
+				syncAndClose(segment, segmentStream);
+
+			segmentNumber++;
+			segmentOffset = 0;
+			segmentStream = new FileOutputStream(segmentFile(directory, name, 
+					segmentNumber));
+			segment = new BufferedOutputStream(segmentStream, 64*1024);
+		}
+	}
+}
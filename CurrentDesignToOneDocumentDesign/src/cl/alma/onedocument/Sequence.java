@@ -0,0 +1,64 @@
+package cl.alma.onedocument;
+
+/**
+ * Sequence is a padded counter used to track the progress of the ring 
+ * buffer producer and of each one of its consumers. The padding keeps two 
+ * sequences that are used by different threads out of the same cache line.
+ * 
+ * @see RingBuffer
+ */
+public class Sequence {
+
+	public static final long INITIAL_VALUE = -1L;
+
+	// Padding before and after the value to avoid false sharing
+	protected long p1, p2, p3, p4, p5, p6, p7;
+	private volatile long value;
+	protected long p9, p10, p11, p12, p13, p14, p15;
+
+	/**
+	 * Instantiates a Sequence object starting in {@link #INITIAL_VALUE}
+	 */
+	public Sequence() {
+		this(INITIAL_VALUE);
+	}
+
+	/**
+	 * Instantiates a Sequence object with the given initial value
+	 * 
+	 * @param initialValue
+	 */
+	public Sequence(long initialValue) {
+		this.value = initialValue;
+	}
+
+	public long get() {
+		return value;
+	}
+
+	public void set(long value) {
+		this.value = value;
+	}
+
+	/**
+	 * Returns the minimum value of a group of sequences or the given default
+	 * value if the group is empty
+	 * 
+	 * @param sequences
+	 * @param minimum
+	 * @return
+	 */
+	public static long getMinimum(Sequence[] sequences, long minimum) {
+		for (Sequence sequence : sequences) {
+			long value = sequence.get();
+			if (value<minimum)
+				minimum = value;
+		}
+		return minimum;
+	}
+
+	@Override
+	public String toString() {
+		return Long.toString(value);
+	}
+}
@@ -0,0 +1,110 @@
+package cl.alma.onedocument;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * SequenceBarrier is used by a consumer of the ring buffer to wait until a 
+ * sequence has been published by the producer and processed by all the 
+ * stages it depends on. <br/>
+ * The barrier returns the highest sequence available, so a consumer can 
+ * read in one batch all slots published since its last read.
+ * 
+ * @see RingBuffer
+ */
+public class SequenceBarrier {
+
+	private static final int SPIN_TRIES = 100;
+	private static final int YIELD_TRIES = 100;
+	private static final long PARK_NANOS = 1000L;
+
+	private final Sequence cursor;
+	private final Sequence[] dependents;
+	private volatile boolean alerted = false;
+
+	/**
+	 * Instantiates a SequenceBarrier object
+	 * 
+	 * @param cursor Producer cursor
+	 * @param dependents Sequences of the stages that must process a slot
+	 * before this barrier releases it. It can be empty.
+	 */
+	SequenceBarrier(Sequence cursor, Sequence[] dependents) {
+		this.cursor = cursor;
+		this.dependents = dependents;
+	}
+
+	/**
+	 * Waits until the given sequence is available and returns the highest 
+	 * available sequence, that can be greater than the requested one.
+	 * 
+	 * @param sequence Sequence to wait for
+	 * @return The highest available sequence
+	 * @throws AlertException If the barrier was alerted while waiting
+	 */
+	public long waitFor(long sequence) throws AlertException {
+		int counter = SPIN_TRIES + YIELD_TRIES;
+		long available;
+
+		while ((available = getAvailable())<sequence) {
+			if (alerted)
+				throw AlertException.INSTANCE;
+
+			// Spin first, then yield and finally park the thread
+			if (counter>YIELD_TRIES) {
+				counter--;
+			} else if (counter>0) {
+				counter--;
+				Thread.yield();
+			} else {
+				LockSupport.parkNanos(PARK_NANOS);
+			}
+		}
+
+		return available;
+	}
+
+	/**
+	 * Returns the highest sequence that can be read through this barrier
+	 * @return
+	 */
+	public long getAvailable() {
+		return Sequence.getMinimum(dependents, cursor.get());
+	}
+
+	/**
+	 * Wakes up the consumer waiting on this barrier. Use it to stop a 
+	 * consumer.
+	 */
+	public void alert() {
+		alerted = true;
+	}
+
+	public void clearAlert() {
+		alerted = false;
+	}
+
+	public boolean isAlerted() {
+		return alerted;
+	}
+
+	/**
+	 * Thrown by {@link SequenceBarrier#waitFor(long)} when the barrier has 
+	 * been alerted. A single instance is used because the stack trace is 
+	 * not meaningful.
+	 */
+	public static final class AlertException extends Exception {
+
+		private static final long serialVersionUID = 1L;
+
+		public static final AlertException INSTANCE = new AlertException();
+
+		private AlertException() {
+			super("Barrier alerted", null);
+		}
+
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+}
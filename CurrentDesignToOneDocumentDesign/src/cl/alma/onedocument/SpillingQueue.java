@@ -0,0 +1,408 @@
+package cl.alma.onedocument;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.DefaultDBEncoder;
+
+/**
+ * SpillingQueue is the handoff between {@link Query} and the 
+ * {@link MongoManager} consumers when the cluster may fall behind. <br/>
+ * The records are kept in a bounded in-memory queue while there is room. 
+ * When it is full, the excess records are appended as BSON to memory-mapped 
+ * segment files in a local directory, so the producer never blocks. A 
+ * replay thread moves the spilled records back to the memory queue, in the 
+ * same order, as soon as the consumers catch up. Each segment file is 
+ * unmapped and deleted once it has been replayed. <br/>
+ * The spilled records do not survive a restart of the JVM.
+ */
+public class SpillingQueue extends AbstractQueue<DBObject> 
+		implements BlockingQueue<DBObject> {
+
+	private static final Logger log = Logger.getLogger(SpillingQueue.class);
+
+	public static final int DEFAULT_SEGMENT_SIZE = 64*1024*1024;
+
+	private final LinkedBlockingQueue<DBObject> memory;
+	private final File directory;
+	private final int segmentSize;
+
+	// Guarded by this: spilled segments and number of spilled records that 
+	// have not reached the memory queue yet
+	private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+	private long pending = 0;
+	private int segmentNumber = 0;
+
+	private final DefaultDBEncoder encoder = new DefaultDBEncoder();
+	private final DefaultDBDecoder decoder = new DefaultDBDecoder();
+	private final Thread replayThread;
+	private volatile boolean closed = false;
+
+	private final AtomicLong spilled = new AtomicLong();
+	private final AtomicLong replayed = new AtomicLong();
+
+	/**
+	 * Instantiates a SpillingQueue object using segments of 
+	 * {@link #DEFAULT_SEGMENT_SIZE} bytes
+	 * 
+	 * @param capacity Capacity of the in-memory queue
+	 * @param directory Directory of the segment files
+	 */
+	public SpillingQueue(int capacity, File directory) {
+		this(capacity, directory, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Instantiates a SpillingQueue object
+	 * 
+	 * @param capacity Capacity of the in-memory queue
+	 * @param directory Directory of the segment files
+	 * @param segmentSize Size in bytes of each segment file
+	 */
+	public SpillingQueue(int capacity, File directory, int segmentSize) {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IllegalArgumentException("Cannot create directory "+directory);
+
+		this.memory = new LinkedBlockingQueue<DBObject>(capacity);
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+
+		this.replayThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				replay();
+			}
+		}, "SpillingQueue_replay");
+		this.replayThread.setDaemon(true);
+		this.replayThread.start();
+	}
+
+	/**
+	 * Adds a record without blocking. If the memory queue is full, or there
+	 * are older records on disk, the record is spilled.
+	 */
+	@Override
+	public boolean offer(DBObject object) {
+		if (object==null)
+			throw new NullPointerException();
+		if (closed)
+			throw new IllegalStateException("Queue closed");
+
+		byte[] bytes;
+		synchronized (this) {
+			if (pending==0 && memory.offer(object))
+				return true;
+
+			// The encoding is done under the lock because the encoder 
+			// is not thread safe
+			bytes = encoder.encode(object);
+			try {
+				append(bytes);
+			} catch (IOException e) {
+				throw new IllegalStateException("Cannot spill the record", e);
+			}
+			pending++;
+			notifyAll();
+		}
+		spilled.incrementAndGet();
+		return true;
+	}
+
+	@Override
+	public void put(DBObject object) {
+		offer(object);
+	}
+
+	/**
+	 * Waits up to the timeout for room in the memory queue, so a short stall
+	 * of the consumers does not reach the disk, and then spills the record.
+	 * If there are records on disk they are older, so the record is spilled
+	 * at once.
+	 */
+	@Override
+	public boolean offer(DBObject object, long timeout, TimeUnit unit) 
+			throws InterruptedException {
+		if (object==null)
+			throw new NullPointerException();
+		if (closed)
+			throw new IllegalStateException("Queue closed");
+
+		boolean spilling;
+		synchronized (this) {
+			spilling = pending>0;
+		}
+		if (!spilling && memory.offer(object, timeout, unit))
+			return true;
+
+		return offer(object);
+	}
+
+	@Override
+	public DBObject take() throws InterruptedException {
+		return memory.take();
+	}
+
+	@Override
+	public DBObject poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return memory.poll(timeout, unit);
+	}
+
+	@Override
+	public DBObject poll() {
+		return memory.poll();
+	}
+
+	@Override
+	public DBObject peek() {
+		return memory.peek();
+	}
+
+	/**
+	 * Returns the number of records in memory and on disk
+	 */
+	@Override
+	public synchronized int size() {
+		return (int) Math.min(Integer.MAX_VALUE, memory.size() + pending);
+	}
+
+	/**
+	 * Iterates only the records that are in memory
+	 */
+	@Override
+	public Iterator<DBObject> iterator() {
+		return memory.iterator();
+	}
+
+	/**
+	 * Returns the number of records that can be added before they are 
+	 * spilled to disk, the records are never rejected
+	 */
+	@Override
+	public synchronized int remainingCapacity() {
+		return pending>0 ? 0 : memory.remainingCapacity();
+	}
+
+	@Override
+	public int drainTo(Collection<? super DBObject> c) {
+		return memory.drainTo(c);
+	}
+
+	@Override
+	public int drainTo(Collection<? super DBObject> c, int maxElements) {
+		return memory.drainTo(c, maxElements);
+	}
+
+	/**
+	 * Returns the number of records spilled to disk since the creation
+	 * @return
+	 */
+	public long getSpilledCount() {
+		return spilled.get();
+	}
+
+	/**
+	 * Returns the number of records replayed from disk since the creation
+	 * @return
+	 */
+	public long getReplayedCount() {
+		return replayed.get();
+	}
+
+	/**
+	 * Returns the number of records that are waiting on disk
+	 * @return
+	 */
+	public synchronized long getPendingCount() {
+		return pending;
+	}
+
+	/**
+	 * Stops the replay thread and deletes the segment files. The records 
+	 * that are still on disk are lost.
+	 */
+	public void close() {
+		closed = true;
+		replayThread.interrupt();
+		try {
+			replayThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		synchronized (this) {
+			while (!segments.isEmpty()) {
+				segments.poll().delete();
+			}
+		}
+	}
+
+	/**
+	 * Appends a record to the last segment, creating a new one if it does 
+	 * not fit. Must be called holding the lock.
+	 */
+	private void append(byte[] bytes) throws IOException {
+		Segment segment = segments.peekLast();
+		if (segment==null || !segment.hasRoom(bytes.length)) {
+			segment = new Segment(new File(directory, "spill_"+(segmentNumber++)+".seg"),
+					Math.max(segmentSize, bytes.length+4));
+			segments.add(segment);
+		}
+		segment.write(bytes);
+	}
+
+	/**
+	 * Moves the spilled records to the memory queue. The record is read
+	 * holding the lock, but the blocking put is done without it. If the put
+	 * is interrupted while the queue is open, the same record is put again.
+	 */
+	private void replay() {
+		DBObject next = null;
+		while (!closed) {
+			try {
+				if (next==null) {
+					byte[] bytes;
+					synchronized (this) {
+						while (pending==0)
+							wait();
+
+						Segment segment = segments.peek();
+						if (segment==null) {
+							log.error("Lost "+pending+" spilled records, there are no segments");
+							pending = 0;
+							continue;
+						}
+						bytes = segment.read();
+
+						// Once all its records have been read, the segment is 
+						// deleted. If it was the one being written, the next 
+						// spilled record creates a new segment.
+						if (segment.isExhausted())
+							segments.poll().delete();
+					}
+
+					try {
+						next = decoder.decode(bytes, (DBCollection) null);
+					} catch (RuntimeException e) {
+						// The record is dropped, it does not reach the memory
+						synchronized (this) {
+							pending--;
+						}
+						throw e;
+					}
+				}
+
+				memory.put(next);
+				next = null;
+				replayed.incrementAndGet();
+
+				synchronized (this) {
+					pending--;
+				}
+
+			} catch (InterruptedException e) {
+				if (closed)
+					return;
+			} catch (RuntimeException e) {
+				log.error("Exception caught replaying a record: "+e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Append-only memory-mapped segment file. The records are stored as 
+	 * a four byte length followed by the BSON bytes.
+	 */
+	private static class Segment {
+
+		private final File file;
+		private final MappedByteBuffer buffer;
+		private final ByteBuffer readBuffer;
+
+		Segment(File file, int size) throws IOException {
+			this.file = file;
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(size);
+				buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+				readBuffer = buffer.duplicate();
+			} finally {
+				// The mapping remains valid after closing the channel
+				raf.close();
+			}
+		}
+
+		boolean hasRoom(int length) {
+			return buffer.remaining() >= 4 + length;
+		}
+
+		void write(byte[] bytes) {
+			buffer.putInt(bytes.length);
+			buffer.put(bytes);
+		}
+
+		byte[] read() {
+			byte[] bytes = new byte[readBuffer.getInt()];
+			readBuffer.get(bytes);
+			return bytes;
+		}
+
+		boolean isExhausted() {
+			return readBuffer.position()==buffer.position();
+		}
+
+		/**
+		 * Unmaps and deletes the file, the segment must not be used after
+		 */
+		void delete() {
+			unmap(buffer);
+			if (!file.delete())
+				file.deleteOnExit();
+		}
+
+		/**
+		 * Releases the mapping now instead of waiting for the garbage 
+		 * collector. If the JVM does not allow it, the collector releases it.
+		 */
+		private static void unmap(MappedByteBuffer buffer) {
+			try {
+				try {
+					// Java 9 and later
+					Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+					Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", 
+							ByteBuffer.class);
+					Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+					theUnsafe.setAccessible(true);
+					invokeCleaner.invoke(theUnsafe.get(null), buffer);
+				} catch (NoSuchMethodException e) {
+					// Java 8 and earlier
+					Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+					cleanerMethod.setAccessible(true);
+					Object cleaner = cleanerMethod.invoke(buffer);
+					if (cleaner!=null)
+						cleaner.getClass().getMethod("clean").invoke(cleaner);
+				}
+			} catch (Exception e) {
+				log.debug("Cannot unmap a segment: "+e);
+			}
+		}
+	}
+}
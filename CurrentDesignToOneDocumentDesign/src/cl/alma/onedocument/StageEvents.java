@@ -0,0 +1,209 @@
+package cl.alma.onedocument;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * StageEvents records the duration of each stage of the migration along
+ * with the document it worked on, so the pauses of the JVM and the lock
+ * contention can be matched with the stages. <br/>
+ * The events are sent to a {@link Listener}. When there is no listener
+ * the stages only read a volatile field. Use the system property
+ * "onedocument.stageEvents=true" to log every event into the "stage_log"
+ * logger, see etc/log4j.properties, and call {@link #close()} at the end
+ * of the migration to log the pending events.
+ */
+public final class StageEvents {
+
+	/**
+	 * Stages of the migration
+	 */
+	public enum Stage {
+		// A batch of the legacy cursor, it has no document
+		QUERY_FETCH,
+		// A record put into the queue, it has no document
+		QUEUE_HANDOFF,
+		// A record converted into a sample
+		TRANSFORM,
+		// A lookup of isDocumentCreated
+		EXISTS_LOOKUP,
+		// The insert of a preallocated or backfilled document
+		PREALLOCATE,
+		// The upsert of one or several samples
+		UPDATE,
+		// The creation of a collection with its index and shard key
+		COLLECTION_DDL
+	}
+
+	/**
+	 * Receives the events, it must be thread safe
+	 */
+	public interface Listener {
+		/**
+		 * @param stage
+		 * @param id Document id or null
+		 * @param start Start time from System.nanoTime()
+		 * @param duration Duration in nanoseconds
+		 */
+		void onEvent(Stage stage, DocumentID id, long start, long duration);
+	}
+
+	public static final String PROPERTY = "onedocument.stageEvents";
+
+	private static volatile Listener listener;
+
+	static {
+		if (Boolean.getBoolean(PROPERTY))
+			listener = new LoggingListener();
+	}
+
+	private StageEvents() {
+	}
+
+	/**
+	 * Sets the receiver of the events, null disables them
+	 * @param _listener
+	 */
+	public static void setListener(Listener _listener) {
+		listener = _listener;
+	}
+
+	/**
+	 * Disables the events and, if the listener is a {@link LoggingListener},
+	 * logs its pending events and stops its thread
+	 */
+	public static void close() {
+		Listener current = listener;
+		listener = null;
+		if (current instanceof LoggingListener)
+			((LoggingListener) current).close();
+	}
+
+	public static boolean isEnabled() {
+		return listener!=null;
+	}
+
+	/**
+	 * Returns the start time of a stage, or 0 if the events are disabled
+	 * @return
+	 */
+	public static long begin() {
+		return listener==null ? 0 : System.nanoTime();
+	}
+
+	/**
+	 * Records a stage that began at start, see {@link #begin()}
+	 *
+	 * @param stage
+	 * @param id Document id or null
+	 * @param start
+	 */
+	public static void end(Stage stage, DocumentID id, long start) {
+		Listener current = listener;
+		// The events were disabled when the stage began
+		if (current==null || start==0)
+			return;
+
+		current.onEvent(stage, id, start, System.nanoTime()-start);
+	}
+
+	/**
+	 * Logs each event as "stage document microseconds". The stages only
+	 * offer the event to a bounded queue and a daemon thread writes it to
+	 * the logger, so a slow disk never blocks the migration. When the queue
+	 * is full the events are dropped and counted.
+	 */
+	public static class LoggingListener implements Listener {
+
+		public static final int DEFAULT_CAPACITY = 65536;
+
+		private final Logger stageLog;
+		private final BlockingQueue<Event> events;
+		private final AtomicLong dropped = new AtomicLong();
+		private final Thread thread;
+
+		private static class Event {
+			final Stage stage;
+			final DocumentID id;
+			final long duration;
+
+			Event(Stage stage, DocumentID id, long duration) {
+				this.stage = stage;
+				this.id = id;
+				this.duration = duration;
+			}
+		}
+
+		public LoggingListener() {
+			this(Logger.getLogger("stage_log"), DEFAULT_CAPACITY);
+		}
+
+		/**
+		 * @param logger
+		 * @param capacity Events waiting to be logged
+		 */
+		public LoggingListener(Logger logger, int capacity) {
+			if (capacity<1)
+				throw new IllegalArgumentException("The capacity must be positive");
+
+			this.stageLog = logger;
+			this.events = new ArrayBlockingQueue<Event>(capacity);
+			thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (!Thread.currentThread().isInterrupted()) {
+						try {
+							log(events.take());
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+			}, "StageEvents");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		@Override
+		public void onEvent(Stage stage, DocumentID id, long start, long duration) {
+			if (!events.offer(new Event(stage, id, duration)))
+				dropped.incrementAndGet();
+		}
+
+		/**
+		 * Returns the number of events dropped because the queue was full
+		 */
+		public long getDroppedCount() {
+			return dropped.get();
+		}
+
+		/**
+		 * Stops the thread and logs the pending events
+		 */
+		public void close() {
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			List<Event> pending = new ArrayList<Event>();
+			events.drainTo(pending);
+			for (Event event : pending) {
+				log(event);
+			}
+			if (dropped.get()>0)
+				stageLog.warn(dropped.get() + " events dropped, the queue was full");
+		}
+
+		private void log(Event event) {
+			stageLog.info(event.stage + " " + event.id + " " + event.duration/1000);
+		}
+	}
+}
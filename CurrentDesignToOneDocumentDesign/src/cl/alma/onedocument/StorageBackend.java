@@ -0,0 +1,116 @@
+package cl.alma.onedocument;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.mongodb.DBObject;
+
+/**
+ * StorageBackend is the storage used by {@link MongoManager} to keep the 
+ * documents of the schema "One monitor point per day per document". <br/>
+ * The documents are grouped into monthly collections named 
+ * "monitorData_M_YYYY". The queries and updates use the same object format 
+ * of the MongoDB driver, so every backend has the same semantics.
+ * 
+ * @see MongoStorageBackend
+ * @see InMemoryStorageBackend
+ */
+public interface StorageBackend {
+
+	/**
+	 * Prefix of the monthly collections, the suffix is "M_YYYY"
+	 */
+	String COLLECTION_PREFIX = "monitorData_";
+
+	/**
+	 * Returns the name of the collection to which the document belongs. If 
+	 * the collection does not exist it is created along with its index.
+	 * 
+	 * @param id Document id
+	 * @return Collection name
+	 */
+	String getCollectionName(DocumentID id);
+
+	/**
+	 * Verifies if a document exists in its collection
+	 * 
+	 * @param id Document id
+	 * @return <i>true</i> if the document exist and <i>false</i> otherwise
+	 */
+	boolean isDocumentCreated(DocumentID id);
+
+	/**
+	 * Returns the ids of the documents that contain a day, including the
+	 * week and month documents, see {@link Granularity}. Only the ids are
+	 * read, and the collection is not created if it does not exist.
+	 * 
+	 * @param year
+	 * @param month Month, from 1 to 12
+	 * @param day
+	 * @return
+	 */
+	List<String> findDocumentIds(int year, int month, int day);
+
+	/**
+	 * Returns the documents that contain a day, including the week and 
+	 * month documents. They are read while iterating, so 
+	 * only a few of them are in memory at the same time. The collection is
+	 * not created if it does not exist.
+	 * 
+	 * @param year
+	 * @param month Month, from 1 to 12
+	 * @param day
+	 * @return
+	 */
+	Iterator<DBObject> findDocuments(int year, int month, int day);
+
+	/**
+	 * Returns the documents of a month whose ids begin with one of the 
+	 * prefixes and match a pattern, i.e., the documents of some monitor 
+	 * points that begin in a day, see 
+	 * {@link DocumentID#startPrefixes(int, int, int)}. They are read while
+	 * iterating, and the collection is not created if it does not exist.
+	 * 
+	 * @param year
+	 * @param month Month, from 1 to 12
+	 * @param prefixes Prefixes of the ids
+	 * @param idPattern Pattern that the ids must contain
+	 * @return
+	 */
+	Iterator<DBObject> findDocuments(int year, int month, List<String> prefixes,
+			Pattern idPattern);
+
+	/**
+	 * Returns a document or null if it does not exist
+	 * 
+	 * @param id Document id
+	 * @return
+	 */
+	DBObject findOne(DocumentID id);
+
+	/**
+	 * Inserts a new document, i.e., a preallocated document. If a document 
+	 * with the same id already exists the insert is ignored.
+	 * 
+	 * @param id Document id
+	 * @param document Document to insert
+	 */
+	void insert(DocumentID id, DBObject document);
+
+	/**
+	 * Applies an update to the document that matches the query. If there
+	 * is no document with that id a new one is created.
+	 * 
+	 * @param id Document id
+	 * @param query Query document, it must include the "_id" field
+	 * @param update Update document, i.e., a "$set" operation and the
+	 * "$setOnInsert" of the fields of a new document
+	 */
+	void upsert(DocumentID id, DBObject query, DBObject update);
+
+	/**
+	 * Releases the resources of the backend
+	 */
+	void close();
+}
@@ -0,0 +1,163 @@
+package cl.alma.onedocument;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import cl.alma.onedocument.StageEvents.Stage;
+
+/**
+ * Transform stage of the {@link RingPipeline}. It converts the legacy 
+ * fields of a {@link MonitorEvent} into the reusable sample of the same 
+ * slot, and assigns the slot to one of the writers by its document, so 
+ * the samples of a document are always upserted by the same writer. <br/>
+ * The parsed component names and the metadata of each monitor point are 
+ * cached, so a record of a known monitor point does not create new objects.
+ * This class must be used by a single thread.
+ */
+public class TransformHandler implements EventHandler<MonitorEvent> {
+
+	private static final Logger log = Logger.getLogger(TransformHandler.class);
+	private static final ErrorReporter errorReporter = new ErrorReporter(log);
+
+	private final Calendar calendar = Calendar.getInstance();
+	private final int numWriters;
+
+	// componentName -> {antenna, component}
+	private final Map<String, String[]> componentNames = 
+			new HashMap<String, String[]>();
+
+	// componentName -> monitorPointName -> last metadata
+	private final Map<String, Map<String, Metadata>> metadataCache = 
+			new HashMap<String, Map<String, Metadata>>();
+
+	/**
+	 * Instantiates a TransformHandler object for a single writer
+	 */
+	public TransformHandler() {
+		this(1);
+	}
+
+	/**
+	 * @param numWriters Number of writers of the write stage
+	 */
+	public TransformHandler(int numWriters) {
+		if (numWriters<1)
+			throw new IllegalArgumentException("At least one writer is needed");
+
+		this.numWriters = numWriters;
+	}
+
+	/**
+	 * Returns the ordinal of the writer of a document
+	 * @param documentID
+	 * @param numWriters
+	 * @return
+	 */
+	public static int getWriter(DocumentID documentID, int numWriters) {
+		return (documentID.toString().hashCode() & Integer.MAX_VALUE) % numWriters;
+	}
+
+	@Override
+	public void onEvent(MonitorEvent event, long sequence, boolean endOfBatch) {
+
+		// The export stage already reported the record
+		if (!event.isLoaded())
+			return;
+
+		if (event.getDate()==null || event.getComponentName()==null) {
+			errorReporter.report("Incomplete record", "sequence "+sequence);
+			return;
+		}
+
+		long start = StageEvents.begin();
+		calendar.setTime(event.getDate());
+
+		// Adding the three hours of difference with the mongo server
+		calendar.add(Calendar.HOUR, 3);
+
+		int year = calendar.get(Calendar.YEAR);
+		int month = calendar.get(Calendar.MONTH)+1;
+		int day = calendar.get(Calendar.DAY_OF_MONTH);
+
+		int hour = calendar.get(Calendar.HOUR_OF_DAY);
+		int minute = calendar.get(Calendar.MINUTE);
+		int second = calendar.get(Calendar.SECOND);
+
+		String[] names = componentNames.get(event.getComponentName());
+		if (names==null) {
+			names = MongoManager.splitComponentName(event.getComponentName());
+			componentNames.put(event.getComponentName(), names);
+		}
+
+		Metadata metadata = getMetadata(event, year, month, day, names[0],
+				names[1]);
+
+		// The hours of a document of several days continue after 23
+		Sample sample = event.getSample();
+		sample.setTime(metadata, 
+				hour + (day-metadata.getDocumentID().getDay())*24, minute, second);
+		sample.parseValue(event.getMonitorValue(), metadata.getValueType());
+		event.setWriter(numWriters>1 ? 
+				getWriter(metadata.getDocumentID(), numWriters) : 0);
+		event.setValid(true);
+		StageEvents.end(Stage.TRANSFORM, metadata.getDocumentID(), start);
+	}
+
+	/**
+	 * Returns the cached metadata of the monitor point if it matches the 
+	 * record, otherwise creates a new one and caches it.
+	 */
+	private Metadata getMetadata(MonitorEvent event, int year, int month,
+			int day, String antenna, String component) {
+
+		Map<String, Metadata> monitorPoints = 
+				metadataCache.get(event.getComponentName());
+		if (monitorPoints==null) {
+			monitorPoints = new HashMap<String, Metadata>();
+			metadataCache.put(event.getComponentName(), monitorPoints);
+		}
+
+		int index = toInt(event.getIndex());
+		Metadata metadata = monitorPoints.get(event.getMonitorPointName());
+
+		if (metadata!=null) {
+			DocumentID id = metadata.getDocumentID();
+			if (id.getDay()==id.getGranularity().getStartDay(day) 
+					&& id.getMonth()==month && id.getYear()==year
+					&& metadata.getIndex()==index
+					&& equals(metadata.getProperty(), event.getPropertyName())
+					&& equals(metadata.getLocation(), event.getLocation())
+					&& equals(metadata.getSerialNumber(), event.getSerialNumber())) {
+				return metadata;
+			}
+		}
+
+		int sampleTime = MongoManager.getSampleTime(antenna, component, 
+				event.getMonitorPointName());
+		DocumentID documentID = new DocumentID(year, month, day, antenna, 
+				component, event.getMonitorPointName(), 
+				Granularity.forSampleTime(sampleTime));
+		ValueType type = MongoManager.getValueType(antenna, component, 
+				event.getMonitorPointName(), event.getMonitorValue());
+		metadata = new Metadata(documentID, event.getPropertyName(),
+				event.getLocation(), event.getSerialNumber(), index,
+				sampleTime, type);
+		monitorPoints.put(event.getMonitorPointName(), metadata);
+
+		return metadata;
+	}
+
+	private static int toInt(Object index) {
+		if (index instanceof Number)
+			return ((Number) index).intValue();
+
+		return Integer.parseInt(index.toString());
+	}
+
+	private static boolean equals(String a, String b) {
+		return a==null ? b==null : a.equals(b);
+	}
+}
@@ -0,0 +1,89 @@
+package cl.alma.onedocument;
+
+/**
+ * Type of the value of a monitor point sample. The numeric and boolean 
+ * types are stored with their BSON type instead of text, so they have a 
+ * fixed size in the document and can be aggregated by the server. The 
+ * booleans are stored as int32, see {@link MongoManager#placeholder(ValueType, int)}.
+ */
+public enum ValueType {
+	DOUBLE, LONG, BOOLEAN, STRING;
+
+	/**
+	 * Infers the type of a value exported as text by the old schema. Only 
+	 * the text that Java prints for the value is converted, so the value 
+	 * prints back to the same text: "0012", "-0", "1.50" or "2.5E-3" are 
+	 * kept as strings, while "12", "1.5" or "2.5E-4" are converted.
+	 * 
+	 * @param value Value as text
+	 * @return The inferred type
+	 */
+	public static ValueType infer(String value) {
+		if (value==null || value.length()==0)
+			return STRING;
+
+		if (value.equals("true") || value.equals("false"))
+			return BOOLEAN;
+
+		int length = value.length();
+		int i = 0;
+		if (value.charAt(0)=='-')
+			i++;
+
+		// Integer part, without leading zeros
+		int start = i;
+		while (i<length && isDigit(value.charAt(i)))
+			i++;
+		int digits = i - start;
+		if (digits==0 || (digits>1 && value.charAt(start)=='0'))
+			return STRING;
+
+		if (i==length) {
+			// More than 18 digits may not fit into a long
+			if (digits>18)
+				return STRING;
+			return Long.toString(Long.parseLong(value)).equals(value) ? LONG : STRING;
+		}
+
+		// Fraction part
+		if (value.charAt(i)=='.') {
+			i++;
+			start = i;
+			while (i<length && isDigit(value.charAt(i)))
+				i++;
+			if (i==start)
+				return STRING;
+		}
+
+		// Exponent part
+		if (i<length && (value.charAt(i)=='e' || value.charAt(i)=='E')) {
+			i++;
+			if (i<length && (value.charAt(i)=='-' || value.charAt(i)=='+'))
+				i++;
+			start = i;
+			while (i<length && isDigit(value.charAt(i)))
+				i++;
+			if (i==start)
+				return STRING;
+		}
+
+		if (i!=length)
+			return STRING;
+		return Double.toString(Double.parseDouble(value)).equals(value) ? DOUBLE : STRING;
+	}
+
+	/**
+	 * Returns true if a value exported as text can be stored with this 
+	 * type without losing information, see {@link #infer(String)}
+	 * 
+	 * @param value Value as text
+	 * @return
+	 */
+	public boolean accepts(String value) {
+		return this==STRING || infer(value)==this;
+	}
+
+	private static boolean isDigit(char c) {
+		return c>='0' && c<='9';
+	}
+}
@@ -0,0 +1,90 @@
+package cl.alma.onedocumenttest;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import cl.alma.onedocument.ByteBoundedQueue;
+
+public class ByteBoundedQueueTest {
+
+	private static DBObject record(int n, int valueLength) {
+		StringBuilder value = new StringBuilder();
+		for (int i=0; i<valueLength; i++) {
+			value.append('x');
+		}
+		return new BasicDBObject("n", n).append("monitorValue", value.toString());
+	}
+
+	@Test
+	public void testBoundedByBytes() throws InterruptedException {
+		DBObject small = record(0, 10);
+		long size = ByteBoundedQueue.estimateSize(small);
+		assertTrue(ByteBoundedQueue.estimateSize(record(0, 1000))>size+1000);
+
+		ByteBoundedQueue queue = new ByteBoundedQueue(3*size);
+		assertEquals(Integer.MAX_VALUE, queue.remainingCapacity());
+		assertTrue(queue.offer(small));
+		assertTrue(queue.offer(record(1, 10)));
+		assertEquals(Integer.MAX_VALUE, queue.remainingCapacity());
+		assertTrue(queue.offer(record(2, 10)));
+		assertEquals(0, queue.remainingCapacity());
+		assertFalse(queue.offer(record(3, 10)));
+		assertFalse(queue.offer(record(3, 10), 10, TimeUnit.MILLISECONDS));
+		assertEquals(3*size, queue.getBytes());
+		assertEquals(2, queue.getRejectedCount());
+		assertEquals(1, queue.getBlockedCount());
+
+		assertEquals(0, queue.take().get("n"));
+		assertEquals(2*size, queue.getBytes());
+		assertTrue(queue.offer(record(3, 10)));
+		assertEquals(3*size, queue.getPeakBytes());
+		assertEquals(4, queue.getPutCount());
+	}
+
+	@Test
+	public void testLargeRecord() throws InterruptedException {
+		ByteBoundedQueue queue = new ByteBoundedQueue(100);
+		// A record larger than the capacity fits in the empty queue
+		assertTrue(queue.offer(record(0, 1000)));
+		assertEquals(0, queue.remainingCapacity());
+		assertFalse(queue.offer(record(1, 1)));
+		queue.take();
+		assertEquals(Integer.MAX_VALUE, queue.remainingCapacity());
+		assertEquals(0, queue.getBytes());
+		assertTrue(queue.offer(record(1, 1)));
+	}
+
+	@Test
+	public void testPutWaitsForConsumer() throws InterruptedException {
+		final ByteBoundedQueue queue = new ByteBoundedQueue(
+				ByteBoundedQueue.estimateSize(record(0, 100)));
+		queue.put(record(0, 100));
+
+		Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					queue.put(record(1, 100));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		producer.start();
+		producer.join(50);
+		assertTrue(producer.isAlive());
+		assertEquals(1, queue.size());
+
+		assertEquals(0, queue.take().get("n"));
+		assertEquals(1, queue.poll(5, TimeUnit.SECONDS).get("n"));
+		producer.join();
+		assertEquals(1, queue.getBlockedCount());
+		assertNull(queue.poll());
+	}
+}
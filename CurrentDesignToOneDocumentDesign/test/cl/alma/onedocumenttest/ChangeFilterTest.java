@@ -0,0 +1,62 @@
+package cl.alma.onedocumenttest;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import cl.alma.onedocument.ChangeFilter;
+import cl.alma.onedocument.DocumentID;
+import cl.alma.onedocument.Metadata;
+import cl.alma.onedocument.MongoManager;
+import cl.alma.onedocument.Sample;
+
+public class ChangeFilterTest {
+
+	private Metadata day1;
+	private Metadata day2;
+
+	@Before
+	public void setup() {
+		day1 = new Metadata(new DocumentID(2012, 9, 29, "DV10", "FrontEnd/Cryostat", 
+				"GATE_VALVE_STATE"), "p", "l", "s", 0, MongoManager.DEFAULT_PREALLOCATE_TIME);
+		day2 = new Metadata(new DocumentID(2012, 9, 30, "DV10", "FrontEnd/Cryostat", 
+				"GATE_VALVE_STATE"), "p", "l", "s", 0, MongoManager.DEFAULT_PREALLOCATE_TIME);
+	}
+
+	@Test
+	public void testOnlyChangesAndHeartbeat() {
+		ChangeFilter filter = new ChangeFilter(10);
+
+		boolean[] actual = new boolean[8];
+		actual[0] = filter.accept(new Sample(day1, 0, 0, 0, 1L));
+		actual[1] = filter.accept(new Sample(day1, 0, 0, 1, 1L));
+		actual[2] = filter.accept(new Sample(day1, 0, 0, 9, 1L));
+		actual[3] = filter.accept(new Sample(day1, 0, 0, 10, 1L)); // heartbeat
+		actual[4] = filter.accept(new Sample(day1, 0, 0, 11, 2L)); // change
+		actual[5] = filter.accept(new Sample(day1, 0, 0, 5, 2L));  // late
+		actual[6] = filter.accept(new Sample(day1, 0, 0, 12, 2.0)); // type change
+		actual[7] = filter.accept(new Sample(day2, 0, 0, 12, 2.0)); // new document
+
+		boolean[] expected = {true, false, false, true, true, true, true, true};
+		assertTrue(Arrays.equals(expected, actual));
+		assertEquals(6, filter.getAcceptedCount());
+		assertEquals(2, filter.getSuppressedCount());
+	}
+
+	@Test
+	public void testStringValues() {
+		ChangeFilter filter = new ChangeFilter();
+
+		assertTrue(filter.accept(new Sample(day1, 1, 0, 0, "OPEN")));
+		assertFalse(filter.accept(new Sample(day1, 1, 0, 1, "OPEN")));
+		assertTrue(filter.accept(new Sample(day1, 1, 0, 2, "CLOSED")));
+		assertEquals(2, filter.filter(Arrays.asList(
+				new Sample(day1, 1, 0, 3, "CLOSED"),
+				new Sample(day1, 1, 0, 4, "OPEN"),
+				new Sample(day1, 1, 0, 5, "OPEN"),
+				new Sample(day1, 1, 0, 6, "CLOSED"))).size());
+	}
+}
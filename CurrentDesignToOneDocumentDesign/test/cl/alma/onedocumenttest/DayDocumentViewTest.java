@@ -0,0 +1,129 @@
+package cl.alma.onedocumenttest;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import cl.alma.onedocument.DayDocumentView;
+import cl.alma.onedocument.DocumentID;
+import cl.alma.onedocument.InMemoryStorageBackend;
+import cl.alma.onedocument.Metadata;
+import cl.alma.onedocument.MongoManager;
+import cl.alma.onedocument.Sample;
+import cl.alma.onedocument.ValueType;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBEncoder;
+
+public class DayDocumentViewTest {
+
+	private static byte[] encode(DBObject object) {
+		return new DefaultDBEncoder().encode(object);
+	}
+
+	private static BasicDBObject hour(int minute, int second, Object value) {
+		return new BasicDBObject(Integer.toString(minute),
+				new BasicDBObject(Integer.toString(second), value));
+	}
+
+	@Test
+	public void testPreallocatedDocument() {
+		InMemoryStorageBackend storage = new InMemoryStorageBackend();
+		MongoManager.setStorage(storage);
+		MongoManager mongo = MongoManager.mongoManagerFactory(null);
+
+		DocumentID documentID = new DocumentID(2012, 8, 14, "DV10", "LLC",
+				"POL_MON4");
+		Metadata metadata = new Metadata(documentID, "POL_MON", "TFING",
+				"as76d6fh", 2, MongoManager.DEFAULT_PREALLOCATE_TIME);
+		mongo.upsert(Arrays.asList(new Sample(metadata, 0, 0, 0, 1.5),
+				new Sample(metadata, 13, 45, 7, 2.5),
+				new Sample(metadata, 23, 59, 59, 3.5)), true);
+		DBObject document = storage.findOne(documentID);
+
+		DayDocumentView view = new DayDocumentView(encode(document));
+		assertEquals(documentID.toString(), view.getId());
+		assertEquals(24, view.getHourCount());
+		assertEquals(2.5, view.getDouble(13, 45, 7), 0);
+		assertEquals(2.5, view.getValue(13, 45, 7));
+		// A preallocated second and a second out of the day
+		assertTrue(MongoManager.isPlaceholder(view.getValue(13, 45, 8)));
+		assertTrue(Double.isNaN(view.getDouble(13, 45, 8)));
+		assertNull(view.getValue(24, 0, 0));
+
+		double[] values = view.toDoubleArray();
+		assertEquals(DayDocumentView.SECONDS_PER_DAY, values.length);
+		assertEquals(1.5, values[0], 0);
+		assertEquals(2.5, values[(13*60 + 45)*60 + 7], 0);
+		assertEquals(3.5, values[DayDocumentView.SECONDS_PER_DAY-1], 0);
+		assertTrue(Double.isNaN(values[1]));
+
+		// The other fields are decoded when they are read
+		assertEquals(((DBObject) document.get("metadata")).toMap(),
+				((DBObject) view.get("metadata")).toMap());
+		assertEquals(document.keySet(), view.keySet());
+	}
+
+	@Test
+	public void testSeveralDays() {
+		BasicDBObject hourly = new BasicDBObject("0", hour(0, 0, 7L))
+				.append("30", hour(1, 2, 42))
+				.append("47", hour(59, 59, true))
+				.append("48", hour(0, 0, "señal"));
+		BasicDBObject document = new BasicDBObject("_id", "2012108W/DV10/LLC/POL_MON4")
+				.append("hourly", hourly);
+
+		DayDocumentView view = new DayDocumentView(encode(document));
+		assertEquals(49, view.getHourCount());
+		assertEquals(42, view.getValue(30, 1, 2));
+		assertEquals("señal", view.getValue(48, 0, 0));
+		assertTrue(Double.isNaN(view.getDouble(48, 0, 0)));
+
+		// The second day of the document
+		double[] values = view.toDoubleArray(24);
+		assertEquals(42.0, values[(6*60 + 1)*60 + 2], 0);
+		assertEquals(1.0, values[DayDocumentView.SECONDS_PER_DAY-1], 0);
+		assertTrue(Double.isNaN(values[0]));
+	}
+
+	@Test
+	public void testFalseIsNotPlaceholder() {
+		// The booleans are stored as int32
+		BasicDBObject hourly = new BasicDBObject("0", hour(0, 0, 0)
+				.append("1", new BasicDBObject("0", MongoManager.placeholder(
+						ValueType.BOOLEAN, 0))));
+		DayDocumentView view = new DayDocumentView(encode(
+				new BasicDBObject("_id", "2012814/DV10/LLC/GATE_VALVE_STATE")
+				.append("hourly", hourly)));
+
+		assertEquals(0, view.getValue(0, 0, 0));
+		assertEquals(0.0, view.getDouble(0, 0, 0), 0);
+		assertTrue(MongoManager.isPlaceholder(view.getValue(0, 1, 0)));
+		assertTrue(Double.isNaN(view.getDouble(0, 1, 0)));
+	}
+
+	@Test
+	public void testDecoder() throws Exception {
+		BasicDBObject document = new BasicDBObject("_id", "2012814/DV10/LLC/POL_MON4")
+				.append("hourly", new BasicDBObject("1", hour(2, 3, 4.5)));
+		byte[] bytes = encode(document);
+		byte[] stream = new byte[bytes.length*2];
+		System.arraycopy(bytes, 0, stream, 0, bytes.length);
+		System.arraycopy(bytes, 0, stream, bytes.length, bytes.length);
+
+		ByteArrayInputStream in = new ByteArrayInputStream(stream);
+		for (int i=0; i<2; i++) {
+			DBObject view = DayDocumentView.FACTORY.create().decode(in,
+					(DBCollection) null);
+			assertTrue(view instanceof DayDocumentView);
+			assertEquals(4.5, ((DayDocumentView) view).getDouble(1, 2, 3), 0);
+			assertEquals(document.toMap().toString(), view.toMap().toString());
+		}
+		assertEquals(0, in.available());
+	}
+}
@@ -0,0 +1,100 @@
+package cl.alma.onedocumenttest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import cl.alma.onedocument.MongoStorageBackend;
+
+public class DeferredIndexTest {
+
+	/**
+	 * Keeps the collections, the indexes and the pending indexes in memory,
+	 * the checks of the driver are in MongoStorageBackendTest
+	 */
+	private static class StubbedStorage extends MongoStorageBackend {
+		final Set<String> collections = new HashSet<String>();
+		final Set<String> indexes = new HashSet<String>();
+		final Set<String> pending = new LinkedHashSet<String>();
+
+		StubbedStorage() {
+			super(null, null);
+		}
+
+		void create(String name) {
+			collections.add(name);
+			indexNewCollection(name);
+		}
+
+		@Override
+		protected boolean collectionExists(String name) {
+			return collections.contains(name);
+		}
+
+		@Override
+		protected void buildIndex(String name) {
+			indexes.add(name);
+		}
+
+		@Override
+		protected void addPendingIndex(String name) {
+			pending.add(name);
+		}
+
+		@Override
+		protected void removePendingIndex(String name) {
+			pending.remove(name);
+		}
+
+		@Override
+		public List<String> getPendingIndexes() {
+			return new ArrayList<String>(pending);
+		}
+	}
+
+	private StubbedStorage storage;
+
+	@Before
+	public void setup() {
+		storage = new StubbedStorage();
+	}
+
+	@Test
+	public void testIndexBuiltOnCreation() {
+		assertFalse(storage.isDeferIndexes());
+		storage.create("monitorData_12_2012");
+		assertTrue(storage.indexes.contains("monitorData_12_2012"));
+		assertTrue(storage.getPendingIndexes().isEmpty());
+		assertEquals(0, storage.buildPendingIndexes());
+	}
+
+	@Test
+	public void testDeferIndexes() {
+		storage.create("monitorData_12_2012");
+
+		storage.setDeferIndexes(true);
+		storage.create("monitorData_1_2013");
+		storage.create("monitorData_2_2013");
+		storage.setDeferIndexes(false);
+
+		// Only the collections created by the load are deferred
+		assertEquals(2, storage.getPendingIndexes().size());
+		assertFalse(storage.indexes.contains("monitorData_1_2013"));
+		assertFalse(storage.getPendingIndexes().contains("monitorData_12_2012"));
+
+		// A collection dropped before the end of the load is skipped
+		storage.collections.remove("monitorData_2_2013");
+		assertEquals(1, storage.buildPendingIndexes());
+		assertTrue(storage.indexes.contains("monitorData_1_2013"));
+		assertFalse(storage.indexes.contains("monitorData_2_2013"));
+		assertTrue(storage.getPendingIndexes().isEmpty());
+		assertEquals(0, storage.buildPendingIndexes());
+	}
+}
@@ -2,10 +2,13 @@ package cl.alma.onedocumenttest;
 
 import static org.junit.Assert.*;
 
+import java.util.Arrays;
+
 import org.junit.Before;
 import org.junit.Test;
 
 import cl.alma.onedocument.DocumentID;
+import cl.alma.onedocument.Granularity;
 
 public class DocumentIDTest {
 
@@ -26,4 +29,27 @@ public class DocumentIDTest {
 		assertEquals("toString", "2012923/DV10/LLC/POL_MON4", id.toString());
 	}
 
+	@Test
+	public void testGranularity() {
+		DocumentID week = new DocumentID(2012, 9, 23, "DV10", "LLC", "POL_MON4",
+				Granularity.WEEK);
+		assertEquals("2012922W/DV10/LLC/POL_MON4", week.toString());
+		assertEquals(22, week.getDay());
+
+		DocumentID month = new DocumentID(2012, 9, 23, "DV10", "LLC", "POL_MON4",
+				Granularity.MONTH);
+		assertEquals("201291M/DV10/LLC/POL_MON4", month.toString());
+
+		// The last week of the month is shorter
+		assertEquals(7, Granularity.WEEK.getDays(2012, 9, 22));
+		assertEquals(2, Granularity.WEEK.getDays(2012, 9, 29));
+		assertEquals(30, Granularity.MONTH.getDays(2012, 9, 1));
+		assertEquals(Granularity.MONTH, Granularity.forSampleTime(600));
+	}
+
+	@Test
+	public void testDayPrefixes() {
+		assertEquals(Arrays.asList("2012923/", "2012922W/", "201291M/"),
+				DocumentID.dayPrefixes(2012, 9, 23));
+	}
 }
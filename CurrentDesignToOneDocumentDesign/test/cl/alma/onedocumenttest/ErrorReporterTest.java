@@ -0,0 +1,85 @@
+package cl.alma.onedocumenttest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Before;
+import org.junit.Test;
+
+import cl.alma.onedocument.ErrorReporter;
+
+public class ErrorReporterTest {
+
+	private Logger logger;
+	private List<LoggingEvent> events;
+
+	@Before
+	public void setup() {
+		events = new ArrayList<LoggingEvent>();
+		logger = Logger.getLogger("ErrorReporterTest_"+System.nanoTime());
+		logger.setAdditivity(false);
+		logger.addAppender(new AppenderSkeleton() {
+			@Override
+			protected void append(LoggingEvent event) {
+				events.add(event);
+			}
+
+			@Override
+			public boolean requiresLayout() {
+				return false;
+			}
+
+			@Override
+			public void close() {
+			}
+		});
+	}
+
+	private static void fail(ErrorReporter reporter, String message) {
+		try {
+			throw new IllegalStateException(message);
+		} catch (IllegalStateException e) {
+			reporter.report(e);
+		}
+	}
+
+	@Test
+	public void testAggregatesBySite() {
+		// The interval is long, so only the explicit flushes log
+		ErrorReporter reporter = new ErrorReporter(logger, 3600000, 4);
+		for (int i=0; i<1000; i++) {
+			fail(reporter, "error "+i);
+		}
+		assertTrue(events.isEmpty());
+
+		reporter.flush();
+		assertEquals(1000, reporter.getReportedCount());
+		assertEquals(2, events.size());
+		assertNotNull(events.get(0).getThrowableInformation());
+		assertTrue(events.get(1).getRenderedMessage().contains("1000 errors"));
+		assertTrue(events.get(1).getRenderedMessage().contains("error 999"));
+
+		// A new interval samples a stack trace again
+		fail(reporter, "again");
+		reporter.close();
+		assertEquals(3, events.size());
+		assertNotNull(events.get(2).getThrowableInformation());
+	}
+
+	@Test
+	public void testBoundedStackTraces() {
+		ErrorReporter reporter = new ErrorReporter(logger, 3600000, 2);
+		for (int i=0; i<5; i++) {
+			reporter.report("Site "+i, "message");
+		}
+
+		assertEquals(3, reporter.getDroppedCount());
+		reporter.flush();
+		assertEquals(2, events.size());
+	}
+}
@@ -0,0 +1,151 @@
+package cl.alma.onedocumenttest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import cl.alma.onedocument.DocumentID;
+import cl.alma.onedocument.ExternalSorter;
+import cl.alma.onedocument.Metadata;
+import cl.alma.onedocument.Sample;
+import cl.alma.onedocument.ValueType;
+
+public class ExternalSorterTest {
+
+	private File directory;
+
+	@Before
+	public void setup() {
+		directory = new File(System.getProperty("java.io.tmpdir"),
+				"ExternalSorterTest_"+System.nanoTime());
+	}
+
+	@After
+	public void clean() {
+		directory.delete();
+	}
+
+	private static Metadata metadata(int monitorPoint) {
+		DocumentID id = new DocumentID(2012, 9, 30, "DV10", "LLC",
+				"POL_MON"+monitorPoint);
+		return new Metadata(id, "ASDF Property", "TFING", null, 2, 1);
+	}
+
+	/**
+	 * Adds the seconds 0..n-1 of several monitor points in random order
+	 */
+	private static List<Sample> shuffledSamples(int points, int n) {
+		List<Sample> samples = new ArrayList<Sample>();
+		for (int p=0; p<points; p++) {
+			Metadata metadata = metadata(p);
+			for (int t=0; t<n; t++) {
+				if (p%2==0) {
+					samples.add(new Sample(metadata, t/3600, t/60%60, t%60, (double) t));
+				} else {
+					samples.add(new Sample(metadata, t/3600, t/60%60, t%60, "v"+t));
+				}
+			}
+		}
+		Collections.shuffle(samples, new Random(7));
+		return samples;
+	}
+
+	private static List<Sample> sort(ExternalSorter sorter, List<Sample> samples)
+			throws IOException {
+		for (Sample sample : samples) {
+			sorter.add(sample);
+		}
+
+		final List<Sample> sorted = new ArrayList<Sample>();
+		sorter.finish(new ExternalSorter.Sink() {
+			@Override
+			public void emit(Sample sample) {
+				sorted.add(sample);
+			}
+		});
+		return sorted;
+	}
+
+	private static void assertGroupedAndChronological(List<Sample> sorted,
+			int points, int n) {
+		assertEquals(points*n, sorted.size());
+		for (int i=0; i<sorted.size(); i++) {
+			Sample sample = sorted.get(i);
+			int t = i%n;
+			assertEquals(sorted.get(i-t).getMetadata().getDocumentID().toString(),
+					sample.getMetadata().getDocumentID().toString());
+			assertEquals(t, (sample.getHour()*60 + sample.getMinute())*60 +
+					sample.getSecond());
+
+			if (sample.getValueType()==ValueType.DOUBLE) {
+				assertEquals(t, sample.getDoubleValue(), 0);
+			} else {
+				assertEquals("v"+t, sample.getValue());
+			}
+		}
+	}
+
+	@Test
+	public void testInMemory() throws IOException {
+		ExternalSorter sorter = new ExternalSorter(directory, 1L<<30);
+		List<Sample> sorted = sort(sorter, shuffledSamples(5, 200));
+
+		assertEquals(0, sorter.getRunCount());
+		assertGroupedAndChronological(sorted, 5, 200);
+	}
+
+	@Test
+	public void testSeveralMergePasses() throws IOException {
+		// About three samples per run, so there are more runs than the
+		// maximum of a merge
+		ExternalSorter sorter = new ExternalSorter(directory, 1000);
+		List<Sample> samples = shuffledSamples(4, 200);
+		for (Sample sample : samples) {
+			sorter.add(sample);
+		}
+		assertTrue(sorter.getRunCount()>ExternalSorter.MAX_MERGE_RUNS);
+
+		final List<Sample> sorted = new ArrayList<Sample>();
+		sorter.finish(new ExternalSorter.Sink() {
+			@Override
+			public void emit(Sample sample) {
+				sorted.add(sample);
+			}
+		});
+
+		assertGroupedAndChronological(sorted, 4, 200);
+		assertNull(sorted.get(0).getMetadata().getSerialNumber());
+		assertEquals(0, sorter.getRunCount());
+		assertEquals(0, directory.list().length);
+	}
+
+	@Test
+	public void testLargeString() throws IOException {
+		// Beyond the 64 KB of writeUTF, with characters of several bytes
+		StringBuilder builder = new StringBuilder();
+		for (int i=0; i<40000; i++) {
+			builder.append("ñ");
+		}
+		String large = builder.toString();
+
+		// A small budget spills the samples to runs
+		ExternalSorter sorter = new ExternalSorter(directory, 100);
+		List<Sample> samples = new ArrayList<Sample>();
+		samples.add(new Sample(metadata(1), 0, 0, 2, "v2"));
+		samples.add(new Sample(metadata(1), 0, 0, 1, large));
+		List<Sample> sorted = sort(sorter, samples);
+
+		assertEquals(2, sorted.size());
+		assertEquals(large, sorted.get(0).getValue());
+		assertEquals("v2", sorted.get(1).getValue());
+	}
+}
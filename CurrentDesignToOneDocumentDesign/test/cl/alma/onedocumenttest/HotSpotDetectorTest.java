@@ -0,0 +1,57 @@
+package cl.alma.onedocumenttest;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import cl.alma.onedocument.DocumentID;
+import cl.alma.onedocument.HotSpotDetector;
+
+public class HotSpotDetectorTest {
+
+	@Test
+	public void testTopAntenna() {
+		HotSpotDetector detector = new HotSpotDetector(4, 1024, 3, Long.MAX_VALUE);
+		// Many documents of DV10 and a few of the other antennas
+		for (int i=0; i<200; i++) {
+			detector.record(new DocumentID(2012, 9, 30, "DV10", "LLC",
+					"POL_MON" + i), 10);
+			detector.record(new DocumentID(2012, 9, 30, "DV" + (11 + i%20),
+					"LLC", "POL_MON" + i), 1);
+		}
+		// The same antenna in another day is another shard key
+		detector.record(new DocumentID(2012, 10, 1, "DV10", "LLC", "POL_MON1"), 5);
+
+		List<HotSpotDetector.Entry> antennas = detector.getTopAntennas();
+		assertEquals(3, antennas.size());
+		assertEquals("2012-9-30/DV10", antennas.get(0).getKey());
+		// The estimates are never below the real counts
+		assertTrue(antennas.get(0).getCount()>=2000);
+		assertTrue(detector.getAntennaSkew()>0.8);
+		assertTrue(detector.estimateAntenna(new DocumentID(2012, 10, 1, "DV10",
+				"LLC", "POL_MON7"))>=5);
+		assertEquals(2205, detector.getSampleCount());
+	}
+
+	@Test
+	public void testTopDocumentAndDecay() {
+		HotSpotDetector detector = new HotSpotDetector(4, 1024, 2, 1000);
+		DocumentID hot = new DocumentID(2012, 9, 30, "DA41", "LLC", "POL_MON4");
+		for (int i=0; i<100; i++) {
+			detector.record(new DocumentID(2012, 9, 30, "DA41", "LLC",
+					"POL_MON" + (i+10)), 1);
+			detector.record(hot, 8);
+		}
+
+		List<HotSpotDetector.Entry> documents = detector.getTopDocuments();
+		assertEquals(hot.toString(), documents.get(0).getKey());
+		// 900 samples, so the counts were not halved yet
+		assertTrue(documents.get(0).getCount()>=800);
+
+		detector.record(hot, 100);
+		long halved = detector.getTopDocuments().get(0).getCount();
+		assertTrue(halved>=450 && halved<=500);
+	}
+}
@@ -0,0 +1,286 @@
+package cl.alma.onedocumenttest;
+
+import static org.junit.Assert.*;
+import static cl.alma.onedocumenttest.LegacyRecords.legacyRecord;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+import cl.alma.onedocument.DocumentID;
+import cl.alma.onedocument.InMemoryStorageBackend;
+import cl.alma.onedocument.Metadata;
+import cl.alma.onedocument.MongoManager;
+import cl.alma.onedocument.Sample;
+
+public class InMemoryStorageBackendTest {
+
+	private static InMemoryStorageBackend storage;
+	private static MongoManager mongo;
+
+	@BeforeClass
+	public static void setup() {
+		storage = new InMemoryStorageBackend();
+		MongoManager.setStorage(storage);
+		mongo = MongoManager.mongoManagerFactory(null);
+	}
+
+	@AfterClass
+	public static void clean() {
+		mongo.close();
+	}
+
+	private static DBObject getSecond(DBObject document, int hour, int minute,
+			int second) {
+		DBObject hourly = (DBObject) document.get("hourly");
+		DBObject minutes = (DBObject) hourly.get(Integer.toString(hour));
+		DBObject seconds = (DBObject) minutes.get(Integer.toString(minute));
+		return new BasicDBObject("value", seconds.get(Integer.toString(second)));
+	}
+
+	@Test
+	public void testGetCollectionName() {
+		DocumentID doc = new DocumentID(2012, 12, 30, "CM02", "LLC", "POL_MON4");
+		assertEquals("monitorData_12_2012", storage.getCollectionName(doc));
+		assertTrue(storage.getCollectionNames().contains("monitorData_12_2012"));
+	}
+
+	@Test
+	public void testUpsertQueryMismatch() {
+		DocumentID doc = new DocumentID(2012, 12, 29, "CM02", "LLC", "POL_MON5");
+		storage.upsert(doc, new BasicDBObject("_id", doc.toString())
+				.append("serialNumber", "a"),
+				new BasicDBObject("$set", new BasicDBObject("value", 1)));
+
+		// The _id exists but the rest of the query does not match
+		try {
+			storage.upsert(doc, new BasicDBObject("_id", doc.toString())
+					.append("serialNumber", "b"),
+					new BasicDBObject("$set", new BasicDBObject("value", 2)));
+			fail("The upsert was dropped");
+		} catch (MongoException.DuplicateKey e) {
+			assertEquals(11000, e.getCode());
+		}
+		assertEquals(1, storage.findOne(doc).get("value"));
+	}
+
+	@Test
+	public void testUpsertSample() {
+		DocumentID documentID = new DocumentID(2012, 3, 20, "DA41", "LLC", 
+				"POL_MON3");
+		Metadata metadata = new Metadata(documentID, "ASDF Property", "TFING",
+				"as76d6fh", 2, MongoManager.DEFAULT_PREALLOCATE_TIME);
+
+		assertFalse(mongo.isDocumentCreated(documentID, false));
+
+		for (int i=0; i<6; i++)
+			mongo.upsert(new Sample(metadata, 22, 31, 43+i, 6.5+i), true);
+
+		assertTrue(mongo.isDocumentCreated(documentID, false));
+
+		DBObject document = storage.findOne(documentID);
+		assertEquals(Double.valueOf(6.5), getSecond(document, 22, 31, 43).get("value"));
+		assertEquals(Double.valueOf(11.5), getSecond(document, 22, 31, 48).get("value"));
+		assertTrue(Double.isNaN((Double) getSecond(document, 22, 31, 49).get("value")));
+	}
+
+	@Test
+	public void testUpsertList() {
+		DocumentID documentID = new DocumentID(2012, 2, 25, "DA41", "LLC", 
+				"POL_MON3");
+		Metadata metadata = new Metadata(documentID, "ASDF Property", "TFING",
+				"as76d6fh", 2, MongoManager.DEFAULT_PREALLOCATE_TIME);
+
+		List<Sample> list = new ArrayList<Sample>(10); 
+		for (int i=0; i<10; i++) {
+			list.add(new Sample(metadata, 23, 59, 33+i, "9,9"));
+		}
+
+		mongo.upsert(list, true);
+
+		DBObject document = storage.findOne(documentID);
+		assertEquals("9,9", getSecond(document, 23, 59, 42).get("value"));
+		assertEquals("naa", getSecond(document, 23, 59, 43).get("value"));
+	}
+
+	@Test
+	public void testUpsertWithoutPreallocation() {
+		DocumentID documentID = new DocumentID(2012, 5, 1, "DV10", "LLC", 
+				"POL_MON1");
+		Metadata metadata = new Metadata(documentID, "ASDF Property", "TFING",
+				"as76d6fh", 2, MongoManager.DEFAULT_PREALLOCATE_TIME);
+
+		mongo.upsert(new Sample(metadata, 1, 2, 3, 7L), false);
+
+		DBObject document = storage.findOne(documentID);
+		assertEquals(documentID.toString(), document.get("_id"));
+		assertEquals(Long.valueOf(7), getSecond(document, 1, 2, 3).get("value"));
+		assertNull(getSecond(document, 1, 2, 4).get("value"));
+
+		// The metadata is written by the upsert that creates the document
+		DBObject inserted = (DBObject) document.get("metadata");
+		assertEquals("as76d6fh", inserted.get("serialNumber"));
+
+		// The next upserts only match the _id and keep the metadata
+		Metadata changed = new Metadata(documentID, "ASDF Property", "TFING",
+				"zx98y7", 2, MongoManager.DEFAULT_PREALLOCATE_TIME);
+		mongo.upsert(new Sample(changed, 1, 2, 4, 8L), false);
+		document = storage.findOne(documentID);
+		assertEquals(Long.valueOf(8), getSecond(document, 1, 2, 4).get("value"));
+		assertEquals("as76d6fh", ((DBObject) document.get("metadata")).get("serialNumber"));
+	}
+
+	@Test
+	public void testFindOneReturnsCopy() {
+		DocumentID documentID = new DocumentID(2012, 5, 2, "DV10", "LLC", 
+				"POL_MON1");
+		storage.insert(documentID, new BasicDBObject("_id", documentID.toString()));
+
+		storage.findOne(documentID).put("modified", true);
+		assertNull(storage.findOne(documentID).get("modified"));
+	}
+
+	@Test
+	public void testFindDocumentIds() {
+		DocumentID day1 = new DocumentID(2012, 6, 1, "DV10", "LLC", "POL_MON1");
+		DocumentID day11 = new DocumentID(2012, 6, 11, "DV10", "LLC", "POL_MON1");
+		DocumentID other = new DocumentID(2012, 6, 1, "DV11", "LLC", "POL_MON1");
+		storage.insert(day1, new BasicDBObject("_id", day1.toString()));
+		storage.insert(day11, new BasicDBObject("_id", day11.toString()));
+		storage.insert(other, new BasicDBObject("_id", other.toString()));
+
+		List<String> ids = storage.findDocumentIds(2012, 6, 1);
+		assertEquals(2, ids.size());
+		assertTrue(ids.contains(day1.toString()));
+		assertTrue(ids.contains(other.toString()));
+		assertTrue(storage.findDocumentIds(2012, 7, 1).isEmpty());
+
+		// Calendar months begin at 0
+		assertEquals(1, MongoManager.warmUp(
+				new GregorianCalendar(2012, 5, 11).getTime()));
+		// The legacy times are three hours behind the documents
+		assertEquals(1, MongoManager.warmUp(
+				new GregorianCalendar(2012, 5, 10, 22, 0).getTime()));
+		assertEquals(0, MongoManager.warmUp(
+				new GregorianCalendar(2012, 5, 11, 21, 0).getTime()));
+	}
+
+	@Test
+	public void testBackfill() {
+		DocumentID first = new DocumentID(2012, 8, 1, "DV10", "LLC", "POL_MON1");
+		DocumentID second = new DocumentID(2012, 8, 2, "DV10", "LLC", "POL_MON1");
+		Metadata metadata1 = new Metadata(first, "ASDF Property", "TFING",
+				"as76d6fh", 2, MongoManager.DEFAULT_PREALLOCATE_TIME);
+		Metadata metadata2 = new Metadata(second, "ASDF Property", "TFING",
+				"as76d6fh", 2, MongoManager.DEFAULT_PREALLOCATE_TIME);
+
+		MongoManager backfill = MongoManager.mongoManagerFactory(null);
+		backfill.enableBackfill();
+		backfill.backfill(new Sample(metadata1, 0, 0, 1, 1.5));
+		backfill.backfill(new Sample(metadata1, 23, 59, 59, 2.5));
+		assertNull(storage.findOne(first));
+
+		// The first document is inserted when the next one begins
+		backfill.backfill(new Sample(metadata2, 12, 0, 0, 3.5));
+		DBObject document = storage.findOne(first);
+		assertEquals("DV10", ((DBObject) document.get("metadata")).get("antenna"));
+		assertEquals(Double.valueOf(1.5), getSecond(document, 0, 0, 1).get("value"));
+		assertEquals(Double.valueOf(2.5), getSecond(document, 23, 59, 59).get("value"));
+		assertTrue(Double.isNaN((Double) getSecond(document, 0, 1, 1).get("value")));
+		assertNull(storage.findOne(second));
+
+		backfill.flushBackfill();
+		document = storage.findOne(second);
+		assertEquals(Double.valueOf(3.5), getSecond(document, 12, 0, 0).get("value"));
+		assertTrue(Double.isNaN((Double) getSecond(document, 0, 0, 1).get("value")));
+	}
+
+	@Test
+	public void testBackfillExistingDocument() {
+		DocumentID documentID = new DocumentID(2012, 8, 3, "DV10", "LLC", "POL_MON1");
+		Metadata metadata = new Metadata(documentID, "ASDF Property", "TFING",
+				"as76d6fh", 2, MongoManager.DEFAULT_PREALLOCATE_TIME);
+		mongo.upsert(new Sample(metadata, 5, 0, 0, 1.5), true);
+
+		// The seconds are set, the existing values are kept
+		MongoManager backfill = MongoManager.mongoManagerFactory(null);
+		backfill.enableBackfill();
+		backfill.backfill(new Sample(metadata, 6, 0, 0, 4.5));
+		backfill.flushBackfill();
+
+		DBObject document = storage.findOne(documentID);
+		assertEquals(Double.valueOf(1.5), getSecond(document, 5, 0, 0).get("value"));
+		assertEquals(Double.valueOf(4.5), getSecond(document, 6, 0, 0).get("value"));
+		assertTrue(Double.isNaN((Double) getSecond(document, 7, 0, 0).get("value")));
+	}
+
+	@Test
+	public void testMonthDocument() {
+		MongoManager.setSampleTimes(Collections.singletonMap("LLC/MONTH_1", 600));
+		try {
+			// Three hours of difference with the server of mongo
+			Date date = new GregorianCalendar(2012, 10, 3, 7, 10, 0).getTime();
+			Sample sample = MongoManager.toSample(legacyRecord(date, "DV10", "MONTH_1", "1.5"));
+			DocumentID documentID = sample.getMetadata().getDocumentID();
+			assertEquals("2012111M/DV10/LLC/MONTH_1", documentID.toString());
+			assertEquals(2*24 + 10, sample.getHour());
+			assertEquals(600, sample.getMetadata().getSampleTime());
+
+			mongo.upsert(sample, true);
+			DBObject document = storage.findOne(documentID);
+			assertEquals(1.5, getSecond(document, 58, 10, 0).get("value"));
+			// Preallocated every ten minutes until the end of the month
+			assertNotNull(getSecond(document, 30*24-1, 50, 0).get("value"));
+			assertNull(((DBObject) document.get("hourly")).get(Integer.toString(30*24)));
+
+			// The document is found from any day of the month
+			assertTrue(storage.findDocumentIds(2012, 11, 20).contains(
+					documentID.toString()));
+			assertFalse(storage.findDocumentIds(2012, 12, 1).contains(
+					documentID.toString()));
+		} finally {
+			MongoManager.setSampleTimes(Collections.<String, Integer>emptyMap());
+		}
+	}
+
+	@Test
+	public void testBatchQueue() throws InterruptedException {
+		Date date = new GregorianCalendar(2012, 9, 5, 7, 0, 0).getTime();
+		List<DBObject> batch = new ArrayList<DBObject>();
+		batch.add(legacyRecord(date, "DV10", "BATCH_1", "1.5"));
+		// An invalid record does not discard the rest of the batch
+		batch.add(new BasicDBObject("date", date));
+		batch.add(legacyRecord(date, "DV10", "BATCH_2", "2.5"));
+
+		BlockingQueue<List<DBObject>> batches = new LinkedBlockingQueue<List<DBObject>>();
+		batches.put(batch);
+
+		MongoManager consumer = MongoManager.mongoManagerFactory(null);
+		consumer.setBatchQueue(batches);
+		Thread thread = new Thread(consumer);
+		thread.start();
+		while (!batches.isEmpty()) {
+			Thread.sleep(1);
+		}
+		thread.interrupt();
+		thread.join();
+
+		// The legacy dates are three hours behind
+		DocumentID first = new DocumentID(2012, 10, 5, "DV10", "LLC", "BATCH_1");
+		DocumentID second = new DocumentID(2012, 10, 5, "DV10", "LLC", "BATCH_2");
+		assertEquals(Double.valueOf(1.5), getSecond(storage.findOne(first), 10, 0, 0).get("value"));
+		assertEquals(Double.valueOf(2.5), getSecond(storage.findOne(second), 10, 0, 0).get("value"));
+	}
+}
@@ -0,0 +1,82 @@
+package cl.alma.onedocumenttest;
+
+import static org.junit.Assert.*;
+import static cl.alma.onedocumenttest.LegacyRecords.date;
+import static cl.alma.onedocumenttest.LegacyRecords.legacyRecord;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Date;
+
+import org.junit.Test;
+
+import cl.alma.onedocument.LegacyRecord;
+import cl.alma.onedocument.LegacyRecordDecoder;
+import cl.alma.onedocument.MongoManager;
+import cl.alma.onedocument.Sample;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBEncoder;
+
+public class LegacyRecordDecoderTest {
+
+	private static final Date DATE = date(2012, 8, 30, 22, 15, 7);
+
+	private static byte[] encode(DBObject object) {
+		return new DefaultDBEncoder().encode(object);
+	}
+
+	@Test
+	public void testDecode() {
+		DBObject expected = legacyRecord(DATE, "DV10", "1.5").append("index", 2);
+		DBDecoder decoder = LegacyRecordDecoder.FACTORY.create();
+		DBObject object = decoder.decode(encode(expected), (DBCollection) null);
+
+		assertTrue(object instanceof LegacyRecord);
+		LegacyRecord record = (LegacyRecord) object;
+		assertEquals(((Date) expected.get("date")).getTime(), record.getDate());
+		assertEquals("CONTROL/DV10/LLC", record.getComponentName());
+		assertEquals("1.5", record.getMonitorValue());
+		assertEquals(Integer.valueOf(2), record.getIndex());
+		assertEquals(expected.toMap(), record.toMap());
+
+		// The metadata strings are shared between records
+		LegacyRecord other = (LegacyRecord) decoder.decode(
+				encode(legacyRecord(DATE, "DV10", "2.5")), (DBCollection) null);
+		assertSame(record.getComponentName(), other.getComponentName());
+		assertSame(record.getSerialNumber(), other.getSerialNumber());
+		assertEquals("2.5", other.getMonitorValue());
+
+		Sample sample = MongoManager.toSample(record);
+		Sample mapSample = MongoManager.toSample(expected);
+		assertEquals(mapSample.getMetadata().getDocumentID().toString(),
+				sample.getMetadata().getDocumentID().toString());
+		assertEquals(mapSample.getHour(), sample.getHour());
+		assertEquals(mapSample.getSecond(), sample.getSecond());
+		assertEquals(mapSample.getTypedValue(), sample.getTypedValue());
+	}
+
+	@Test
+	public void testDecodeStream() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(encode(legacyRecord(DATE, "DV10", "1.5")));
+		// Other fields are decoded by the default decoder
+		out.write(encode(new BasicDBObject("$err", "error").append("code", 10)));
+		out.write(encode(legacyRecord(DATE, "DV10", "2.5")));
+
+		DBDecoder decoder = LegacyRecordDecoder.FACTORY.create();
+		ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+		assertEquals("1.5", decoder.decode(in, (DBCollection) null).get("monitorValue"));
+
+		DBObject error = decoder.decode(in, (DBCollection) null);
+		assertTrue(error instanceof BasicDBObject);
+		assertEquals("error", error.get("$err"));
+
+		assertEquals("2.5", decoder.decode(in, (DBCollection) null).get("monitorValue"));
+		assertEquals(0, in.available());
+	}
+}
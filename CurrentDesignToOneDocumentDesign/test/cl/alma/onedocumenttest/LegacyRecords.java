@@ -0,0 +1,56 @@
+package cl.alma.onedocumenttest;
+
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+import com.mongodb.BasicDBObject;
+
+/**
+ * Records of the legacy MONDB.monitorPoints collection used by the tests
+ */
+public final class LegacyRecords {
+
+	private LegacyRecords() {
+	}
+
+	/**
+	 * Returns a record of the monitor point LLC/POL_MON4 of an antenna
+	 * @param date
+	 * @param antenna i.e. "DV10"
+	 * @param value The legacy values are strings
+	 * @return
+	 */
+	public static BasicDBObject legacyRecord(Date date, String antenna,
+			Object value) {
+		return legacyRecord(date, antenna, "POL_MON4", value);
+	}
+
+	/**
+	 * Returns a record of a monitor point of the LLC component of an antenna
+	 * @param date
+	 * @param antenna
+	 * @param monitorPoint
+	 * @param value
+	 * @return
+	 */
+	public static BasicDBObject legacyRecord(Date date, String antenna,
+			String monitorPoint, Object value) {
+		return new BasicDBObject("date", date)
+				.append("componentName", "CONTROL/" + antenna + "/LLC")
+				.append("propertyName", "POL_MON")
+				.append("monitorPointName", monitorPoint)
+				.append("location", "TFING")
+				.append("serialNumber", "as76d6fh")
+				.append("monitorValue", value)
+				.append("index", 0);
+	}
+
+	/**
+	 * Returns a date of the local time zone, the month is 0-based
+	 */
+	public static Date date(int year, int month, int day, int hour,
+			int minute, int second) {
+		return new GregorianCalendar(year, month, day, hour, minute,
+				second).getTime();
+	}
+}
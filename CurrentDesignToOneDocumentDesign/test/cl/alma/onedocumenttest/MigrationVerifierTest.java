@@ -0,0 +1,167 @@
+package cl.alma.onedocumenttest;
+
+import static org.junit.Assert.*;
+import static cl.alma.onedocumenttest.LegacyRecords.date;
+import static cl.alma.onedocumenttest.LegacyRecords.legacyRecord;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mongodb.DBObject;
+
+import cl.alma.onedocument.Granularity;
+import cl.alma.onedocument.InMemoryStorageBackend;
+import cl.alma.onedocument.MigrationVerifier;
+import cl.alma.onedocument.MigrationVerifier.Difference;
+import cl.alma.onedocument.MongoManager;
+import cl.alma.onedocument.Sample;
+import cl.alma.onedocument.ValueType;
+
+public class MigrationVerifierTest {
+
+	private InMemoryStorageBackend storage;
+	private MongoManager mongo;
+
+	@Before
+	public void setup() {
+		storage = new InMemoryStorageBackend();
+		MongoManager.setStorage(storage);
+		MongoManager.setValueTypes(new HashMap<String, ValueType>());
+		mongo = MongoManager.mongoManagerFactory(null);
+	}
+
+	@After
+	public void clean() {
+		// The types and sample times are shared with the other tests
+		MongoManager.setValueTypes(new HashMap<String, ValueType>());
+		MongoManager.setSampleTimes(Collections.<String, Integer>emptyMap());
+	}
+
+	private void migrate(DBObject record) {
+		mongo.upsert(MongoManager.toSample(record), true);
+	}
+
+	private static Map<String, Difference> byId(List<Difference> differences) {
+		Map<String, Difference> result = new HashMap<String, Difference>();
+		for (Difference difference : differences) {
+			result.put(difference.getId(), difference);
+		}
+		return result;
+	}
+
+	@Test
+	public void testMatchingDay() {
+		List<DBObject> records = new ArrayList<DBObject>();
+		// The last three hours of the legacy day belong to the next document
+		records.add(legacyRecord(date(2012, 8, 29, 21, 30, 0), "DV10", "1.5"));
+		records.add(legacyRecord(date(2012, 8, 29, 23, 59, 0), "DV10", "2.5"));
+		for (DBObject record : records) {
+			migrate(record);
+		}
+		Sample sample = MongoManager.toSample(records.get(0));
+		assertEquals("2012930/DV10/LLC/POL_MON4", 
+				sample.getMetadata().getDocumentID().toString());
+		assertEquals(0, sample.getHour());
+
+		MigrationVerifier verifier = new MigrationVerifier(null, storage, 1);
+		verifier.verifyDay(2012, 9, 30, records.iterator());
+		assertTrue(verifier.getDifferences().isEmpty());
+		assertEquals(1, verifier.getDocumentCount());
+		assertEquals(2, verifier.getRecordCount());
+
+		// The records are not in the document of the legacy day
+		verifier = new MigrationVerifier(null, storage, 1);
+		verifier.verifyDay(2012, 9, 29, records.iterator());
+		assertEquals(1, verifier.getDifferenceCount());
+		assertEquals(0, verifier.getDifferences().get(0).getTargetCount());
+	}
+
+	@Test
+	public void testDifferences() {
+		List<DBObject> records = new ArrayList<DBObject>();
+		records.add(legacyRecord(date(2012, 8, 29, 22, 0, 0), "DV10", "1.5"));
+		records.add(legacyRecord(date(2012, 8, 29, 22, 0, 0), "DV11", "1.5"));
+		records.add(legacyRecord(date(2012, 8, 29, 22, 0, 0), "DV12", "1.5"));
+		records.add(legacyRecord(date(2012, 8, 29, 22, 0, 0), "DV13", "3.5"));
+		records.add(legacyRecord(date(2012, 8, 29, 22, 0, 0), "DV14", "1.5")
+				.append("index", "x"));
+
+		// DV11 is not migrated, DV12 has one more sample, and DV13 has
+		// another value
+		migrate(records.get(0));
+		migrate(records.get(2));
+		Sample extra = MongoManager.toSample(records.get(2));
+		mongo.upsert(new Sample(extra.getMetadata(), 6, 0, 0, 9.5), true);
+		migrate(legacyRecord(date(2012, 8, 29, 22, 0, 0), "DV13", "4.5"));
+
+		MigrationVerifier verifier = new MigrationVerifier(null, storage, 1);
+		verifier.verifyDay(2012, 9, 30, records.iterator());
+		assertEquals(3, verifier.getDocumentCount());
+		assertEquals(5, verifier.getRecordCount());
+		assertEquals(1, verifier.getInvalidCount());
+		assertEquals(3, verifier.getDifferenceCount());
+
+		Map<String, Difference> differences = byId(verifier.getDifferences());
+		assertNull(differences.get("2012930/DV10/LLC/POL_MON4"));
+
+		Difference missing = differences.get("2012930/DV11/LLC/POL_MON4");
+		assertEquals(1, missing.getSourceCount());
+		assertEquals(0, missing.getTargetCount());
+
+		Difference count = differences.get("2012930/DV12/LLC/POL_MON4");
+		assertEquals(1, count.getSourceCount());
+		assertEquals(2, count.getTargetCount());
+
+		Difference value = differences.get("2012930/DV13/LLC/POL_MON4");
+		assertEquals(1, value.getSourceCount());
+		assertEquals(1, value.getTargetCount());
+		assertFalse(value.isChecksumMatching());
+	}
+
+	@Test
+	public void testSeveralDaysDocuments() {
+		Map<String, Integer> sampleTimes = new HashMap<String, Integer>();
+		sampleTimes.put("DV10/LLC/POL_MON4", Granularity.WEEK_SAMPLE_TIME);
+		sampleTimes.put("DV11/LLC/POL_MON4", Granularity.MONTH_SAMPLE_TIME);
+		MongoManager.setSampleTimes(sampleTimes);
+
+		// The records of the previous day are in the same documents
+		List<DBObject> records = new ArrayList<DBObject>();
+		records.add(legacyRecord(date(2012, 8, 29, 22, 0, 0), "DV10", "1.5"));
+		records.add(legacyRecord(date(2012, 8, 29, 22, 0, 0), "DV11", "1.5"));
+		for (DBObject record : records) {
+			migrate(record);
+		}
+		migrate(legacyRecord(date(2012, 8, 29, 5, 0, 0), "DV10", "2.5"));
+		migrate(legacyRecord(date(2012, 8, 29, 5, 0, 0), "DV11", "2.5"));
+
+		String week = MongoManager.toSample(records.get(0)).getMetadata()
+				.getDocumentID().toString();
+		String month = MongoManager.toSample(records.get(1)).getMetadata()
+				.getDocumentID().toString();
+		assertEquals("2012929W/DV10/LLC/POL_MON4", week);
+		assertEquals("201291M/DV11/LLC/POL_MON4", month);
+
+		// Only the hours of the verified day are compared
+		MigrationVerifier verifier = new MigrationVerifier(null, storage, 1);
+		verifier.verifyDay(2012, 9, 30, records.iterator());
+		assertEquals(2, verifier.getDocumentCount());
+		assertTrue(verifier.getDifferences().isEmpty());
+
+		// A changed value of the day is reported
+		records.set(1, legacyRecord(date(2012, 8, 29, 22, 0, 0), "DV11", "3.5"));
+		verifier = new MigrationVerifier(null, storage, 1);
+		verifier.verifyDay(2012, 9, 30, records.iterator());
+		assertEquals(1, verifier.getDifferenceCount());
+		Difference difference = verifier.getDifferences().get(0);
+		assertEquals(month, difference.getId());
+		assertFalse(difference.isChecksumMatching());
+	}
+}
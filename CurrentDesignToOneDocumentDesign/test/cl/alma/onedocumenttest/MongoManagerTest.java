@@ -1,8 +1,9 @@
 package cl.alma.onedocumenttest;
 
 import static org.junit.Assert.*;
+import static cl.alma.onedocumenttest.LegacyRecords.date;
+import static cl.alma.onedocumenttest.LegacyRecords.legacyRecord;
 
-import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
@@ -10,68 +11,60 @@ import java.util.GregorianCalendar;
 import java.util.List;
 import java.util.concurrent.LinkedBlockingQueue;
 
-import org.junit.After;
 import org.junit.AfterClass;
-import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
-import com.mongodb.DB;
-import com.mongodb.DBCollection;
+import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
-import com.mongodb.Mongo;
 
 import cl.alma.onedocument.DocumentID;
+import cl.alma.onedocument.InMemoryStorageBackend;
 import cl.alma.onedocument.Metadata;
 import cl.alma.onedocument.MongoManager;
+import cl.alma.onedocument.MonitorEvent;
 import cl.alma.onedocument.Sample;
+import cl.alma.onedocument.TransformHandler;
+import cl.alma.onedocument.ValueType;
 
 public class MongoManagerTest {
 
+	private static InMemoryStorageBackend storage;
 	private static MongoManager mongo;
-	private static Mongo _mongo = null;
-	private static DB _database = null;
 
 	@BeforeClass
 	public static void setup() {
-		
-		try {
-			_mongo = new Mongo("localhost");
-			_database = _mongo.getDB("JUnitTest");
-		} catch (UnknownHostException e) {
-			fail("Cannot connect to MongoDB instance");
-		}
-		
-		MongoManager.setConnection(_mongo, _database);
+		// The checks of the driver are in MongoStorageBackendTest
+		storage = new InMemoryStorageBackend();
+		MongoManager.setStorage(storage);
 		
 		mongo = MongoManager.mongoManagerFactory(new LinkedBlockingQueue<DBObject>());
 	}
 	
 	@AfterClass
 	public static void clean() {
-		/*try {
-			mongo = new MongoManager("localhost", "JUnitTest", "MongoManagerTest");
-		} catch (UnknownHostException e) {
-			fail("Cannot connect to MongoDB instance");
-		}*/
 		if (mongo!=null)
 			mongo.close();
 	}
 	
+	private static Object getSecond(DBObject document, int hour, int minute,
+			int second) {
+		DBObject hourly = (DBObject) document.get("hourly");
+		DBObject minutes = (DBObject) hourly.get(Integer.toString(hour));
+		DBObject seconds = (DBObject) minutes.get(Integer.toString(minute));
+		return seconds.get(Integer.toString(second));
+	}
+	
 	@Test
-	public void testGetCollection() {
+	public void testGetCollectionName() {
 		DocumentID doc1 = new DocumentID(2012, 12, 30, "CM02", "LLC", "POL_MON4");
 		DocumentID doc2 = new DocumentID(2012, 7, 23, "CM10", "LLC", "POL_MON1");
 		DocumentID doc3 = new DocumentID(2012, 10, 1, "DV10", "LLC", "POL_MON4");
-		
-		DBCollection coll1 = mongo.getCollection(doc1);
-		DBCollection coll2 = mongo.getCollection(doc2);
-		DBCollection coll3 = mongo.getCollection(doc3);
 
 		String[] generatedNames = new String[3];
-		generatedNames[0] = coll1.getName();
-		generatedNames[1] = coll2.getName();
-		generatedNames[2] = coll3.getName();
+		generatedNames[0] = storage.getCollectionName(doc1);
+		generatedNames[1] = storage.getCollectionName(doc2);
+		generatedNames[2] = storage.getCollectionName(doc3);
 
 		String[] expectedNames = new String[3];
 		expectedNames[0] = "monitorData_12_2012";
@@ -84,7 +77,6 @@ public class MongoManagerTest {
 	@Test
 	public void testPreAllocate() {
 		
-		// Sample time: 5 sec.
 		DocumentID documentID = new DocumentID(2012, 9, 30, "DV04", "LLC", "POL_MON4");
 		Metadata metadata = new Metadata(documentID, "ASDF Property", "TFING",
 				"as76d6fh", 2, MongoManager.DEFAULT_PREALLOCATE_TIME);
@@ -92,10 +84,24 @@ public class MongoManagerTest {
 		Calendar date = new GregorianCalendar(2012, 9, 30, 23, 59, 27);
 		
 		DBObject dbObject = mongo.preAllocate(metadata, date.getTime(), 1);
-		DBCollection coll = mongo.getCollection(documentID);
-		coll.insert(dbObject);
+		storage.insert(documentID, dbObject);
+		DBObject document = storage.findOne(documentID);
 		
-		fail("This test case needs a manual validation");
+		assertEquals(documentID.toString(), document.get("_id"));
+		DBObject meta = (DBObject) document.get("metadata");
+		assertEquals("2012-9-30", meta.get("date"));
+		assertEquals("DV04", meta.get("antenna"));
+		assertEquals("POL_MON4", meta.get("monitorPoint"));
+		assertEquals(2, meta.get("index"));
+		
+		// Only the seconds from 23:59:27 are preallocated
+		DBObject hourly = (DBObject) document.get("hourly");
+		assertEquals(1, hourly.keySet().size());
+		DBObject seconds = (DBObject) ((DBObject) hourly.get("23")).get("59");
+		assertEquals(33, seconds.keySet().size());
+		assertNull(seconds.get("26"));
+		assertEquals(MongoManager.NOT_ASSIGNED, seconds.get("27"));
+		assertTrue(MongoManager.isPlaceholder(seconds.get("59")));
 	}
 	
 	@Test
@@ -105,11 +111,21 @@ public class MongoManagerTest {
 		Metadata metadata = new Metadata(documentID, "ASDF Property", "TFING",
 				"as76d6fh", 2, MongoManager.DEFAULT_PREALLOCATE_TIME);
 		
-		DBObject dbObject = mongo.preAllocate(metadata, 2);
-		DBCollection coll = mongo.getCollection(documentID);
-		coll.insert(dbObject);
+		DBObject dbObject = mongo.preAllocate(metadata, 4);
+		storage.insert(documentID, dbObject);
+		DBObject document = storage.findOne(documentID);
+		
+		// Every second of the day
+		DBObject hourly = (DBObject) document.get("hourly");
+		assertEquals(24, hourly.keySet().size());
+		assertEquals(60, ((DBObject) hourly.get("23")).keySet().size());
+		assertEquals("naaa", getSecond(document, 0, 0, 0));
+		assertEquals("naaa", getSecond(document, 23, 59, 59));
 		
-		fail("This test case needs a manual validation");
+		// The typed documents have placeholders of the same type
+		DBObject typed = mongo.preAllocate(metadata, ValueType.LONG, 0);
+		assertEquals(Long.valueOf(MongoManager.NOT_ASSIGNED_LONG), 
+				getSecond(typed, 12, 30, 30));
 	}
 
 	@Test
@@ -135,6 +151,11 @@ public class MongoManagerTest {
 		expected[4] = false; // because the document has not been added to mongo
 
 		assertTrue(Arrays.equals(expected, actual));
+		
+		// A document of the storage is found and then kept in the buffer
+		storage.insert(doc1, new BasicDBObject("_id", doc1.toString()));
+		assertTrue(mongo.isDocumentCreated(doc1, true));
+		assertTrue(mongo.isDocumentCreated(doc1, false));
 	}
 	
 	@Test
@@ -157,11 +178,14 @@ public class MongoManagerTest {
 		actual[2] = mongo.isDocumentCreated(doc2, true);
 
 		assertTrue(Arrays.equals(expected, actual));
+		
+		// The buffer is not the storage
+		assertFalse(mongo.isDocumentCreated(doc2, false));
 	}
 
 	@Test
 	public void testUpsertSample() {
-		DocumentID documentID_1 = new DocumentID(2012, 3, 20, "DA41", "LLC", 
+		DocumentID documentID_1 = new DocumentID(2012, 3, 20, "DA43", "LLC", 
 				"POL_MON3");
 		Metadata metadata_1 = new Metadata(documentID_1, "ASDF Property", "TFING",
 				"as76d6fh", 2, MongoManager.DEFAULT_PREALLOCATE_TIME);
@@ -169,7 +193,7 @@ public class MongoManagerTest {
 		for (int i=0; i<6; i++)
 			mongo.upsert(new Sample(metadata_1, 22, 31, 43+i, "6,896"), true);
 
-		DocumentID documentID_2 = new DocumentID(2012, 2, 20, "DA41", "LLC", 
+		DocumentID documentID_2 = new DocumentID(2012, 2, 20, "DA43", "LLC", 
 				"POL_MON3");
 		Metadata metadata_2 = new Metadata(documentID_2, "ASDF Property", "TFING",
 				"as76d6fh", 2, MongoManager.DEFAULT_PREALLOCATE_TIME);
@@ -177,18 +201,29 @@ public class MongoManagerTest {
 		for (int i=0; i<6; i++)
 			mongo.upsert(new Sample(metadata_2, 22, 31, 43+i, "6,896"), true);
 
-		DocumentID documentID_3 = new DocumentID(2012, 2, 20, "DA41", "LLC", 
+		DocumentID documentID_3 = new DocumentID(2012, 2, 20, "DA43", "LLC", 
 				"POL_MON3");
 		Metadata metadata_3 = new Metadata(documentID_3, "ASDF Property", "TFING",
 				"as76d6fh", 2, MongoManager.DEFAULT_PREALLOCATE_TIME);
 
 		for (int i=0; i<6; i++)
 			mongo.upsert(new Sample(metadata_3, 0, 0, i, "5"), true);
+		
+		DBObject document_1 = storage.findOne(documentID_1);
+		assertEquals("6,896", getSecond(document_1, 22, 31, 43));
+		assertEquals("6,896", getSecond(document_1, 22, 31, 48));
+		assertTrue(MongoManager.isPlaceholder(getSecond(document_1, 22, 31, 49)));
+		assertTrue(MongoManager.isPlaceholder(getSecond(document_1, 0, 0, 0)));
+		
+		// The second and the third samples share their document
+		DBObject document_2 = storage.findOne(documentID_2);
+		assertEquals("6,896", getSecond(document_2, 22, 31, 47));
+		assertEquals("5", getSecond(document_2, 0, 0, 5));
 	}
 
 	@Test
 	public void testUpsertList() {
-		DocumentID documentID_1 = new DocumentID(2012, 2, 25, "DA41", "LLC", 
+		DocumentID documentID_1 = new DocumentID(2012, 2, 25, "DA43", "LLC", 
 				"POL_MON3");
 		Metadata metadata_1 = new Metadata(documentID_1, "ASDF Property", "TFING",
 				"as76d6fh", 2, MongoManager.DEFAULT_PREALLOCATE_TIME);
@@ -199,28 +234,62 @@ public class MongoManagerTest {
 		}
 		
 		mongo.upsert(list, true);
+		
+		DBObject document = storage.findOne(documentID_1);
+		for (int i=0; i<10; i++) {
+			assertEquals("9,9", getSecond(document, 23, 59, 33+i));
+		}
+		assertTrue(MongoManager.isPlaceholder(getSecond(document, 23, 59, 32)));
+		assertEquals("ASDF Property", 
+				((DBObject) document.get("metadata")).get("property"));
 	}
 	
 	@Test
 	public void testGetPreallocateDocument() {
-		DBCollection coll = _database.getCollection("preallocateDocuments");
-		
 		for (int i=0; i<MongoManager.MAX_VALUE_SIZE; i++) {
-			coll.insert(MongoManager.getPreallocatedDocument(i));
+			DBObject document = MongoManager.getPreallocatedDocument(i);
+			assertEquals(MongoManager.placeholder(ValueType.STRING, i+1), 
+					getSecond(document, 23, 59, 59));
+			assertEquals(24, ((DBObject) document.get("hourly")).keySet().size());
 		}
 	}
 	
 	@Test
 	public void testGetPreallocateDocument2() {
-		DBCollection coll = _database.getCollection("preallocateDocuments2");
-		
-		DocumentID documentID = new DocumentID(2012, 2, 28, "DA41", "LLC", 
+		DocumentID documentID = new DocumentID(2012, 2, 28, "DA43", "LLC", 
 				"POL_MON1");
 		Metadata metadata = new Metadata(documentID, "ASDF Property", "TFING",
 				"as76d6fh", 2, MongoManager.DEFAULT_PREALLOCATE_TIME);
 		
 		for (int i=0; i<MongoManager.MAX_VALUE_SIZE; i++) {
-			coll.insert(MongoManager.getPreallocatedDocument(metadata,i));
+			DBObject document = MongoManager.getPreallocatedDocument(metadata,i);
+			assertEquals(documentID.toString(), document.get("_id"));
+			assertEquals("as76d6fh", 
+					((DBObject) document.get("metadata")).get("serialNumber"));
+			// The shared document is copied
+			assertNull(MongoManager.getPreallocatedDocument(i).get("_id"));
 		}
 	}
+
+	@Test
+	public void testWriteStage() {
+		MonitorEvent event = new MonitorEvent();
+		event.load(legacyRecord(date(2012, 8, 30, 5, 0, 0), "DV11",
+				"POL_MON_WRITERS", "1.5"));
+
+		new TransformHandler(2).onEvent(event, 0, true);
+		assertTrue(event.isValid());
+		DocumentID documentID = event.getSample().getMetadata().getDocumentID();
+		int writer = TransformHandler.getWriter(documentID, 2);
+		assertEquals(writer, event.getWriter());
+
+		// Only the writer assigned by the transform stage upserts the sample
+		MongoManager.eventHandlerFactory(1-writer, 2).onEvent(event, 0, true);
+		assertNull(storage.findOne(documentID));
+		MongoManager.eventHandlerFactory(writer, 2).onEvent(event, 0, true);
+		assertNotNull(storage.findOne(documentID));
+
+		event.clear();
+		assertEquals(0, event.getWriter());
+	}
 }
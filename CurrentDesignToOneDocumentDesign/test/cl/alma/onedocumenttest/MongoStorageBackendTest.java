@@ -0,0 +1,133 @@
+package cl.alma.onedocumenttest;
+
+import static org.junit.Assert.*;
+
+import java.net.UnknownHostException;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.Mongo;
+
+import cl.alma.onedocument.DocumentID;
+import cl.alma.onedocument.Metadata;
+import cl.alma.onedocument.MongoManager;
+import cl.alma.onedocument.MongoStorageBackend;
+
+/**
+ * Checks of the MongoDB driver, they need a mongod on localhost. The rest
+ * of MongoManager is tested over an InMemoryStorageBackend, see 
+ * MongoManagerTest.
+ */
+public class MongoStorageBackendTest {
+
+	private static MongoManager mongo;
+	private static Mongo _mongo = null;
+	private static DB _database = null;
+
+	@BeforeClass
+	public static void setup() {
+		
+		try {
+			_mongo = new Mongo("localhost");
+			_database = _mongo.getDB("JUnitTest");
+		} catch (UnknownHostException e) {
+			fail("Cannot connect to MongoDB instance");
+		}
+		
+		MongoManager.setConnection(_mongo, _database);
+		
+		mongo = MongoManager.mongoManagerFactory(null);
+	}
+	
+	@AfterClass
+	public static void clean() {
+		if (mongo!=null)
+			mongo.close();
+	}
+	
+	@Test
+	public void testGetCollection() {
+		DocumentID doc1 = new DocumentID(2012, 12, 30, "CM02", "LLC", "POL_MON4");
+		DocumentID doc2 = new DocumentID(2012, 7, 23, "CM10", "LLC", "POL_MON1");
+		DocumentID doc3 = new DocumentID(2012, 10, 1, "DV10", "LLC", "POL_MON4");
+		
+		DBCollection coll1 = mongo.getCollection(doc1);
+		DBCollection coll2 = mongo.getCollection(doc2);
+		DBCollection coll3 = mongo.getCollection(doc3);
+
+		String[] generatedNames = new String[3];
+		generatedNames[0] = coll1.getName();
+		generatedNames[1] = coll2.getName();
+		generatedNames[2] = coll3.getName();
+
+		String[] expectedNames = new String[3];
+		expectedNames[0] = "monitorData_12_2012";
+		expectedNames[1] = "monitorData_7_2012";
+		expectedNames[2] = "monitorData_10_2012";
+		
+		assertArrayEquals(expectedNames, generatedNames);
+	}
+
+	@Test
+	public void testInsertPreallocatedDocuments() {
+		DBCollection coll = _database.getCollection("preallocateDocuments2");
+		coll.drop();
+		
+		DocumentID documentID = new DocumentID(2012, 2, 28, "DA41", "LLC", 
+				"POL_MON1");
+		Metadata metadata = new Metadata(documentID, "ASDF Property", "TFING",
+				"as76d6fh", 2, MongoManager.DEFAULT_PREALLOCATE_TIME);
+		
+		// The largest preallocated document fits into a BSON document
+		BasicDBObject document = MongoManager.getPreallocatedDocument(metadata,
+				MongoManager.MAX_VALUE_SIZE-1);
+		coll.insert(document);
+		DBObject read = coll.findOne(new BasicDBObject("_id", documentID.toString()));
+		assertEquals(((DBObject) document.get("metadata")).toMap(), 
+				((DBObject) read.get("metadata")).toMap());
+	}
+	
+	@Test
+	public void testDeferIndexes() {
+		MongoStorageBackend storage = (MongoStorageBackend) MongoManager.getStorage();
+		storage.dropCollection(1, 2010);
+		DocumentID documentID = new DocumentID(2010, 1, 5, "DA41", "LLC", 
+				"POL_MON1");
+		DocumentID existingID = new DocumentID(2012, 12, 30, "CM02", "LLC", 
+				"POL_MON4");
+		storage.getCollection(existingID);
+		
+		storage.setDeferIndexes(true);
+		try {
+			DBCollection coll = storage.getCollection(documentID);
+			coll.insert(new BasicDBObject("_id", documentID.toString()));
+			assertTrue(storage.getPendingIndexes().contains(coll.getName()));
+			assertFalse(hasIndex(coll));
+			
+			// The existing collections keep their index
+			DBCollection existing = storage.getCollection(existingID);
+			assertTrue(hasIndex(existing));
+			assertFalse(storage.getPendingIndexes().contains(existing.getName()));
+		} finally {
+			storage.setDeferIndexes(false);
+		}
+		
+		assertTrue(storage.buildPendingIndexes()>=1);
+		assertTrue(storage.getPendingIndexes().isEmpty());
+		assertTrue(hasIndex(storage.getCollection(documentID)));
+	}
+	
+	private static boolean hasIndex(DBCollection coll) {
+		for (DBObject index : coll.getIndexInfo()) {
+			if (MongoStorageBackend.INDEX_NAME.equals(index.get("name")))
+				return true;
+		}
+		return false;
+	}
+}
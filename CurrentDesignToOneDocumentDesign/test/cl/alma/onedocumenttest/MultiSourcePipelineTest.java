@@ -0,0 +1,82 @@
+package cl.alma.onedocumenttest;
+
+import static org.junit.Assert.*;
+import static cl.alma.onedocumenttest.LegacyRecords.date;
+import static cl.alma.onedocumenttest.LegacyRecords.legacyRecord;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import cl.alma.onedocument.DocumentID;
+import cl.alma.onedocument.InMemoryStorageBackend;
+import cl.alma.onedocument.MongoManager;
+import cl.alma.onedocument.MultiSourcePipeline;
+
+import com.mongodb.DBObject;
+
+public class MultiSourcePipelineTest {
+
+	private InMemoryStorageBackend storage;
+
+	@Before
+	public void setup() {
+		storage = new InMemoryStorageBackend();
+		MongoManager.setStorage(storage);
+	}
+
+	private static List<DBObject> legacyRecords(String antenna, int count) {
+		List<DBObject> records = new ArrayList<DBObject>();
+		for (int i=0; i<count; i++) {
+			records.add(legacyRecord(date(2012, 10, 20, 5, i/60, i%60), antenna,
+					Integer.toString(i)));
+		}
+		return records;
+	}
+
+	@Test
+	public void testSeveralSources() throws InterruptedException {
+		MultiSourcePipeline pipeline = new MultiSourcePipeline(2, 10, 2);
+		MultiSourcePipeline.Source first = pipeline.addSource("first",
+				legacyRecords("DV10", 95).iterator());
+		MultiSourcePipeline.Source second = pipeline.addSource("second",
+				legacyRecords("DV11", 30).iterator());
+		// A failed source does not stop the others
+		MultiSourcePipeline.Source failed = pipeline.addSource("failed",
+				new Iterator<DBObject>() {
+					@Override
+					public boolean hasNext() {
+						throw new IllegalStateException("Connection lost");
+					}
+
+					@Override
+					public DBObject next() {
+						return null;
+					}
+
+					@Override
+					public void remove() {
+					}
+				});
+		pipeline.run();
+
+		assertEquals(95, first.getRecordCount());
+		assertEquals(10, first.getBatchCount());
+		assertEquals(30, second.getRecordCount());
+		assertTrue(second.getRecordsPerSecond()>0);
+		assertNotNull(failed.getFailure());
+		assertEquals(0, failed.getRecordCount());
+
+		// Three hours of difference with the server of mongo
+		DBObject document = storage.findOne(new DocumentID(2012, 11, 20, "DV10",
+				"LLC", "POL_MON4"));
+		DBObject hourly = (DBObject) document.get("hourly");
+		DBObject seconds = (DBObject) ((DBObject) hourly.get("8")).get("1");
+		assertEquals(94.0, ((Number) seconds.get("34")).doubleValue(), 0);
+		assertNotNull(storage.findOne(new DocumentID(2012, 11, 20, "DV11",
+				"LLC", "POL_MON4")));
+	}
+}
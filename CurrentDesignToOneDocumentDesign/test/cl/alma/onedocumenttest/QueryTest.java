@@ -0,0 +1,116 @@
+package cl.alma.onedocumenttest;
+
+import static org.junit.Assert.*;
+import static cl.alma.onedocumenttest.LegacyRecords.date;
+import static cl.alma.onedocumenttest.LegacyRecords.legacyRecord;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.junit.Test;
+
+import cl.alma.onedocument.MonitorEvent;
+import cl.alma.onedocument.Query;
+import cl.alma.onedocument.RingBuffer;
+
+import com.mongodb.DBObject;
+
+public class QueryTest {
+
+	@Test
+	public void testMalformedRecord() {
+		List<DBObject> records = new ArrayList<DBObject>();
+		records.add(legacyRecord(date(2012, 8, 30, 5, 0, 0), "DV10", "1.5"));
+		// The legacy values are strings
+		records.add(legacyRecord(date(2012, 8, 30, 5, 0, 1), "DV10", 2.5));
+		records.add(legacyRecord(date(2012, 8, 30, 5, 0, 2), "DV10", "3.5"));
+
+		RingBuffer<MonitorEvent> ring = new RingBuffer<MonitorEvent>(
+				MonitorEvent.FACTORY, 4);
+		// A slot of a previous lap
+		ring.get(1).load(legacyRecord(date(2012, 8, 30, 5, 0, 5), "DV10", "9.5"));
+
+		assertEquals(2, Query.exportData(records.iterator(), ring));
+		assertEquals(2, ring.getCursor().get());
+		assertTrue(ring.get(0).isLoaded());
+		assertFalse(ring.get(1).isLoaded());
+		assertNull(ring.get(1).getMonitorValue());
+		assertFalse(ring.get(1).isValid());
+		assertEquals("3.5", ring.get(2).getMonitorValue());
+	}
+
+	@Test
+	public void testExportBatches() throws InterruptedException {
+		List<DBObject> records = new ArrayList<DBObject>();
+		for (int i=0; i<23; i++) {
+			records.add(legacyRecord(date(2012, 8, 30, 5, i/60, i%60), "DV10",
+					Integer.toString(i)));
+		}
+
+		BlockingQueue<List<DBObject>> batches = 
+				new LinkedBlockingQueue<List<DBObject>>();
+		assertEquals(23, Query.exportBatches(records.iterator(), batches, 10));
+
+		// Two full batches and the rest, in order, and nothing after them
+		assertEquals(3, batches.size());
+		int n = 0;
+		int[] sizes = {10, 10, 3};
+		for (int size : sizes) {
+			List<DBObject> batch = batches.take();
+			assertEquals(size, batch.size());
+			for (DBObject record : batch) {
+				assertEquals(Integer.toString(n++), record.get("monitorValue"));
+			}
+		}
+		assertTrue(batches.isEmpty());
+
+		// No records, no batches
+		assertEquals(0, Query.exportBatches(new ArrayList<DBObject>().iterator(),
+				batches, 10));
+		assertTrue(batches.isEmpty());
+	}
+
+	@Test
+	public void testExportBatchesFailure() throws InterruptedException {
+		final List<DBObject> records = new ArrayList<DBObject>();
+		for (int i=0; i<5; i++) {
+			records.add(legacyRecord(date(2012, 8, 30, 5, i/60, i%60), "DV10",
+					Integer.toString(i)));
+		}
+		// A cursor that fails after the fifth record
+		Iterator<DBObject> failing = new Iterator<DBObject>() {
+			private int next = 0;
+
+			@Override
+			public boolean hasNext() {
+				if (next==records.size())
+					throw new IllegalStateException("Connection lost");
+				return true;
+			}
+
+			@Override
+			public DBObject next() {
+				return records.get(next++);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+
+		BlockingQueue<List<DBObject>> batches = 
+				new LinkedBlockingQueue<List<DBObject>>();
+		try {
+			Query.exportBatches(failing, batches, 2);
+			fail("The failure of the cursor must be thrown");
+		} catch (IllegalStateException e) {
+			assertEquals("Connection lost", e.getMessage());
+		}
+		// The full batches read before the failure are queued
+		assertEquals(2, batches.size());
+	}
+}
@@ -0,0 +1,93 @@
+package cl.alma.onedocumenttest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import cl.alma.onedocument.DocumentID;
+import cl.alma.onedocument.Metadata;
+import cl.alma.onedocument.MongoManager;
+import cl.alma.onedocument.ReorderBuffer;
+import cl.alma.onedocument.Sample;
+
+public class ReorderBufferTest {
+
+	private List<List<Sample>> batches;
+	private ReorderBuffer.Sink sink;
+	private Metadata metadata1;
+	private Metadata metadata2;
+
+	@Before
+	public void setup() {
+		batches = new ArrayList<List<Sample>>();
+		sink = new ReorderBuffer.Sink() {
+			@Override
+			public void flush(List<Sample> samples) {
+				batches.add(new ArrayList<Sample>(samples));
+			}
+		};
+
+		metadata1 = new Metadata(new DocumentID(2012, 9, 30, "DV10", "LLC", 
+				"POL_MON1"), "p", "l", "s", 0, MongoManager.DEFAULT_PREALLOCATE_TIME);
+		metadata2 = new Metadata(new DocumentID(2012, 9, 30, "DV10", "LLC", 
+				"POL_MON2"), "p", "l", "s", 0, MongoManager.DEFAULT_PREALLOCATE_TIME);
+	}
+
+	@Test
+	public void testChronologicalBatches() {
+		ReorderBuffer buffer = new ReorderBuffer(sink, 1000, 100, 100);
+
+		buffer.add(new Sample(metadata1, 10, 0, 5, 1L), 0);
+		buffer.add(new Sample(metadata2, 3, 0, 0, 2L), 10);
+		buffer.add(new Sample(metadata1, 9, 59, 59, 3L), 20);
+		buffer.add(new Sample(metadata1, 10, 0, 1, 4L), 1500);
+
+		buffer.flushExpired(999);
+		assertEquals(0, batches.size());
+
+		// Only the first document has expired
+		buffer.flushExpired(1005);
+		assertEquals(1, batches.size());
+		assertEquals(1, buffer.getDocumentCount());
+
+		List<Sample> batch = batches.get(0);
+		assertEquals(3, batch.size());
+		assertEquals(3L, batch.get(0).getLongValue());
+		assertEquals(4L, batch.get(1).getLongValue());
+		assertEquals(1L, batch.get(2).getLongValue());
+
+		buffer.flushAll();
+		assertEquals(2, batches.size());
+		assertEquals(0, buffer.size());
+	}
+
+	@Test
+	public void testEarlyFlush() {
+		ReorderBuffer buffer = new ReorderBuffer(sink, 1000, 4, 3);
+
+		// The batch size limit flushes the document
+		for (int i=0; i<3; i++) {
+			buffer.add(new Sample(metadata1, 0, 0, i, (long) i), 0);
+		}
+		assertEquals(1, batches.size());
+		assertEquals(0, buffer.size());
+
+		// The sample limit flushes the oldest documents
+		buffer = new ReorderBuffer(sink, 1000, 4, 100);
+		buffer.add(new Sample(metadata1, 0, 1, 0, 0L), 0);
+		buffer.add(new Sample(metadata2, 0, 1, 0, 0L), 0);
+		buffer.add(new Sample(metadata2, 0, 1, 1, 0L), 0);
+		buffer.add(new Sample(metadata1, 0, 1, 1, 0L), 0);
+		assertEquals(1, batches.size());
+		buffer.add(new Sample(metadata2, 0, 1, 2, 0L), 0);
+		// Oldest first, until half of the samples have been flushed
+		assertEquals(3, batches.size());
+		assertEquals(metadata1, batches.get(1).get(0).getMetadata());
+		assertEquals(metadata2, batches.get(2).get(0).getMetadata());
+		assertEquals(0, buffer.size());
+	}
+}
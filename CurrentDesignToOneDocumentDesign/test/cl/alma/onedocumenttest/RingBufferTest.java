@@ -0,0 +1,90 @@
+package cl.alma.onedocumenttest;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import cl.alma.onedocument.BatchEventProcessor;
+import cl.alma.onedocument.EventHandler;
+import cl.alma.onedocument.RingBuffer;
+import cl.alma.onedocument.Sequence;
+import cl.alma.onedocument.SequenceBarrier;
+
+public class RingBufferTest {
+
+	private static class LongEvent {
+		long value;
+		long doubled;
+	}
+
+	private static final RingBuffer.EventFactory<LongEvent> FACTORY = 
+			new RingBuffer.EventFactory<LongEvent>() {
+		@Override
+		public LongEvent newInstance() {
+			return new LongEvent();
+		}
+	};
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testSizeNotPowerOfTwo() {
+		new RingBuffer<LongEvent>(FACTORY, 10);
+	}
+
+	@Test
+	public void testSlotsAreReused() {
+		RingBuffer<LongEvent> ring = new RingBuffer<LongEvent>(FACTORY, 4);
+		assertSame(ring.get(1), ring.get(5));
+		assertNotSame(ring.get(1), ring.get(2));
+	}
+
+	@Test
+	public void testTwoStagePipeline() throws InterruptedException {
+		final int events = 100000;
+		RingBuffer<LongEvent> ring = new RingBuffer<LongEvent>(FACTORY, 64);
+
+		BatchEventProcessor<LongEvent> first = new BatchEventProcessor<LongEvent>(
+				ring, ring.newBarrier(), new EventHandler<LongEvent>() {
+			@Override
+			public void onEvent(LongEvent event, long sequence, boolean endOfBatch) {
+				event.doubled = event.value*2;
+			}
+		});
+
+		final long[] sum = new long[1];
+		final int[] batches = new int[1];
+		SequenceBarrier barrier = ring.newBarrier(first.getSequence());
+		BatchEventProcessor<LongEvent> second = new BatchEventProcessor<LongEvent>(
+				ring, barrier, new EventHandler<LongEvent>() {
+			@Override
+			public void onEvent(LongEvent event, long sequence, boolean endOfBatch) {
+				sum[0] += event.doubled;
+				if (endOfBatch)
+					batches[0]++;
+			}
+		});
+		ring.setGatingSequences(second.getSequence());
+
+		Thread t1 = new Thread(first);
+		Thread t2 = new Thread(second);
+		t1.start();
+		t2.start();
+
+		for (int i=0; i<events; i++) {
+			long sequence = ring.next();
+			ring.get(sequence).value = i;
+			ring.publish(sequence);
+		}
+
+		Sequence last = second.getSequence();
+		while (last.get()<events-1) {
+			Thread.sleep(1);
+		}
+		first.halt();
+		second.halt();
+		t1.join();
+		t2.join();
+
+		assertEquals((long) events*(events-1), sum[0]);
+		assertTrue(batches[0]>0 && batches[0]<=events);
+	}
+}
@@ -0,0 +1,111 @@
+package cl.alma.onedocumenttest;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONDecoder;
+import org.bson.io.BasicOutputBuffer;
+import org.junit.Test;
+
+import cl.alma.onedocument.DocumentID;
+import cl.alma.onedocument.Metadata;
+import cl.alma.onedocument.Sample;
+import cl.alma.onedocument.SampleEncoder;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+public class SampleEncoderTest {
+
+	private static final Metadata METADATA = new Metadata(
+			new DocumentID(2012, 9, 30, "DV10", "LLC", "POL_MON4"), "POL_MON",
+			"TFING", "as76d6fh", 2, 1);
+
+	private static BSONObject encode(DBObject object) {
+		BasicOutputBuffer buffer = new BasicOutputBuffer();
+		int size = SampleEncoder.INSTANCE.writeObject(buffer, object);
+		assertEquals(buffer.size(), size);
+		return new BasicBSONDecoder().readObject(buffer.toByteArray());
+	}
+
+	@Test
+	public void testQuery() {
+		List<Sample> samples = Collections.singletonList(
+				new Sample(METADATA, 23, 59, 59, 1.5));
+		DBObject query = SampleEncoder.query(samples);
+
+		// Only the _id is matched
+		BSONObject expected = new BasicDBObject("_id", "2012930/DV10/LLC/POL_MON4");
+		assertEquals(expected.toMap(), encode(query).toMap());
+		assertEquals(expected.toMap(), query.toMap());
+	}
+
+	@Test
+	public void testInsertMetadata() {
+		List<Sample> samples = Collections.singletonList(
+				new Sample(METADATA, 23, 59, 59, 1.5));
+		DBObject update = SampleEncoder.update(samples, true);
+
+		BSONObject expected = new BasicDBObject("$set", 
+				new BasicDBObject("hourly.23.59.59", 1.5))
+				.append("$setOnInsert", new BasicDBObject("metadata", 
+				new BasicDBObject("date", "2012-9-30")
+				.append("antenna", "DV10").append("component", "LLC")
+				.append("property", "POL_MON").append("monitorPoint", "POL_MON4")
+				.append("location", "TFING").append("serialNumber", "as76d6fh")
+				.append("index", 2).append("sampleTime", 1)));
+		assertEquals(expected.toMap(), encode(update).toMap());
+		assertEquals(expected.toMap(), update.toMap());
+		assertEquals(expected.keySet(), update.keySet());
+	}
+
+	@Test
+	public void testUpdate() {
+		List<Sample> samples = Arrays.asList(
+				new Sample(METADATA, 0, 0, 0, 1.5),
+				new Sample(METADATA, 12, 30, 5, 42L),
+				new Sample(METADATA, 23, 59, 59, true),
+				new Sample(METADATA, 12, 30, 6, "señal"),
+				// The last sample of a second is written
+				new Sample(METADATA, 0, 0, 0, 2.5));
+		DBObject update = SampleEncoder.update(samples, false);
+		assertEquals(Collections.singleton("$set"), update.keySet());
+
+		BSONObject sets = (BSONObject) encode(update).get("$set");
+		assertEquals(4, sets.keySet().size());
+		assertEquals(2.5, sets.get("hourly.0.0.0"));
+		assertEquals(42L, sets.get("hourly.12.30.5"));
+		// The booleans are stored as int32
+		assertEquals(1, sets.get("hourly.23.59.59"));
+		assertEquals("señal", sets.get("hourly.12.30.6"));
+		assertEquals(sets.toMap(), ((BSONObject) update.get("$set")).toMap());
+
+		// The encoder can be used again by the same thread
+		sets = (BSONObject) encode(SampleEncoder.update(samples.subList(0, 2), false)).get("$set");
+		assertEquals(2, sets.keySet().size());
+	}
+
+	@Test
+	public void testSeveralDays() {
+		// The hours of the next days of a week or month document
+		List<Sample> samples = Arrays.asList(
+				new Sample(METADATA, 24, 0, 0, 1.5),
+				new Sample(METADATA, 743, 59, 59, 2.5));
+		DBObject update = SampleEncoder.update(samples, false);
+
+		BSONObject sets = (BSONObject) encode(update).get("$set");
+		assertEquals(1.5, sets.get("hourly.24.0.0"));
+		assertEquals(2.5, sets.get("hourly.743.59.59"));
+		assertEquals(sets.toMap(), ((BSONObject) update.get("$set")).toMap());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidTime() {
+		encode(SampleEncoder.update(Collections.singletonList(
+				new Sample(METADATA, 31*24, 0, 0, 1.5)), false));
+	}
+}
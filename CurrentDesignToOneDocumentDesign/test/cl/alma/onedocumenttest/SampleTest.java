@@ -0,0 +1,141 @@
+package cl.alma.onedocumenttest;
+
+import static org.junit.Assert.*;
+import static cl.alma.onedocumenttest.LegacyRecords.date;
+import static cl.alma.onedocumenttest.LegacyRecords.legacyRecord;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import cl.alma.onedocument.DocumentID;
+import cl.alma.onedocument.Metadata;
+import cl.alma.onedocument.MongoManager;
+import cl.alma.onedocument.Sample;
+import cl.alma.onedocument.ValueType;
+
+public class SampleTest {
+
+	private Metadata metadata;
+
+	@Before
+	public void setup() {
+		DocumentID id = new DocumentID(2012, 9, 23, "DV10", "LLC", "POL_MON4");
+		metadata = new Metadata(id, "ASDF Property", "TFING", "as76d6fh", 2,
+				MongoManager.DEFAULT_PREALLOCATE_TIME);
+	}
+
+	@Test
+	public void testInfer() {
+		String[] values = {"12", "-7", "0", "1.5", "-0.25", "3e10", "2.5E-3",
+				"true", "false", "6,896", "0012", "1.", ".5", "NaN", "0x1F",
+				"1.5d", "", "OPEN", "1234567890123456789", "1.50", "-0", 
+				"2.5E-4", "1.0E10", "-0.0", "0.0025"};
+		ValueType[] expected = {ValueType.LONG, ValueType.LONG, ValueType.LONG,
+				ValueType.DOUBLE, ValueType.DOUBLE, ValueType.STRING,
+				ValueType.STRING, ValueType.BOOLEAN, ValueType.BOOLEAN,
+				ValueType.STRING, ValueType.STRING, ValueType.STRING,
+				ValueType.STRING, ValueType.STRING, ValueType.STRING,
+				ValueType.STRING, ValueType.STRING, ValueType.STRING,
+				ValueType.STRING, ValueType.STRING, ValueType.STRING,
+				ValueType.DOUBLE, ValueType.DOUBLE, ValueType.DOUBLE,
+				ValueType.DOUBLE};
+
+		ValueType[] actual = new ValueType[values.length];
+		for (int i=0; i<values.length; i++) {
+			actual[i] = ValueType.infer(values[i]);
+		}
+
+		assertArrayEquals(expected, actual);
+
+		// The converted values print back to the same text
+		for (int i=0; i<values.length; i++) {
+			assertEquals(values[i], Sample.parse(metadata, 0, 0, 0, 
+					values[i]).getValue());
+		}
+	}
+
+	@Test
+	public void testParse() {
+		Sample sample = Sample.parse(metadata, 1, 2, 3, "42");
+		assertEquals(ValueType.LONG, sample.getValueType());
+		assertEquals(Long.valueOf(42), sample.getTypedValue());
+
+		sample.parseValue("0.5");
+		assertEquals(ValueType.DOUBLE, sample.getValueType());
+		assertEquals(Double.valueOf(0.5), sample.getTypedValue());
+
+		sample.parseValue("true");
+		assertEquals(ValueType.BOOLEAN, sample.getValueType());
+		assertEquals(Integer.valueOf(1), sample.getTypedValue());
+		sample.parseValue("false");
+		assertEquals(Integer.valueOf(0), sample.getTypedValue());
+		assertFalse(MongoManager.isPlaceholder(sample.getTypedValue()));
+
+		sample.parseValue("6,896");
+		assertEquals(ValueType.STRING, sample.getValueType());
+		assertEquals("6,896", sample.getTypedValue());
+		assertEquals("6,896", sample.getValue());
+	}
+
+	@Test
+	public void testParseWithType() {
+		Sample sample = new Sample();
+		sample.parseValue("2", ValueType.DOUBLE);
+		// "2.0" would not print back as "2"
+		assertEquals(ValueType.STRING, sample.getValueType());
+		assertEquals("2", sample.getValue());
+
+		sample.parseValue("2.0", ValueType.DOUBLE);
+		assertEquals(Double.valueOf(2), sample.getTypedValue());
+
+		sample.parseValue("1.50", ValueType.DOUBLE);
+		assertEquals("1.50", sample.getTypedValue());
+
+		sample.parseValue("7", ValueType.STRING);
+		assertEquals("7", sample.getTypedValue());
+	}
+
+	@Test
+	public void testValueTypePerMonitorPoint() {
+		MongoManager.setValueTypes(new HashMap<String, ValueType>());
+		assertEquals(ValueType.LONG, MongoManager.getValueType("DV10", "LLC",
+				"POL_MON4", "3"));
+		// The first value chooses the type of the monitor point
+		assertEquals(ValueType.LONG, MongoManager.getValueType("DV10", "LLC",
+				"POL_MON4", "1.5"));
+		assertEquals(ValueType.DOUBLE, MongoManager.getValueType("DV11", "LLC",
+				"POL_MON4", "1.5"));
+
+		Map<String, ValueType> types = new HashMap<String, ValueType>();
+		types.put("DV10/LLC/POL_MON4", ValueType.STRING);
+		MongoManager.setValueTypes(types);
+		assertEquals(ValueType.STRING, MongoManager.getValueType("DV10", "LLC",
+				"POL_MON4", "3"));
+		MongoManager.setValueTypes(new HashMap<String, ValueType>());
+
+		// A value that does not fit the type of its monitor point is kept 
+		// as text, and the documents are preallocated with the type
+		Sample first = MongoManager.toSample(legacyRecord(date(2012, 8, 23, 5, 0, 0), "DV10", "3"));
+		Sample second = MongoManager.toSample(legacyRecord(date(2012, 8, 23, 5, 0, 0), "DV10", "1.5"));
+		assertEquals(Long.valueOf(3), first.getTypedValue());
+		assertEquals("1.5", second.getTypedValue());
+		assertEquals(ValueType.LONG, second.getMetadata().getValueType());
+		MongoManager.setValueTypes(new HashMap<String, ValueType>());
+	}
+
+	@Test
+	public void testPlaceholderKeepsType() {
+		assertTrue(MongoManager.placeholder(ValueType.DOUBLE, 0) instanceof Double);
+		assertTrue(MongoManager.placeholder(ValueType.LONG, 0) instanceof Long);
+		// The booleans are stored as int32, so false is not a placeholder
+		assertTrue(MongoManager.placeholder(ValueType.BOOLEAN, 0) instanceof Integer);
+		assertTrue(MongoManager.isPlaceholder(MongoManager.placeholder(
+				ValueType.BOOLEAN, 0)));
+		assertFalse(MongoManager.isPlaceholder(Integer.valueOf(0)));
+		assertFalse(MongoManager.isPlaceholder(Boolean.FALSE));
+		assertEquals("naaa", MongoManager.placeholder(ValueType.STRING, 4));
+	}
+}
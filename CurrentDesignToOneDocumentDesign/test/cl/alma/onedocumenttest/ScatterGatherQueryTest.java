@@ -0,0 +1,124 @@
+package cl.alma.onedocumenttest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import cl.alma.onedocument.DocumentID;
+import cl.alma.onedocument.Granularity;
+import cl.alma.onedocument.InMemoryStorageBackend;
+import cl.alma.onedocument.ScatterGatherQuery;
+
+import com.mongodb.BasicDBObject;
+
+public class ScatterGatherQueryTest {
+
+	private InMemoryStorageBackend storage;
+	private ScatterGatherQuery query;
+
+	@Before
+	public void setup() {
+		storage = new InMemoryStorageBackend();
+		query = new ScatterGatherQuery(storage, 2, 1);
+	}
+
+	@After
+	public void clean() {
+		query.close();
+	}
+
+	private DocumentID insert(int year, int month, int day, String antenna,
+			String monitorPoint, Granularity granularity) {
+		DocumentID id = new DocumentID(year, month, day, antenna, "LLC",
+				monitorPoint, granularity);
+		storage.getCollectionName(id);
+		storage.insert(id, new BasicDBObject("_id", id.toString()));
+		return id;
+	}
+
+	private static List<String> ids(ScatterGatherQuery.Result result) {
+		List<String> ids = new ArrayList<String>();
+		while (result.hasNext()) {
+			ids.add((String) result.next().get("_id"));
+		}
+		return ids;
+	}
+
+	@Test
+	public void testFindInTimeOrder() {
+		// Inserted out of order, three months and a week document that
+		// begins before the range
+		DocumentID december = insert(2012, 12, 2, "DV10", "POL_MON4", Granularity.DAY);
+		DocumentID october = insert(2012, 10, 30, "DV10", "POL_MON4", Granularity.DAY);
+		DocumentID week = insert(2012, 10, 29, "DV11", "POL_MON4", Granularity.WEEK);
+		DocumentID november = insert(2012, 11, 15, "DV10", "POL_MON4", Granularity.DAY);
+		DocumentID monthDocument = insert(2012, 11, 20, "DV12", "POL_MON4", Granularity.MONTH);
+		// Other monitor points and days out of the range
+		insert(2012, 11, 15, "DA41", "POL_MON4", Granularity.DAY);
+		insert(2012, 11, 15, "DV10", "POL_MON3", Granularity.DAY);
+		insert(2012, 10, 29, "DV10", "POL_MON4", Granularity.DAY);
+		insert(2012, 12, 3, "DV10", "POL_MON4", Granularity.DAY);
+
+		Date from = new GregorianCalendar(2012, 9, 30).getTime();
+		Date to = new GregorianCalendar(2012, 11, 2).getTime();
+		List<String> ids = ids(query.find(from, to, "DV", null, "POL_MON4"));
+
+		// The documents of the same day are not sorted
+		assertEquals(5, ids.size());
+		assertTrue(ids.subList(0, 2).containsAll(Arrays.asList(week.toString(),
+				october.toString())));
+		assertEquals(Arrays.asList(monthDocument.toString(), november.toString(),
+				december.toString()), ids.subList(2, 5));
+	}
+
+	@Test
+	public void testTimeOfTheDays() {
+		DocumentID may = insert(2012, 5, 20, "DV10", "POL_MON4", Granularity.DAY);
+		DocumentID june = insert(2012, 6, 1, "DV10", "POL_MON4", Granularity.DAY);
+
+		// The last month is read although its day begins before the time 
+		// of the first one
+		Date from = new GregorianCalendar(2012, 4, 20, 10, 0).getTime();
+		Date to = new GregorianCalendar(2012, 5, 1, 0, 0).getTime();
+		assertEquals(Arrays.asList(may.toString(), june.toString()), 
+				ids(query.find(from, to, "DV", null, "POL_MON4")));
+	}
+
+	@Test
+	public void testIdPattern() {
+		assertTrue(ScatterGatherQuery.idPattern("DV", "LLC", "POL_MON4")
+				.matcher("20121115W/DV10/LLC/POL_MON4").find());
+		assertFalse(ScatterGatherQuery.idPattern("DV", "LLC", "POL_MON4")
+				.matcher("20121115/DV10/LLC/POL_MON41").find());
+		assertTrue(ScatterGatherQuery.idPattern(null, null, null)
+				.matcher("20121115/DA41/LLC/POL_MON4").find());
+	}
+
+	@Test
+	public void testClose() {
+		for (int day=1; day<=5; day++) {
+			insert(2012, 11, day, "DV10", "POL_MON4", Granularity.DAY);
+			insert(2012, 12, day, "DV10", "POL_MON4", Granularity.DAY);
+		}
+
+		ScatterGatherQuery.Result result = query.find(
+				new GregorianCalendar(2012, 10, 1).getTime(),
+				new GregorianCalendar(2012, 11, 5).getTime(), null, null, null);
+		assertTrue(result.hasNext());
+		result.next();
+		// The sub-queries waiting in their buffers are cancelled
+		result.close();
+		assertFalse(result.hasNext());
+
+		assertEquals(10, ids(query.find(new GregorianCalendar(2012, 10, 1).getTime(),
+				new GregorianCalendar(2012, 11, 5).getTime(), null, null, null)).size());
+	}
+}
@@ -0,0 +1,163 @@
+package cl.alma.onedocumenttest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import cl.alma.onedocument.ArchivingStorageBackend;
+import cl.alma.onedocument.DocumentID;
+import cl.alma.onedocument.InMemoryStorageBackend;
+import cl.alma.onedocument.SegmentArchive;
+
+public class SegmentArchiveTest {
+
+	private static final String NAME = "monitorData_9_2012";
+
+	private File directory;
+
+	@Before
+	public void setup() {
+		directory = new File(System.getProperty("java.io.tmpdir"), 
+				"SegmentArchiveTest_"+System.nanoTime());
+	}
+
+	@After
+	public void clean() {
+		File[] files = directory.listFiles();
+		if (files!=null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	private static DocumentID documentID(int i) {
+		return new DocumentID(2012, 9, 1, "DV10", "LLC", "MP_"+(1000+i));
+	}
+
+	private long writeArchive(int count) throws IOException {
+		// Small segments to force several segment files
+		SegmentArchive.Writer writer = new SegmentArchive.Writer(directory, 
+				NAME, 4096);
+		for (int i=0; i<count; i++) {
+			writer.append(new BasicDBObject("_id", documentID(i).toString())
+					.append("hourly", new BasicDBObject("0", 
+							new BasicDBObject("0", new BasicDBObject("0", i)))));
+		}
+		writer.finish();
+		return writer.getChecksum();
+	}
+
+	@Test
+	public void testWriteAndRead() throws IOException {
+		assertFalse(SegmentArchive.exists(directory, NAME));
+		writeArchive(1000);
+		assertTrue(SegmentArchive.exists(directory, NAME));
+		assertTrue(new File(directory, NAME+"_1.seg").isFile());
+
+		SegmentArchive archive = new SegmentArchive(directory, NAME);
+		assertEquals(1000, archive.getCount());
+
+		for (int i=0; i<1000; i++) {
+			DBObject document = archive.findOne(documentID(i).toString());
+			assertEquals(documentID(i).toString(), document.get("_id"));
+			DBObject hourly = (DBObject) document.get("hourly");
+			assertEquals(i, ((DBObject)((DBObject) hourly.get("0")).get("0")).get("0"));
+		}
+
+		assertNull(archive.findOne("2012101/DV10/LLC/MP_1000"));
+		assertFalse(archive.contains("0"));
+		assertFalse(archive.contains("zzz"));
+
+		assertEquals(1000, archive.findIds("201291/").size());
+		List<String> ids = archive.findIds("201291/DV10/LLC/MP_15");
+		assertEquals(100, ids.size());
+		assertEquals(documentID(500).toString(), ids.get(0));
+		assertTrue(archive.findIds("2012910/").isEmpty());
+		archive.close();
+	}
+
+	@Test
+	public void testChecksum() throws IOException {
+		long checksum = writeArchive(1000);
+
+		SegmentArchive archive = new SegmentArchive(directory, NAME);
+		assertEquals(checksum, archive.checksum());
+		archive.close();
+
+		// A damaged byte of a segment is found when the archive is read back
+		RandomAccessFile segment = new RandomAccessFile(new File(directory, 
+				NAME+"_0.seg"), "rw");
+		segment.seek(100);
+		int b = segment.read();
+		segment.seek(100);
+		segment.write(b ^ 0xff);
+		segment.close();
+
+		archive = new SegmentArchive(directory, NAME);
+		try {
+			assertTrue(checksum!=archive.checksum());
+		} catch (IOException e) {
+			// Also expected, the record cannot be inflated
+		} finally {
+			archive.close();
+		}
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testUnorderedAppend() throws IOException {
+		SegmentArchive.Writer writer = new SegmentArchive.Writer(directory, NAME);
+		try {
+			writer.append(new BasicDBObject("_id", "b"));
+			writer.append(new BasicDBObject("_id", "a"));
+		} finally {
+			writer.abort();
+		}
+	}
+
+	@Test
+	public void testArchivingStorageBackend() throws IOException {
+		writeArchive(10);
+
+		InMemoryStorageBackend memory = new InMemoryStorageBackend();
+		ArchivingStorageBackend storage = new ArchivingStorageBackend(memory,
+				directory);
+
+		assertTrue(storage.isDocumentCreated(documentID(3)));
+		assertNotNull(storage.findOne(documentID(3)));
+		assertEquals(NAME, storage.getCollectionName(documentID(3)));
+		assertFalse(memory.getCollectionNames().contains(NAME));
+
+		Iterator<DBObject> documents = storage.findDocuments(2012, 9, 1);
+		for (int i=0; i<10; i++) {
+			assertEquals(documentID(i).toString(), documents.next().get("_id"));
+		}
+		assertFalse(documents.hasNext());
+
+		// Months that are not archived are served by the delegate
+		DocumentID other = new DocumentID(2012, 10, 1, "DV10", "LLC", "MP_1");
+		storage.insert(other, new BasicDBObject("_id", other.toString()));
+		assertTrue(storage.isDocumentCreated(other));
+
+		try {
+			storage.insert(documentID(3), new BasicDBObject("_id", "x"));
+			fail("The archived months are read only");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+
+		storage.close();
+	}
+}
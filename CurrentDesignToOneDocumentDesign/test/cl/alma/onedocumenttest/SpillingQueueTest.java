@@ -0,0 +1,149 @@
+package cl.alma.onedocumenttest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import cl.alma.onedocument.SpillingQueue;
+
+public class SpillingQueueTest {
+
+	private File directory;
+	private SpillingQueue queue;
+
+	@Before
+	public void setup() {
+		directory = new File(System.getProperty("java.io.tmpdir"), 
+				"SpillingQueueTest_"+System.nanoTime());
+		// Small segments to force several segment files
+		queue = new SpillingQueue(10, directory, 1024);
+	}
+
+	@After
+	public void clean() {
+		queue.close();
+		directory.delete();
+	}
+
+	@Test
+	public void testSpillAndReplayInOrder() throws InterruptedException {
+		Date date = new Date(1348963200000L);
+
+		// The producer never blocks although the consumer is not running
+		for (int i=0; i<1000; i++) {
+			queue.put(new BasicDBObject("n", i).append("date", date)
+					.append("componentName", "CONTROL/DV10/LLC"));
+		}
+
+		assertTrue(queue.getSpilledCount()>0);
+		assertEquals(1000, queue.size());
+
+		for (int i=0; i<1000; i++) {
+			DBObject object = queue.take();
+			assertEquals(i, object.get("n"));
+			assertEquals(date, object.get("date"));
+			assertEquals("CONTROL/DV10/LLC", object.get("componentName"));
+		}
+
+		// The replay thread releases its last record after the put
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!queue.isEmpty() && System.currentTimeMillis()<deadline) {
+			Thread.sleep(1);
+		}
+
+		assertTrue(queue.isEmpty());
+		assertEquals(queue.getSpilledCount(), queue.getReplayedCount());
+		assertEquals(0, directory.list().length);
+	}
+
+	@Test
+	public void testRemainingCapacity() {
+		assertEquals(10, queue.remainingCapacity());
+		for (int i=0; i<3; i++) {
+			queue.put(new BasicDBObject("n", i));
+		}
+		assertEquals(7, queue.remainingCapacity());
+
+		// The records beyond the memory queue go to disk
+		for (int i=3; i<20; i++) {
+			queue.put(new BasicDBObject("n", i));
+		}
+		assertEquals(0, queue.remainingCapacity());
+		assertEquals(20, queue.size());
+	}
+
+	@Test
+	public void testTimedOffer() throws InterruptedException {
+		for (int i=0; i<10; i++) {
+			queue.put(new BasicDBObject("n", i));
+		}
+
+		// Without room in memory the record is spilled after the timeout
+		long start = System.nanoTime();
+		assertTrue(queue.offer(new BasicDBObject("n", 10), 50, TimeUnit.MILLISECONDS));
+		assertTrue(System.nanoTime()-start >= TimeUnit.MILLISECONDS.toNanos(50));
+		assertEquals(1, queue.getSpilledCount());
+
+		// Once the record on disk is replayed, a consumer makes room in time
+		for (int i=0; i<11; i++) {
+			assertEquals(i, queue.take().get("n"));
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		while (queue.getPendingCount()>0 && System.currentTimeMillis()<deadline) {
+			Thread.sleep(1);
+		}
+		for (int i=0; i<10; i++) {
+			queue.put(new BasicDBObject("n", i));
+		}
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(20);
+					queue.take();
+				} catch (InterruptedException e) {
+				}
+			}
+		}).start();
+		assertTrue(queue.offer(new BasicDBObject("n", 10), 5, TimeUnit.SECONDS));
+		assertEquals(1, queue.getSpilledCount());
+	}
+
+	@Test
+	public void testInterruptedReplay() throws InterruptedException {
+		for (int i=0; i<100; i++) {
+			queue.put(new BasicDBObject("n", i));
+		}
+
+		// The replay thread waits for room in memory, an interrupt while the 
+		// queue is open must not lose the record it holds
+		Thread.sleep(50);
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().equals("SpillingQueue_replay"))
+				thread.interrupt();
+		}
+
+		for (int i=0; i<100; i++) {
+			DBObject object = queue.poll(5, TimeUnit.SECONDS);
+			assertNotNull(object);
+			assertEquals(i, object.get("n"));
+		}
+
+		// The replay thread releases its last record after the put
+		long deadline = System.currentTimeMillis() + 5000;
+		while (queue.getPendingCount()>0 && System.currentTimeMillis()<deadline) {
+			Thread.sleep(1);
+		}
+		assertEquals(0, queue.getPendingCount());
+		assertEquals(queue.getSpilledCount(), queue.getReplayedCount());
+	}
+}
@@ -0,0 +1,107 @@
+package cl.alma.onedocumenttest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Test;
+
+import cl.alma.onedocument.DocumentID;
+import cl.alma.onedocument.InMemoryStorageBackend;
+import cl.alma.onedocument.Metadata;
+import cl.alma.onedocument.MongoManager;
+import cl.alma.onedocument.Sample;
+import cl.alma.onedocument.StageEvents;
+import cl.alma.onedocument.StageEvents.Stage;
+
+public class StageEventsTest {
+
+	@After
+	public void clean() {
+		StageEvents.setListener(null);
+	}
+
+	@Test
+	public void testUpsertStages() {
+		final List<Stage> stages = Collections.synchronizedList(new ArrayList<Stage>());
+		final List<String> ids = Collections.synchronizedList(new ArrayList<String>());
+		StageEvents.setListener(new StageEvents.Listener() {
+			@Override
+			public void onEvent(Stage stage, DocumentID id, long start, long duration) {
+				assertTrue(duration>=0);
+				stages.add(stage);
+				ids.add(id.toString());
+			}
+		});
+
+		MongoManager.setStorage(new InMemoryStorageBackend());
+		MongoManager mongo = MongoManager.mongoManagerFactory(null);
+		DocumentID documentID = new DocumentID(2012, 3, 20, "DA41", "LLC",
+				"POL_MON3");
+		Metadata metadata = new Metadata(documentID, "ASDF Property", "TFING",
+				"as76d6fh", 2, MongoManager.DEFAULT_PREALLOCATE_TIME);
+
+		mongo.upsert(new Sample(metadata, 1, 2, 3, 1.5), true);
+		assertEquals(3, stages.size());
+		assertEquals(Stage.EXISTS_LOOKUP, stages.get(0));
+		assertEquals(Stage.PREALLOCATE, stages.get(1));
+		assertEquals(Stage.UPDATE, stages.get(2));
+		assertEquals(documentID.toString(), ids.get(2));
+
+		// The events are not recorded without a listener
+		StageEvents.setListener(null);
+		assertEquals(0, StageEvents.begin());
+		mongo.upsert(new Sample(metadata, 1, 2, 4, 2.5), true);
+		assertEquals(3, stages.size());
+	}
+
+	@Test
+	public void testLoggingListener() throws InterruptedException {
+		final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+		final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+		Logger logger = Logger.getLogger("StageEventsTest.testLoggingListener");
+		logger.setAdditivity(false);
+		logger.addAppender(new AppenderSkeleton() {
+			@Override
+			protected void append(LoggingEvent event) {
+				messages.add(event.getRenderedMessage());
+				threads.add(event.getThreadName());
+			}
+			@Override
+			public void close() {
+			}
+			@Override
+			public boolean requiresLayout() {
+				return false;
+			}
+		});
+
+		DocumentID documentID = new DocumentID(2012, 3, 20, "DA41", "LLC",
+				"POL_MON3");
+		StageEvents.LoggingListener listener = new StageEvents.LoggingListener(
+				logger, 16);
+		StageEvents.setListener(listener);
+		StageEvents.end(Stage.UPDATE, documentID, StageEvents.begin());
+		for (int i=0; i<100 && messages.isEmpty(); i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, messages.size());
+		assertTrue(messages.get(0).startsWith("UPDATE " + documentID + " "));
+		// The caller never writes to the logger
+		assertEquals("StageEvents", threads.get(0));
+
+		// The pending events are logged on close
+		StageEvents.end(Stage.TRANSFORM, documentID, StageEvents.begin());
+		StageEvents.close();
+		assertFalse(StageEvents.isEnabled());
+		assertEquals(2, messages.size());
+		assertTrue(messages.get(1).startsWith("TRANSFORM "));
+		assertEquals(0, listener.getDroppedCount());
+	}
+}
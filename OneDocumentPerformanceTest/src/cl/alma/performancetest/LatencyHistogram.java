@@ -0,0 +1,110 @@
+package cl.alma.performancetest;
+
+/**
+ * Histogram of latencies with a bounded memory footprint. The values are 
+ * recorded in microseconds into power of two buckets, each one split into 
+ * SUB_BUCKETS linear sub-buckets, so the percentiles have a relative error
+ * lower than 1/SUB_BUCKETS. This class is not thread safe, use one 
+ * histogram per thread and merge them.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = 40;
+
+	private final long[] counts = new long[BUCKETS * SUB_BUCKETS];
+	private long total = 0;
+	private long max = 0;
+	private long sum = 0;
+
+	/**
+	 * Records a latency
+	 * @param nanos Latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		long micros = Math.max(0, nanos/1000);
+		counts[index(micros)]++;
+		total++;
+		sum += micros;
+		if (micros>max)
+			max = micros;
+	}
+
+	/**
+	 * Adds the values of another histogram to this one
+	 * @param other
+	 */
+	public void merge(LatencyHistogram other) {
+		for (int i=0; i<counts.length; i++) {
+			counts[i] += other.counts[i];
+		}
+		total += other.total;
+		sum += other.sum;
+		max = Math.max(max, other.max);
+	}
+
+	public long getCount() {
+		return total;
+	}
+
+	/**
+	 * Returns the latency in microseconds under which the given percentage 
+	 * of values are
+	 * @param percentile From 0 to 100
+	 * @return
+	 */
+	public long getPercentile(double percentile) {
+		if (total==0)
+			return 0;
+
+		long target = (long) Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for (int i=0; i<counts.length; i++) {
+			seen += counts[i];
+			if (seen>=Math.max(1, target))
+				return Math.min(max, upperBound(i));
+		}
+		return max;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	public double getMean() {
+		return total==0 ? 0 : (double) sum / total;
+	}
+
+	/**
+	 * Returns a summary of the percentiles in milliseconds
+	 */
+	@Override
+	public String toString() {
+		return String.format("p50=%.2fms p90=%.2fms p99=%.2fms p99.9=%.2fms max=%.2fms",
+				getPercentile(50)/1000.0, getPercentile(90)/1000.0,
+				getPercentile(99)/1000.0, getPercentile(99.9)/1000.0,
+				max/1000.0);
+	}
+
+	private static int index(long micros) {
+		if (micros<SUB_BUCKETS)
+			return (int) micros;
+
+		int bucket = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS + 1;
+		if (bucket>=BUCKETS)
+			return BUCKETS*SUB_BUCKETS - 1;
+
+		int sub = (int) (micros >>> (bucket - 1)) - SUB_BUCKETS;
+		return bucket*SUB_BUCKETS + sub;
+	}
+
+	private static long upperBound(int index) {
+		int bucket = index / SUB_BUCKETS;
+		int sub = index % SUB_BUCKETS;
+		if (bucket==0)
+			return sub;
+
+		return ((long) (SUB_BUCKETS + sub + 1) << (bucket - 1)) - 1;
+	}
+}
@@ -1,16 +1,21 @@
 package cl.alma.performancetest;
 
 import java.net.UnknownHostException;
-import java.util.Calendar;
-import java.util.GregorianCalendar;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
 
 import cl.alma.onedocument.DocumentID;
 import cl.alma.onedocument.Metadata;
 import cl.alma.onedocument.MongoManager;
+import cl.alma.onedocument.ValueType;
 
+import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
 import com.mongodb.Mongo;
+import com.mongodb.WriteConcern;
 
 
 /**
@@ -18,7 +23,15 @@ import com.mongodb.Mongo;
  * per day per document".
  * 
  * The test consist of create 100.000 document per day for 70 antennas 
- * for 30 days
+ * for 30 days and then, optionally, update them with a per-second stream of
+ * samples at a target rate. <br/>
+ * The antenna/component/monitor point space is split into contiguous ranges,
+ * one per worker thread. Each phase reports its throughput and latency 
+ * percentiles. The writes wait for the acknowledgement of the server, so
+ * the latency includes the server and the failures are counted. <br/>
+ * The defaults can be changed with system properties, i.e., 
+ * -Dhost=localhost -Dthreads=8 -DupdateRate=50000 -DupdateSeconds=60 
+ * -DwriteConcern=SAFE
  *  
  * @author Leonel Peña <leo.dhpl@gmail.com>
  *
@@ -43,6 +56,32 @@ public class Main {
 	public static final int YEAR = 2013;
 	/*  */
 	
+	public static final String HOST = "mongo-r2.osf.alma.cl";
+	public static final String DATABASE = "OneDocumentPerformanceTest";
+	public static final int THREADS = 4;
+	public static final int BATCH_SIZE = 8;
+	// 5 is the size of the values for the monitoring point
+	public static final int VALUE_SIZE = 5;
+	
+	private static String host = System.getProperty("host", HOST);
+	private static String databaseName = System.getProperty("database", DATABASE);
+	private static int antennas = Integer.getInteger("antennas", ANTENNAS);
+	private static int components = Integer.getInteger("components", COMPONENT_PER_ANTENNA);
+	private static int monitorPoints = Integer.getInteger("monitorPoints", MONITOR_POINT_PER_COMPONENT);
+	private static int days = Integer.getInteger("days", DAYS);
+	private static int month = Integer.getInteger("month", MONTH);
+	private static int year = Integer.getInteger("year", YEAR);
+	private static int threads = Integer.getInteger("threads", THREADS);
+	private static int batchSize = Integer.getInteger("batchSize", BATCH_SIZE);
+	private static ValueType valueType = ValueType.valueOf(
+			System.getProperty("valueType", ValueType.STRING.name()));
+	// Updates per second of all threads, 0 disables the update phase
+	private static int updateRate = Integer.getInteger("updateRate", 0);
+	private static int updateSeconds = Integer.getInteger("updateSeconds", 60);
+	// NORMAL does not wait for the server, the latency would only measure 
+	// the socket write
+	private static String writeConcern = System.getProperty("writeConcern", "SAFE");
+
 	/**
 	 * @param args
 	 */
@@ -51,42 +90,216 @@ public class Main {
 		DB database = null;
 		try {
 			//mongo = new Mongo("localhost");
-			mongo = new Mongo("mongo-r2.osf.alma.cl");
-			database = mongo.getDB("OneDocumentPerformanceTest");
+			mongo = new Mongo(host);
+			database = mongo.getDB(databaseName);
 		} catch (UnknownHostException e) {
 			e.printStackTrace();
 			System.exit(-1);
 		}
 		
 		MongoManager.setConnection(mongo, database);
-		MongoManager mongoManager = MongoManager.mongoManagerFactory(null);
-		DBCollection collection = database.getCollection("monitorData_"+MONTH);
+		DBCollection collection = database.getCollection("monitorData_"+month);
+		WriteConcern concern = WriteConcern.valueOf(writeConcern);
+		if (concern==null)
+			throw new IllegalArgumentException("Unknown write concern: "+writeConcern);
+		collection.setWriteConcern(concern);
 		
-		for (int day=1; day<=DAYS; day++) {
-			for (int antenna=1; antenna<=ANTENNAS; antenna++) {
-				for (int component=1; component<=COMPONENT_PER_ANTENNA; component++) {
-					for (int monitorPoint=1; monitorPoint<=MONITOR_POINT_PER_COMPONENT; monitorPoint++) {
-						
-						DocumentID doc = new DocumentID(YEAR, MONTH, day,
-								"Antenna_"+antenna, "Component_"+component, 
-								"MP_"+monitorPoint);
-						
-						Metadata meta = new Metadata(doc, "asdf", "AOS", 
-								"lkjhg", 0, 1);
-						
-						Calendar tStart = new GregorianCalendar(YEAR, MONTH, 
-								day, 0, 0, 0);
-						
-						// 5 is the size of the values for the monitoring point 
-						//collection.insert(mongoManager.preAllocate(meta, tStart.getTime(), 5));
-						//collection.insert(mongoManager.preAllocate(meta,5));
-						collection.insert(MongoManager.getPreallocatedDocument(meta,5));
-					}
-				}
-			}
+		long space = (long) antennas*components*monitorPoints;
+		System.out.println("Monitor points: "+space+", days: "+days+
+				", threads: "+threads+", batch size: "+batchSize+
+				", write concern: "+writeConcern);
+
+		runPhase("preallocation", collection, space, false);
+		if (updateRate>0) {
+			runPhase("updates", collection, space, true);
 		}
 		
 		mongo.close();
 	}
 
+	/**
+	 * Runs a phase with one worker per range of monitor points and prints 
+	 * its report
+	 */
+	private static void runPhase(String name, DBCollection collection, 
+			long space, boolean updates) {
+
+		List<Worker> workers = new ArrayList<Worker>(threads);
+		List<Thread> workerThreads = new ArrayList<Thread>(threads);
+		for (int i=0; i<threads; i++) {
+			long from = space*i/threads;
+			long to = space*(i+1)/threads;
+			Worker worker = new Worker(collection, from, to, updates);
+			workers.add(worker);
+			workerThreads.add(new Thread(worker, name+"_"+i));
+		}
+
+		long start = System.nanoTime();
+		for (Thread thread : workerThreads) {
+			thread.start();
+		}
+		for (Thread thread : workerThreads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		double seconds = (System.nanoTime() - start)/1e9;
+
+		LatencyHistogram latency = new LatencyHistogram();
+		long documents = 0;
+		long errors = 0;
+		for (Worker worker : workers) {
+			latency.merge(worker.latency);
+			documents += worker.documents;
+			errors += worker.errors;
+		}
+
+		System.out.println(String.format("[%s] %d documents in %.1fs: %.1f docs/s, "+
+				"%d operations, %.1f ops/s, %d errors", name, documents, seconds,
+				documents/seconds, latency.getCount(), latency.getCount()/seconds, 
+				errors));
+		System.out.println(String.format("[%s] latency per operation: %s", name,
+				latency));
+	}
+
+	/**
+	 * Returns the document of the i-th monitor point of a day
+	 */
+	private static DocumentID documentID(int day, long index) {
+		int monitorPoint = (int) (index % monitorPoints) + 1;
+		int component = (int) (index / monitorPoints % components) + 1;
+		int antenna = (int) (index / monitorPoints / components) + 1;
+
+		return new DocumentID(year, month, day, "Antenna_"+antenna, 
+				"Component_"+component, "MP_"+monitorPoint);
+	}
+
+	/**
+	 * Preallocates or updates the documents of a range of monitor points
+	 */
+	private static class Worker implements Runnable {
+
+		private final DBCollection collection;
+		private final long from;
+		private final long to;
+		private final boolean updates;
+
+		final LatencyHistogram latency = new LatencyHistogram();
+		long documents = 0;
+		long errors = 0;
+
+		Worker(DBCollection collection, long from, long to, boolean updates) {
+			this.collection = collection;
+			this.from = from;
+			this.to = to;
+			this.updates = updates;
+		}
+
+		@Override
+		public void run() {
+			if (updates) {
+				update();
+			} else {
+				preallocate();
+			}
+		}
+
+		private void preallocate() {
+			List<DBObject> batch = new ArrayList<DBObject>(batchSize);
+			for (int day=1; day<=days; day++) {
+				for (long i=from; i<to; i++) {
+					DocumentID doc = documentID(day, i);
+					Metadata meta = new Metadata(doc, "asdf", "AOS", 
+							"lkjhg", 0, 1);
+
+					batch.add(MongoManager.getPreallocatedDocument(meta, 
+							valueType, VALUE_SIZE));
+					if (batch.size()==batchSize) {
+						insert(batch);
+					}
+				}
+			}
+			if (!batch.isEmpty()) {
+				insert(batch);
+			}
+		}
+
+		private void insert(List<DBObject> batch) {
+			long start = System.nanoTime();
+			try {
+				collection.insert(batch);
+				documents += batch.size();
+			} catch (RuntimeException e) {
+				errors++;
+			}
+			latency.record(System.nanoTime() - start);
+			batch.clear();
+		}
+
+		/**
+		 * Every monitor point of the range receives one sample per second 
+		 * of the first day, at the share of the target rate of this worker.
+		 * The latency is measured from the scheduled time, so a slow server
+		 * is not hidden by the pacing.
+		 */
+		private void update() {
+			long points = to - from;
+			if (points==0)
+				return;
+
+			double rate = (double) updateRate * points / 
+					((double) antennas*components*monitorPoints);
+			long interval = (long) (1e9 / rate);
+			long total = (long) (rate * updateSeconds);
+
+			String[] ids = new String[(int) points];
+			for (int i=0; i<points; i++) {
+				ids[i] = documentID(1, from + i).toString();
+			}
+
+			long start = System.nanoTime();
+			for (long n=0; n<total; n++) {
+				long scheduled = start + n*interval;
+				long now = System.nanoTime();
+				if (scheduled>now) {
+					LockSupport.parkNanos(scheduled - now);
+				}
+
+				// All points are updated once before moving to the next second
+				int second = (int) (n / points % 86400);
+				String attribute = "hourly." + (second/3600) + "." + 
+						(second/60%60) + "." + (second%60);
+				Object value = value(n);
+
+				try {
+					collection.update(new BasicDBObject("_id", ids[(int) (n % points)]),
+							new BasicDBObject("$set", new BasicDBObject(attribute, value)),
+							false, false);
+					documents++;
+				} catch (RuntimeException e) {
+					errors++;
+				}
+				latency.record(System.nanoTime() - scheduled);
+			}
+		}
+
+		/**
+		 * Returns a value of the configured type for the n-th update
+		 */
+		private Object value(long n) {
+			switch (valueType) {
+			case DOUBLE:
+				return Double.valueOf(n * 0.5);
+			case LONG:
+				return Long.valueOf(n);
+			case BOOLEAN:
+				// Stored as int32, see MongoManager.placeholder
+				return Integer.valueOf((int) (n % 2));
+			default:
+				return "v" + (n % 10000);
+			}
+		}
+	}
 }